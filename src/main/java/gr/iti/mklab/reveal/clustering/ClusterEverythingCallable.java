@@ -2,7 +2,9 @@ package gr.iti.mklab.reveal.clustering;
 
 import com.aliasi.tokenizer.TokenizerFactory;
 
+import gr.iti.mklab.reveal.clustering.index.NeighborhoodIndex;
 import gr.iti.mklab.reveal.util.Configuration;
+import gr.iti.mklab.reveal.visual.VectorStore;
 import gr.iti.mklab.reveal.visual.VisualIndexClient;
 import gr.iti.mklab.simmo.core.annotations.Clustered;
 import gr.iti.mklab.simmo.core.items.Image;
@@ -10,14 +12,17 @@ import gr.iti.mklab.simmo.core.items.Media;
 import gr.iti.mklab.simmo.core.items.Video;
 import gr.iti.mklab.simmo.core.morphia.MediaDAO;
 import gr.iti.mklab.simmo.core.morphia.MorphiaManager; 
-import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.math3.ml.clustering.Cluster;
+import org.apache.log4j.Logger;
 import org.mongodb.morphia.dao.BasicDAO;
 import org.mongodb.morphia.dao.DAO;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.stream.Collectors;
 
 /**
  * A clustering callable which incrementally clusters all items in the given collection
@@ -26,6 +31,8 @@ import java.util.concurrent.Callable;
  */
 public class ClusterEverythingCallable implements Callable<List<Cluster<ClusterableMedia>>> {
 
+	private final static Logger LOGGER = Logger.getLogger(ClusterEverythingCallable.class);
+
     private String collection;
     private double eps;
     private int minpoints;
@@ -46,9 +53,16 @@ public class ClusterEverythingCallable implements Callable<List<Cluster<Clustera
         
         String indexServiceHost = "http://" + Configuration.INDEX_SERVICE_HOST + ":8080/VisualIndexService";
 		VisualIndexClient vIndexClient = new VisualIndexClient(indexServiceHost, collection);   
+		VectorStore vectorStore = null;
+		try {
+			vectorStore = VectorStore.open(collection);
+		} catch (IOException e) {
+			LOGGER.error("Cannot open local vector store for " + collection + ", vectors are requested from the visual index", e);
+		}
 		
         TokenizerFactory tokFactory = new NormalizedTokenizerFactory();
-        DBSCANClusterer<ClusterableMedia> clusterer = new DBSCANClusterer<ClusterableMedia>(eps, minpoints);
+        DBSCANClusterer<ClusterableMedia> clusterer = new DBSCANClusterer<ClusterableMedia>(eps, minpoints,
+                NeighborhoodIndex.Type.valueOf(Configuration.CLUSTERING_INDEX));
         DAO<gr.iti.mklab.simmo.core.cluster.Cluster, String> clusterDAO = new BasicDAO<>(gr.iti.mklab.simmo.core.cluster.Cluster.class, MorphiaManager.getMongoClient(), MorphiaManager.getMorphia(), MorphiaManager.getDB(collection).getName());
         List<org.apache.commons.math3.ml.clustering.Cluster<ClusterableMedia>> centroids = null;
 
@@ -60,13 +74,12 @@ public class ClusterEverythingCallable implements Callable<List<Cluster<Clustera
             System.out.println("Clustering images iteration " + k);
             List<ClusterableMedia> list = new ArrayList<>();
             List<Image> images = imageDAO.getItems(ITEMS_PER_ITERATION, k);
+            Map<String, float[]> vectors = VectorStore.loadVectors(vectorStore, images.stream().map(Image::getId).collect(Collectors.toList()), vIndexClient);
             images.stream().forEach(image -> {
-                Double[] vector = vIndexClient.getVector(image.getId());
-           
-                if (vector != null && vector.length == 1024) {
-                    list.add(new ClusterableMedia(image, ArrayUtils.toPrimitive(vector)));
+                float[] vector = vectors.get(image.getId());
+                if (vector != null) {
+                    list.add(new ClusterableMedia(image, vector));
                 }
-                
             });
             centroids = clusterer.clusterIncremental(list, centroids);
         }
@@ -76,10 +89,11 @@ public class ClusterEverythingCallable implements Callable<List<Cluster<Clustera
             System.out.println("Clustering videos iteration " + k);
             List<ClusterableMedia> list = new ArrayList<>();
             List<Video> videos = videoDAO.getItems(ITEMS_PER_ITERATION, k);
+            Map<String, float[]> vectors = VectorStore.loadVectors(vectorStore, videos.stream().map(Video::getId).collect(Collectors.toList()), vIndexClient);
             videos.stream().forEach(video -> {
-                Double[] vector = vIndexClient.getVector(video.getId());
-                if (vector != null && vector.length == 1024) {
-                    list.add(new ClusterableMedia(video, ArrayUtils.toPrimitive(vector)));
+                float[] vector = vectors.get(video.getId());
+                if (vector != null) {
+                    list.add(new ClusterableMedia(video, vector));
                 }
             });
 
@@ -87,6 +101,8 @@ public class ClusterEverythingCallable implements Callable<List<Cluster<Clustera
         }
 
         clusterDAO.deleteByQuery(clusterDAO.createQuery());
+        // the states are rebuilt from the new clusters on the next incremental run
+        new ClusterStateStore(collection).clear();
         System.out.println("DBSCAN NUMBER OF CLUSTERS " + centroids.size());
         for (org.apache.commons.math3.ml.clustering.Cluster<ClusterableMedia> c : centroids) {
             List<Media> initial = new ArrayList<>();
@@ -0,0 +1,238 @@
+package gr.iti.mklab.reveal.clustering;
+
+import gr.iti.mklab.simmo.core.morphia.MorphiaManager;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * Keeps the state the incremental clustering needs for each cluster of a collection in the
+ * ClusterState collection: the ids of its members, the centroid of their vectors and the
+ * radius of the cluster, an upper bound of the distance of any member from the centroid.
+ *
+ * A point is within eps of all the members of a cluster if its distance from the centroid
+ * plus the radius is at most eps, and of none of them if its distance minus the radius is
+ * above eps, so the members of a cluster have to be loaded only when a new point falls in
+ * between.
+ */
+public class ClusterStateStore {
+
+	private final static Logger LOGGER = Logger.getLogger(ClusterStateStore.class);
+
+	public final static String COLLECTION = "ClusterState";
+
+	private final static String MEMBERS = "members";
+	private final static String CENTROID = "centroid";
+	private final static String RADIUS = "radius";
+	private final static String SIZE = "size";
+
+	private final DBCollection states;
+
+	public ClusterStateStore(String collection) {
+		this.states = MorphiaManager.getDB(collection).getCollection(COLLECTION);
+	}
+
+	public long count() {
+		return states.count();
+	}
+
+	/**
+	 * @return the centroid and radius of all the clusters, without their members
+	 */
+	public List<ClusterState> load() {
+		List<ClusterState> clusters = new ArrayList<ClusterState>();
+		DBObject fields = new BasicDBObject(CENTROID, 1).append(RADIUS, 1).append(SIZE, 1);
+		try (DBCursor cursor = states.find(new BasicDBObject(), fields)) {
+			while (cursor.hasNext()) {
+				DBObject state = cursor.next();
+				clusters.add(new ClusterState(state.get("_id").toString(), toFloats((byte[]) state.get(CENTROID)),
+						((Number) state.get(RADIUS)).doubleValue(), ((Number) state.get(SIZE)).intValue()));
+			}
+		}
+		return clusters;
+	}
+
+	/**
+	 * @return the member ids of the given clusters
+	 */
+	public Map<String, List<String>> getMembers(Collection<String> clusterIds) {
+		Map<String, List<String>> members = new HashMap<String, List<String>>();
+		if (clusterIds.isEmpty()) {
+			return members;
+		}
+
+		DBObject query = new BasicDBObject("_id", new BasicDBObject("$in", clusterIds));
+		try (DBCursor cursor = states.find(query, new BasicDBObject(MEMBERS, 1))) {
+			while (cursor.hasNext()) {
+				DBObject state = cursor.next();
+				List<String> ids = new ArrayList<String>();
+				for (Object id : (List<?>) state.get(MEMBERS)) {
+					ids.add(id.toString());
+				}
+				members.put(state.get("_id").toString(), ids);
+			}
+		}
+		return members;
+	}
+
+	/**
+	 * Writes the centroid, radius and size of the given clusters and appends their new members,
+	 * creating the states of new clusters, in a single bulk write.
+	 *
+	 * @param newMembers the ids of the members added to each cluster since it was last saved
+	 */
+	public void save(Collection<ClusterState> clusters, Map<String, List<String>> newMembers) {
+		if (clusters.isEmpty()) {
+			return;
+		}
+
+		BulkWriteOperation bulk = states.initializeUnorderedBulkOperation();
+		for (ClusterState cluster : clusters) {
+			DBObject update = new BasicDBObject("$set", new BasicDBObject(CENTROID, toBytes(cluster.centroid))
+					.append(RADIUS, cluster.radius)
+					.append(SIZE, cluster.size));
+			List<String> ids = newMembers.get(cluster.id);
+			if (ids != null && !ids.isEmpty()) {
+				update.put("$addToSet", new BasicDBObject(MEMBERS, new BasicDBObject("$each", ids)));
+			}
+			bulk.find(new BasicDBObject("_id", cluster.id)).upsert().updateOne(update);
+		}
+
+		try {
+			bulk.execute();
+		}
+		catch (BulkWriteException e) {
+			LOGGER.error("Failed to save " + e.getWriteErrors().size() + " cluster states for " + states.getDB().getName());
+		}
+	}
+
+	public void delete(Collection<String> clusterIds) {
+		if (!clusterIds.isEmpty()) {
+			states.remove(new BasicDBObject("_id", new BasicDBObject("$in", clusterIds)));
+		}
+	}
+
+	public void clear() {
+		states.drop();
+	}
+
+	private static byte[] toBytes(float[] vector) {
+		ByteBuffer buffer = ByteBuffer.allocate(4 * vector.length);
+		buffer.asFloatBuffer().put(vector);
+		return buffer.array();
+	}
+
+	private static float[] toFloats(byte[] bytes) {
+		float[] vector = new float[bytes.length / 4];
+		ByteBuffer.wrap(bytes).asFloatBuffer().get(vector);
+		return vector;
+	}
+
+	/**
+	 * The centroid and radius of a cluster.
+	 */
+	public static class ClusterState {
+
+		private final String id;
+		private float[] centroid;
+		private double radius;
+		private int size;
+
+		public ClusterState(String id, float[] centroid, double radius, int size) {
+			this.id = id;
+			this.centroid = centroid;
+			this.radius = radius;
+			this.size = size;
+		}
+
+		/**
+		 * @return the state of a cluster with the given member vectors
+		 */
+		public static ClusterState of(String id, List<float[]> vectors) {
+			ClusterState state = new ClusterState(id, null, 0, 0);
+			state.add(vectors);
+			return state;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public float[] getCentroid() {
+			return centroid;
+		}
+
+		public double getRadius() {
+			return radius;
+		}
+
+		public int getSize() {
+			return size;
+		}
+
+		/**
+		 * @return the distance of the vector from the centroid
+		 */
+		public double distance(float[] vector) {
+			return FloatVectors.distance(centroid, vector);
+		}
+
+		/**
+		 * @return false if the vector is surely farther than eps from every member
+		 */
+		public boolean mayContain(float[] vector, double eps) {
+			return centroid != null && distance(vector) - radius <= eps;
+		}
+
+		/**
+		 * Moves the centroid to the mean of the old and the new members and grows the radius
+		 * so that it still bounds the distance of every member from the centroid.
+		 */
+		public void add(List<float[]> vectors) {
+			if (vectors.isEmpty()) {
+				return;
+			}
+
+			int dimension = vectors.get(0).length;
+			double[] sum = new double[dimension];
+			if (centroid != null) {
+				for (int i = 0; i < dimension; i++) {
+					sum[i] = (double) centroid[i] * size;
+				}
+			}
+			for (float[] vector : vectors) {
+				for (int i = 0; i < dimension; i++) {
+					sum[i] += vector[i];
+				}
+			}
+
+			int newSize = size + vectors.size();
+			float[] newCentroid = new float[dimension];
+			for (int i = 0; i < dimension; i++) {
+				newCentroid[i] = (float) (sum[i] / newSize);
+			}
+
+			double newRadius = centroid == null ? 0 : radius + FloatVectors.distance(centroid, newCentroid);
+			for (float[] vector : vectors) {
+				newRadius = Math.max(newRadius, FloatVectors.distance(newCentroid, vector));
+			}
+
+			this.centroid = newCentroid;
+			this.radius = newRadius;
+			this.size = newSize;
+		}
+	}
+}
@@ -0,0 +1,313 @@
+package gr.iti.mklab.reveal.clustering;
+
+import gr.iti.mklab.reveal.summarization.SparseVector;
+import gr.iti.mklab.reveal.summarization.Vector;
+import gr.iti.mklab.reveal.summarization.Vocabulary;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * What the summary mode of the {@link IncrementalClusterer} keeps of a cluster instead of its
+ * members: the mean visual vector, the merged text vector, the number of members, the mean
+ * distances of the members from the centroid at the time they joined, and the vectors of the
+ * member closest to the centroid, so that it can be compared with the next members.
+ *
+ * The stored summary also holds keys by which it is found again once it has been dropped from
+ * memory, see {@link SummaryClusterer}: the LSH keys of its visual centroid and its most
+ * frequent terms.
+ */
+public class ClusterSummary implements FloatClusterable {
+
+	private final String id;
+
+	private float[] visual;
+	private int visualCount = 0;
+	private Vector text;
+	// the tf-idf weights of the text in the vocabulary of the current job, computed on first use after each change
+	private volatile SparseText sparseText;
+
+	private int size = 0;
+	private double distanceSum = 0, textDistanceSum = 0, visualDistanceSum = 0;
+	private int textDistances = 0, visualDistances = 0;
+
+	// the member closest to the centroid, with its vectors
+	private String centroidId;
+	private Vector centroidText;
+	private float[] centroidVisual;
+
+	// the keys of the stored summary, set by the clusterer before it is written
+	private long[] visualKeys;
+	private List<String> terms;
+
+	private long lastUpdate;
+
+	public ClusterSummary(String id) {
+		this.id = id;
+		this.lastUpdate = System.currentTimeMillis();
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * @return the mean visual vector of the members, or null if none has a visual vector
+	 */
+	@Override
+	public float[] getVector() {
+		return visual;
+	}
+
+	@Override
+	public double[] getPoint() {
+		return FloatVectors.toDoubles(visual);
+	}
+
+	/**
+	 * @return the merged text vector of the members, or null if none has a text vector
+	 */
+	public Vector getText() {
+		return text;
+	}
+
+	/**
+	 * The summary outlives the vocabulary of the job that created it, so its text is weighted
+	 * with the vocabulary of the items it is compared with.
+	 *
+	 * @return the tf-idf weights of the merged text vector in the vocabulary, or null if none has a text vector
+	 */
+	public SparseVector getSparseText(Vocabulary vocabulary) {
+		SparseText weights = sparseText;
+		if (text == null) {
+			return null;
+		}
+		if (weights == null || weights.vocabulary != vocabulary) {
+			weights = new SparseText(vocabulary, SparseVector.of(text, vocabulary));
+			sparseText = weights;
+		}
+		return weights.vector;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public String getCentroidId() {
+		return centroidId;
+	}
+
+	/**
+	 * @return the text vector of the member closest to the centroid, or null
+	 */
+	public Vector getCentroidText() {
+		return centroidText;
+	}
+
+	/**
+	 * @return the visual vector of the member closest to the centroid, or null
+	 */
+	public float[] getCentroidVisual() {
+		return centroidVisual;
+	}
+
+	/**
+	 * Sets the member closest to the centroid.
+	 */
+	public void setCentroid(String memberId, Vector textVector, float[] visualVector) {
+		this.centroidId = memberId;
+		this.centroidText = textVector;
+		this.centroidVisual = visualVector;
+	}
+
+	/**
+	 * @param visualKeys the LSH keys of the visual centroid, or null
+	 */
+	public void setVisualKeys(long[] visualKeys) {
+		this.visualKeys = visualKeys;
+	}
+
+	/**
+	 * @param terms the most important terms of the merged text, or null
+	 */
+	public void setTerms(List<String> terms) {
+		this.terms = terms;
+	}
+
+	public long getLastUpdate() {
+		return lastUpdate;
+	}
+
+	/**
+	 * Adds a member to the summary. The first member is the member closest to the centroid
+	 * until the clusterer finds a closer one.
+	 *
+	 * @param distances the combined, text and visual distances of the member from the centroid
+	 * before it joined, or null for the first member
+	 */
+	public void add(String memberId, Vector textVector, float[] visualVector, double[] distances) {
+		if (visualVector != null) {
+			if (visual == null) {
+				visual = visualVector.clone();
+			}
+			else {
+				// running mean, the summary does not keep the sum
+				float weight = 1f / (visualCount + 1);
+				for (int i = 0; i < visual.length; i++) {
+					visual[i] += (visualVector[i] - visual[i]) * weight;
+				}
+			}
+			visualCount++;
+		}
+		if (textVector != null) {
+			if (text == null) {
+				text = new Vector();
+			}
+			text.mergeVector(textVector);
+			sparseText = null;
+		}
+
+		if (distances == null) {
+			setCentroid(memberId, textVector, visualVector);
+		}
+		else {
+			distanceSum += distances[0];
+			if (!Double.isNaN(distances[1])) {
+				textDistanceSum += distances[1];
+				textDistances++;
+			}
+			if (!Double.isNaN(distances[2])) {
+				visualDistanceSum += distances[2];
+				visualDistances++;
+			}
+		}
+		size++;
+		lastUpdate = System.currentTimeMillis();
+	}
+
+	public Map<String, Double> getAvgDistances() {
+		Map<String, Double> distances = new HashMap<String, Double>();
+		distances.put("avgDistance", distanceSum / Math.max(1, size - 1));
+		distances.put("textAvgDistance", textDistanceSum / Math.max(1, textDistances));
+		distances.put("visualAvgDistance", visualDistanceSum / Math.max(1, visualDistances));
+		return distances;
+	}
+
+	public DBObject toDBObject() {
+		BasicDBObject summary = new BasicDBObject("_id", id)
+				.append("size", size)
+				.append("visualCount", visualCount)
+				.append("distanceSum", distanceSum)
+				.append("textDistanceSum", textDistanceSum)
+				.append("textDistances", textDistances)
+				.append("visualDistanceSum", visualDistanceSum)
+				.append("visualDistances", visualDistances)
+				.append("centroidId", centroidId)
+				.append("lastUpdate", lastUpdate);
+		if (visual != null) {
+			summary.append("visual", toBytes(visual));
+		}
+		if (text != null) {
+			summary.append("text", toDBObject(text));
+		}
+		if (centroidVisual != null) {
+			summary.append("centroidVisual", toBytes(centroidVisual));
+		}
+		if (centroidText != null) {
+			summary.append("centroidText", toDBObject(centroidText));
+		}
+		if (visualKeys != null) {
+			List<Long> keys = new ArrayList<Long>(visualKeys.length);
+			for (long key : visualKeys) {
+				keys.add(key);
+			}
+			summary.append("visualKeys", keys);
+		}
+		if (terms != null) {
+			summary.append("terms", terms);
+		}
+		return summary;
+	}
+
+	public static ClusterSummary fromDBObject(DBObject object) {
+		ClusterSummary summary = new ClusterSummary(object.get("_id").toString());
+		summary.size = ((Number) object.get("size")).intValue();
+		summary.visualCount = ((Number) object.get("visualCount")).intValue();
+		summary.distanceSum = ((Number) object.get("distanceSum")).doubleValue();
+		summary.textDistanceSum = ((Number) object.get("textDistanceSum")).doubleValue();
+		summary.textDistances = ((Number) object.get("textDistances")).intValue();
+		summary.visualDistanceSum = ((Number) object.get("visualDistanceSum")).doubleValue();
+		summary.visualDistances = ((Number) object.get("visualDistances")).intValue();
+		summary.centroidId = (String) object.get("centroidId");
+		summary.lastUpdate = ((Number) object.get("lastUpdate")).longValue();
+
+		summary.visual = toFloats((byte[]) object.get("visual"));
+		summary.text = toVector((DBObject) object.get("text"));
+		// summaries written before the vectors of the centroid were kept have none, their next member replaces it
+		summary.centroidVisual = toFloats((byte[]) object.get("centroidVisual"));
+		summary.centroidText = toVector((DBObject) object.get("centroidText"));
+		return summary;
+	}
+
+	private static byte[] toBytes(float[] vector) {
+		ByteBuffer buffer = ByteBuffer.allocate(4 * vector.length);
+		buffer.asFloatBuffer().put(vector);
+		return buffer.array();
+	}
+
+	private static float[] toFloats(byte[] bytes) {
+		if (bytes == null) {
+			return null;
+		}
+		float[] vector = new float[bytes.length / 4];
+		ByteBuffer.wrap(bytes).asFloatBuffer().get(vector);
+		return vector;
+	}
+
+	private static DBObject toDBObject(Vector vector) {
+		BasicDBObject terms = new BasicDBObject();
+		for (Map.Entry<String, Double> term : vector.getWordsMap().entrySet()) {
+			terms.append(escape(term.getKey()), term.getValue());
+		}
+		return terms;
+	}
+
+	private static Vector toVector(DBObject terms) {
+		if (terms == null) {
+			return null;
+		}
+		Map<String, Double> tfs = new HashMap<String, Double>();
+		for (String term : terms.keySet()) {
+			tfs.put(unescape(term), ((Number) terms.get(term)).doubleValue());
+		}
+		return new Vector(tfs);
+	}
+
+	/**
+	 * Mongodb keys cannot contain dots or start with $, so they are replaced by their full width forms.
+	 */
+	private static String escape(String term) {
+		return term.replace('.', '\uFF0E').replace('$', '\uFF04');
+	}
+
+	private static String unescape(String term) {
+		return term.replace('\uFF0E', '.').replace('\uFF04', '$');
+	}
+
+	private static class SparseText {
+
+		private final Vocabulary vocabulary;
+		private final SparseVector vector;
+
+		SparseText(Vocabulary vocabulary, SparseVector vector) {
+			this.vocabulary = vocabulary;
+			this.vector = vector;
+		}
+	}
+}
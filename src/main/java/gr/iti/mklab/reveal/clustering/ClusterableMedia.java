@@ -1,28 +1,42 @@
 package gr.iti.mklab.reveal.clustering;
 
 import gr.iti.mklab.simmo.core.items.Media;
-import org.apache.commons.math3.ml.clustering.Clusterable;
 
 /**
  * A wrapper class around an Image or Video and its feature vector,
  * which implements the Clusterable interface in order to get clustered
- * by a Clusterer
+ * by a Clusterer. The vector is kept as a normalized float32 array.
  *
  * @author kandreadou
  *
  */
-public class ClusterableMedia implements Clusterable {
+public class ClusterableMedia implements FloatClusterable {
 
-    public double[] vector;
+    public float[] vector;
     public Media item;
+    public String id;
 
-    public ClusterableMedia(Media item, double[] vector) {
+    public ClusterableMedia(Media item, float[] vector) {
         this.item = item;
-        this.vector = vector;
+        this.id = item.getId();
+        this.vector = FloatVectors.normalize(vector);
+    }
+
+    /**
+     * A member of a stored cluster, known only by its id.
+     */
+    public ClusterableMedia(String id, float[] vector) {
+        this.id = id;
+        this.vector = FloatVectors.normalize(vector);
     }
 
     @Override
-    public double[] getPoint() {
+    public float[] getVector() {
         return vector;
     }
+
+    @Override
+    public double[] getPoint() {
+        return FloatVectors.toDoubles(vector);
+    }
 }
@@ -2,7 +2,10 @@ package gr.iti.mklab.reveal.clustering;
 
 import com.aliasi.tokenizer.TokenizerFactory;
 
+import gr.iti.mklab.reveal.clustering.ClusterStateStore.ClusterState;
+import gr.iti.mklab.reveal.clustering.index.NeighborhoodIndex;
 import gr.iti.mklab.reveal.util.Configuration;
+import gr.iti.mklab.reveal.visual.VectorStore;
 import gr.iti.mklab.reveal.visual.VisualIndexClient;
 import gr.iti.mklab.simmo.core.annotations.Clustered;
 import gr.iti.mklab.simmo.core.items.Image;
@@ -11,15 +14,28 @@ import gr.iti.mklab.simmo.core.items.Video;
 import gr.iti.mklab.simmo.core.morphia.MediaDAO;
 import gr.iti.mklab.simmo.core.morphia.MorphiaManager;
 
-import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.math3.ml.clustering.Cluster;
+import org.apache.commons.math3.ml.distance.EuclideanDistance;
 import org.apache.log4j.Logger;
 import org.mongodb.morphia.dao.BasicDAO;
 import org.mongodb.morphia.dao.DAO;
+import org.mongodb.morphia.query.Query;
+import org.mongodb.morphia.query.UpdateOperations;
 
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.stream.Collectors;
 
 /**
  * A clustering callable which clusters the given number of images and videos from
@@ -36,6 +52,13 @@ public class ClusteringCallable implements Callable<List<Cluster<ClusterableMedi
     private double eps;
     private int minpoints;
 
+    /**
+     * Clusters that reach this size are not kept.
+     */
+    private final static int MAX_CLUSTER_SIZE = 100;
+
+    private final static double CENTROID_SLACK = 1e-4;
+
     public ClusteringCallable(String collection, int count, double eps, int minpoints) {
         this.collection = collection;
         this.count = count;
@@ -49,22 +72,19 @@ public class ClusteringCallable implements Callable<List<Cluster<ClusterableMedi
         
         String indexServiceHost = "http://" + Configuration.INDEX_SERVICE_HOST + ":8080/VisualIndexService";
 		VisualIndexClient vIndexClient = new VisualIndexClient(indexServiceHost, collection);  
+		VectorStore vectorStore = null;
+		try {
+			vectorStore = VectorStore.open(collection);
+		} catch (IOException e) {
+			_logger.error("Cannot open local vector store for " + collection + ", vectors are requested from the visual index", e);
+		}
 		
         TokenizerFactory tokFactory = new NormalizedTokenizerFactory();
-        //First get the existing clusters for this collection
         DAO<gr.iti.mklab.simmo.core.cluster.Cluster, String> clusterDAO = new BasicDAO<>(gr.iti.mklab.simmo.core.cluster.Cluster.class, MorphiaManager.getMongoClient(), MorphiaManager.getMorphia(), MorphiaManager.getDB(collection).getName());
-        List<gr.iti.mklab.simmo.core.cluster.Cluster> clustersINDB = clusterDAO.find().asList();
-        List<org.apache.commons.math3.ml.clustering.Cluster<ClusterableMedia>> existingClusters = new ArrayList<>();
-        clustersINDB.stream().forEach(dbCluster -> {
-            org.apache.commons.math3.ml.clustering.Cluster<ClusterableMedia> item = new org.apache.commons.math3.ml.clustering.Cluster<>();
-            dbCluster.getMembers().stream().forEach(mediaItem -> {
-                String id = ((Media)mediaItem).getId();
-				Double[] vector = vIndexClient.getVector(id);
-				
-				item.addPoint(new ClusterableMedia((Media) mediaItem, ArrayUtils.toPrimitive(vector)));
-            });
-            existingClusters.add(item);
-        });
+        ClusterStateStore stateStore = new ClusterStateStore(collection);
+        if (stateStore.count() == 0 && clusterDAO.count() > 0) {
+        	initStates(clusterDAO, stateStore, vectorStore, vIndexClient);
+        }
         
         List<ClusterableMedia> list = new ArrayList<>();
         //images
@@ -72,56 +92,270 @@ public class ClusteringCallable implements Callable<List<Cluster<ClusterableMedi
 
         List<Image> images = imageDAO.getIndexedNotClustered(count);
         _logger.info("Indexed not clustered images " + images.size());
+        Map<String, float[]> imageVectors = VectorStore.loadVectors(vectorStore, images.stream().map(Image::getId).collect(Collectors.toList()), vIndexClient);
         images.stream().forEach(i -> {
-            Double[] vector = vIndexClient.getVector(i.getId());
-            if (vector != null && vector.length == 1024) {
-                list.add(new ClusterableMedia(i, ArrayUtils.toPrimitive(vector)));
+            float[] vector = imageVectors.get(i.getId());
+            if (vector != null) {
+                list.add(new ClusterableMedia(i, vector));
             }
         });
         
         //videos
         MediaDAO<Video> videoDAO = new MediaDAO<>(Video.class, collection);
         List<Video> videos = videoDAO.getIndexedNotClustered(count);
-        System.out.println("Indexed not clustered videos "+videos.size());
+        _logger.info("Indexed not clustered videos " + videos.size());
+        Map<String, float[]> videoVectors = VectorStore.loadVectors(vectorStore, videos.stream().map(Video::getId).collect(Collectors.toList()), vIndexClient);
         videos.stream().forEach(i -> {
-            Double[] vector = vIndexClient.getVector(i.getId());
-            if (vector != null && vector.length == 1024) {
-                list.add(new ClusterableMedia(i, ArrayUtils.toPrimitive(vector)));
+            float[] vector = videoVectors.get(i.getId());
+            if (vector != null) {
+                list.add(new ClusterableMedia(i, vector));
         	}
         });
         
-        DBSCANClusterer<ClusterableMedia> clusterer = new DBSCANClusterer<ClusterableMedia>(eps, minpoints);
-        List<org.apache.commons.math3.ml.clustering.Cluster<ClusterableMedia>> centroids = clusterer.clusterIncremental(list, existingClusters);
-        clusterDAO.deleteByQuery(clusterDAO.createQuery());
+        //Then get the existing clusters that the new items may join. The members of the other clusters are not needed,
+        //as a new item joins a cluster only if it is within eps of all its members
+        Map<Cluster<ClusterableMedia>, ClusterState> existing = loadCandidateClusters(list, stateStore, vectorStore, vIndexClient);
+        _logger.info(existing.size() + " existing clusters of " + collection + " may be extended");
+        
+        DBSCANClusterer<ClusterableMedia> clusterer = new DBSCANClusterer<ClusterableMedia>(eps, minpoints,
+                NeighborhoodIndex.Type.valueOf(Configuration.CLUSTERING_INDEX));
+        List<Cluster<ClusterableMedia>> centroids = clusterer.clusterIncremental(list, new ArrayList<>(existing.keySet()));
         _logger.info("DBSCAN found " + centroids.size() + " clusters for " + collection);
-        for (org.apache.commons.math3.ml.clustering.Cluster<ClusterableMedia> c : centroids) {
+        
+        //The new items of an existing cluster are deduplicated against its stored members too
+        List<String> storedIds = new ArrayList<>();
+        for (Cluster<ClusterableMedia> c : centroids) {
+        	if (existing.containsKey(c)) {
+        		c.getPoints().stream().filter(p -> p.item == null).forEach(p -> storedIds.add(p.id));
+        	}
+        }
+        Map<String, String> storedTitles = loadTitles(imageDAO, storedIds);
+        storedTitles.putAll(loadTitles(videoDAO, storedIds));
+        
+        List<ClusterState> changed = new ArrayList<>();
+        List<String> dropped = new ArrayList<>();
+        Map<String, List<String>> newMemberIds = new HashMap<>();
+        Map<String, List<String>> clusteredImages = new HashMap<>();
+        Map<String, List<String>> clusteredVideos = new HashMap<>();
+        for (Cluster<ClusterableMedia> c : centroids) {
+        	// only the new items of a cluster are written, the stored members are left as they are
             List<Media> initial = new ArrayList<>();
-            gr.iti.mklab.simmo.core.cluster.Cluster cluster = new gr.iti.mklab.simmo.core.cluster.Cluster();
-            cluster.setSize(c.getPoints().size());
-            c.getPoints().stream().forEach(clusterable -> {
-                Media media = clusterable.item;
-                media.addAnnotation(new Clustered(cluster.getId()));
-                initial.add(media);
-                if (media instanceof Image) {
-                    imageDAO.save((Image) media);
-                } else {
-                    videoDAO.save((Video) media);
+            List<String> keptTitles = new ArrayList<>();
+            Map<String, float[]> vectors = new HashMap<>();
+            for (ClusterableMedia clusterable : c.getPoints()) {
+            	if (clusterable.item != null) {
+            		initial.add(clusterable.item);
+            		vectors.put(clusterable.id, clusterable.vector);
+            	}
+            	else {
+            		keptTitles.add(storedTitles.get(clusterable.id));
+            	}
+            }
+            if (initial.isEmpty()) {
+            	continue;
+            }
+            
+            List<Media> filteredNomralized = TextDeduplication.filterNormalizedDuplicates(initial, keptTitles, tokFactory);
+            List<Media> filteredJaccard = TextDeduplication.filterMediaJaccard(filteredNomralized, keptTitles, tokFactory, 0.5);
+            List<float[]> memberVectors = filteredJaccard.stream().map(m -> vectors.get(m.getId())).collect(Collectors.toList());
+            List<String> memberIds = filteredJaccard.stream().map(Media::getId).collect(Collectors.toList());
+            
+            ClusterState state = existing.get(c);
+            String clusterId;
+            boolean kept = false;
+            if (state == null) {
+                gr.iti.mklab.simmo.core.cluster.Cluster cluster = new gr.iti.mklab.simmo.core.cluster.Cluster();
+                filteredJaccard.stream().forEach(m -> cluster.addMember(m));
+                cluster.setSize(filteredJaccard.size());
+                clusterId = cluster.getId();
+                if (cluster.getSize() < MAX_CLUSTER_SIZE) {
+                    clusterDAO.save(cluster);
+                    changed.add(ClusterState.of(clusterId, memberVectors));
+                    newMemberIds.put(clusterId, memberIds);
+                    kept = true;
                 }
-            });
+            }
+            else {
+            	clusterId = state.getId();
+            	if (state.getSize() + filteredJaccard.size() < MAX_CLUSTER_SIZE) {
+            		Query<gr.iti.mklab.simmo.core.cluster.Cluster> query = clusterDAO.createQuery().filter("_id", clusterId);
+            		UpdateOperations<gr.iti.mklab.simmo.core.cluster.Cluster> ops = clusterDAO.createUpdateOperations()
+            				.addAll("members", filteredJaccard, false)
+            				.inc("size", filteredJaccard.size());
+            		clusterDAO.update(query, ops);
+            		state.add(memberVectors);
+            		changed.add(state);
+            		newMemberIds.put(clusterId, memberIds);
+            		kept = true;
+            	}
+            	else {
+            		// clusters that grow too large are dropped, their stored members stay annotated
+            		clusterDAO.deleteById(clusterId);
+            		dropped.add(clusterId);
+            	}
+            }
+            _logger.info("Cluster " + clusterId + ": " + initial.size() + " new items, " + filteredJaccard.size() + " after deduplication"
+            		+ (kept ? "" : ", too large to keep"));
             
-            System.out.println("Initial size " + initial.size());
-            List<Media> filteredNomralized = TextDeduplication.filterNormalizedDuplicates(initial, tokFactory);
-            System.out.println("After normalization size " + filteredNomralized.size());
-            List<Media> filteredJaccard = TextDeduplication.filterMediaJaccard(filteredNomralized, tokFactory, 0.5);
-            System.out.println("After jaccard size " + filteredJaccard.size());
-            filteredJaccard.stream().forEach(m -> cluster.addMember(m));
-            cluster.setSize(filteredJaccard.size());
-            if (cluster.getSize() < 100) {
-                clusterDAO.save(cluster);
+            // the new items of a cluster that is not kept are left unclustered, as the noise points are
+            if (!kept) {
+            	continue;
+            }
+            for (Media media : initial) {
+            	(media instanceof Image ? clusteredImages : clusteredVideos).computeIfAbsent(clusterId, k -> new ArrayList<>()).add(media.getId());
             }
         }
+        
+        annotate(imageDAO, clusteredImages);
+        annotate(videoDAO, clusteredVideos);
+        stateStore.save(changed, newMemberIds);
+        stateStore.delete(dropped);
+        _logger.info(changed.size() + " clusters of " + collection + " saved, " + dropped.size() + " dropped");
+        
         return centroids;
     }
-
-  
+    
+    /**
+     * Loads the members of the stored clusters that some of the given points may join.
+     * <p/>
+     * A point within eps of all the members of a cluster is within eps of their mean too, so the candidates are
+     * found by a query of radius eps around each point in a VP-tree of the centroids, instead of comparing every
+     * point with every centroid. Clusters with members whose vectors are missing are not candidates, as the join
+     * condition cannot be checked for them.
+     */
+    private Map<Cluster<ClusterableMedia>, ClusterState> loadCandidateClusters(List<ClusterableMedia> points, ClusterStateStore stateStore,
+    		VectorStore vectorStore, VisualIndexClient vIndexClient) {
+    	NeighborhoodIndex<Centroid> centroids = NeighborhoodIndex.create(NeighborhoodIndex.Type.VP_TREE, new EuclideanDistance(), eps);
+    	for (ClusterState state : stateStore.load()) {
+    		if (state.getCentroid() != null) {
+    			centroids.add(new Centroid(state, state.getCentroid()));
+    		}
+    	}
+    	
+    	// the slack covers the rounding of the float32 centroids
+    	double radius = eps * (1 + CENTROID_SLACK);
+    	Map<String, ClusterState> candidates = new HashMap<>();
+    	for (ClusterableMedia point : points) {
+    		for (Centroid centroid : centroids.getNeighbors(new Centroid(null, point.vector), radius)) {
+    			candidates.put(centroid.state.getId(), centroid.state);
+    		}
+    	}
+    	
+    	Map<String, List<String>> members = stateStore.getMembers(candidates.keySet());
+    	Map<String, float[]> memberVectors = VectorStore.loadVectors(vectorStore, members.values().stream()
+    			.flatMap(List::stream).collect(Collectors.toList()), vIndexClient);
+    	
+    	Map<Cluster<ClusterableMedia>, ClusterState> clusters = new IdentityHashMap<>();
+    	int incomplete = 0;
+    	for (Map.Entry<String, List<String>> entry : members.entrySet()) {
+    		Cluster<ClusterableMedia> cluster = new Cluster<>();
+    		for (String id : entry.getValue()) {
+    			float[] vector = memberVectors.get(id);
+    			if (vector == null) {
+    				cluster = null;
+    				break;
+    			}
+    			cluster.addPoint(new ClusterableMedia(id, vector));
+    		}
+    		// an empty cluster would take every point
+    		if (cluster == null || cluster.getPoints().isEmpty()) {
+    			incomplete++;
+    			continue;
+    		}
+    		clusters.put(cluster, candidates.get(entry.getKey()));
+    	}
+    	if (incomplete > 0) {
+    		_logger.info(incomplete + " clusters of " + collection + " are not extended, as vectors of their members are missing");
+    	}
+    	return clusters;
+    }
+    
+    /**
+     * The centroid of a stored cluster, or a point to query the centroids with.
+     */
+    private static class Centroid implements FloatClusterable {
+    	
+    	private final ClusterState state;
+    	private final float[] vector;
+    	
+    	Centroid(ClusterState state, float[] vector) {
+    		this.state = state;
+    		this.vector = vector;
+    	}
+    	
+    	@Override
+    	public float[] getVector() {
+    		return vector;
+    	}
+    	
+    	@Override
+    	public double[] getPoint() {
+    		return FloatVectors.toDoubles(vector);
+    	}
+    }
+    
+    /**
+     * Builds the states of clusters stored before the states were kept, or after a ClusterEverythingCallable.
+     */
+    private void initStates(DAO<gr.iti.mklab.simmo.core.cluster.Cluster, String> clusterDAO, ClusterStateStore stateStore,
+    		VectorStore vectorStore, VisualIndexClient vIndexClient) {
+    	_logger.info("Build the cluster states of " + collection);
+    	List<ClusterState> states = new ArrayList<>();
+    	Map<String, List<String>> members = new HashMap<>();
+    	for (gr.iti.mklab.simmo.core.cluster.Cluster dbCluster : clusterDAO.find()) {
+    		List<String> memberIds = dbCluster.getMembers().stream().map(mediaItem -> ((Media) mediaItem).getId()).collect(Collectors.toList());
+    		Map<String, float[]> vectors = VectorStore.loadVectors(vectorStore, memberIds, vIndexClient);
+    		List<String> ids = memberIds.stream().filter(vectors::containsKey).collect(Collectors.toList());
+    		if (!ids.isEmpty()) {
+    			states.add(ClusterState.of(dbCluster.getId(), ids.stream().map(id -> FloatVectors.normalize(vectors.get(id))).collect(Collectors.toList())));
+    			members.put(dbCluster.getId(), ids);
+    		}
+    	}
+    	stateStore.save(states, members);
+    }
+    
+    /**
+     * @return the titles of the given media found in the collection of the DAO, by id
+     */
+    private Map<String, String> loadTitles(MediaDAO<? extends Media> dao, List<String> ids) {
+    	Map<String, String> titles = new HashMap<>();
+    	if (ids.isEmpty()) {
+    		return titles;
+    	}
+    	
+    	try (DBCursor cursor = dao.getCollection().find(new BasicDBObject("_id", new BasicDBObject("$in", ids)), new BasicDBObject("title", 1))) {
+    		while (cursor.hasNext()) {
+    			DBObject media = cursor.next();
+    			Object title = media.get("title");
+    			if (title != null) {
+    				titles.put(media.get("_id").toString(), title.toString());
+    			}
+    		}
+    	}
+    	return titles;
+    }
+    
+    /**
+     * Adds the Clustered annotations to the given media with one multi-document update per cluster, in a single bulk write.
+     * 
+     * @param ids the ids of the new members of each cluster
+     */
+    private void annotate(MediaDAO<? extends Media> dao, Map<String, List<String>> ids) {
+    	if (ids.isEmpty()) {
+    		return;
+    	}
+    	
+    	BulkWriteOperation bulk = dao.getCollection().initializeUnorderedBulkOperation();
+    	for (Map.Entry<String, List<String>> entry : ids.entrySet()) {
+    		DBObject annotation = MorphiaManager.getMorphia().toDBObject(new Clustered(entry.getKey()));
+    		bulk.find(new BasicDBObject("_id", new BasicDBObject("$in", entry.getValue())))
+    			.update(new BasicDBObject("$addToSet", new BasicDBObject("annotations", annotation)));
+    	}
+    	try {
+    		bulk.execute();
+    	}
+    	catch (BulkWriteException e) {
+    		_logger.error("Failed to annotate " + e.getWriteErrors().size() + " clusters of " + collection);
+    	}
+    }
 }
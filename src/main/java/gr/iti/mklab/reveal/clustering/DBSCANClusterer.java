@@ -21,6 +21,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -34,6 +35,8 @@ import org.apache.commons.math3.ml.distance.DistanceMeasure;
 import org.apache.commons.math3.ml.distance.EuclideanDistance;
 import org.apache.commons.math3.util.MathUtils;
 
+import gr.iti.mklab.reveal.clustering.index.NeighborhoodIndex;
+
 /**
  * An incremental variation of the DBSCAN algorithm
  * @author kandreadou
@@ -74,6 +77,11 @@ public class DBSCANClusterer<T extends Clusterable> extends Clusterer<T> {
      */
     private final int minPts;
 
+    /**
+     * Type of the index used for the neighborhood queries.
+     */
+    private final NeighborhoodIndex.Type indexType;
+
     /**
      * Status of a point during the clustering process.
      */
@@ -111,6 +119,34 @@ public class DBSCANClusterer<T extends Clusterable> extends Clusterer<T> {
      * @throws NotPositiveException if {@code eps < 0.0} or {@code minPts < 0}
      */
     public DBSCANClusterer(final double eps, final int minPts, final DistanceMeasure measure) throws NotPositiveException {
+        this(eps, minPts, measure, NeighborhoodIndex.Type.LINEAR);
+    }
+
+    /**
+     * Creates a new instance of a DBSCANClusterer that uses the euclidean distance and the
+     * given type of index for the neighborhood queries.
+     *
+     * @param eps       maximum radius of the neighborhood to be considered
+     * @param minPts    minimum number of points needed for a cluster
+     * @param indexType the index of the neighborhood queries
+     * @throws NotPositiveException if {@code eps < 0.0} or {@code minPts < 0}
+     */
+    public DBSCANClusterer(final double eps, final int minPts, final NeighborhoodIndex.Type indexType) throws NotPositiveException {
+        this(eps, minPts, new EuclideanDistance(), indexType);
+    }
+
+    /**
+     * Creates a new instance of a DBSCANClusterer.
+     *
+     * @param eps       maximum radius of the neighborhood to be considered
+     * @param minPts    minimum number of points needed for a cluster
+     * @param measure   the distance measure to use
+     * @param indexType the index of the neighborhood queries. VP_TREE requires a metric distance. LSH is
+     *                  approximate, so a few neighbors are missed and some core points may be taken for noise.
+     * @throws NotPositiveException if {@code eps < 0.0} or {@code minPts < 0}
+     */
+    public DBSCANClusterer(final double eps, final int minPts, final DistanceMeasure measure,
+                           final NeighborhoodIndex.Type indexType) throws NotPositiveException {
         super(measure);
 
         if (eps < 0.0d) {
@@ -121,6 +157,7 @@ public class DBSCANClusterer<T extends Clusterable> extends Clusterer<T> {
         }
         this.eps = eps;
         this.minPts = minPts;
+        this.indexType = indexType;
     }
 
     /**
@@ -156,16 +193,17 @@ public class DBSCANClusterer<T extends Clusterable> extends Clusterer<T> {
 
         final List<Cluster<T>> clusters = new ArrayList<Cluster<T>>();
         final Map<Clusterable, PointStatus> visited = new HashMap<Clusterable, PointStatus>();
+        final NeighborhoodIndex<T> index = createIndex(points);
 
         for (final T point : points) {
             if (visited.get(point) != null) {
                 continue;
             }
-            final List<T> neighbors = getNeighbors(point, points);
+            final List<T> neighbors = index.getNeighbors(point, eps);
             if (neighbors.size() >= minPts) {
                 // DBSCAN does not care about center points
                 final Cluster<T> cluster = new Cluster<T>();
-                clusters.add(expandCluster(cluster, point, neighbors, points, visited));
+                clusters.add(expandCluster(cluster, point, neighbors, index, visited));
             } else {
                 visited.put(point, PointStatus.NOISE);
             }
@@ -175,7 +213,13 @@ public class DBSCANClusterer<T extends Clusterable> extends Clusterer<T> {
     }
 
     /**
-     * Performs DBSCAN cluster analysis. An incremental variation which takes pre-existing clusters into consideration
+     * Performs DBSCAN cluster analysis. An incremental variation which takes pre-existing clusters into consideration:
+     * a point joins an existing cluster if it is within eps of all the points of that cluster.
+     * <p/>
+     * The points of the existing clusters are kept in a neighborhood index too, so each point is compared only
+     * with the points of the existing clusters in its neighborhood, instead of all of them. That index is always
+     * exact, even if the clusterer uses LSH: a point joins a cluster only if it finds all of its members, so a
+     * single missed neighbor would keep it out.
      *
      * @param points           the points to cluster
      * @param existingClusters the existing clusters from past iterations
@@ -191,28 +235,60 @@ public class DBSCANClusterer<T extends Clusterable> extends Clusterer<T> {
         if(existingClusters!=null && !existingClusters.isEmpty())
             clusters.addAll(existingClusters);
         final Map<Clusterable, PointStatus> visited = new HashMap<>();
+        final NeighborhoodIndex<T> index = createIndex(points);
+
+        // the points of the existing clusters, and the clusters each of them belongs to
+        final NeighborhoodIndex.Type existingIndexType = indexType == NeighborhoodIndex.Type.LSH ? NeighborhoodIndex.Type.VP_TREE : indexType;
+        final NeighborhoodIndex<T> existingIndex = NeighborhoodIndex.create(existingIndexType, getDistanceMeasure(), eps);
+        final Map<T, List<Cluster<T>>> membership = new IdentityHashMap<>();
+        final List<Cluster<T>> emptyClusters = new ArrayList<>();
+        if (existingClusters != null) {
+            for (Cluster<T> cl : existingClusters) {
+                if (cl.getPoints().isEmpty()) {
+                    emptyClusters.add(cl);
+                }
+                for (T member : cl.getPoints()) {
+                    addMember(existingIndex, membership, member, cl);
+                }
+            }
+        }
 
         for (final T point : points) {
 
             //First check if the point can be integrated into an existing cluster
             if (existingClusters != null && !existingClusters.isEmpty()) {
-                existingClusters.stream().forEach(cl -> {
-                    if (isNeighbor(point, cl.getPoints())) {
-                        visited.put(point, PointStatus.PART_OF_CLUSTER);
-                        cl.addPoint(point);
+                // count the neighbors of the point in each existing cluster
+                final Map<Cluster<T>, Integer> counts = new IdentityHashMap<>();
+                for (T neighbor : existingIndex.getNeighbors(point, eps)) {
+                    for (Cluster<T> cl : membership.get(neighbor)) {
+                        counts.merge(cl, 1, Integer::sum);
                     }
-                });
+                }
+
+                final List<Cluster<T>> joined = new ArrayList<>(emptyClusters);
+                for (Map.Entry<Cluster<T>, Integer> count : counts.entrySet()) {
+                    if (count.getValue() == count.getKey().getPoints().size()) {
+                        joined.add(count.getKey());
+                    }
+                }
+                emptyClusters.removeAll(joined);
+
+                for (Cluster<T> cl : joined) {
+                    visited.put(point, PointStatus.PART_OF_CLUSTER);
+                    cl.addPoint(point);
+                    addMember(existingIndex, membership, point, cl);
+                }
             }
 
             if (visited.get(point) != null) {
                 continue;
             }
             
-            final List<T> neighbors = getNeighbors(point, points);
+            final List<T> neighbors = index.getNeighbors(point, eps);
             if (neighbors.size() >= minPts) {
                 // DBSCAN does not care about center points
                 final Cluster<T> cluster = new Cluster<T>();
-                clusters.add(expandCluster(cluster, point, neighbors, points, visited));
+                clusters.add(expandCluster(cluster, point, neighbors, index, visited));
             } else {
                 visited.put(point, PointStatus.NOISE);
             }
@@ -228,14 +304,14 @@ public class DBSCANClusterer<T extends Clusterable> extends Clusterer<T> {
      * @param cluster   Cluster to expand
      * @param point     Point to add to cluster
      * @param neighbors List of neighbors
-     * @param points    the data set
+     * @param pointsIndex the index of the data set
      * @param visited   the set of already visited points
      * @return the expanded cluster
      */
     private Cluster<T> expandCluster(final Cluster<T> cluster,
                                      final T point,
                                      final List<T> neighbors,
-                                     final Collection<T> points,
+                                     final NeighborhoodIndex<T> pointsIndex,
                                      final Map<Clusterable, PointStatus> visited) {
         cluster.addPoint(point);
         visited.put(point, PointStatus.PART_OF_CLUSTER);
@@ -247,7 +323,7 @@ public class DBSCANClusterer<T extends Clusterable> extends Clusterer<T> {
             PointStatus pStatus = visited.get(current);
             // only check non-visited points
             if (pStatus == null) {
-                final List<T> currentNeighbors = getNeighbors(current, points);
+                final List<T> currentNeighbors = pointsIndex.getNeighbors(current, eps);
                 if (currentNeighbors.size() >= minPts) {
                     seeds = merge(seeds, currentNeighbors);
                 }
@@ -264,39 +340,29 @@ public class DBSCANClusterer<T extends Clusterable> extends Clusterer<T> {
     }
 
     /**
-     * Returns a list of density-reachable neighbors of a {@code point}.
+     * Creates an index of the data set for the neighborhood queries.
      *
-     * @param point  the point to look for
-     * @param points possible neighbors
-     * @return the List of neighbors
+     * @param points the data set
+     * @return the index
      */
-    private List<T> getNeighbors(final T point, final Collection<T> points) {
-        final List<T> neighbors = new ArrayList<T>();
-        for (final T neighbor : points) {
-            if (point != neighbor && distance(neighbor, point) <= eps) {
-                neighbors.add(neighbor);
-            }
-        }
-        return neighbors;
+    private NeighborhoodIndex<T> createIndex(final Collection<T> points) {
+        final NeighborhoodIndex<T> index = NeighborhoodIndex.create(indexType, getDistanceMeasure(), eps);
+        index.addAll(points);
+        return index;
     }
 
     /**
-     * Returns true if the given point is a neighbor of the points in the given list
-     *
-     * @param point  the point to look for
-     * @param points possible neighbors
-     * @return true if it is a neighbor, false otherwise
+     * Adds a point of an existing cluster to the index of the existing clusters.
      */
-    private boolean isNeighbor(final T point, final Collection<T> points) {
-        for (final T neighbor : points) {
-            if (distance(neighbor, point) <= eps) {
-                continue;
-            }
-            else {
-                return false;
-            }
+    private void addMember(final NeighborhoodIndex<T> existingIndex, final Map<T, List<Cluster<T>>> membership,
+                           final T point, final Cluster<T> cluster) {
+        List<Cluster<T>> clusters = membership.get(point);
+        if (clusters == null) {
+            clusters = new ArrayList<>(1);
+            membership.put(point, clusters);
+            existingIndex.add(point);
         }
-        return true;
+        clusters.add(cluster);
     }
 
     /**
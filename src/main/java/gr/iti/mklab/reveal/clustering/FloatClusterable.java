@@ -0,0 +1,14 @@
+package gr.iti.mklab.reveal.clustering;
+
+import org.apache.commons.math3.ml.clustering.Clusterable;
+
+/**
+ * A Clusterable point that keeps its coordinates as a unit length float32 vector.
+ * Neighborhood indices compare such points with the {@link FloatVectors} kernels
+ * when the distance is euclidean, and {@link #getPoint()} is only a fallback for
+ * other distance measures.
+ */
+public interface FloatClusterable extends Clusterable {
+
+    float[] getVector();
+}
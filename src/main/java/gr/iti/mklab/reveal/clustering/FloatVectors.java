@@ -0,0 +1,108 @@
+package gr.iti.mklab.reveal.clustering;
+
+/**
+ * Distance kernels over float32 vectors, used by the clustering of visual features.
+ *
+ * The loops are unrolled by four with independent accumulators, so the JIT can keep
+ * them in vector registers, and accumulate in float since the features are unit
+ * length and the distances of interest are small.
+ */
+public final class FloatVectors {
+
+    /**
+     * The number of dimensions between two checks of the early-abandon bound.
+     */
+    private static final int BLOCK = 64;
+
+    private FloatVectors() {
+    }
+
+    /**
+     * Scales the vector in place to unit length. Zero vectors are left as they are.
+     *
+     * @return the same vector
+     */
+    public static float[] normalize(float[] vector) {
+        double norm = 0;
+        for (float value : vector) {
+            norm += value * value;
+        }
+        if (norm > 0 && Math.abs(norm - 1) > 1e-6) {
+            float scale = (float) (1. / Math.sqrt(norm));
+            for (int i = 0; i < vector.length; i++) {
+                vector[i] *= scale;
+            }
+        }
+        return vector;
+    }
+
+    /**
+     * @return the squared euclidean distance between the two vectors
+     */
+    public static float squaredDistance(float[] a, float[] b) {
+        int length = Math.min(a.length, b.length);
+        return squaredDistance(a, b, 0, length, 0);
+    }
+
+    /**
+     * Computes the squared euclidean distance, but gives up once the partial sum exceeds
+     * the limit: a neighborhood query only needs to know that a point is out of range.
+     *
+     * @param limit the squared distance beyond which the exact value is not needed
+     * @return the squared distance, or a value greater than limit if it exceeds it
+     */
+    public static float squaredDistance(float[] a, float[] b, float limit) {
+        int length = Math.min(a.length, b.length);
+        float sum = 0;
+        for (int from = 0; from < length; from += BLOCK) {
+            sum = squaredDistance(a, b, from, Math.min(from + BLOCK, length), sum);
+            if (sum > limit) {
+                return sum;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * @return the euclidean distance between the two vectors
+     */
+    public static double distance(float[] a, float[] b) {
+        return Math.sqrt(squaredDistance(a, b));
+    }
+
+    /**
+     * @return true if the euclidean distance of the two vectors is at most eps
+     */
+    public static boolean isWithin(float[] a, float[] b, double eps) {
+        float limit = (float) (eps * eps);
+        return squaredDistance(a, b, limit) <= limit;
+    }
+
+    public static double[] toDoubles(float[] vector) {
+        double[] doubles = new double[vector.length];
+        for (int i = 0; i < vector.length; i++) {
+            doubles[i] = vector[i];
+        }
+        return doubles;
+    }
+
+    private static float squaredDistance(float[] a, float[] b, int from, int to, float sum) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = from;
+        for (; i + 3 < to; i += 4) {
+            float d0 = a[i] - b[i];
+            float d1 = a[i + 1] - b[i + 1];
+            float d2 = a[i + 2] - b[i + 2];
+            float d3 = a[i + 3] - b[i + 3];
+            s0 += d0 * d0;
+            s1 += d1 * d1;
+            s2 += d2 * d2;
+            s3 += d3 * d3;
+        }
+        for (; i < to; i++) {
+            float d = a[i] - b[i];
+            s0 += d * d;
+        }
+        return sum + (s0 + s1) + (s2 + s3);
+    }
+}
@@ -4,10 +4,13 @@ import gr.iti.mklab.reveal.clustering.ensemble.TextDistance;
 import gr.iti.mklab.reveal.clustering.ensemble.TextVectorFeature;
 import gr.iti.mklab.reveal.clustering.ensemble.VectorCentroid;
 import gr.iti.mklab.reveal.clustering.ensemble.VisualDistance;
+import gr.iti.mklab.reveal.clustering.ensemble.VisualVectorCentroid;
+import gr.iti.mklab.reveal.clustering.ensemble.VisualVectorFeature;
 import gr.iti.mklab.reveal.crawler.LinkDetectionRunner;
 import gr.iti.mklab.reveal.summarization.Vector;
 import gr.iti.mklab.reveal.summarization.Vocabulary;
 import gr.iti.mklab.reveal.util.Configuration;
+import gr.iti.mklab.reveal.visual.VectorStore;
 import gr.iti.mklab.reveal.visual.VisualIndexClient;
 import gr.iti.mklab.simmo.core.annotations.Clustered;
 import gr.iti.mklab.simmo.core.documents.Webpage;
@@ -29,8 +32,6 @@ import com.oculusinfo.ml.DataSet;
 import com.oculusinfo.ml.Instance;
 import com.oculusinfo.ml.distance.DistanceFunction;
 import com.oculusinfo.ml.feature.Feature;
-import com.oculusinfo.ml.feature.numeric.NumericVectorFeature;
-import com.oculusinfo.ml.feature.numeric.centroid.MeanNumericVectorCentroid;
 import com.oculusinfo.ml.unsupervised.cluster.AbstractClusterer;
 import com.oculusinfo.ml.unsupervised.cluster.Cluster;
 import com.oculusinfo.ml.unsupervised.cluster.ClusterResult;
@@ -38,10 +39,9 @@ import com.oculusinfo.ml.unsupervised.cluster.Clusterer;
 import com.oculusinfo.ml.unsupervised.cluster.dpmeans.DPMeans;
 import com.oculusinfo.ml.unsupervised.cluster.threshold.ThresholdClusterer;
 
-import edu.stanford.nlp.util.ArrayUtils;
-
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -69,16 +69,25 @@ public class IncrementalClusterer implements Runnable {
 	
 	private DAO<gr.iti.mklab.simmo.core.cluster.Cluster, String> clusterDAO;
 	private VisualIndexClient vIndexClient;
+	private VectorStore vectorStore;
 
 	private double threshold;
 	private double textualWeight;
 	private double visualWeight;
 
 	private CLUSTERER_TYPE type;
+	private SummaryClusterer summaries;
 	
+	/**
+	 * THRESHOLD and DPMEANS run the clusterers of the ensemble clustering library, which
+	 * compare each item with every cluster in a single thread. SUMMARY, the default, assigns
+	 * the items of a batch to the clusters in parallel in the shared compute pool.
+	 */
 	public static enum CLUSTERER_TYPE {
 		THRESHOLD, 
-		DPMEANS
+		DPMEANS,
+		// threshold clustering that keeps only a summary of each cluster
+		SUMMARY
 	};
 	
     public IncrementalClusterer(String collection, double threshold, double textualWeight, double visualWeight, CLUSTERER_TYPE type) {
@@ -98,9 +107,18 @@ public class IncrementalClusterer implements Runnable {
     
         String indexServiceHost = "http://" + Configuration.INDEX_SERVICE_HOST + ":8080/VisualIndexService";
 		vIndexClient = new VisualIndexClient(indexServiceHost, collection);  
+		try {
+			vectorStore = VectorStore.open(collection);
+		} catch (IOException e) {
+			LOGGER.error("Cannot open local vector store for " + collection, e);
+		}
 		
         clusterDAO = new BasicDAO<gr.iti.mklab.simmo.core.cluster.Cluster, String>(gr.iti.mklab.simmo.core.cluster.Cluster.class, MorphiaManager.getMongoClient(), MorphiaManager.getMorphia(), collection);
     
+        if(type.equals(CLUSTERER_TYPE.SUMMARY)) {
+        	summaries = new SummaryClusterer(MorphiaManager.getDB(collection).getCollection(SummaryClusterer.COLLECTION), 
+        			threshold, textualWeight, visualWeight, Configuration.CLUSTER_SUMMARY_MAX_ACTIVE, Configuration.CLUSTER_SUMMARY_MAX_IDLE);
+        }
     }
 
     public void stop() {
@@ -116,6 +134,10 @@ public class IncrementalClusterer implements Runnable {
 		} catch (IOException e) {
 		}
     	
+    	if(summaries != null) {
+    		summaries.load();
+    	}
+    	
     	Map<String, Cluster> clustersMap = new HashMap<String, Cluster>();
         Set<String> processed = new HashSet<String>();	
         while(isRunning) {
@@ -124,18 +146,12 @@ public class IncrementalClusterer implements Runnable {
         	
         	Map<String, Media> mediaToBeClustered = new HashMap<String, Media>();
         	Map<String, String> texts = new HashMap<String, String>();
-            Map<String, Double[]> visualVectors = new HashMap<String, Double[]>();
             
             List<Image> images = imageDAO.getIndexedNotClustered(STEP);
             images.stream().forEach(m -> {
             	if(!processed.contains(m.getId())) {
             		processed.add(m.getId());
             		mediaToBeClustered.put(m.getId(), m);
-            		
-                	Double[] vector = vIndexClient.getVector(m.getId());
-                	if (vector != null && vector.length == 1024) {
-                		visualVectors.put(m.getId(), vector);
-                	}
             		texts.put(m.getId(), m.getTitle());
             	}
             });
@@ -145,15 +161,13 @@ public class IncrementalClusterer implements Runnable {
             	if(!processed.contains(m.getId())) {
             		processed.add(m.getId());
             		mediaToBeClustered.put(m.getId(), m);
-            		
-            		Double[] vector = vIndexClient.getVector(m.getId());
-                	if (vector != null && vector.length == 1024) {
-                		visualVectors.put(m.getId(), vector);
-                	}
                 	texts.put(m.getId(), m.getTitle());
             	}
             });
-            Map<String, Vector> textualVectors = Vocabulary.createVocabulary(texts, 2);
+            Map<String, float[]> visualVectors = VectorStore.loadVectors(vectorStore, mediaToBeClustered.keySet(), vIndexClient);
+            // a vocabulary per run, with which the members of the clusters of earlier runs are weighted again
+            Vocabulary vocabulary = new Vocabulary();
+            Map<String, Vector> textualVectors = vocabulary.createVocabulary(texts, 2);
        
             if(mediaToBeClustered.isEmpty()) {
             	try {
@@ -170,6 +184,16 @@ public class IncrementalClusterer implements Runnable {
             
             LOGGER.info(collection + " clustering: " + mediaToBeClustered.size() + " media items to be clustered. " + visualVectors.size() + " visual vectors. " + textualVectors.size());
             
+            if(summaries != null) {
+            	clusterSummaries(mediaToBeClustered, textualVectors, visualVectors);
+            	// the items of earlier batches are annotated or deleted by now, so only the ids the last queries returned have to be remembered
+            	Set<String> returned = new HashSet<String>();
+            	images.forEach(m -> returned.add(m.getId()));
+            	videos.forEach(m -> returned.add(m.getId()));
+            	processed.retainAll(returned);
+            	continue;
+            }
+            
             int textualMissing = 0, visualMissing = 0;
             
             Set<String> discardedMedia = new HashSet<String>();
@@ -189,10 +213,10 @@ public class IncrementalClusterer implements Runnable {
             		textualMissing++;
             	}
             	
-				Double[] visualVector = visualVectors.get(mId);
+				float[] visualVector = visualVectors.get(mId);
 				if(visualVector != null) {
-					NumericVectorFeature vfv = new NumericVectorFeature("visual");
-					vfv.setValue(ArrayUtils.toPrimitive(visualVector));
+					VisualVectorFeature vfv = new VisualVectorFeature("visual");
+					vfv.setValue(FloatVectors.normalize(visualVector));
 					instance.addFeature(vfv);
 				}
 				else {
@@ -228,8 +252,8 @@ public class IncrementalClusterer implements Runnable {
             	break;
             }
 			
-    		clusterer.registerFeatureType("text", VectorCentroid.class, new TextDistance(textualWeight));
-    		clusterer.registerFeatureType("visual", MeanNumericVectorCentroid.class, new VisualDistance(visualWeight));
+    		clusterer.registerFeatureType("text", VectorCentroid.class, new TextDistance(textualWeight, vocabulary));
+    		clusterer.registerFeatureType("visual", VisualVectorCentroid.class, new VisualDistance(visualWeight));
     		
     		int newClusters = 0;
             ClusterResult clusterResult = clusterer.doIncrementalCluster(ds, new ArrayList<Cluster>(clustersMap.values()));
@@ -250,13 +274,17 @@ public class IncrementalClusterer implements Runnable {
             		
             		if(newMembers.size() > 0) {
             			LOGGER.info(collection + " clustering: update cluster " + cluster.getId() + " (" + cluster.size() + ") with " + newMembers.size() + " new members");
-            			updateCluster(cluster, newMembers, centroidId, avgDistances);
+            			updateCluster(cluster.getId(), newMembers, centroidId, avgDistances);
             		}
             	}
             	else {
             		newClusters++;
             		LOGGER.info(collection + " clustering: save new cluster " + cluster.getId() + " (" + cluster.size() + ")");
-            		saveCluster(cluster, mediaToBeClustered, centroidId,  avgDistances);
+            		List<String> memberIds = new ArrayList<String>();
+            		for(Instance instance : cluster.getMembers()) {
+            			memberIds.add(instance.getId());
+            		}
+            		saveCluster(cluster.getId(), memberIds, cluster.size(), mediaToBeClustered, centroidId,  avgDistances);
             	}
             	
             	clustersMap.put(cluster.getId(), cluster);
@@ -273,6 +301,70 @@ public class IncrementalClusterer implements Runnable {
         
     }
     
+    /**
+     * Assigns the media to the cluster summaries and writes the new and changed clusters.
+     */
+    private void clusterSummaries(Map<String, Media> mediaToBeClustered, Map<String, Vector> textualVectors, Map<String, float[]> visualVectors) {
+    	Map<String, ClusterSummary> clusters = new HashMap<String, ClusterSummary>();
+    	Map<String, List<Media>> newMembers = new HashMap<String, List<Media>>();
+    	Set<String> newClusters = new HashSet<String>();
+    	List<Media> discardedMedia = new ArrayList<Media>();
+    	List<Media> batch = new ArrayList<Media>();
+    	List<String> ids = new ArrayList<String>();
+    	List<Vector> texts = new ArrayList<Vector>();
+    	List<float[]> visuals = new ArrayList<float[]>();
+    	for(Media media : mediaToBeClustered.values()) {
+    		Vector text = textualVectors.get(media.getId());
+    		if(text != null && text.getLength() <= 0) {
+    			text = null;
+    		}
+    		float[] visual = visualVectors.get(media.getId());
+    		if(text == null && visual == null) {
+    			discardedMedia.add(media);
+    			continue;
+    		}
+    		batch.add(media);
+    		ids.add(media.getId());
+    		texts.add(text);
+    		visuals.add(visual == null ? null : FloatVectors.normalize(visual));
+    	}
+    	
+    	long start = System.currentTimeMillis();
+    	List<ClusterSummary> assigned = summaries.assign(ids, texts, visuals);
+    	LOGGER.info(collection + " clustering: " + batch.size() + " media items assigned in " + (System.currentTimeMillis() - start) + " ms");
+    	
+    	for(int i = 0; i < batch.size(); i++) {
+    		Media media = batch.get(i);
+    		ClusterSummary summary = assigned.get(i);
+    		clusters.put(summary.getId(), summary);
+    		newMembers.computeIfAbsent(summary.getId(), k -> new ArrayList<Media>()).add(media);
+    	}
+    	
+    	for(ClusterSummary summary : clusters.values()) {
+    		List<Media> members = newMembers.get(summary.getId());
+    		// all the members of a new cluster are in this batch
+    		if(summary.getSize() == members.size()) {
+    			newClusters.add(summary.getId());
+    			List<String> memberIds = new ArrayList<String>();
+    			for(Media media : members) {
+    				memberIds.add(media.getId());
+    			}
+    			saveCluster(summary.getId(), memberIds, summary.getSize(), mediaToBeClustered, summary.getCentroidId(), summary.getAvgDistances());
+    		}
+    		else {
+    			updateCluster(summary.getId(), members, summary.getCentroidId(), summary.getAvgDistances());
+    		}
+    	}
+    	summaries.flush();
+    	
+    	LOGGER.info(collection + " clustering: " + clusters.size() + " clusters updated. " + newClusters.size() + " new clusters, " + summaries.size() + " in memory.");
+    	
+    	LOGGER.info("Delete " + discardedMedia.size() + " media, discarded from clustering of " + collection);
+    	for(Media media : discardedMedia) {
+    		deleteMedia(media);
+    	}
+    }
+    
     private Map<String, Double> getAvgDistances(AbstractClusterer clusterer, Cluster cluster) {
     	
     	double avgDistance = .0, textAvgDistance = .0, visualAvgDistance = .0;
@@ -312,9 +404,9 @@ public class IncrementalClusterer implements Runnable {
     	return distances;
     }
     
-    public void saveCluster(Cluster cluster, Map<String, Media> mediaToBeClustered, String centroidId, Map<String, Double> avgDistances) {
+    public void saveCluster(String clusterId, Collection<String> memberIds, int size, Map<String, Media> mediaToBeClustered, String centroidId, Map<String, Double> avgDistances) {
    		gr.iti.mklab.simmo.core.cluster.Cluster simmoCluster = new gr.iti.mklab.simmo.core.cluster.Cluster();
-		simmoCluster.setId(cluster.getId());
+		simmoCluster.setId(clusterId);
 		
 		simmoCluster.setAvgDistances(avgDistances);
 		
@@ -333,12 +425,11 @@ public class IncrementalClusterer implements Runnable {
 			}
 		}
 		
-		for(Instance instance : cluster.getMembers()) {
-			String mId = instance.getId();
+		for(String mId : memberIds) {
 			Media media = mediaToBeClustered.get(mId);
 			if(media != null) {
 				simmoCluster.addMember(media);
-				Clustered annotation = new Clustered(cluster.getId());
+				Clustered annotation = new Clustered(clusterId);
 				if (media instanceof Image) {
 					Query<Image> q = imageDAO.createQuery().filter("_id", mId);
 					UpdateOperations<Image> ops = imageDAO.createUpdateOperations().add("annotations", annotation, false);
@@ -351,7 +442,7 @@ public class IncrementalClusterer implements Runnable {
 			}
 		}
 		
-		simmoCluster.setSize(cluster.size());
+		simmoCluster.setSize(size);
 		try {
 			clusterDAO.save(simmoCluster);
 		}
@@ -360,9 +451,9 @@ public class IncrementalClusterer implements Runnable {
 		}
     }
     
-    public void updateCluster(Cluster cluster, List<Media> newMembers, String centroidId, Map<String, Double> avgDistances) {
+    public void updateCluster(String clusterId, List<Media> newMembers, String centroidId, Map<String, Double> avgDistances) {
    	
-		Query<gr.iti.mklab.simmo.core.cluster.Cluster> query = clusterDAO.createQuery().filter("_id", cluster.getId());
+		Query<gr.iti.mklab.simmo.core.cluster.Cluster> query = clusterDAO.createQuery().filter("_id", clusterId);
 		
 		UpdateOperations<gr.iti.mklab.simmo.core.cluster.Cluster> ops = clusterDAO.createUpdateOperations();
 		
@@ -397,7 +488,7 @@ public class IncrementalClusterer implements Runnable {
 		}
 		
 		for(Media media : newMembers) {
-			Clustered annotation = new Clustered(cluster.getId());
+			Clustered annotation = new Clustered(clusterId);
 			if (media instanceof Image) {
 				Query<Image> q = imageDAO.createQuery().filter("_id", media.getId());
 				imageDAO.update(q, imageDAO.createUpdateOperations().add("annotations", annotation, false));
@@ -0,0 +1,463 @@
+package gr.iti.mklab.reveal.clustering;
+
+import gr.iti.mklab.reveal.clustering.ensemble.TextDistance;
+import gr.iti.mklab.reveal.clustering.ensemble.VisualDistance;
+import gr.iti.mklab.reveal.clustering.ensemble.VisualVectorFeature;
+import gr.iti.mklab.reveal.clustering.index.LSHNeighborhoodIndex;
+import gr.iti.mklab.reveal.clustering.index.NeighborhoodIndex;
+import gr.iti.mklab.reveal.summarization.SparseVector;
+import gr.iti.mklab.reveal.summarization.Vector;
+import gr.iti.mklab.reveal.summarization.Vocabulary;
+import gr.iti.mklab.reveal.util.ComputePool;
+import gr.iti.mklab.reveal.util.Configuration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+import org.apache.commons.math3.ml.distance.EuclideanDistance;
+import org.apache.log4j.Logger;
+import org.bson.types.ObjectId;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * A threshold clusterer that keeps a {@link ClusterSummary} per cluster instead of its members:
+ * an item joins the closest cluster within the threshold, or starts a new one.
+ *
+ * The distance of an item from a cluster is the weighted mean of the text and visual distances
+ * from the centroids, over the features both have. The candidate clusters of an item with a
+ * visual vector are found by a neighborhood index over the visual centroids, of the type set by
+ * clusteringIndex, which is exact unless LSH is configured. The radius of that query follows
+ * from the threshold: a cluster farther than threshold * (textualWeight + visualWeight)
+ * / visualWeight cannot be within the threshold whatever its text distance.
+ *
+ * At most maxActive clusters are kept in memory. Changed summaries are written to mongodb on
+ * every flush, and the clusters not updated for maxIdle milliseconds, or the least recently
+ * updated ones beyond maxActive, are dropped from memory. Each stored summary has the keys of
+ * its visual centroid in an LSH index tuned for the visual radius, and its most important
+ * terms, so that before a batch is assigned the dropped clusters that share a key or a term
+ * with one of the items are loaded again, and the items of a recurring topic join its cluster
+ * instead of starting a new one. The loaded clusters that get no new member are dropped again.
+ * As with the LSH index, a dropped cluster within the threshold can be missed, but rarely.
+ *
+ * The member closest to the centroid is tracked as the centroid moves: each new member is
+ * compared with the centroid after it joined, and so is the member closest before.
+ *
+ * Batches are assigned with a parallel phase on the shared compute pool of computeThreads threads,
+ * see {@link #assign(List, List, List)}. The clusterer itself is not thread safe.
+ */
+public class SummaryClusterer {
+
+	private final static Logger LOGGER = Logger.getLogger(SummaryClusterer.class);
+
+	public final static String COLLECTION = "ClusterSummary";
+
+	private final DBCollection store;
+
+	private final double threshold;
+	private final double textualWeight;
+	private final double visualWeight;
+	private final TextDistance textDistance;
+	private final VisualDistance visualDistance;
+
+	private final int maxActive;
+	private final long maxIdle;
+
+	// in order of last update
+	private final LinkedHashMap<String, ClusterSummary> active = new LinkedHashMap<String, ClusterSummary>(16, 0.75f, true);
+	private final NeighborhoodIndex<ClusterSummary> visualIndex;
+	private final Set<String> dirty = new HashSet<String>();
+
+	// batches smaller than this are assigned in the calling thread
+	private final static int PARALLEL_BATCH = 64;
+	// the terms a dropped summary is found by, and the terms of an item it is looked up with
+	private final static int SUMMARY_TERMS = 20;
+	private final static int ITEM_TERMS = 5;
+
+	// hashes the visual centroids of the stored summaries, nothing is indexed in it
+	private final LSHNeighborhoodIndex<ClusterSummary> visualKeys;
+	// the vocabulary of the last batch, in which the texts of the summaries are weighted
+	private Vocabulary vocabulary;
+
+	public SummaryClusterer(DBCollection store, double threshold, double textualWeight, double visualWeight, int maxActive, long maxIdle) {
+		this.store = store;
+		this.threshold = threshold;
+		this.textualWeight = textualWeight;
+		this.visualWeight = visualWeight;
+		this.textDistance = new TextDistance(textualWeight);
+		this.visualDistance = new VisualDistance(visualWeight);
+		this.maxActive = maxActive;
+		this.maxIdle = maxIdle;
+		this.visualIndex = NeighborhoodIndex.create(NeighborhoodIndex.Type.valueOf(Configuration.CLUSTERING_INDEX),
+				new EuclideanDistance(), getVisualRadius());
+
+		this.visualKeys = new LSHNeighborhoodIndex<ClusterSummary>(new EuclideanDistance(), getVisualRadius());
+
+		store.createIndex(new BasicDBObject("lastUpdate", -1));
+		store.createIndex(new BasicDBObject("visualKeys", 1));
+		store.createIndex(new BasicDBObject("terms", 1));
+	}
+
+	/**
+	 * Loads the most recently updated clusters that are not idle, e.g. after a restart.
+	 */
+	public void load() {
+		long since = System.currentTimeMillis() - maxIdle;
+		List<ClusterSummary> summaries = new ArrayList<ClusterSummary>();
+		try (DBCursor cursor = store.find(new BasicDBObject("lastUpdate", new BasicDBObject("$gte", since)))
+				.sort(new BasicDBObject("lastUpdate", -1)).limit(maxActive)) {
+			while (cursor.hasNext()) {
+				summaries.add(ClusterSummary.fromDBObject(cursor.next()));
+			}
+		}
+
+		// least recent first, to keep the access order of the map
+		for (int i = summaries.size() - 1; i >= 0; i--) {
+			ClusterSummary summary = summaries.get(i);
+			active.put(summary.getId(), summary);
+			if (summary.getVector() != null) {
+				visualIndex.add(summary);
+			}
+		}
+		LOGGER.info("Loaded " + active.size() + " cluster summaries from " + store.getFullName());
+	}
+
+	/**
+	 * Assigns an item to the closest cluster within the threshold, or to a new cluster.
+	 *
+	 * @param text the text vector of the item, or null
+	 * @param visual the normalized visual vector of the item, or null
+	 * @return the summary of the cluster of the item, with size 1 if it is a new cluster
+	 */
+	public ClusterSummary assign(String id, Vector text, float[] visual) {
+		return assign(Collections.singletonList(id), Collections.singletonList(text), Collections.singletonList(visual)).get(0);
+	}
+
+	/**
+	 * Assigns a batch of items, with the same result as assigning them one by one in order.
+	 *
+	 * The closest cluster of each item among the clusters as they are before the batch is found
+	 * in parallel, as that phase only reads the summaries and the index. The items are then
+	 * applied in order. The clusters the batch has not touched are where they were, so the
+	 * closest of them is still the one found in parallel, and each item is compared again only
+	 * with the clusters the batch has created or moved so far. If the cluster found in parallel
+	 * has moved, the item is looked up in the index again, as another cluster may now be the
+	 * closest one. With an exact index this is the result of a one by one assignment; with LSH
+	 * the touched clusters, which are compared exhaustively, may be found where the index would
+	 * miss them.
+	 *
+	 * @param texts the text vectors of the items, with null for missing ones
+	 * @param visuals the normalized visual vectors of the items, with null for missing ones
+	 * @return the summary of the cluster of each item
+	 */
+	public List<ClusterSummary> assign(List<String> ids, List<Vector> texts, List<float[]> visuals) {
+		int n = ids.size();
+		for (Vector text : texts) {
+			if (text != null) {
+				vocabulary = text.getVocabulary();
+				break;
+			}
+		}
+		List<ClusterSummary> reloaded = reload(texts, visuals);
+
+		Match[] proposals = new Match[n];
+		IntConsumer propose = i -> proposals[i] = findClosest(getCandidates(texts.get(i), visuals.get(i)), texts.get(i), visuals.get(i), null);
+		if (n < PARALLEL_BATCH || ComputePool.getParallelism() < 2) {
+			IntStream.range(0, n).forEach(propose);
+		}
+		else {
+			try {
+				ComputePool.forEach(n, propose);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while assigning " + n + " items", e);
+			}
+			catch (ExecutionException e) {
+				throw new IllegalStateException("Failed to assign " + n + " items", e.getCause());
+			}
+		}
+
+		List<ClusterSummary> assigned = new ArrayList<ClusterSummary>(n);
+		List<ClusterSummary> touched = new ArrayList<ClusterSummary>();
+		Set<ClusterSummary> touchedSet = Collections.newSetFromMap(new IdentityHashMap<ClusterSummary, Boolean>());
+		for (int i = 0; i < n; i++) {
+			Match proposal = proposals[i];
+			if (proposal != null && touchedSet.contains(proposal.summary)) {
+				// it has moved, so the closest of the untouched clusters is unknown
+				proposal = findClosest(getCandidates(texts.get(i), visuals.get(i)), texts.get(i), visuals.get(i), null);
+			}
+			Match match = findClosest(touched, texts.get(i), visuals.get(i), proposal);
+
+			ClusterSummary summary = apply(ids.get(i), texts.get(i), visuals.get(i), match);
+			if (touchedSet.add(summary)) {
+				touched.add(summary);
+			}
+			assigned.add(summary);
+		}
+
+		int unused = 0;
+		for (ClusterSummary summary : reloaded) {
+			if (!touchedSet.contains(summary)) {
+				active.remove(summary.getId());
+				visualIndex.remove(summary);
+				unused++;
+			}
+		}
+		if (!reloaded.isEmpty()) {
+			LOGGER.info((reloaded.size() - unused) + " of " + reloaded.size() + " dropped cluster summaries loaded again got new members");
+		}
+		return assigned;
+	}
+
+	/**
+	 * Loads the stored summaries that are not in memory and share a visual key or a term with
+	 * one of the items.
+	 *
+	 * @return the summaries loaded, at most maxActive
+	 */
+	private List<ClusterSummary> reload(List<Vector> texts, List<float[]> visuals) {
+		Set<Long> keys = new HashSet<Long>();
+		Set<String> terms = new HashSet<String>();
+		for (int i = 0; i < texts.size(); i++) {
+			if (visuals.get(i) != null) {
+				for (long key : visualKeys.hash(visuals.get(i))) {
+					keys.add(key);
+				}
+			}
+			if (texts.get(i) != null) {
+				terms.addAll(getTopTerms(texts.get(i), ITEM_TERMS));
+			}
+		}
+
+		List<DBObject> conditions = new ArrayList<DBObject>();
+		if (!keys.isEmpty()) {
+			conditions.add(new BasicDBObject("visualKeys", new BasicDBObject("$in", keys)));
+		}
+		if (!terms.isEmpty()) {
+			conditions.add(new BasicDBObject("terms", new BasicDBObject("$in", terms)));
+		}
+		List<ClusterSummary> reloaded = new ArrayList<ClusterSummary>();
+		if (conditions.isEmpty()) {
+			return reloaded;
+		}
+
+		try (DBCursor cursor = store.find(new BasicDBObject("$or", conditions))
+				.sort(new BasicDBObject("lastUpdate", -1)).limit(maxActive)) {
+			while (cursor.hasNext()) {
+				DBObject object = cursor.next();
+				if (active.containsKey(object.get("_id").toString())) {
+					continue;
+				}
+				ClusterSummary summary = ClusterSummary.fromDBObject(object);
+				active.put(summary.getId(), summary);
+				if (summary.getVector() != null) {
+					visualIndex.add(summary);
+				}
+				reloaded.add(summary);
+			}
+		}
+		return reloaded;
+	}
+
+	/**
+	 * @return the terms of the text with the highest tf-idf weights in the vocabulary of the last batch
+	 */
+	private List<String> getTopTerms(Vector text, int n) {
+		List<String> terms = new ArrayList<String>();
+		if (vocabulary == null) {
+			return terms;
+		}
+		Map<String, Double> weights = new HashMap<String, Double>();
+		for (Map.Entry<String, Double> tf : text.getWordsMap().entrySet()) {
+			double weight = tf.getValue() * vocabulary.getIdf(tf.getKey());
+			if (weight > 0) {
+				weights.put(tf.getKey(), weight);
+				terms.add(tf.getKey());
+			}
+		}
+		terms.sort(Comparator.comparing(weights::get, Comparator.reverseOrder()));
+		return terms.size() > n ? new ArrayList<String>(terms.subList(0, n)) : terms;
+	}
+
+	/**
+	 * @param best the closest cluster found so far, or null
+	 * @return the closest of the candidates and best within the threshold, or null
+	 */
+	private Match findClosest(List<ClusterSummary> candidates, Vector text, float[] visual, Match best) {
+		double radius = getVisualRadius();
+		SparseVector sparseText = text == null || candidates.isEmpty() ? null : SparseVector.of(text);
+		for (ClusterSummary candidate : candidates) {
+			if (visual != null && candidate.getVector() != null && !FloatVectors.isWithin(candidate.getVector(), visual, radius)) {
+				continue;
+			}
+			double[] distances = distances(candidate, sparseText, text == null ? null : text.getVocabulary(), visual);
+			if (distances[0] <= threshold && (best == null || distances[0] < best.distances[0])) {
+				best = new Match(candidate, distances);
+			}
+		}
+		return best;
+	}
+
+	private ClusterSummary apply(String id, Vector text, float[] visual, Match match) {
+		ClusterSummary summary;
+		if (match == null) {
+			summary = new ClusterSummary(new ObjectId().toString());
+		}
+		else {
+			summary = match.summary;
+			// the centroid moves, so it is indexed again
+			visualIndex.remove(summary);
+		}
+		summary.add(id, text, visual, match == null ? null : match.distances);
+		if (summary.getVector() != null) {
+			visualIndex.add(summary);
+		}
+		if (match != null && getCentroidDistance(summary, text, visual)
+				< getCentroidDistance(summary, summary.getCentroidText(), summary.getCentroidVisual())) {
+			summary.setCentroid(id, text, visual);
+		}
+
+		active.put(summary.getId(), summary);
+		dirty.add(summary.getId());
+		return summary;
+	}
+
+	/**
+	 * Writes the summaries changed since the last flush and drops the idle clusters from memory.
+	 */
+	public void flush() {
+		if (!dirty.isEmpty()) {
+			BulkWriteOperation bulk = store.initializeUnorderedBulkOperation();
+			for (String id : dirty) {
+				ClusterSummary summary = active.get(id);
+				if (summary != null) {
+					summary.setVisualKeys(summary.getVector() == null ? null : visualKeys.hash(summary.getVector()));
+					if (summary.getText() != null && vocabulary != null) {
+						summary.setTerms(getTopTerms(summary.getText(), SUMMARY_TERMS));
+					}
+					bulk.find(new BasicDBObject("_id", id)).upsert().replaceOne(summary.toDBObject());
+				}
+			}
+			try {
+				bulk.execute();
+				dirty.clear();
+			}
+			catch (BulkWriteException e) {
+				LOGGER.error("Failed to write " + e.getWriteErrors().size() + " cluster summaries to " + store.getFullName());
+			}
+		}
+
+		long idleSince = System.currentTimeMillis() - maxIdle;
+		int dropped = 0;
+		Iterator<ClusterSummary> it = active.values().iterator();
+		while (it.hasNext()) {
+			ClusterSummary summary = it.next();
+			if (dirty.contains(summary.getId())) {
+				// not written yet
+				continue;
+			}
+			if (active.size() <= maxActive && summary.getLastUpdate() >= idleSince) {
+				break;
+			}
+			it.remove();
+			visualIndex.remove(summary);
+			dropped++;
+		}
+		if (dropped > 0) {
+			LOGGER.info("Dropped " + dropped + " idle cluster summaries from memory, " + active.size() + " remain");
+		}
+	}
+
+	public int size() {
+		return active.size();
+	}
+
+	/**
+	 * @return the combined, text and visual distances of the item from the cluster, NaN for the features they do not share
+	 */
+	public double[] distances(ClusterSummary summary, Vector text, float[] visual) {
+		return distances(summary, text == null ? null : SparseVector.of(text), text == null ? null : text.getVocabulary(), visual);
+	}
+
+	/**
+	 * @param vocabulary the vocabulary the text is weighted with, in which the text of the summary is weighted too
+	 */
+	private double[] distances(ClusterSummary summary, SparseVector text, Vocabulary vocabulary, float[] visual) {
+		double textD = Double.NaN, visualD = Double.NaN;
+		double distance = 0, weight = 0;
+		if (text != null && summary.getText() != null) {
+			textD = textDistance.distance(text, summary.getSparseText(vocabulary));
+			distance += textualWeight * textD;
+			weight += textualWeight;
+		}
+		if (visual != null && summary.getVector() != null) {
+			VisualVectorFeature f1 = new VisualVectorFeature("visual"), f2 = new VisualVectorFeature("visual");
+			f1.setValue(visual);
+			f2.setValue(summary.getVector());
+			visualD = visualDistance.distance(f1, f2);
+			distance += visualWeight * visualD;
+			weight += visualWeight;
+		}
+		return new double[] {weight == 0 ? Double.POSITIVE_INFINITY : distance / weight, textD, visualD};
+	}
+
+	/**
+	 * @return the combined distance of a member from the centroid of the cluster, infinite if it has no vectors
+	 */
+	private double getCentroidDistance(ClusterSummary summary, Vector text, float[] visual) {
+		SparseVector sparseText = text == null || vocabulary == null ? null : SparseVector.of(text, vocabulary);
+		return distances(summary, sparseText, vocabulary, visual)[0];
+	}
+
+	private double getVisualRadius() {
+		return threshold * (textualWeight + visualWeight) / visualWeight;
+	}
+
+	private List<ClusterSummary> getCandidates(Vector text, float[] visual) {
+		List<ClusterSummary> candidates = new ArrayList<ClusterSummary>();
+		if (visual != null) {
+			ClusterSummary query = new ClusterSummary(null);
+			query.add(null, null, visual, null);
+			candidates.addAll(visualIndex.getNeighbors(query, getVisualRadius()));
+		}
+		if (text != null) {
+			// clusters that can only be compared by their text
+			for (Map.Entry<String, ClusterSummary> entry : active.entrySet()) {
+				ClusterSummary summary = entry.getValue();
+				if (summary.getText() != null && (visual == null || summary.getVector() == null)) {
+					candidates.add(summary);
+				}
+			}
+		}
+		return candidates;
+	}
+
+	private static class Match {
+
+		private final ClusterSummary summary;
+		private final double[] distances;
+
+		Match(ClusterSummary summary, double[] distances) {
+			this.summary = summary;
+			this.distances = distances;
+		}
+	}
+}
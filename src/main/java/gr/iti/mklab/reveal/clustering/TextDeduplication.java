@@ -10,6 +10,8 @@ import gr.iti.mklab.simmo.core.morphia.MediaDAO;
 import gr.iti.mklab.simmo.core.morphia.MorphiaManager;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -36,14 +38,33 @@ public class TextDeduplication {
     public static <T extends Media> List<T> filterMediaJaccard(List<T> media,
                                                    TokenizerFactory tokFactory,
                                                    double cutoff) {
+        return filterMediaJaccard(media, Collections.<String>emptyList(), tokFactory, cutoff);
+    }
+
+    /**
+     * Same as {@link #filterMediaJaccard(List, TokenizerFactory, double)}, but the media are
+     * also compared with the titles of media kept before, e.g. the members a cluster already has.
+     *
+     * @param keptTitles the titles the media are compared with first, none of which is returned
+     */
+    public static <T extends Media> List<T> filterMediaJaccard(List<T> media,
+                                                   Collection<String> keptTitles,
+                                                   TokenizerFactory tokFactory,
+                                                   double cutoff) {
         JaccardDistance jaccardD = new JaccardDistance(tokFactory);
+        List<String> filteredTitles = new ArrayList<>();
+        for (String title : keptTitles) {
+            if (title != null) {
+                filteredTitles.add(title);
+            }
+        }
         List<T> filteredMedia = new ArrayList<>();
         for (int i = 0; i < media.size(); ++i) {
             String targetTweet = media.get(i).getTitle();
             boolean addTweet = true;
             //big research literature on making the below loop more efficient
-            for (int j = 0; j < filteredMedia.size(); ++j ) {
-                String comparisionTweet = filteredMedia.get(j).getTitle();
+            for (int j = 0; j < filteredTitles.size(); ++j ) {
+                String comparisionTweet = filteredTitles.get(j);
                 double proximity
                         = jaccardD.proximity(targetTweet,comparisionTweet);
                 if (proximity >= cutoff) {
@@ -53,6 +74,7 @@ public class TextDeduplication {
             }
             if (addTweet) {
                 filteredMedia.add(media.get(i));
+                filteredTitles.add(targetTweet);
             }
         }
         return filteredMedia;
@@ -68,8 +90,22 @@ public class TextDeduplication {
      * @return
      */
     static <T extends Media> List<T> filterNormalizedDuplicates(List<T> media, TokenizerFactory tokFactory) {
+        return filterNormalizedDuplicates(media, Collections.<String>emptyList(), tokFactory);
+    }
+
+    /**
+     * Same as {@link #filterNormalizedDuplicates(List, TokenizerFactory)}, but the media that
+     * are duplicates of one of the titles kept before are filtered out too.
+     */
+    static <T extends Media> List<T> filterNormalizedDuplicates(List<T> media, Collection<String> keptTitles,
+                                                                TokenizerFactory tokFactory) {
         List<T> returnList = new ArrayList<>();
         Set<String> seenBefore = new HashSet<String>();
+        for (String title : keptTitles) {
+            if (title != null) {
+                seenBefore.add(buildStringFromTokensRemoveSeparators(tokFactory, title));
+            }
+        }
         for (int i = 0; i < media.size(); ++i) {
             String rawTweet = media.get(i).getTitle();
             String normalizedTweet
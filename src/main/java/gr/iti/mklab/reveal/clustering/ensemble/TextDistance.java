@@ -2,7 +2,8 @@ package gr.iti.mklab.reveal.clustering.ensemble;
 
 import com.oculusinfo.ml.distance.DistanceFunction;
 
-import gr.iti.mklab.reveal.summarization.Vector;
+import gr.iti.mklab.reveal.summarization.SparseVector;
+import gr.iti.mklab.reveal.summarization.Vocabulary;
 
 public class TextDistance extends DistanceFunction<TextVectorFeature> {
 
@@ -11,21 +12,37 @@ public class TextDistance extends DistanceFunction<TextVectorFeature> {
 	 */
 	private static final long serialVersionUID = 1044520279258863015L;
 
+	// the vocabulary both features are weighted with, or null for the vocabulary of each
+	private final Vocabulary vocabulary;
+
 	public TextDistance(double weight) {
+		this(weight, null);
+	}
+	
+	/**
+	 * @param vocabulary the vocabulary of the current job, with which the features of earlier
+	 * jobs, such as the members and the centroids of existing clusters, are weighted again
+	 */
+	public TextDistance(double weight, Vocabulary vocabulary) {
 		super(weight);
+		this.vocabulary = vocabulary;
 	}
 		
 	@Override
 	public double distance(TextVectorFeature tvf1, TextVectorFeature tvf2) {
+		if(vocabulary == null) {
+			return distance(tvf1.getSparseValue(), tvf2.getSparseValue());
+		}
+		return distance(tvf1.getSparseValue(vocabulary), tvf2.getSparseValue(vocabulary));
+	}
+	
+	public double distance(SparseVector v1, SparseVector v2) {
 		
-		Vector v1 = tvf1.getValue();
-		Vector v2 = tvf2.getValue();
-		
-		double similarity = Math.min(1, v1.cosine(v2));
+		double similarity = v1.cosine(v2);
 		
 		double d = 1. - similarity;
 		
-		if(d == 0 && (v1.getTerms().size() <= 4 || v2.getTerms().size() <= 4)) {
+		if(d == 0 && (v1.size() <= 4 || v2.size() <= 4)) {
 			return 1.;
 		}
 		
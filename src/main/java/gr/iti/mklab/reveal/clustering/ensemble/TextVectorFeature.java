@@ -2,7 +2,9 @@ package gr.iti.mklab.reveal.clustering.ensemble;
 
 import com.oculusinfo.ml.feature.Feature;
 
+import gr.iti.mklab.reveal.summarization.SparseVector;
 import gr.iti.mklab.reveal.summarization.Vector;
+import gr.iti.mklab.reveal.summarization.Vocabulary;
 
 public class TextVectorFeature extends Feature {
 
@@ -11,6 +13,8 @@ public class TextVectorFeature extends Feature {
 		 */
 		private static final long serialVersionUID = -6603866030456248145L;
 		private Vector vector;
+		private transient SparseVector sparseVector;
+		private transient Vocabulary sparseVocabulary;
     	
 		public TextVectorFeature(String name) {
 			super(name);
@@ -18,9 +22,32 @@ public class TextVectorFeature extends Feature {
 		
 		public void setValue(Vector vector) {
 			this.vector = vector;
+			this.sparseVector = null;
 		}
 
 		public Vector getValue() {
 			return this.vector;
 		}
+		
+		/**
+		 * @return the tf-idf weights of the vector in its own vocabulary
+		 */
+		public SparseVector getSparseValue() {
+			return vector == null ? null : getSparseValue(vector.getVocabulary());
+		}
+		
+		/**
+		 * @return the tf-idf weights of the vector in the given vocabulary, computed on first use
+		 * as the distance of a feature is computed against many others
+		 */
+		public SparseVector getSparseValue(Vocabulary vocabulary) {
+			if(vector == null) {
+				return null;
+			}
+			if(sparseVector == null || sparseVocabulary != vocabulary) {
+				sparseVector = SparseVector.of(vector, vocabulary);
+				sparseVocabulary = vocabulary;
+			}
+			return sparseVector;
+		}
     }
\ No newline at end of file
@@ -31,6 +31,10 @@ public class VectorCentroid implements Centroid<TextVectorFeature> {
 		return Collections.singleton(getCentroid());
 	}
 
+	/**
+	 * The merged vector keeps the vocabulary of the first member, so the weights of the centroid
+	 * are computed by the distance function, in the vocabulary of the items it is compared with.
+	 */
 	@Override
 	public TextVectorFeature getCentroid() {
 		TextVectorFeature tfv = new TextVectorFeature(name);
@@ -1,15 +1,16 @@
 package gr.iti.mklab.reveal.clustering.ensemble;
 
 import com.oculusinfo.ml.distance.DistanceFunction;
-import com.oculusinfo.ml.feature.numeric.NumericVectorFeature;
+
+import gr.iti.mklab.reveal.clustering.FloatVectors;
 
 /***
- * A distance function that computes the Euclidean distance between two VectorFeatures
+ * A distance function that computes the Euclidean distance between two VisualVectorFeatures
  * 
  * @author slangevin
  *
  */
-public class VisualDistance extends DistanceFunction<NumericVectorFeature> {
+public class VisualDistance extends DistanceFunction<VisualVectorFeature> {
 	private static final long serialVersionUID = -1493313434323633636L;
 
 	public VisualDistance(double weight) {
@@ -17,16 +18,8 @@ public class VisualDistance extends DistanceFunction<NumericVectorFeature> {
 	}
 	
 	@Override
-	public double distance(NumericVectorFeature x, NumericVectorFeature y) {
-		double[] vector1 = x.getValue();
-		double[] vector2 = y.getValue();
-		
-		double d = 0;
-		for (int i = 0; i < vector1.length; i++) {
-			d += Math.pow(vector1[i] - vector2[i], 2);
-		}
-		
+	public double distance(VisualVectorFeature x, VisualVectorFeature y) {
 		// return euclidean distance
-		return Math.sqrt(d);
+		return FloatVectors.distance(x.getValue(), y.getValue());
 	}
-}
\ No newline at end of file
+}
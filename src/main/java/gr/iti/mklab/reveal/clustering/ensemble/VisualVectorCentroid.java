@@ -0,0 +1,80 @@
+package gr.iti.mklab.reveal.clustering.ensemble;
+
+import java.util.Collection;
+import java.util.Collections;
+
+import com.oculusinfo.ml.centroid.Centroid;
+
+/**
+ * The mean of the visual vectors of a cluster. The running sum is kept in double
+ * precision, so that adding and removing members does not accumulate rounding errors.
+ */
+public class VisualVectorCentroid implements Centroid<VisualVectorFeature> {
+
+	private static final long serialVersionUID = -2461780917338129610L;
+
+	private double[] sum;
+	private int count = 0;
+	private String name;
+
+	@Override
+	public void add(VisualVectorFeature feature) {
+		float[] vector = feature.getValue();
+		if (sum == null) {
+			sum = new double[vector.length];
+		}
+		for (int i = 0; i < vector.length; i++) {
+			sum[i] += vector[i];
+		}
+		count++;
+	}
+
+	@Override
+	public void remove(VisualVectorFeature feature) {
+		if (sum == null) {
+			return;
+		}
+		float[] vector = feature.getValue();
+		for (int i = 0; i < vector.length; i++) {
+			sum[i] -= vector[i];
+		}
+		count--;
+	}
+
+	@Override
+	public Collection<VisualVectorFeature> getAggregatableCentroid() {
+		return Collections.singleton(getCentroid());
+	}
+
+	@Override
+	public VisualVectorFeature getCentroid() {
+		VisualVectorFeature feature = new VisualVectorFeature(name);
+		float[] mean = new float[sum == null ? 0 : sum.length];
+		for (int i = 0; i < mean.length && count > 0; i++) {
+			mean[i] = (float) (sum[i] / count);
+		}
+		feature.setValue(mean);
+		return feature;
+	}
+
+	@Override
+	public String getName() {
+		return this.name;
+	}
+
+	@Override
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	@Override
+	public Class<VisualVectorFeature> getType() {
+		return VisualVectorFeature.class;
+	}
+
+	@Override
+	public void reset() {
+		sum = null;
+		count = 0;
+	}
+}
@@ -0,0 +1,27 @@
+package gr.iti.mklab.reveal.clustering.ensemble;
+
+import com.oculusinfo.ml.feature.Feature;
+
+/**
+ * A visual feature kept as a float32 vector, instead of the double[] of a
+ * NumericVectorFeature. The vector is stored as given: the vectors of the items are
+ * normalized by their callers, while the centroids of clusters, their means, are not.
+ */
+public class VisualVectorFeature extends Feature {
+
+	private static final long serialVersionUID = 4093371733652914637L;
+
+	private float[] vector;
+
+	public VisualVectorFeature(String name) {
+		super(name);
+	}
+
+	public void setValue(float[] vector) {
+		this.vector = vector;
+	}
+
+	public float[] getValue() {
+		return this.vector;
+	}
+}
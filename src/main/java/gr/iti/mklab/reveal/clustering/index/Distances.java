@@ -0,0 +1,40 @@
+package gr.iti.mklab.reveal.clustering.index;
+
+import gr.iti.mklab.reveal.clustering.FloatClusterable;
+import gr.iti.mklab.reveal.clustering.FloatVectors;
+
+import org.apache.commons.math3.ml.clustering.Clusterable;
+import org.apache.commons.math3.ml.distance.DistanceMeasure;
+import org.apache.commons.math3.ml.distance.EuclideanDistance;
+
+/**
+ * Distance computations of the indices. Euclidean distances between float32 points go
+ * through the {@link FloatVectors} kernels, everything else through the distance measure.
+ */
+class Distances {
+
+	private final DistanceMeasure measure;
+	private final boolean euclidean;
+
+	Distances(DistanceMeasure measure) {
+		this.measure = measure;
+		this.euclidean = measure instanceof EuclideanDistance;
+	}
+
+	double distance(Clusterable a, Clusterable b) {
+		if (euclidean && a instanceof FloatClusterable && b instanceof FloatClusterable) {
+			return FloatVectors.distance(((FloatClusterable) a).getVector(), ((FloatClusterable) b).getVector());
+		}
+		return measure.compute(a.getPoint(), b.getPoint());
+	}
+
+	/**
+	 * @return true if the distance of the two points is at most eps, abandoning the computation early if possible
+	 */
+	boolean isWithin(Clusterable a, Clusterable b, double eps) {
+		if (euclidean && a instanceof FloatClusterable && b instanceof FloatClusterable) {
+			return FloatVectors.isWithin(((FloatClusterable) a).getVector(), ((FloatClusterable) b).getVector(), eps);
+		}
+		return measure.compute(a.getPoint(), b.getPoint()) <= eps;
+	}
+}
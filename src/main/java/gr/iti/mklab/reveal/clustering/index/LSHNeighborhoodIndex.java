@@ -0,0 +1,192 @@
+package gr.iti.mklab.reveal.clustering.index;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import gr.iti.mklab.reveal.clustering.FloatClusterable;
+
+import org.apache.commons.math3.ml.clustering.Clusterable;
+import org.apache.commons.math3.ml.distance.DistanceMeasure;
+
+/**
+ * A locality sensitive hashing index for the euclidean distance (p-stable random projections).
+ * Each of the tables hashes a point to the cell of a grid over a few random directions, so
+ * points close to each other share a bucket in at least one table with high probability. The
+ * points found in the buckets of the query are then checked with the exact distance, so the
+ * results contain no false positives, but a neighbor can be missed.
+ *
+ * With the default parameters (10 projections per table, 32 tables, cells 4&epsilon; wide) a
+ * neighbor at distance &epsilon; is missed with probability about 2.5%, and one at 0.8&epsilon;
+ * with probability below 0.5%, while a point at distance 2.4&epsilon; is a candidate with
+ * probability about 8%.
+ */
+public class LSHNeighborhoodIndex<T extends Clusterable> implements NeighborhoodIndex<T> {
+
+	private final static int PROJECTIONS = 10;
+	private final static int TABLES = 32;
+	private final static double WIDTH = 4;	// in units of eps
+
+	private final Distances metric;
+	private final int numOfProjections;
+	private final int numOfTables;
+	private final double width;
+	private final long seed;
+
+	private float[][][] projections;	// table x projection x dimension
+	private double[][] offsets;			// table x projection
+
+	private final List<Map<Long, List<T>>> tables;
+	// the keys of the points are kept, as most points are both indexed and queried
+	private final Map<T, long[]> keys = new IdentityHashMap<T, long[]>();
+	private int size = 0;
+
+	public LSHNeighborhoodIndex(DistanceMeasure measure, double eps) {
+		this(measure, eps, PROJECTIONS, TABLES, WIDTH, 42L);
+	}
+
+	/**
+	 * @param eps the query radius the index is tuned for
+	 * @param numOfProjections projections per table, more projections give fewer candidates per table
+	 * @param numOfTables more tables give fewer missed neighbors
+	 * @param width the width of the cells in units of eps
+	 */
+	public LSHNeighborhoodIndex(DistanceMeasure measure, double eps, int numOfProjections, int numOfTables, double width, long seed) {
+		this.metric = new Distances(measure);
+		this.numOfProjections = numOfProjections;
+		this.numOfTables = numOfTables;
+		this.width = Math.max(eps, Double.MIN_NORMAL) * width;
+		this.seed = seed;
+
+		this.tables = new ArrayList<Map<Long, List<T>>>(numOfTables);
+		for (int t = 0; t < numOfTables; t++) {
+			tables.add(new HashMap<Long, List<T>>());
+		}
+	}
+
+	@Override
+	public void add(T point) {
+		long[] pointKeys = getKeys(point);
+		keys.put(point, pointKeys);
+		for (int t = 0; t < numOfTables; t++) {
+			tables.get(t).computeIfAbsent(pointKeys[t], k -> new ArrayList<T>(2)).add(point);
+		}
+		size++;
+	}
+
+	@Override
+	public boolean remove(T point) {
+		long[] pointKeys = keys.remove(point);
+		if (pointKeys == null) {
+			return false;
+		}
+		for (int t = 0; t < numOfTables; t++) {
+			List<T> bucket = tables.get(t).get(pointKeys[t]);
+			if (bucket == null) {
+				continue;
+			}
+			for (int i = 0; i < bucket.size(); i++) {
+				if (bucket.get(i) == point) {
+					bucket.set(i, bucket.get(bucket.size() - 1));
+					bucket.remove(bucket.size() - 1);
+					break;
+				}
+			}
+			if (bucket.isEmpty()) {
+				tables.get(t).remove(pointKeys[t]);
+			}
+		}
+		size--;
+		return true;
+	}
+
+	@Override
+	public List<T> getNeighbors(T point, double eps) {
+		if (projections == null) {
+			return Collections.emptyList();
+		}
+
+		long[] pointKeys = getKeys(point);
+		Set<T> candidates = Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
+		List<T> neighbors = new ArrayList<T>();
+		for (int t = 0; t < numOfTables; t++) {
+			List<T> bucket = tables.get(t).get(pointKeys[t]);
+			if (bucket == null) {
+				continue;
+			}
+			for (T candidate : bucket) {
+				if (candidate != point && candidates.add(candidate) && metric.isWithin(candidate, point, eps)) {
+					neighbors.add(candidate);
+				}
+			}
+		}
+		return neighbors;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	private long[] getKeys(T point) {
+		long[] pointKeys = keys.get(point);
+		if (pointKeys == null) {
+			// the projections are float32, so the coordinates are hashed as float32 too
+			float[] vector = point instanceof FloatClusterable ? ((FloatClusterable) point).getVector() : toFloats(point.getPoint());
+			pointKeys = hash(vector);
+		}
+		return pointKeys;
+	}
+
+	/**
+	 * @return the key of the vector in each table, the same in any index with the same
+	 *         parameters and seed, e.g. to look points up in a store by their keys
+	 */
+	public long[] hash(float[] vector) {
+		if (projections == null) {
+			initProjections(vector.length);
+		}
+
+		long[] pointKeys = new long[numOfTables];
+		for (int t = 0; t < numOfTables; t++) {
+			long key = 17;
+			for (int p = 0; p < numOfProjections; p++) {
+				float[] direction = projections[t][p];
+				float dot = 0;
+				for (int i = 0; i < vector.length; i++) {
+					dot += direction[i] * vector[i];
+				}
+				key = 31 * key + (long) Math.floor((dot + offsets[t][p]) / width);
+			}
+			pointKeys[t] = key;
+		}
+		return pointKeys;
+	}
+
+	private static float[] toFloats(double[] vector) {
+		float[] floats = new float[vector.length];
+		for (int i = 0; i < vector.length; i++) {
+			floats[i] = (float) vector[i];
+		}
+		return floats;
+	}
+
+	private void initProjections(int dimension) {
+		Random random = new Random(seed);
+		projections = new float[numOfTables][numOfProjections][dimension];
+		offsets = new double[numOfTables][numOfProjections];
+		for (int t = 0; t < numOfTables; t++) {
+			for (int p = 0; p < numOfProjections; p++) {
+				for (int i = 0; i < dimension; i++) {
+					projections[t][p][i] = (float) random.nextGaussian();
+				}
+				offsets[t][p] = random.nextDouble() * width;
+			}
+		}
+	}
+}
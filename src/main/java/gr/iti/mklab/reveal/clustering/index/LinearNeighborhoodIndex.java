@@ -0,0 +1,54 @@
+package gr.iti.mklab.reveal.clustering.index;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.math3.ml.clustering.Clusterable;
+import org.apache.commons.math3.ml.distance.DistanceMeasure;
+
+/**
+ * A neighborhood index that compares the query with every point.
+ */
+public class LinearNeighborhoodIndex<T extends Clusterable> implements NeighborhoodIndex<T> {
+
+	private final Distances metric;
+	private final List<T> points = new ArrayList<T>();
+
+	public LinearNeighborhoodIndex(DistanceMeasure measure) {
+		this.metric = new Distances(measure);
+	}
+
+	@Override
+	public void add(T point) {
+		points.add(point);
+	}
+
+	@Override
+	public boolean remove(T point) {
+		for (int i = 0; i < points.size(); i++) {
+			if (points.get(i) == point) {
+				// the order of the points does not matter
+				points.set(i, points.get(points.size() - 1));
+				points.remove(points.size() - 1);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public List<T> getNeighbors(T point, double eps) {
+		List<T> neighbors = new ArrayList<T>();
+		for (T neighbor : points) {
+			if (point != neighbor && metric.isWithin(neighbor, point, eps)) {
+				neighbors.add(neighbor);
+			}
+		}
+		return neighbors;
+	}
+
+	@Override
+	public int size() {
+		return points.size();
+	}
+}
@@ -0,0 +1,64 @@
+package gr.iti.mklab.reveal.clustering.index;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.commons.math3.ml.clustering.Clusterable;
+import org.apache.commons.math3.ml.distance.DistanceMeasure;
+
+/**
+ * An index that answers range queries over a growing set of points, used by the
+ * {@link gr.iti.mklab.reveal.clustering.DBSCANClusterer} to find the &epsilon;-neighborhood
+ * of a point without scanning all the points.
+ *
+ *
+ * @param <T> type of the indexed points
+ */
+public interface NeighborhoodIndex<T extends Clusterable> {
+
+	/**
+	 * The available implementations.
+	 * <ul>
+	 * <li>LINEAR: exact, scans all the points</li>
+	 * <li>VP_TREE: exact, prunes with the triangle inequality of metric distances</li>
+	 * <li>LSH: approximate, random projections into buckets, candidates are verified exactly</li>
+	 * </ul>
+	 */
+	enum Type {LINEAR, VP_TREE, LSH}
+
+	void add(T point);
+
+	/**
+	 * Removes the point, compared by identity.
+	 *
+	 * @return true if the point was indexed
+	 */
+	boolean remove(T point);
+
+	default void addAll(Collection<? extends T> points) {
+		for (T point : points) {
+			add(point);
+		}
+	}
+
+	/**
+	 * @return the indexed points within distance eps of the given point, except the point itself
+	 */
+	List<T> getNeighbors(T point, double eps);
+
+	int size();
+
+	/**
+	 * @param eps the radius of the queries the index is tuned for
+	 */
+	static <T extends Clusterable> NeighborhoodIndex<T> create(Type type, DistanceMeasure measure, double eps) {
+		switch (type) {
+		case VP_TREE:
+			return new VPTreeNeighborhoodIndex<T>(measure);
+		case LSH:
+			return new LSHNeighborhoodIndex<T>(measure, eps);
+		default:
+			return new LinearNeighborhoodIndex<T>(measure);
+		}
+	}
+}
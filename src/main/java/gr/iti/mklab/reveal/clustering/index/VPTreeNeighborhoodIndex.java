@@ -0,0 +1,208 @@
+package gr.iti.mklab.reveal.clustering.index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.commons.math3.ml.clustering.Clusterable;
+import org.apache.commons.math3.ml.distance.DistanceMeasure;
+
+/**
+ * A vantage-point tree. Each node splits its points into the ones within the median distance
+ * from a vantage point and the rest, so a range query skips the subtrees that the triangle
+ * inequality rules out. The results are exact for metric distances, like the euclidean one.
+ *
+ * Points added after the tree is built are kept in a list that is scanned linearly, and the
+ * tree is rebuilt on the next query once that list grows beyond a quarter of the tree. Points
+ * removed from the tree are skipped until the tree is rebuilt in the same way.
+ */
+public class VPTreeNeighborhoodIndex<T extends Clusterable> implements NeighborhoodIndex<T> {
+
+	private final static int LEAF_SIZE = 16;
+
+	private final Distances metric;
+	private final Random random = new Random(42);
+
+	private final List<T> points = new ArrayList<T>();
+	private int indexed = 0;
+	private Node root;
+	private final Set<Clusterable> removed = Collections.newSetFromMap(new IdentityHashMap<Clusterable, Boolean>());
+
+	public VPTreeNeighborhoodIndex(DistanceMeasure measure) {
+		this.metric = new Distances(measure);
+	}
+
+	@Override
+	public void add(T point) {
+		// a point removed from the tree is only restored
+		if (!removed.remove(point)) {
+			points.add(point);
+		}
+	}
+
+	@Override
+	public boolean remove(T point) {
+		int i = points.size() - 1;
+		while (i >= 0 && points.get(i) != point) {
+			i--;
+		}
+		if (i < 0) {
+			return false;
+		}
+		if (i >= indexed) {
+			// not in the tree yet
+			points.set(i, points.get(points.size() - 1));
+			points.remove(points.size() - 1);
+			return true;
+		}
+		return removed.add(point);
+	}
+
+	@Override
+	public List<T> getNeighbors(T point, double eps) {
+		int threshold = Math.max(LEAF_SIZE, indexed / 4);
+		if (points.size() - indexed > threshold || removed.size() > threshold) {
+			build();
+		}
+
+		List<T> neighbors = new ArrayList<T>();
+		if (root != null) {
+			search(root, point, eps, neighbors);
+		}
+		for (int i = indexed; i < points.size(); i++) {
+			T neighbor = points.get(i);
+			if (point != neighbor && metric.isWithin(neighbor, point, eps)) {
+				neighbors.add(neighbor);
+			}
+		}
+		return neighbors;
+	}
+
+	@Override
+	public int size() {
+		return points.size() - removed.size();
+	}
+
+	private void build() {
+		if (!removed.isEmpty()) {
+			points.removeIf(removed::contains);
+			removed.clear();
+		}
+		indexed = points.size();
+		@SuppressWarnings("unchecked")
+		T[] items = (T[]) points.toArray(new Clusterable[indexed]);
+		root = build(items, new double[indexed], 0, indexed);
+	}
+
+	private Node build(T[] items, double[] distances, int from, int to) {
+		if (to - from <= LEAF_SIZE) {
+			return new Node(Arrays.copyOfRange(items, from, to));
+		}
+
+		// the vantage point is moved to the front and the rest are sorted by their distance to it
+		swap(items, distances, from, from + random.nextInt(to - from));
+		T vantagePoint = items[from];
+		for (int i = from + 1; i < to; i++) {
+			distances[i] = metric.distance(vantagePoint, items[i]);
+		}
+		int median = (from + 1 + to) / 2;
+		select(items, distances, from + 1, to - 1, median);
+
+		Node node = new Node(vantagePoint, distances[median]);
+		node.inside = build(items, distances, from + 1, median + 1);
+		node.outside = build(items, distances, median + 1, to);
+		return node;
+	}
+
+	private void search(Node node, T point, double eps, List<T> neighbors) {
+		if (node.bucket != null) {
+			for (Clusterable item : node.bucket) {
+				if (point != item && !removed.contains(item) && metric.isWithin(item, point, eps)) {
+					neighbors.add(cast(item));
+				}
+			}
+			return;
+		}
+
+		double d = metric.distance(node.vantagePoint, point);
+		if (point != node.vantagePoint && d <= eps && !removed.contains(node.vantagePoint)) {
+			neighbors.add(cast(node.vantagePoint));
+		}
+		if (d - eps <= node.radius) {
+			search(node.inside, point, eps, neighbors);
+		}
+		if (d + eps >= node.radius) {
+			search(node.outside, point, eps, neighbors);
+		}
+	}
+
+	/**
+	 * Quickselect of the k-th smallest distance in [left, right], moving the items along.
+	 */
+	private void select(T[] items, double[] distances, int left, int right, int k) {
+		while (left < right) {
+			double pivot = distances[left + random.nextInt(right - left + 1)];
+			int i = left, j = right;
+			while (i <= j) {
+				while (distances[i] < pivot) {
+					i++;
+				}
+				while (distances[j] > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					swap(items, distances, i++, j--);
+				}
+			}
+			if (k <= j) {
+				right = j;
+			}
+			else if (k >= i) {
+				left = i;
+			}
+			else {
+				return;
+			}
+		}
+	}
+
+	private static <T> void swap(T[] items, double[] distances, int i, int j) {
+		T item = items[i];
+		items[i] = items[j];
+		items[j] = item;
+		double d = distances[i];
+		distances[i] = distances[j];
+		distances[j] = d;
+	}
+
+	@SuppressWarnings("unchecked")
+	private T cast(Clusterable item) {
+		return (T) item;
+	}
+
+	private static class Node {
+
+		private final Clusterable vantagePoint;
+		private final double radius;
+		private final Clusterable[] bucket;
+
+		private Node inside;
+		private Node outside;
+
+		Node(Clusterable vantagePoint, double radius) {
+			this.vantagePoint = vantagePoint;
+			this.radius = radius;
+			this.bucket = null;
+		}
+
+		Node(Clusterable[] bucket) {
+			this.vantagePoint = null;
+			this.radius = 0;
+			this.bucket = bucket;
+		}
+	}
+}
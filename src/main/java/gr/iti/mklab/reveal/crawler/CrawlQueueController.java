@@ -1,7 +1,10 @@
 package gr.iti.mklab.reveal.crawler;
 
+import gr.iti.mklab.reveal.summarization.SummarizationScheduler;
+import gr.iti.mklab.reveal.summarization.SummaryState;
 import gr.iti.mklab.reveal.util.Configuration;
 import gr.iti.mklab.reveal.util.StreamManagerClient;
+import gr.iti.mklab.reveal.visual.VectorStore;
 import gr.iti.mklab.reveal.visual.VisualIndexClient;
 import gr.iti.mklab.reveal.web.Responses;
 import gr.iti.mklab.simmo.core.items.Image;
@@ -45,7 +48,12 @@ public class CrawlQueueController {
     
     private Logger _logger = Logger.getLogger(CrawlQueueController.class);
     
-    public CrawlQueueController() {
+    // refreshes the summaries of the running crawls
+    private SummarizationScheduler summarizationScheduler;
+    
+    public CrawlQueueController(SummarizationScheduler summarizationScheduler) {
+    	this.summarizationScheduler = summarizationScheduler;
+    	
         // Creates a DAO object to persist submitted crawl requests
         dao = new BasicDAO<>(CrawlJob.class, MorphiaManager.getMongoClient(), MorphiaManager.getMorphia(), MorphiaManager.getCrawlsDB().getName());
         
@@ -163,6 +171,15 @@ public class CrawlQueueController {
             req.setLastStateChange(new Date());
             dao.save(req);
             
+            //Stop the summarization of the collection before its state is deleted
+            summarizationScheduler.cancel(req.getCollection());
+            if(summarizationScheduler.awaitTermination(req.getCollection(), 60, TimeUnit.SECONDS)) {
+            	summarizationScheduler.remove(req.getCollection());
+            }
+            else {
+            	_logger.error("Summarization of " + req.getCollection() + " did not stop before the deletion");
+            }
+            
             //Unload index from memory and delete it
             VisualIndexClient vIndexClient = new VisualIndexClient(indexServiceHost, req.getCollection());
         	boolean indexDeleted = vIndexClient.deleteCollection();
@@ -170,6 +187,20 @@ public class CrawlQueueController {
         		_logger.error("Visual index of " + req.getCollection() + " failed to be deleted.");
         	}
         	
+            try {
+            	VectorStore.delete(req.getCollection());
+            }
+            catch(Exception e) {
+            	_logger.error("Local vectors of " + req.getCollection() + " failed to be deleted => " + e.getMessage(), e);
+            }
+            
+            try {
+            	SummaryState.delete(req.getCollection());
+            }
+            catch(Exception e) {
+            	_logger.error("Summary state of " + req.getCollection() + " failed to be deleted => " + e.getMessage(), e);
+            }
+            
             try {	
                 //Delete the crawl folders
                 FileUtils.deleteDirectory(new File(req.getCrawlDataPath()));
@@ -301,7 +332,7 @@ public class CrawlQueueController {
             geoCrawlerMap.put(req.getCollection(), new GeoCrawler(req, streamManager));
         } 
         else {
-            RevealAgent agent = new RevealAgent("127.0.0.1", 9999, req, streamManager);
+            RevealAgent agent = new RevealAgent("127.0.0.1", 9999, req, streamManager, summarizationScheduler);
             executorService.execute(agent);
             agents.put(req.getCollection(), agent);
             
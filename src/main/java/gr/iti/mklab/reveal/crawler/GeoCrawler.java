@@ -1,5 +1,6 @@
 package gr.iti.mklab.reveal.crawler;
 
+import gr.iti.mklab.reveal.util.Configuration;
 import gr.iti.mklab.reveal.util.StreamManagerClient;
 import gr.iti.mklab.reveal.visual.VisualIndexer;
 import gr.iti.mklab.simmo.core.jobs.CrawlJob;
@@ -28,8 +29,10 @@ public class GeoCrawler {
         this.manager = manager;
         dao = new BasicDAO<>(CrawlJob.class, MorphiaManager.getMongoClient(), MorphiaManager.getMorphia(), MorphiaManager.getCrawlsDB().getName());
         manager.addAllGeoFeeds(req.getLon_min(), req.getLat_min(), req.getLon_max(), req.getLat_max(), req.getCollection());
-        runner = new VisualIndexer(req.getCollection());
-        new Thread(runner).start();
+        if (Configuration.LOCAL_VISUAL_INDEXING) {
+            runner = new VisualIndexer(req.getCollection());
+            new Thread(runner).start();
+        }
         req.setState(Job.STATE.RUNNING);
         this.req = req;
         dao.save(req);
@@ -37,7 +40,9 @@ public class GeoCrawler {
 
     public void stop() throws StreamException {
         manager.deleteAllFeeds(true, req.getCollection());
-        runner.stop();
+        if (runner != null) {
+            runner.stop();
+        }
         req.setState(Job.STATE.FINISHED);
         dao.save(req);
     }
@@ -5,6 +5,8 @@ import gr.iti.mklab.reveal.clustering.IncrementalClusterer.CLUSTERER_TYPE;
 import gr.iti.mklab.reveal.crawler.seeds.DogpileSource;
 import gr.iti.mklab.reveal.crawler.seeds.SeedURLSource;
 import gr.iti.mklab.reveal.entities.IncrementalNeReExtractor;
+import gr.iti.mklab.reveal.summarization.SummarizationScheduler;
+import gr.iti.mklab.reveal.summarization.SummaryRefresher;
 import gr.iti.mklab.reveal.util.Configuration;
 import gr.iti.mklab.reveal.util.StreamManagerClient;
 import gr.iti.mklab.reveal.visual.VisualIndexer;
@@ -52,21 +54,24 @@ public class RevealAgent implements Runnable {
     private VisualIndexer visualIndexer = null;
     private IncrementalNeReExtractor inereExtractor = null;
 	private IncrementalClusterer clusterer;
+	private SummaryRefresher summaryRefresher = null;
+	private final SummarizationScheduler summarizationScheduler;
 	
-    private Future<?> visualIndexerHandle = null, inereHandle = null, clustererHandle = null;
+    private Future<?> visualIndexerHandle = null, inereHandle = null, clustererHandle = null, summaryRefresherHandle = null;
     private Future<Boolean> bubingHandle = null;
     
-    private ExecutorService executorService = Executors.newFixedThreadPool(5);
+    private ExecutorService executorService = Executors.newFixedThreadPool(6);
     
     private Boolean running = true;
     
-    public RevealAgent(String hostname, int jmxPort, CrawlJob request, StreamManagerClient manager) {
+    public RevealAgent(String hostname, int jmxPort, CrawlJob request, StreamManagerClient manager, SummarizationScheduler summarizationScheduler) {
     	LOGGER.info("RevealAgent constructor for hostname: " + hostname + " and collection: " + request.getCollection());
     	
         _hostname = hostname;
         _jmxPort = jmxPort;
         _request = request;
         _manager = manager;
+        this.summarizationScheduler = summarizationScheduler;
     }
     
     @Override
@@ -76,20 +81,29 @@ public class RevealAgent implements Runnable {
             
             dao = new BasicDAO<CrawlJob, ObjectId>(CrawlJob.class, MorphiaManager.getMongoClient(), MorphiaManager.getMorphia(), MorphiaManager.getCrawlsDB().getName());           
             
-            visualIndexer = new VisualIndexer(_request.getCollection());
-            visualIndexerHandle = executorService.submit(visualIndexer);
-            if(!visualIndexer.isRunning()) {
-            	LOGGER.error("Visual Indexer failed to start for " + _request.getCollection());
+            // otherwise the collection is indexed by standalone VisualIndexWorker processes
+            if(Configuration.LOCAL_VISUAL_INDEXING) {
+            	visualIndexer = new VisualIndexer(_request.getCollection());
+            	visualIndexerHandle = executorService.submit(visualIndexer);
+            	if(!visualIndexer.isRunning()) {
+            		LOGGER.error("Visual Indexer failed to start for " + _request.getCollection());
+            	}
             }
             
             inereExtractor = new IncrementalNeReExtractor(_request.getCollection());
             inereHandle = executorService.submit(inereExtractor);
             
-            CLUSTERER_TYPE cType = Configuration.CLUSTERER_TYPE.equals("threshold") ? CLUSTERER_TYPE.THRESHOLD : CLUSTERER_TYPE.DPMEANS;
+            CLUSTERER_TYPE cType = Configuration.CLUSTERER_TYPE.equalsIgnoreCase("threshold") ? CLUSTERER_TYPE.THRESHOLD : 
+            	Configuration.CLUSTERER_TYPE.equalsIgnoreCase("summary") ? CLUSTERER_TYPE.SUMMARY : CLUSTERER_TYPE.DPMEANS;
             clusterer = new IncrementalClusterer(_request.getCollection(), 
             		Configuration.DISTANCE_THRESHOLD, Configuration.TEXTUAL_WEIGHT, Configuration.VISUAL_WEIGHT, cType);
             clustererHandle = executorService.submit(clusterer);
             
+            if(summarizationScheduler != null && Configuration.SUMMARIZATION_REFRESH_INTERVAL > 0) {
+            	summaryRefresher = new SummaryRefresher(_request.getCollection(), summarizationScheduler, Configuration.SUMMARIZATION_REFRESH_INTERVAL);
+            	summaryRefresherHandle = executorService.submit(summaryRefresher);
+            }
+            
             if (Configuration.ADD_SOCIAL_MEDIA) {
             	try {
             		_manager.addAllKeywordFeeds(_request.getKeywords(), _request.getCollection());
@@ -110,7 +124,10 @@ public class RevealAgent implements Runnable {
             dao.save(_request);
            
             while(running) {
-            	if(!visualIndexerHandle.isDone() && !visualIndexerHandle.isCancelled()) {
+            	if(visualIndexerHandle == null) {
+            		LOGGER.info("Visual Indexer runs in worker processes for " + _request.getCollection());
+            	}
+            	else if(!visualIndexerHandle.isDone() && !visualIndexerHandle.isCancelled()) {
                 	LOGGER.info("Visual Indexer is running porperly for " + _request.getCollection());
                 }
             	else {
@@ -235,14 +252,16 @@ public class RevealAgent implements Runnable {
     public void stopServices() {
 
     	LOGGER.info("Stop indexing runner, NeRe extractor and social media crawler for " + _request.getCollection());
-    	visualIndexer.stop();
-        boolean canceled = visualIndexerHandle.cancel(true);
-        if(!canceled) {
-        	LOGGER.error("Visual indexer failed to stop");
-        }
+    	if(visualIndexer != null) {
+    		visualIndexer.stop();
+    		boolean canceled = visualIndexerHandle.cancel(true);
+    		if(!canceled) {
+    			LOGGER.error("Visual indexer failed to stop");
+    		}
+    	}
         
         inereExtractor.stop();
-        canceled = inereHandle.cancel(true);
+        boolean canceled = inereHandle.cancel(true);
         if(!canceled) {
         	LOGGER.error("NE and RE extractor failed to stop for " + _request.getCollection());
         }
@@ -253,6 +272,14 @@ public class RevealAgent implements Runnable {
         	LOGGER.error("Clusterer failed to stop for " + _request.getCollection());
         }
         
+        if(summaryRefresher != null) {
+        	summaryRefresher.stop();
+        	canceled = summaryRefresherHandle.cancel(true);
+        	if(!canceled) {
+        		LOGGER.error("Summary refresher failed to stop for " + _request.getCollection());
+        	}
+        }
+        
         canceled = bubingHandle.cancel(true);
         if(!canceled) {
         	LOGGER.error("BUbiNG Agent thread failed to stop for " + _request.getCollection());
@@ -0,0 +1,212 @@
+package gr.iti.mklab.reveal.summarization;
+
+import gr.iti.mklab.reveal.util.LatencyHistogram;
+import gr.iti.mklab.reveal.visual.VectorStore;
+import gr.iti.mklab.reveal.visual.VisualIndexClient;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * Reads what the {@link MediaSummarizer} needs of the images of a collection in a single pass:
+ * the id, the title, the dates and the popularity counters of each image, through a cursor that
+ * projects only these fields, and the visual vectors, which are loaded in batches by a separate
+ * thread while the cursor moves on.
+ */
+public class MediaLoader {
+
+	private final static Logger LOGGER = Logger.getLogger(MediaLoader.class);
+
+	private final static int BATCH_SIZE = 2000;
+	private final static int MIN_TITLE_LENGTH = 15;
+
+	private final static String TITLE = "title";
+	private final static String CREATION_DATE = "creationDate";
+	private final static String LAST_MODIFIED_DATE = "lastModifiedDate";
+	private final static String CRAWL_DATE = "crawlDate";
+	private final static String[] COUNTERS = {"numShares", "numLikes", "numComments", "numViews"};
+
+	private final DBCollection images;
+	private final VectorStore vectorStore;
+	private final VisualIndexClient vIndexClient;
+
+	private final List<String> ids = new ArrayList<String>();
+	private final Map<String, String> texts = new HashMap<String, String>();
+	private final Map<String, Long> times = new HashMap<String, Long>();
+	private final Map<String, Integer> popularities = new HashMap<String, Integer>();
+	private final Map<String, float[]> visualVectors = new HashMap<String, float[]>();
+
+	private final LatencyHistogram batchLatency = new LatencyHistogram();
+	private final LatencyHistogram vectorLatency = new LatencyHistogram();
+	private long scanTime = 0, vectorWaitTime = 0;
+
+	/**
+	 * @param vectorStore the local store of the visual vectors, or null to fetch them all from the visual index
+	 * @param vIndexClient the visual index to fetch the vectors missing from the store, or null to skip them
+	 */
+	public MediaLoader(DBCollection images, VectorStore vectorStore, VisualIndexClient vIndexClient) {
+		this.images = images;
+		this.vectorStore = vectorStore;
+		this.vIndexClient = vIndexClient;
+	}
+
+	/**
+	 * @throws InterruptedException if the thread is interrupted, between two batches
+	 */
+	public void load() throws InterruptedException {
+		DBObject fields = new BasicDBObject(TITLE, 1)
+				.append(CREATION_DATE, 1)
+				.append(LAST_MODIFIED_DATE, 1)
+				.append(CRAWL_DATE, 1);
+		for (String counter : COUNTERS) {
+			fields.put(counter, 1);
+		}
+
+		ExecutorService vectorLoader = Executors.newSingleThreadExecutor();
+		List<Future<Map<String, float[]>>> pending = new ArrayList<Future<Map<String, float[]>>>();
+		try {
+			long start = System.currentTimeMillis();
+			long batchStart = System.nanoTime();
+			long now = System.currentTimeMillis();
+			List<String> batch = new ArrayList<String>(BATCH_SIZE);
+			try (DBCursor cursor = images.find(new BasicDBObject(), fields).batchSize(BATCH_SIZE)) {
+				while (cursor.hasNext()) {
+					DBObject image = cursor.next();
+					String id = image.get("_id").toString();
+					add(id, image, now);
+
+					batch.add(id);
+					if (batch.size() == BATCH_SIZE) {
+						pending.add(loadVectors(vectorLoader, batch));
+						batch = new ArrayList<String>(BATCH_SIZE);
+						batchLatency.recordSince(batchStart);
+						batchStart = System.nanoTime();
+
+						if (Thread.currentThread().isInterrupted()) {
+							throw new InterruptedException("Loading of " + images.getDB().getName() + " interrupted after " + ids.size() + " images");
+						}
+						LOGGER.info(ids.size() + " images loaded from " + images.getDB().getName());
+					}
+				}
+			}
+			if (!batch.isEmpty()) {
+				pending.add(loadVectors(vectorLoader, batch));
+				batchLatency.recordSince(batchStart);
+			}
+			scanTime = System.currentTimeMillis() - start;
+
+			// the vectors of the last batches may still be on their way
+			start = System.currentTimeMillis();
+			for (Future<Map<String, float[]>> vectors : pending) {
+				try {
+					visualVectors.putAll(vectors.get());
+				}
+				catch (ExecutionException e) {
+					LOGGER.error("Failed to load visual vectors of " + images.getDB().getName() + ": " + e.getCause().getMessage(), e.getCause());
+				}
+			}
+			vectorWaitTime = System.currentTimeMillis() - start;
+		}
+		finally {
+			vectorLoader.shutdownNow();
+		}
+
+		LOGGER.info(getStatistics());
+	}
+
+	private Future<Map<String, float[]>> loadVectors(ExecutorService vectorLoader, List<String> batch) {
+		return vectorLoader.submit(() -> {
+			long start = System.nanoTime();
+			try {
+				return VectorStore.loadVectors(vectorStore, batch, vIndexClient);
+			}
+			finally {
+				vectorLatency.recordSince(start);
+			}
+		});
+	}
+
+	private void add(String id, DBObject image, long now) {
+		ids.add(id);
+
+		Object title = image.get(TITLE);
+		if (title != null && title.toString().length() > MIN_TITLE_LENGTH) {
+			texts.put(id, title.toString());
+		}
+
+		Date date = getDate(image, CREATION_DATE);
+		if (date == null) {
+			date = getDate(image, LAST_MODIFIED_DATE);
+		}
+		if (date == null) {
+			date = (Date) image.get(CRAWL_DATE);
+		}
+		times.put(id, date != null ? date.getTime() : now);
+
+		int popularity = 0;
+		for (String counter : COUNTERS) {
+			Object value = image.get(counter);
+			if (value instanceof Number) {
+				popularity += ((Number) value).intValue();
+			}
+		}
+		popularities.put(id, popularity);
+	}
+
+	/**
+	 * @return the date of the field, or null if it is missing or not set
+	 */
+	private static Date getDate(DBObject image, String field) {
+		Object date = image.get(field);
+		if (date instanceof Date && ((Date) date).getTime() > 0) {
+			return (Date) date;
+		}
+		return null;
+	}
+
+	public List<String> getIds() {
+		return ids;
+	}
+
+	/**
+	 * @return the titles that are long enough to be compared
+	 */
+	public Map<String, String> getTexts() {
+		return texts;
+	}
+
+	/**
+	 * @return the creation date of each image, or the time it was last modified or crawled if unknown
+	 */
+	public Map<String, Long> getTimes() {
+		return times;
+	}
+
+	public Map<String, Integer> getPopularities() {
+		return popularities;
+	}
+
+	public Map<String, float[]> getVisualVectors() {
+		return visualVectors;
+	}
+
+	public String getStatistics() {
+		return "Loaded " + ids.size() + " images, " + texts.size() + " titles and " + visualVectors.size() + " visual vectors of "
+				+ images.getDB().getName() + ". Scan: " + scanTime + " ms, waiting for vectors after the scan: " + vectorWaitTime
+				+ " ms. Batches: " + batchLatency + ". Vector batches: " + vectorLatency;
+	}
+}
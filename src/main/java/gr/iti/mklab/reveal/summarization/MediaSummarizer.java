@@ -1,18 +1,16 @@
 package gr.iti.mklab.reveal.summarization;
 
-import edu.uci.ics.jung.graph.DirectedGraph;
-import edu.uci.ics.jung.graph.Graph;
-import edu.uci.ics.jung.graph.UndirectedSparseGraph;
-import gr.iti.mklab.reveal.summarization.graph.Edge;
-import gr.iti.mklab.reveal.summarization.graph.GraphClusterer;
-import gr.iti.mklab.reveal.summarization.graph.GraphRanker;
-import gr.iti.mklab.reveal.summarization.graph.GraphUtils;
+import gr.iti.mklab.reveal.summarization.graph.CsrGraph;
+import gr.iti.mklab.reveal.summarization.graph.CsrRanker;
+import gr.iti.mklab.reveal.summarization.graph.KnnGraphBuilder;
+import gr.iti.mklab.reveal.summarization.graph.KnnGraphBuilder.KnnGraph;
+import gr.iti.mklab.reveal.summarization.scan.CsrScanCommunityDetector;
 import gr.iti.mklab.reveal.summarization.utils.L2;
 import gr.iti.mklab.reveal.util.Configuration;
+import gr.iti.mklab.reveal.visual.VectorStore;
 import gr.iti.mklab.reveal.visual.VisualIndexClient;
 import gr.iti.mklab.simmo.core.annotations.SummaryScore;
 import gr.iti.mklab.simmo.core.cluster.Cluster;
-import gr.iti.mklab.simmo.core.cluster.Clusterable;
 import gr.iti.mklab.simmo.core.items.Image;
 import gr.iti.mklab.simmo.core.morphia.MediaDAO;
 import gr.iti.mklab.simmo.core.morphia.MorphiaManager;
@@ -22,11 +20,9 @@ import info.debatty.java.graphs.NeighborList;
 import info.debatty.java.graphs.Node;
 import info.debatty.java.graphs.SimilarityInterface;
 import info.debatty.java.graphs.build.NNCTPH;
-import info.debatty.java.graphs.build.ThreadedNNDescent;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -35,19 +31,22 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.Callable;
 
-import org.apache.commons.lang.ArrayUtils;
 import org.apache.log4j.Logger;
 import org.mongodb.morphia.dao.BasicDAO;
 import org.mongodb.morphia.dao.DAO;
-import org.mongodb.morphia.query.Query;
-import org.mongodb.morphia.query.UpdateOperations;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.BulkWriteResult;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DBRef;
 
 public class MediaSummarizer implements Callable<List<RankedImage>> {
 
 	private Logger _logger = Logger.getLogger(MediaSummarizer.class);
 	
-	private final static int ITEMS_PER_ITERATION = 2000;
-	
 	private String collection;
 
 	private double textSimilarityCuttof = 0.2;
@@ -59,9 +58,22 @@ public class MediaSummarizer implements Callable<List<RankedImage>> {
 	private double epsilon;
 	 
 	private int N = 2;
+	
+	// the number of nearest neighbors of each image in the textual and the visual graph
+	private int k = 20;
+	
+	// start from the state of the previous summarization, if there is one
+	private boolean incremental = true;
+	
+	// the number of requests in each bulk write of the results
+	private final static int BULK_SIZE = 5000;
+	private final static String CLUSTER_ID_PREFIX = "Summary#";
+	private final static String ANNOTATION_CLASS = "annotations.className";
 
 	private String nnAlgo = "nndescent";	//nndescent or nnctph
 	
+	private final SummarizationProgress progress = new SummarizationProgress();
+	
 	public MediaSummarizer(String collection, double similarityCuttof, double visualSimilarity, 
 			double randomJumpWeight, int mu, double epsilon, String nnAlgo) {
 		this(collection, similarityCuttof, visualSimilarity, randomJumpWeight, mu, epsilon);
@@ -91,10 +103,51 @@ public class MediaSummarizer implements Callable<List<RankedImage>> {
 		
 		this.collection = collection;
 		
+		if(Configuration.SUMMARIZATION_KNN_K > 0) {
+			this.k = Configuration.SUMMARIZATION_KNN_K;
+		}
+	}
+	
+	public String getCollection() {
+		return collection;
+	}
+	
+	public SummarizationProgress getProgress() {
+		return progress;
+	}
+	
+	public void setK(int k) {
+		this.k = k;
+	}
+	
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+	}
+	
+	/**
+	 * @return a summarizer with the parameters of the stored state of a collection
+	 */
+	public static MediaSummarizer fromState(String collection, SummaryState state) {
+		SummaryState.Parameters parameters = state.getParameters();
+		MediaSummarizer summarizer = new MediaSummarizer(collection, parameters.getTextSimilarityCuttof(), 
+				parameters.getVisualSimilarityCuttof(), parameters.getRandomJumpWeight(), parameters.getMu(), parameters.getEpsilon());
+		summarizer.setK(parameters.getK());
+		return summarizer;
 	}
 	
 	@Override
 	public List<RankedImage> call() throws Exception {
+		try {
+			return summarize();
+		}
+		finally {
+			progress.finish();
+		}
+	}
+	
+	private List<RankedImage> summarize() throws Exception {
+		
+		progress.enter(SummarizationProgress.Phase.LOADING);
 		
 		List<RankedImage> rankedImages = new ArrayList<RankedImage>();
 		
@@ -110,83 +163,58 @@ public class MediaSummarizer implements Callable<List<RankedImage>> {
 		
 		String indexServiceHost = "http://" + Configuration.INDEX_SERVICE_HOST + ":8080/VisualIndexService";
 		VisualIndexClient vIndexClient = new VisualIndexClient(indexServiceHost, collection);
+		VectorStore vectorStore = null;
+		try {
+			vectorStore = VectorStore.open(collection);
+		} catch (IOException e) {
+			_logger.error("Cannot open local vector store for " + collection + ", vectors are requested from the visual index", e);
+		}
 		
-		Graph<String, Edge> graph = new UndirectedSparseGraph<String, Edge>();
-
-        Map<String, String> texts = new HashMap<String, String>();
-        Map<String, Long> times = new HashMap<String, Long>();
-        Map<String, Integer> popularities = new HashMap<String, Integer>();
-        Map<String, Double[]> visualVectors = new HashMap<String, Double[]>();
-        
-        final long time = System.currentTimeMillis();
         long current = System.currentTimeMillis();
-        long c = imageDAO.count();
-        _logger.info(c + " items for processing in collection " + collection);
-		for (int k = 0; k < c; k += ITEMS_PER_ITERATION) {
-			_logger.info(k );
-            List<Image> images = imageDAO.getItems(ITEMS_PER_ITERATION, k);
-            images.stream().forEach(image -> {
-            	
-            	graph.addVertex(image.getId());
-            	
-            	String title = image.getTitle();
-            	if(title != null && title.length() > 15) {
-            		texts.put(image.getId(), title);
-            	}
-            	
-            	Date date = image.getCreationDate();
-            	if(date == null || date.getTime() == 0) {
-            		date = image.getLastModifiedDate();	
-            	}
-            	
-            	if(date != null && date.getTime() > 0) {
-            		times.put(image.getId(), date.getTime());
-            	}
-            	else {
-            		date = image.getCrawlDate();
-            		if(date != null) {
-            			times.put(image.getId(), date.getTime());
-            		}
-            		else { 
-            			times.put(image.getId(), time);
-            		}
-            	}
-            	
-            	try {
-            		int popularity = image.getNumShares() + image.getNumLikes() + image.getNumComments() + image.getNumViews();
-            		popularities.put(image.getId(), popularity);
-            	}
-            	catch(Exception e) {
-            		popularities.put(image.getId(), 0);
-            	}
-            	
-     
-            	Double[] vector = vIndexClient.getVector(image.getId());
-            	if(vector != null && vector.length > 0) {
-            		visualVectors.put(image.getId(), vector);	
-            	}
-            	
-            });
+        MediaLoader loader = new MediaLoader(imageDAO.getCollection(), vectorStore, vIndexClient);
+        loader.load();
+        
+        // the graph, the clusters and the ranks refer to the images by their position in the ids
+        List<String> ids = loader.getIds();
+        Map<String, Integer> indices = new HashMap<String, Integer>(2 * ids.size());
+        for(int i = 0; i < ids.size(); i++) {
+        	indices.put(ids.get(i), i);
         }
+        Map<String, String> texts = loader.getTexts();
+        Map<String, Long> times = loader.getTimes();
+        Map<String, Integer> popularities = loader.getPopularities();
+        Map<String, float[]> visualVectors = loader.getVisualVectors();
+		
+		_logger.info("MediaSummarizer loaded " + ids.size() + " images in " + (System.currentTimeMillis() - current) + " milliseconds.");
 		
-		_logger.info("MediaSummarizer loaded " + graph.getVertexCount() + " images in " + (System.currentTimeMillis() - current) + " milliseconds.");
+		SummaryState previous = incremental ? loadState(ids) : null;
 
+		progress.enter(SummarizationProgress.Phase.GRAPH);
 		current = System.currentTimeMillis();
+		CsrGraph graph;
+		SummaryState.Neighbors textual = null, visual = null;
 		try {
-			Map<String, Vector> vectorsMap = Vocabulary.createVocabulary(texts, N);
-			_logger.info("Vocabulary created with " + Vocabulary.getNumOfTerms() + " " + N + "-grams");
+			CsrGraph.Builder builder = new CsrGraph.Builder(ids.size());
+			
+			Vocabulary vocabulary = new Vocabulary();
+			Map<String, Vector> vectorsMap = vocabulary.createVocabulary(texts, N);
+			_logger.info("Vocabulary created with " + vocabulary.getNumOfTerms() + " " + N + "-grams");
 				 
 			if(nnAlgo.equals("nndctph")) {
-				createGraphWithNNCTPH(graph, vectorsMap);
+				createGraphWithNNCTPH(builder, indices, vectorsMap);
 			} else {
-				createGraphWithNNDescent(graph, vectorsMap);
+				textual = createGraphWithNNDescent(builder, indices, vectorsMap, previous);
 			}
 			
-			_logger.info("Graph created for " + collection  + ": " + graph.getVertexCount() + " vertices and " + graph.getEdgeCount() + " edges. Density: " + GraphUtils.getGraphDensity(graph));
+			_logger.info("Textual edges found for " + collection  + ": " + builder.getEdgeCount());
         
-			attachVisualEdgesWithNNDescent(graph, visualVectors);
-        	_logger.info("Visual edges attached for " + collection + ": "  + graph.getVertexCount() + " vertices and " + graph.getEdgeCount() + " edges. Density: " + GraphUtils.getGraphDensity(graph));
+			visual = attachVisualEdgesWithNNDescent(builder, indices, visualVectors, previous);
+			graph = builder.build();
+        	_logger.info("Graph created for " + collection + ": "  + graph.getVertexCount() + " vertices and " + graph.getEdgeCount() + " edges. Density: " + graph.getDensity());
         	
+		}
+		catch(InterruptedException e) {
+			throw e;
 		}
 		catch(Exception e) {
 			_logger.error("MediaSummarizer error for " + collection + " => Exception during graph generation: " + e.getMessage(), e);
@@ -195,61 +223,65 @@ public class MediaSummarizer implements Callable<List<RankedImage>> {
 		
 		_logger.error("Total time for graph creation in summarizer: " + (System.currentTimeMillis() - current));
 		
-		Collection<Collection<String>> clusters = null;
+		progress.enter(SummarizationProgress.Phase.CLUSTERING);
+		int[] communities;
+		List<int[]> clusters;
 		try {
-			GraphClusterer.scanMu = mu;
-        	GraphClusterer.scanEpsilon = epsilon;
-        	clusters = GraphClusterer.cluster(graph, false);
+			CsrScanCommunityDetector detector = new CsrScanCommunityDetector(epsilon, mu);
+			communities = detector.getCommunities(graph);
+			clusters = CsrScanCommunityDetector.getMembers(communities);
         	
         	_logger.info("Media summarizer detected " + clusters.size() + " clusters for " + collection);
 		}
+		catch(InterruptedException e) {
+			throw e;
+		}
 		catch(Exception e) {
 			_logger.info("MediaSummarizer error for " + collection + " => Exception during clustering: " + e.getMessage(), e);
 			return rankedImages;
 		}
         
-        Map<String, Double> priors = getPriorScores(graph.getVertices(), popularities, clusters, graph); 
+        progress.enter(SummarizationProgress.Phase.RANKING);
+        double[] priors = getPriorScores(ids, popularities, communities, clusters, graph); 
         
-		DirectedGraph<String, Edge> directedGraph = GraphUtils.toDirected(graph, times);
-		//Graph<String, Edge> normalizedGraph = GraphUtils.normalize(directedGraph);
-		
-		GraphRanker.d = randomJumpWeight;
-		Map<String, Double> pagerankScores = GraphRanker.pagerankScoring(directedGraph, priors);
-		Map<String, Double> divrankScores = GraphRanker.divrankScoring(directedGraph, priors);
-		
-		for(Entry<String, Double> entry : divrankScores.entrySet()) {
-			RankedImage rankedImage = new RankedImage(entry.getKey(), entry.getValue());
-			try {	
-				rankedImages.add(rankedImage);
-				rankedImagesDAO.save(rankedImage);
-			}
-			catch(Exception e) {
-				_logger.error("Collection: " + collection + ". Exception during storing of rankedImage " + rankedImage.id + " => " + e.getMessage());
-			}
+        long[] vertexTimes = new long[ids.size()];
+        for(int i = 0; i < ids.size(); i++) {
+        	vertexTimes[i] = times.get(ids.get(i));
+        }
+		CsrGraph directedGraph = graph.toDirected(vertexTimes);
+		
+		double[] initialPageranks = null, initialDivranks = null;
+		if(previous != null && previous.getPageranks() != null && previous.getDivranks() != null) {
+			// the ranks of the previous summarization are close to the new ones, so they converge in fewer iterations
+			initialPageranks = previous.warmStart(previous.getPageranks(), ids, CsrRanker.toDistribution(priors));
+			initialDivranks = previous.warmStart(previous.getDivranks(), ids, priors);
 		}
+		CsrRanker.Ranking pagerank = CsrRanker.pagerank(directedGraph, priors, randomJumpWeight, initialPageranks);
+		_logger.info(pagerank + " for " + collection);
+		CsrRanker.Ranking divrank = CsrRanker.divrank(directedGraph, priors, randomJumpWeight, initialDivranks);
+		_logger.info(divrank + " for " + collection);
 		
-		for(String vertex : graph.getVertices()) {
-			try {
-				if(popularities.containsKey(vertex) && priors.containsKey(vertex) &&
-						pagerankScores.containsKey(vertex) && divrankScores.containsKey(vertex)) {
-					SummaryScore summaryScore = new SummaryScore(
-						popularities.get(vertex), 
-						priors.get(vertex), 
-						pagerankScores.get(vertex), 
-						divrankScores.get(vertex)
-					);
-					
-					// add annotation to image
-					Query<Image> query = imageDAO.createQuery().filter("_id", vertex);
-					UpdateOperations<Image> ops = imageDAO.createUpdateOperations().add("annotations", summaryScore);
-					imageDAO.update(query, ops);
-				}
-			}
-			catch(Exception e) {
-				e.printStackTrace();
-				_logger.error("Exception for vertex " + vertex + " in collection " + collection + ": " + e.getMessage());
-			}
+		double[] pageranks = pagerank.getRanks(), divranks = divrank.getRanks();
+		double[] pagerankScores = pagerank.getScores();
+		double[] divrankScores = divrank.getScores();
+		
+		progress.enter(SummarizationProgress.Phase.PERSISTING);
+		
+		SummaryState.Parameters parameters = new SummaryState.Parameters(textSimilarityCuttof, visualSimilarityCuttof, 
+				randomJumpWeight, mu, epsilon, k);
+		try {
+			new SummaryState(parameters, ids, textual, visual, pageranks, divranks).save(collection);
+		}
+		catch(IOException e) {
+			_logger.error("Failed to save the summary state of " + collection + ": " + e.getMessage(), e);
+		}
+		
+		long persistenceStart = System.currentTimeMillis();
+		for(int i = 0; i < ids.size(); i++) {
+			rankedImages.add(new RankedImage(ids.get(i), divrankScores[i]));
 		}
+		int saved = saveRankedImages(rankedImagesDAO, rankedImages);
+		int annotated = annotate(imageDAO, ids, popularities, priors, pagerankScores, divrankScores);
 		
 		DAO<Cluster, String> clusterDAO = new BasicDAO<>(
 				Cluster.class, 
@@ -257,34 +289,10 @@ public class MediaSummarizer implements Callable<List<RankedImage>> {
 				MorphiaManager.getMorphia(), 
 				MorphiaManager.getDB(collection).getName()
 			); 
+		int savedClusters = saveClusters(clusterDAO, imageDAO.getCollection().getName(), ids, clusters, divrankScores);
 		
-		_logger.error("Save " + clusters.size() + " clusters for " + collection);
-		for(Collection<String> clst : clusters) {
-			double bestScore = 0;
-    		Cluster cluster = new Cluster();
-    		List<Clusterable> members = new ArrayList<Clusterable>();
-    		for(String mId : clst) {
-    			Double score = divrankScores.get(mId);
-    			Image image = imageDAO.get(mId);
-    			if(image != null) {
-    				members.add(image);
-    				
-    				if(score != null && score > bestScore) {
-    					bestScore = score;
-    					cluster.setCentroid(image);
-    				}
-    			}
-    		}
-    		cluster.setMembers(members);
-    		cluster.setSize(members.size());
-    	
-    		try {
-    			clusterDAO.save(cluster);
-    		}
-    		catch(Exception e) {
-    			_logger.error("Collection: " + collection + ". Exception during storing of cluster " + cluster.getId() + " => " + e.getMessage(), e);
-    		}
-    	}
+		_logger.info("Persisted " + saved + " ranked images, " + annotated + " summary scores and " + savedClusters 
+				+ " clusters for " + collection + " in " + (System.currentTimeMillis() - persistenceStart) + " ms");
 		
 		_logger.error("Total time for summarizer: " + (System.currentTimeMillis() - current));
 		
@@ -321,97 +329,52 @@ public class MediaSummarizer implements Callable<List<RankedImage>> {
 		return rankedImages;
 	}
 	
-	public void createGraphWithNNDescent(Graph<String, Edge> graph, Map<String, Vector> vectorsMap) {
+	/**
+	 * @param previous the state to start from, or null
+	 * @return the neighbors of the images, by their position in the graph
+	 */
+	public SummaryState.Neighbors createGraphWithNNDescent(CsrGraph.Builder graph, Map<String, Integer> indices, 
+			Map<String, Vector> vectorsMap, SummaryState previous) throws InterruptedException {
 		
 		if(vectorsMap == null || vectorsMap.isEmpty()) {
-			return;
+			return null;
 		}
 		
 		_logger.info("Use " + vectorsMap.size() + " images to create graph");
 		
-		int k = 0;
-		double ratio = 0.02;
-		while(k == 0 && ratio <=1) {
-			k = (int) (ratio * graph.getVertexCount());
-			ratio += 0.01;
+		// the tf-idf weights are computed once per vector instead of once per comparison
+		List<SparseVector> vectors = new ArrayList<SparseVector>(vectorsMap.size());
+		List<String> items = new ArrayList<String>(vectorsMap.size());
+		int[] vertices = new int[vectorsMap.size()];
+		for(Entry<String, Vector> entry : vectorsMap.entrySet()) {
+			Integer vertex = indices.get(entry.getKey());
+			if(vertex != null && entry.getValue() != null) {
+				vertices[vectors.size()] = vertex;
+				vectors.add(SparseVector.of(entry.getValue()));
+				items.add(entry.getKey());
+			}
+		}
+		
+		KnnGraphBuilder<SparseVector> builder = new KnnGraphBuilder<SparseVector>();
+		builder.setK(k);
+		builder.setFloor(textSimilarityCuttof);
+		builder.setDelta(0.005);
+		builder.setRho(0.3);
+		builder.setMaxIterations(40);
+		
+		KnnGraph initial = null;
+		if(previous != null && previous.getTextual() != null) {
+			initial = previous.toKnnGraph(previous.getTextual(), items, k);
 		}
 		
-		_logger.info("K = " + k);
+		KnnGraph nn = builder.build(vectors, (v1, v2) -> Math.max(0, v1.cosine(v2)), initial);
+		int added = nn.addEdges(graph, vertices);
+		_logger.info("Textual kNN graph of " + collection + ": " + nn + ", " + added + " edges");
 		
-        ThreadedNNDescent<Vector> builder = new ThreadedNNDescent<Vector>();
-
-        builder.setK(k);
-        builder.setDelta(0.005);
-        builder.setRho(0.3);
-        builder.setMaxIterations(40);
-        
-        builder.setCallback(new CallbackInterface() {
-            @Override
-            public void call(HashMap<String, Object> data) {
-                _logger.info(data);
-            }
-        });
-        
-        builder.setSimilarity(new SimilarityInterface<Vector>() {
-        	
-			private static final long serialVersionUID = -2703570812879875880L;
-			@Override
-            public double similarity(Vector v1, Vector v2) {
-				if(v1 != null && v2 != null) {
-					try {
-						double similarity = v1.cosine(v2);
-						if(similarity < 0) {
-							return .0;
-						}
-						
-						return similarity;
-					} catch (Exception e) {
-						_logger.error(e);
-					}
-				}
-				return .0;
-            }
-        });
-        
-        List<Node<Vector>> nodes = new ArrayList<Node<Vector>>();
-        for (String vertex : vectorsMap.keySet()) {
-        	if(vertex != null) {
-        		Vector vector = vectorsMap.get(vertex);
-        		if(vector != null) {
-        			Node<Vector> node = new Node<Vector>(vertex, vector);
-        			nodes.add(node);
-        		}
-        	}
-        }
-
-        info.debatty.java.graphs.Graph<Vector> nn = builder.computeGraph(nodes);
-        _logger.info("Iterations used: " + builder.getIterations());
-        for(Node<Vector> node : nn.getNodes()) {
-        	String v1 = node.id;
-        	NeighborList nl = nn.get(node);
-        
-        	Iterator<Neighbor> it = nl.iterator();
-        	while(it.hasNext()) {
-        		Neighbor neighbor = it.next();
-        		if(neighbor == null) {
-        			continue;
-        		}
-        		String v2 = neighbor.node.id;
-        		try {
-        			Edge edge = graph.findEdge(v1, v2);
-        			if(edge == null && neighbor.similarity > textSimilarityCuttof) {
-        				edge = new Edge(neighbor.similarity);
-        				graph.addEdge(edge, v1, v2);
-        			}
-        		}
-        		catch(Exception e) {
-        			_logger.error(e);
-        		}
-        	}
-        }    
+		return SummaryState.Neighbors.of(nn, vertices);
 	}
 	
-	public void createGraphWithNNCTPH(Graph<String, Edge> graph, Map<String, Vector> vectorsMap) {
+	public void createGraphWithNNCTPH(CsrGraph.Builder graph, Map<String, Integer> indices, Map<String, Vector> vectorsMap) {
 		
 		if(vectorsMap == null || vectorsMap.isEmpty()) {
 			return;
@@ -419,15 +382,15 @@ public class MediaSummarizer implements Callable<List<RankedImage>> {
 		
 		_logger.info("Use " + vectorsMap.size() + " images to create graph");
 		
-		int k = 0;
-		double ratio = 0.02;
-		while(k == 0 && ratio <=1) {
-			k = (int) (ratio * graph.getVertexCount());
-			ratio += 0.01;
-		}
-		
 		_logger.info("K = " + k);
 		
+        Map<String, SparseVector> sparseVectors = new HashMap<String, SparseVector>();
+        for(Entry<String, Vector> entry : vectorsMap.entrySet()) {
+        	if(entry.getKey() != null && entry.getValue() != null) {
+        		sparseVectors.put(entry.getKey(), SparseVector.of(entry.getValue()));
+        	}
+        }
+        
         NNCTPH builder = new NNCTPH();
         
         builder.setK(k);
@@ -447,8 +410,8 @@ public class MediaSummarizer implements Callable<List<RankedImage>> {
 			@Override
             public double similarity(String n1, String n2) {
 				try {
-					Vector v1 = vectorsMap.get(n1);
-					Vector v2 = vectorsMap.get(n2);
+					SparseVector v1 = sparseVectors.get(n1);
+					SparseVector v2 = sparseVectors.get(n2);
 					
 					double similarity = v1.cosine(v2);
 					if(similarity < 0) {
@@ -485,10 +448,9 @@ public class MediaSummarizer implements Callable<List<RankedImage>> {
         		}
         		String v2 = neighbor.node.id;
         		try {
-        			Edge edge = graph.findEdge(v1, v2);
-        			if(edge == null && neighbor.similarity > textSimilarityCuttof) {
-        				edge = new Edge(neighbor.similarity);
-        				graph.addEdge(edge, v1, v2);
+        			// the builder keeps the first edge between two images
+        			if(neighbor.similarity > textSimilarityCuttof) {
+        				graph.addEdge(indices.get(v1), indices.get(v2), (float) neighbor.similarity);
         			}
         		}
         		catch(Exception e) {
@@ -498,132 +460,279 @@ public class MediaSummarizer implements Callable<List<RankedImage>> {
         }    
 	}
 	
-	public void attachVisualEdgesWithNNDescent(Graph<String, Edge> graph, Map<String, Double[]> visualVectors) {
+	/**
+	 * @param previous the state to start from, or null
+	 * @return the neighbors of the images, by their position in the graph
+	 */
+	public SummaryState.Neighbors attachVisualEdgesWithNNDescent(CsrGraph.Builder graph, Map<String, Integer> indices, 
+			Map<String, float[]> visualVectors, SummaryState previous) throws InterruptedException {
 		
 		if(visualVectors == null || visualVectors.isEmpty()) {
-			return;
+			return null;
 		}
 		
-		int k = 0;
-		double ratio = 0.02;
-		while(k == 0 && ratio <= 1) {
-			k = (int) (ratio * graph.getVertexCount());
-			ratio += 0.01;
+		List<float[]> vectors = new ArrayList<float[]>(visualVectors.size());
+		List<String> items = new ArrayList<String>(visualVectors.size());
+		int[] vertices = new int[visualVectors.size()];
+		for(Entry<String, float[]> entry : visualVectors.entrySet()) {
+			Integer vertex = indices.get(entry.getKey());
+			if(vertex != null && entry.getValue() != null) {
+				vertices[vectors.size()] = vertex;
+				vectors.add(entry.getValue());
+				items.add(entry.getKey());
+			}
 		}
 		
-        ThreadedNNDescent<Double[]> builder = new ThreadedNNDescent<Double[]>();
-        builder.setK(k);
-        builder.setDelta(0.001);
-        builder.setRho(0.5);
-        builder.setMaxIterations(40);
-        
-        builder.setCallback(new CallbackInterface() {
-            @Override
-            public void call(HashMap<String, Object> data) {
-                _logger.info(data);
-            }
-        });
-        
-        builder.setSimilarity(new SimilarityInterface<Double[]>() {
-        	
-			private static final long serialVersionUID = -2703570812879875880L;
-			@Override
-            public double similarity(Double[] v1, Double[] v2) {
-				if(v1 != null && v2 != null) {
-					try {
-						double similarity = L2.similarity(ArrayUtils.toPrimitive(v1), ArrayUtils.toPrimitive(v2));
-						return similarity;
-					} catch (Exception e) {
-						_logger.error(e);
-					}
+		KnnGraphBuilder<float[]> builder = new KnnGraphBuilder<float[]>();
+		builder.setK(k);
+		builder.setFloor(visualSimilarityCuttof);
+		builder.setDelta(0.001);
+		builder.setRho(0.5);
+		builder.setMaxIterations(40);
+		
+		KnnGraph initial = null;
+		if(previous != null && previous.getVisual() != null) {
+			initial = previous.toKnnGraph(previous.getVisual(), items, k);
+		}
+		
+		KnnGraph nn = builder.build(vectors, L2::similarity, initial);
+		int added = nn.addEdges(graph, vertices);
+		_logger.info("Visual kNN graph of " + collection + ": " + nn + ", " + added + " edges");
+		
+		return SummaryState.Neighbors.of(nn, vertices);
+	}
+	
+	/**
+	 * Saves the ranked images with unordered bulk writes, replacing the ones of the previous summarization.
+	 * 
+	 * @return the number of ranked images written
+	 */
+	private int saveRankedImages(DAO<RankedImage, String> rankedImagesDAO, List<RankedImage> rankedImages) throws InterruptedException {
+		int saved = 0;
+		for(int from = 0; from < rankedImages.size(); from += BULK_SIZE) {
+			BulkWriteOperation bulk = rankedImagesDAO.getCollection().initializeUnorderedBulkOperation();
+			for(RankedImage rankedImage : rankedImages.subList(from, Math.min(from + BULK_SIZE, rankedImages.size()))) {
+				bulk.find(new BasicDBObject("_id", rankedImage.getId())).upsert()
+					.replaceOne(MorphiaManager.getMorphia().toDBObject(rankedImage));
+			}
+			saved += execute(bulk, "ranked images");
+		}
+		return saved;
+	}
+	
+	/**
+	 * Replaces the SummaryScore annotation of each image: the annotations of the previous summarization are 
+	 * pulled with a single multi-document update, and the new ones are pushed with unordered bulk writes.
+	 * 
+	 * @return the number of images annotated
+	 */
+	private int annotate(MediaDAO<Image> imageDAO, List<String> ids, Map<String, Integer> popularities, 
+			double[] priors, double[] pagerankScores, double[] divrankScores) throws InterruptedException {
+		
+		String className = SummaryScore.class.getName();
+		try {
+			imageDAO.getCollection().update(new BasicDBObject(ANNOTATION_CLASS, className), 
+					new BasicDBObject("$pull", new BasicDBObject("annotations", new BasicDBObject("className", className))), 
+					false, true);
+		}
+		catch(Exception e) {
+			_logger.error("Failed to remove the previous summary scores of " + collection + ": " + e.getMessage(), e);
+		}
+		
+		int annotated = 0;
+		for(int from = 0; from < ids.size(); from += BULK_SIZE) {
+			BulkWriteOperation bulk = imageDAO.getCollection().initializeUnorderedBulkOperation();
+			int to = Math.min(from + BULK_SIZE, ids.size()), requests = 0;
+			for(int i = from; i < to; i++) {
+				String id = ids.get(i);
+				Integer popularity = popularities.get(id);
+				if(popularity == null) {
+					continue;
 				}
-				return .0;
-            }
-        });
-        
-        List<Node<Double[]>> nodes = new ArrayList<Node<Double[]>>();
-        for (String vertex : visualVectors.keySet()) {
-        	if(vertex != null) {
-        		Double[] vector = visualVectors.get(vertex);
-        		if(vector != null) {
-        			Node<Double[]> node = new Node<Double[]>(vertex, vector);
-        			nodes.add(node);
-        		}
-        	}
-        }
-
-        info.debatty.java.graphs.Graph<Double[]> nn = builder.computeGraph(nodes);
-        for(Node<Double[]> node : nn.getNodes()) {
-        	String v1 = node.id;
-        	NeighborList nl = nn.get(node);
-        
-        	Iterator<Neighbor> it = nl.iterator();
-        	while(it.hasNext()) {
-        		Neighbor neighbor = it.next();
-        		if(neighbor != null) {
-        			try {
-        				String v2 = neighbor.node.id;
-        				Edge edge = graph.findEdge(v1, v2);
-        				if(edge == null && neighbor.similarity >= visualSimilarityCuttof) {
-        					edge = new Edge(neighbor.similarity);
-        					graph.addEdge(edge, v1, v2);
-        				}
-        			}
-        			catch(Exception e) {
-        				_logger.error(e);
-        			}
-        		}
-        	}
-        }    
+				SummaryScore summaryScore = new SummaryScore(popularity, priors[i], pagerankScores[i], divrankScores[i]);
+				DBObject annotation = MorphiaManager.getMorphia().toDBObject(summaryScore);
+				bulk.find(new BasicDBObject("_id", id)).updateOne(new BasicDBObject("$push", new BasicDBObject("annotations", annotation)));
+				requests++;
+			}
+			if(requests > 0) {
+				annotated += execute(bulk, "summary scores");
+			}
+		}
+		return annotated;
 	}
 	
-	public Map<String, Double> getPriorScores(Collection<String> ids, Map<String, Integer> popularities, 
-			Collection<Collection<String>> clusters, Graph<String, Edge> graph) {
+	/**
+	 * Saves the non-empty clusters with unordered bulk writes. The members are written as references to the 
+	 * images by id, without loading them, and the centroid of each cluster is its member of the highest DivRank 
+	 * score. The clusters have the ids Summary#0, Summary#1 and so on, so each summarization replaces the 
+	 * clusters of the previous one and removes the ones left over.
+	 * 
+	 * @return the number of clusters written
+	 */
+	private int saveClusters(DAO<Cluster, String> clusterDAO, String imageCollection, List<String> ids, 
+			List<int[]> clusters, double[] divrankScores) throws InterruptedException {
+		
+		DBCollection dbCollection = clusterDAO.getCollection();
+		List<String> clusterIds = new ArrayList<String>();
+		int saved = 0;
+		BulkWriteOperation bulk = dbCollection.initializeUnorderedBulkOperation();
+		int requests = 0;
+		for(int[] clst : clusters) {
+			// a community whose seed lost its core neighbors to earlier communities has no members
+			if(clst.length == 0) {
+				continue;
+			}
+			
+			int centroid = clst[0];
+			List<DBRef> members = new ArrayList<DBRef>(clst.length);
+			for(int member : clst) {
+				members.add(new DBRef(imageCollection, ids.get(member)));
+				if(divrankScores[member] > divrankScores[centroid]) {
+					centroid = member;
+				}
+			}
+			
+			Cluster cluster = new Cluster();
+			cluster.setId(CLUSTER_ID_PREFIX + clusterIds.size());
+			cluster.setSize(clst.length);
+			Map<String, String> centroidRef = new HashMap<String, String>();
+			centroidRef.put("id", ids.get(centroid));
+			centroidRef.put("type", "image");
+			cluster.addCentroid(centroidRef);
 			
-		Map<String, Integer> topicSignificane = new HashMap<String, Integer>();
-		Map<String, Double> topicDensities = new HashMap<String, Double>();
-		
-		for(Collection<String> cluster : clusters) {
-			Graph<String, Edge> subGraph = GraphUtils.filter(graph, cluster);
-			Double density = GraphUtils.getGraphDensity(subGraph);
-			for(String member : cluster) {
-				topicDensities.put(member, density);
-				topicSignificane.put(member, cluster.size());	
+			DBObject document = MorphiaManager.getMorphia().toDBObject(cluster);
+			document.put("members", members);
+			bulk.find(new BasicDBObject("_id", cluster.getId())).upsert().replaceOne(document);
+			clusterIds.add(cluster.getId());
+			
+			if(++requests == BULK_SIZE) {
+				saved += execute(bulk, "clusters");
+				bulk = dbCollection.initializeUnorderedBulkOperation();
+				requests = 0;
 			}
 		}
+		if(requests > 0) {
+			saved += execute(bulk, "clusters");
+		}
 		
-		Map<String, Double> scores = new HashMap<String, Double>();
-		Integer maxPop = Collections.max(popularities.values());
-		if(maxPop == null || maxPop == 0) {
-			maxPop = 1;
+		try {
+			// the clusters of a previous summarization that found more of them
+			BasicDBObject leftOver = new BasicDBObject("$regex", "^" + CLUSTER_ID_PREFIX).append("$nin", clusterIds);
+			dbCollection.remove(new BasicDBObject("_id", leftOver));
+		}
+		catch(Exception e) {
+			_logger.error("Failed to remove the previous summary clusters of " + collection + ": " + e.getMessage(), e);
+		}
+		return saved;
+	}
+	
+	/**
+	 * @return the number of documents inserted, matched or upserted by the bulk write
+	 * @throws InterruptedException if the summarization has been cancelled, before the write
+	 */
+	private int execute(BulkWriteOperation bulk, String what) throws InterruptedException {
+		progress.checkCancelled();
+		try {
+			BulkWriteResult result = bulk.execute();
+			return result.getInsertedCount() + result.getMatchedCount() + result.getUpserts().size();
+		}
+		catch(BulkWriteException e) {
+			_logger.error("Collection: " + collection + ". Failed to store " + e.getWriteErrors().size() + " " + what 
+					+ " => " + e.getMessage());
+			BulkWriteResult result = e.getWriteResult();
+			return result.getInsertedCount() + result.getMatchedCount() + result.getUpserts().size();
+		}
+		catch(Exception e) {
+			_logger.error("Collection: " + collection + ". Exception during storing of " + what + " => " + e.getMessage(), e);
+			return 0;
+		}
+	}
+	
+	/**
+	 * @return the state of the previous summarization, or null if the collection has to be summarized from scratch
+	 */
+	private SummaryState loadState(List<String> ids) {
+		SummaryState previous;
+		try {
+			previous = SummaryState.load(collection, false);
+		}
+		catch(Exception e) {
+			_logger.error("Failed to load the summary state of " + collection + ": " + e.getMessage(), e);
+			return null;
+		}
+		if(previous == null) {
+			return null;
 		}
 		
-		Integer maxCluster = Collections.max(topicSignificane.values());
-		if(maxCluster == null || maxCluster == 0) {
-			maxCluster = 1;
+		// most of the neighbors of a state that is smaller than the images added since are going to change anyway
+		int added = previous.countNew(ids);
+		if(previous.getParameters().getK() != k || added > previous.size()) {
+			_logger.info("Summarize " + collection + " from scratch: " + added + " images added to " + previous.size() 
+					+ ", k = " + k + " instead of " + previous.getParameters().getK());
+			return null;
+		}
+		_logger.info("Summarize " + collection + " incrementally: " + added + " images added to " + previous.size() 
+				+ " since " + new Date(previous.getTime()));
+		return previous;
+	}
+	
+	/**
+	 * @param communities the cluster of each image, or -1 if it is not in any
+	 * @param clusters the images in each cluster
+	 * @return the prior score of each image, in the order of the ids
+	 */
+	public double[] getPriorScores(List<String> ids, Map<String, Integer> popularities, 
+			int[] communities, List<int[]> clusters, CsrGraph graph) {
+		
+		int[] offsets = graph.getOffsets();
+		int[] targets = graph.getTargets();
+		
+		// the density of the subgraph of each cluster
+		double[] topicDensities = new double[clusters.size()];
+		int maxCluster = 1;
+		for(int c = 0; c < clusters.size(); c++) {
+			int[] cluster = clusters.get(c);
+			maxCluster = Math.max(maxCluster, cluster.length);
+			
+			double v = cluster.length;
+			if(v == 1) {
+				topicDensities[c] = 1.;
+				continue;
+			}
+			long internalEdges = 0;
+			for(int member : cluster) {
+				for(int e = offsets[member]; e < offsets[member + 1]; e++) {
+					if(communities[targets[e]] == c) {
+						internalEdges++;
+					}
+				}
+			}
+			// each internal edge is counted from both of its endpoints
+			topicDensities[c] = internalEdges / (v*(v-1));
 		}
 		
-		for(String id : ids) {
-			Double score = .0;
-			Integer p = popularities.get(id);
+		int maxPop = 1;
+		for(Integer p : popularities.values()) {
+			if(p != null && p > maxPop) {
+				maxPop = p;
+			}
+		}
+		
+		double[] scores = new double[ids.size()];
+		for(int i = 0; i < ids.size(); i++) {
+			Integer p = popularities.get(ids.get(i));
 			if(p == null) {
 				p = 0;
 			}
-			Double popularity = Math.log(Math.E + (1 + p.doubleValue() / maxPop.doubleValue()));
+			double popularity = Math.log(Math.E + (1 + p.doubleValue() / maxPop));
 			
-			Integer sig = topicSignificane.get(id);
-			if(sig == null) {
-				sig = 0;
-			}
-			Double significance = Math.exp(sig.doubleValue() / maxCluster.doubleValue());
+			int c = communities[i];
+			int sig = c >= 0 ? clusters.get(c).length : 0;
+			double significance = Math.exp((double) sig / maxCluster);
 			
-			Double density = topicDensities.get(id);
-			if(density == null) {
-				density = 1.;
-			}
+			double density = c >= 0 ? topicDensities[c] : 1.;
 			
-			score = density * popularity * significance;	
-			scores.put(id, score);
+			scores[i] = density * popularity * significance;
 		}
 		
 		return scores;
@@ -0,0 +1,134 @@
+package gr.iti.mklab.reveal.summarization;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * An immutable snapshot of the tf-idf weights of a {@link Vector}, for computing many
+ * similarities between vectors that no longer change.
+ *
+ * Terms are interned to int ids by the vocabulary, kept sorted together with their boosted
+ * tf-idf weights, and the norm is computed once, so the cosine similarity is a merge join of
+ * two arrays instead of set copies and vocabulary lookups for every term. Terms with no
+ * weight, such as the stopwords removed from the vocabulary, are dropped.
+ *
+ * The weights are those of the vocabulary at the time the sparse vector was created, and
+ * only vectors weighted with the same vocabulary can be compared.
+ */
+public class SparseVector implements Serializable {
+
+	private static final long serialVersionUID = 2958360251713471624L;
+
+	private final Vocabulary vocabulary;
+	private final int[] ids;
+	private final float[] weights;
+	private final double norm;
+
+	private SparseVector(Vocabulary vocabulary, int[] ids, float[] weights) {
+		this.vocabulary = vocabulary;
+		this.ids = ids;
+		this.weights = weights;
+
+		double sum = 0;
+		for(float weight : weights) {
+			sum += weight * weight;
+		}
+		this.norm = Math.sqrt(sum);
+	}
+
+	/**
+	 * @return the weights of the vector in its own vocabulary
+	 */
+	public static SparseVector of(Vector vector) {
+		return of(vector, vector.getVocabulary());
+	}
+
+	/**
+	 * @return the weights of the vector in the given vocabulary, all zero if it is null
+	 */
+	public static SparseVector of(Vector vector, Vocabulary vocabulary) {
+		Map<String, Double> tfs = vector.getWordsMap();
+		if(vocabulary == null) {
+			return new SparseVector(null, new int[0], new float[0]);
+		}
+
+		// pack the id of each term and its position in the entries into a long, so that the
+		// ids are sorted along with their weights by a single primitive sort
+		long[] keys = new long[tfs.size()];
+		float[] values = new float[tfs.size()];
+		int n = 0;
+		for(Entry<String, Double> entry : tfs.entrySet()) {
+			String term = entry.getKey();
+			double weight = entry.getValue() * vocabulary.getIdf(term) * vocabulary.getBoost(term);
+			if(weight == 0) {
+				continue;
+			}
+
+			keys[n] = ((long) vocabulary.intern(term) << 32) | n;
+			values[n] = (float) weight;
+			n++;
+		}
+		Arrays.sort(keys, 0, n);
+
+		int[] ids = new int[n];
+		float[] weights = new float[n];
+		for(int i = 0; i < n; i++) {
+			ids[i] = (int) (keys[i] >>> 32);
+			weights[i] = values[(int) keys[i]];
+		}
+		return new SparseVector(vocabulary, ids, weights);
+	}
+
+	/**
+	 * @return the number of terms with a non zero weight
+	 */
+	public int size() {
+		return ids.length;
+	}
+
+	public double getNorm() {
+		return norm;
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the vectors are weighted with different vocabularies
+	 */
+	public double dot(SparseVector other) {
+		if(vocabulary != other.vocabulary && ids.length > 0 && other.ids.length > 0) {
+			throw new IllegalArgumentException("Sparse vectors of different vocabularies");
+		}
+		int[] ids1 = this.ids, ids2 = other.ids;
+		float[] weights1 = this.weights, weights2 = other.weights;
+
+		double dot = 0;
+		int i = 0, j = 0;
+		while(i < ids1.length && j < ids2.length) {
+			int id1 = ids1[i], id2 = ids2[j];
+			if(id1 == id2) {
+				dot += weights1[i++] * weights2[j++];
+			}
+			else if(id1 < id2) {
+				i++;
+			}
+			else {
+				j++;
+			}
+		}
+		return dot;
+	}
+
+	/**
+	 * @return the cosine similarity of the two vectors, 0 if any of them has no weighted terms
+	 * @throws IllegalArgumentException if the vectors are weighted with different vocabularies
+	 */
+	public double cosine(SparseVector other) {
+		if(norm == 0 || other.norm == 0) {
+			return 0;
+		}
+
+		double similarity = dot(other) / (norm * other.norm);
+		return Math.min(similarity, 1.);
+	}
+}
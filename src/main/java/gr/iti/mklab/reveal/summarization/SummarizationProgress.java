@@ -0,0 +1,102 @@
+package gr.iti.mklab.reveal.summarization;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The phase a {@link MediaSummarizer} is in and the time it spent in each phase so far.
+ * It is updated by the thread running the summarization and read by the ones reporting it.
+ */
+public class SummarizationProgress {
+
+	public enum Phase {
+		QUEUED, LOADING, GRAPH, CLUSTERING, RANKING, PERSISTING, DONE
+	}
+
+	private final long submitted = System.currentTimeMillis();
+
+	private Phase phase = Phase.QUEUED;
+	private long started = 0, phaseStarted = 0, finished = 0;
+	private final Map<Phase, Long> times = new EnumMap<Phase, Long>(Phase.class);
+
+	/**
+	 * Ends the current phase and starts the next one.
+	 *
+	 * @throws InterruptedException if the summarization has been cancelled
+	 */
+	public void enter(Phase next) throws InterruptedException {
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			if (started == 0) {
+				started = now;
+			}
+			else {
+				times.put(phase, now - phaseStarted);
+			}
+			phase = next;
+			phaseStarted = now;
+		}
+		checkCancelled();
+	}
+
+	/**
+	 * Ends the current phase, whether the summarization succeeded or not.
+	 */
+	public synchronized void finish() {
+		if (finished != 0) {
+			return;
+		}
+		finished = System.currentTimeMillis();
+		if (started != 0) {
+			times.put(phase, finished - phaseStarted);
+		}
+		phase = Phase.DONE;
+	}
+
+	/**
+	 * @throws InterruptedException if the thread running the summarization has been interrupted by a cancellation
+	 */
+	public void checkCancelled() throws InterruptedException {
+		if (Thread.currentThread().isInterrupted()) {
+			throw new InterruptedException("Summarization cancelled in phase " + getPhase());
+		}
+	}
+
+	public synchronized Phase getPhase() {
+		return phase;
+	}
+
+	public long getSubmitted() {
+		return submitted;
+	}
+
+	/**
+	 * @return the milliseconds since the summarization started, 0 if it is still queued
+	 */
+	public synchronized long getElapsed() {
+		if (started == 0) {
+			return 0;
+		}
+		return (finished == 0 ? System.currentTimeMillis() : finished) - started;
+	}
+
+	/**
+	 * @return the milliseconds spent in each phase so far, in the order of the phases, including the current one
+	 */
+	public synchronized Map<String, Long> getPhaseTimes() {
+		Map<String, Long> phaseTimes = new LinkedHashMap<String, Long>();
+		for (Map.Entry<Phase, Long> entry : times.entrySet()) {
+			phaseTimes.put(entry.getKey().name().toLowerCase(), entry.getValue());
+		}
+		if (started != 0 && finished == 0) {
+			phaseTimes.put(phase.name().toLowerCase(), System.currentTimeMillis() - phaseStarted);
+		}
+		return phaseTimes;
+	}
+
+	@Override
+	public String toString() {
+		return getPhase() + " after " + getElapsed() + " ms " + getPhaseTimes();
+	}
+}
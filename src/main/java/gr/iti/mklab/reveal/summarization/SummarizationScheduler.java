@@ -0,0 +1,179 @@
+package gr.iti.mklab.reveal.summarization;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs the summarizations of different collections in parallel, at most one per collection,
+ * and keeps track of them until their results are collected.
+ */
+public class SummarizationScheduler {
+
+	private final static Logger LOGGER = Logger.getLogger(SummarizationScheduler.class);
+
+	private final ExecutorService executor;
+	private final ConcurrentMap<String, Job> jobs = new ConcurrentHashMap<String, Job>();
+
+	/**
+	 * @param threads the number of summarizations that may run at the same time, the rest wait in a queue
+	 */
+	public SummarizationScheduler(int threads) {
+		this.executor = Executors.newFixedThreadPool(Math.max(1, threads));
+	}
+
+	/**
+	 * Submits the summarization of a collection, unless one is already queued or running for it.
+	 *
+	 * @return true if the summarization has been submitted
+	 */
+	public boolean submit(MediaSummarizer summarizer) {
+		String collection = summarizer.getCollection();
+		boolean[] submitted = {false};
+		jobs.compute(collection, (key, job) -> {
+			if (job != null && !job.isDone()) {
+				return job;
+			}
+			submitted[0] = true;
+			Job next = new Job(summarizer);
+			next.future = executor.submit(() -> run(next));
+			return next;
+		});
+		return submitted[0];
+	}
+
+	private List<RankedImage> run(Job job) throws Exception {
+		if (!job.start()) {
+			// cancelled before it started
+			return null;
+		}
+		try {
+			return job.summarizer.call();
+		}
+		finally {
+			job.finished.countDown();
+			LOGGER.info("Summarization of " + job.getCollection() + ": " + job.getProgress());
+		}
+	}
+
+	/**
+	 * @return the summarization of the collection, or null if none has been submitted since the last one was collected
+	 */
+	public Job get(String collection) {
+		return jobs.get(collection);
+	}
+
+	/**
+	 * Forgets a finished summarization, once its result has been reported. A cancelled
+	 * summarization is forgotten only once it has stopped.
+	 */
+	public void remove(String collection) {
+		jobs.computeIfPresent(collection, (key, job) -> job.isDone() ? null : job);
+	}
+
+	/**
+	 * Cancels the summarization of a collection. A running summarization stops at the next
+	 * check between its steps, or before its next write when persisting, and keeps what it has
+	 * persisted so far. It is not done until it has stopped, so no other summarization of the
+	 * collection is submitted in the meantime.
+	 *
+	 * @return true if a queued or running summarization has been cancelled
+	 */
+	public boolean cancel(String collection) {
+		Job job = jobs.get(collection);
+		if (job == null || job.isDone()) {
+			return false;
+		}
+		LOGGER.info("Cancel summarization of " + collection + " in phase " + job.getProgress().getPhase());
+		boolean cancelled = job.future.cancel(true);
+		if (job.start()) {
+			// it will never run
+			job.finished.countDown();
+		}
+		return cancelled;
+	}
+
+	/**
+	 * Waits until the summarization of the collection, if any, has stopped.
+	 *
+	 * @return true if no summarization of the collection is running
+	 */
+	public boolean awaitTermination(String collection, long timeout, TimeUnit unit) throws InterruptedException {
+		Job job = jobs.get(collection);
+		return job == null || job.finished.await(timeout, unit);
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+		for (Job job : jobs.values()) {
+			if (job.start()) {
+				// queued, it will never run
+				job.finished.countDown();
+			}
+		}
+		try {
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public static class Job {
+
+		private final MediaSummarizer summarizer;
+		private volatile Future<List<RankedImage>> future;
+
+		// taken by the worker that runs the job, or by a cancellation that comes first
+		private final AtomicBoolean started = new AtomicBoolean(false);
+		// counted down once the job will not touch the collection any more
+		private final CountDownLatch finished = new CountDownLatch(1);
+
+		private Job(MediaSummarizer summarizer) {
+			this.summarizer = summarizer;
+		}
+
+		private boolean start() {
+			return started.compareAndSet(false, true);
+		}
+
+		public String getCollection() {
+			return summarizer.getCollection();
+		}
+
+		public SummarizationProgress getProgress() {
+			return summarizer.getProgress();
+		}
+
+		/**
+		 * @return true once the summarization has stopped, which for a cancelled one may be
+		 * some time after the cancellation
+		 */
+		public boolean isDone() {
+			return finished.getCount() == 0;
+		}
+
+		public boolean isCancelled() {
+			return future.isCancelled();
+		}
+
+		/**
+		 * @return the ranked images of a finished summarization
+		 * @throws ExecutionException if the summarization failed
+		 * @throws CancellationException if it has been cancelled
+		 */
+		public List<RankedImage> getResult() throws ExecutionException, InterruptedException {
+			return future.get();
+		}
+	}
+}
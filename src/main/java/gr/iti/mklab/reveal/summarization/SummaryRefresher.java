@@ -0,0 +1,67 @@
+package gr.iti.mklab.reveal.summarization;
+
+import gr.iti.mklab.simmo.core.items.Image;
+import gr.iti.mklab.simmo.core.morphia.MediaDAO;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Summarizes a collection again, starting from its stored state, whenever new images have
+ * been crawled since the last summarization. A collection that has never been summarized is
+ * left alone until a summarization is requested for it.
+ */
+public class SummaryRefresher implements Runnable {
+
+	private final static Logger LOGGER = Logger.getLogger(SummaryRefresher.class);
+	
+	private final String collection;
+	private final SummarizationScheduler scheduler;
+	private final long interval;
+	
+	private volatile boolean isRunning = true;
+	
+	/**
+	 * @param interval the milliseconds between two checks for new images
+	 */
+	public SummaryRefresher(String collection, SummarizationScheduler scheduler, long interval) {
+		this.collection = collection;
+		this.scheduler = scheduler;
+		this.interval = interval;
+	}
+	
+	public void stop() {
+		isRunning = false;
+	}
+	
+	@Override
+	public void run() {
+		while(isRunning) {
+			try {
+				Thread.sleep(interval);
+			} catch (InterruptedException e) {
+				LOGGER.info("Summary refresher of " + collection + " interrupted");
+				break;
+			}
+			
+			try {
+				SummaryState state = SummaryState.load(collection, true);
+				if(state == null) {
+					continue;
+				}
+				
+				long count = new MediaDAO<Image>(Image.class, collection).count();
+				if(count <= state.size()) {
+					continue;
+				}
+				
+				MediaSummarizer summarizer = MediaSummarizer.fromState(collection, state);
+				if(scheduler.submit(summarizer)) {
+					LOGGER.info("Refresh summarization of " + collection + ": " + count + " images, " + state.size() + " summarized");
+				}
+			}
+			catch(Exception e) {
+				LOGGER.error("Summary refresh of " + collection + " failed: " + e.getMessage(), e);
+			}
+		}
+	}
+}
@@ -0,0 +1,406 @@
+package gr.iti.mklab.reveal.summarization;
+
+import gr.iti.mklab.reveal.summarization.graph.KnnGraphBuilder.KnnGraph;
+import gr.iti.mklab.reveal.util.Configuration;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * What a summarization of a collection keeps for the next one: the ids of the images, the
+ * textual and visual nearest neighbors of each image, the PageRank and DivRank vectors, and
+ * the parameters they were computed with. The next summarization starts NN-Descent from the
+ * stored neighbors and the rankers from the stored ranks, so that mostly the images added in
+ * between cost a search.
+ *
+ * Each collection keeps its state in visualDir/summaries/{collection}/summary.state, a binary
+ * file that is replaced as a whole when a summarization finishes.
+ */
+public class SummaryState {
+
+	private final static Logger LOGGER = Logger.getLogger(SummaryState.class);
+
+	private final static String FILE = "summary.state";
+	private final static int VERSION = 1;
+
+	private final long time;
+	private final Parameters parameters;
+	private final int size;
+	private String[] ids;
+	private Neighbors textual, visual;
+	private double[] pageranks, divranks;
+
+	/**
+	 * @param textual the textual neighbors of the images, or null if they are not known
+	 * @param visual the visual neighbors of the images, or null if they are not known
+	 * @param pageranks the PageRank vector of the images, before it is divided by its maximum
+	 * @param divranks the DivRank vector of the images, before it is divided by its maximum
+	 */
+	public SummaryState(Parameters parameters, List<String> ids, Neighbors textual, Neighbors visual,
+			double[] pageranks, double[] divranks) {
+		this(System.currentTimeMillis(), parameters, ids.size());
+		this.ids = ids.toArray(new String[ids.size()]);
+		this.textual = textual;
+		this.visual = visual;
+		this.pageranks = pageranks;
+		this.divranks = divranks;
+	}
+
+	private SummaryState(long time, Parameters parameters, int size) {
+		this.time = time;
+		this.parameters = parameters;
+		this.size = size;
+	}
+
+	/**
+	 * @return the time the state was created
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	public Parameters getParameters() {
+		return parameters;
+	}
+
+	/**
+	 * @return the number of images in the state
+	 */
+	public int size() {
+		return size;
+	}
+
+	public Neighbors getTextual() {
+		return textual;
+	}
+
+	public Neighbors getVisual() {
+		return visual;
+	}
+
+	public double[] getPageranks() {
+		return pageranks;
+	}
+
+	public double[] getDivranks() {
+		return divranks;
+	}
+
+	/**
+	 * @return the number of the given images that are not in the state
+	 */
+	public int countNew(List<String> images) {
+		Map<String, Integer> indices = getIndices();
+		int count = 0;
+		for (String id : images) {
+			if (!indices.containsKey(id)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Maps stored ranks to the given images, to start a ranker from. The images that are not in
+	 * the state take their rank from the cold start, and the result is scaled to the sum of the
+	 * cold start, so that it is in the same scale as the ranks the ranker would start from.
+	 *
+	 * @param ranks the stored ranks, by position in the state
+	 * @param cold the ranks the ranker starts from without a state, by position in the images
+	 */
+	public double[] warmStart(double[] ranks, List<String> images, double[] cold) {
+		Map<String, Integer> indices = getIndices();
+		double[] initial = new double[images.size()];
+		double sum = 0, coldSum = 0;
+		for (int i = 0; i < images.size(); i++) {
+			Integer index = indices.get(images.get(i));
+			initial[i] = index != null ? ranks[index] : cold[i];
+			sum += initial[i];
+			coldSum += cold[i];
+		}
+		if (sum > 0) {
+			for (int i = 0; i < initial.length; i++) {
+				initial[i] *= coldSum / sum;
+			}
+		}
+		return initial;
+	}
+
+	private Map<String, Integer> getIndices() {
+		Map<String, Integer> indices = new HashMap<String, Integer>(2 * ids.length);
+		for (int i = 0; i < ids.length; i++) {
+			indices.put(ids[i], i);
+		}
+		return indices;
+	}
+
+	/**
+	 * Converts stored neighbors to neighbors of the given items, to start NN-Descent from.
+	 * The images that are no longer among the items are dropped. The stored similarities are
+	 * kept, but NN-Descent computes them again with the vectors of the current run.
+	 *
+	 * @param items the id of each item, by its position in the items the graph is built for
+	 */
+	public KnnGraph toKnnGraph(Neighbors neighbors, List<String> items, int k) {
+		Map<String, Integer> itemIndices = new HashMap<String, Integer>(2 * items.size());
+		for (int i = 0; i < items.size(); i++) {
+			itemIndices.put(items.get(i), i);
+		}
+		int[] toItem = new int[ids.length];
+		for (int v = 0; v < ids.length; v++) {
+			Integer item = itemIndices.get(ids[v]);
+			toItem[v] = item != null ? item : -1;
+		}
+
+		KnnGraph graph = new KnnGraph(items.size(), k);
+		for (int x = 0; x < neighbors.items.length; x++) {
+			int item = toItem[neighbors.items[x]];
+			if (item < 0) {
+				continue;
+			}
+			for (int e = neighbors.offsets[x]; e < neighbors.offsets[x + 1]; e++) {
+				int neighbor = toItem[neighbors.neighbors[e]];
+				if (neighbor >= 0) {
+					graph.add(item, neighbor, neighbors.similarities[e]);
+				}
+			}
+		}
+		return graph;
+	}
+
+	/**
+	 * Loads the state of a collection.
+	 *
+	 * @param headerOnly whether to read only the time, the parameters and the size of the state
+	 * @return the state, or null if the collection has no state or a state of an older version
+	 */
+	public static SummaryState load(String collection, boolean headerOnly) throws IOException {
+		File file = new File(getDirectory(collection), FILE);
+		if (!file.exists()) {
+			return null;
+		}
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			int version = in.readInt();
+			if (version != VERSION) {
+				LOGGER.info("Ignore summary state of " + collection + " with version " + version);
+				return null;
+			}
+			long time = in.readLong();
+			Parameters parameters = new Parameters(in.readDouble(), in.readDouble(), in.readDouble(),
+					in.readInt(), in.readDouble(), in.readInt());
+			SummaryState state = new SummaryState(time, parameters, in.readInt());
+			if (headerOnly) {
+				return state;
+			}
+
+			state.ids = new String[state.size];
+			for (int i = 0; i < state.size; i++) {
+				state.ids[i] = in.readUTF();
+			}
+			state.textual = Neighbors.read(in);
+			state.visual = Neighbors.read(in);
+			state.pageranks = readDoubles(in);
+			state.divranks = readDoubles(in);
+			return state;
+		}
+	}
+
+	public void save(String collection) throws IOException {
+		File directory = getDirectory(collection);
+		directory.mkdirs();
+		File file = new File(directory, FILE);
+		File tmp = new File(directory, FILE + ".tmp");
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			out.writeInt(VERSION);
+			out.writeLong(time);
+			out.writeDouble(parameters.textSimilarityCuttof);
+			out.writeDouble(parameters.visualSimilarityCuttof);
+			out.writeDouble(parameters.randomJumpWeight);
+			out.writeInt(parameters.mu);
+			out.writeDouble(parameters.epsilon);
+			out.writeInt(parameters.k);
+			out.writeInt(size);
+			for (String id : ids) {
+				out.writeUTF(id);
+			}
+			Neighbors.write(out, textual);
+			Neighbors.write(out, visual);
+			writeDoubles(out, pageranks);
+			writeDoubles(out, divranks);
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Deletes the state of a collection, if any.
+	 */
+	public static void delete(String collection) throws IOException {
+		FileUtils.deleteDirectory(getDirectory(collection));
+	}
+
+	private static File getDirectory(String collection) {
+		return new File(new File(Configuration.VISUAL_DIR, "summaries"), collection);
+	}
+
+	private static double[] readDoubles(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		double[] values = new double[length];
+		for (int i = 0; i < length; i++) {
+			values[i] = in.readDouble();
+		}
+		return values;
+	}
+
+	private static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+		if (values == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(values.length);
+		for (double value : values) {
+			out.writeDouble(value);
+		}
+	}
+
+	/**
+	 * The parameters of a summarization, which a background refresh reuses.
+	 */
+	public static class Parameters {
+
+		private final double textSimilarityCuttof;
+		private final double visualSimilarityCuttof;
+		private final double randomJumpWeight;
+		private final int mu;
+		private final double epsilon;
+		private final int k;
+
+		public Parameters(double textSimilarityCuttof, double visualSimilarityCuttof, double randomJumpWeight,
+				int mu, double epsilon, int k) {
+			this.textSimilarityCuttof = textSimilarityCuttof;
+			this.visualSimilarityCuttof = visualSimilarityCuttof;
+			this.randomJumpWeight = randomJumpWeight;
+			this.mu = mu;
+			this.epsilon = epsilon;
+			this.k = k;
+		}
+
+		public double getTextSimilarityCuttof() {
+			return textSimilarityCuttof;
+		}
+
+		public double getVisualSimilarityCuttof() {
+			return visualSimilarityCuttof;
+		}
+
+		public double getRandomJumpWeight() {
+			return randomJumpWeight;
+		}
+
+		public int getMu() {
+			return mu;
+		}
+
+		public double getEpsilon() {
+			return epsilon;
+		}
+
+		public int getK() {
+			return k;
+		}
+	}
+
+	/**
+	 * The nearest neighbors of some of the images, by their position in the state.
+	 */
+	public static class Neighbors {
+
+		private final int[] items;
+		private final int[] offsets;
+		private final int[] neighbors;
+		private final float[] similarities;
+
+		private Neighbors(int[] items, int[] offsets, int[] neighbors, float[] similarities) {
+			this.items = items;
+			this.offsets = offsets;
+			this.neighbors = neighbors;
+			this.similarities = similarities;
+		}
+
+		/**
+		 * @param vertices the position in the state of each item of the graph
+		 */
+		public static Neighbors of(KnnGraph graph, int[] vertices) {
+			int n = graph.getNumOfItems();
+			int[] offsets = new int[n + 1];
+			for (int item = 0; item < n; item++) {
+				offsets[item + 1] = offsets[item] + graph.size(item);
+			}
+			int[] neighbors = new int[offsets[n]];
+			float[] similarities = new float[offsets[n]];
+			for (int item = 0; item < n; item++) {
+				for (int j = 0; j < graph.size(item); j++) {
+					neighbors[offsets[item] + j] = vertices[graph.getNeighbor(item, j)];
+					similarities[offsets[item] + j] = graph.getSimilarity(item, j);
+				}
+			}
+			return new Neighbors(Arrays.copyOf(vertices, n), offsets, neighbors, similarities);
+		}
+
+		private static Neighbors read(DataInputStream in) throws IOException {
+			int n = in.readInt();
+			if (n < 0) {
+				return null;
+			}
+			int[] items = new int[n];
+			int[] offsets = new int[n + 1];
+			for (int x = 0; x < n; x++) {
+				items[x] = in.readInt();
+				offsets[x + 1] = offsets[x] + in.readInt();
+			}
+			int[] neighbors = new int[offsets[n]];
+			float[] similarities = new float[offsets[n]];
+			for (int e = 0; e < offsets[n]; e++) {
+				neighbors[e] = in.readInt();
+				similarities[e] = in.readFloat();
+			}
+			return new Neighbors(items, offsets, neighbors, similarities);
+		}
+
+		private static void write(DataOutputStream out, Neighbors neighbors) throws IOException {
+			if (neighbors == null) {
+				out.writeInt(-1);
+				return;
+			}
+			int n = neighbors.items.length;
+			out.writeInt(n);
+			for (int x = 0; x < n; x++) {
+				out.writeInt(neighbors.items[x]);
+				out.writeInt(neighbors.offsets[x + 1] - neighbors.offsets[x]);
+			}
+			for (int e = 0; e < neighbors.offsets[n]; e++) {
+				out.writeInt(neighbors.neighbors[e]);
+				out.writeFloat(neighbors.similarities[e]);
+			}
+		}
+	}
+}
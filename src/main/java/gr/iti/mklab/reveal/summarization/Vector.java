@@ -20,12 +20,20 @@ public class Vector implements Serializable {
 	protected Map<String, Double> TFs = new HashMap<String, Double>();
 	protected Double V = null;
 	
+	// the vocabulary of the texts this vector was created from, which gives the idf of its terms
+	protected Vocabulary vocabulary = null;
+	
 	public Vector() {	
 
 	}
 	
 	
 	public Vector(Collection<String> tokens) {
+		this(tokens, null);
+	}
+	
+	public Vector(Collection<String> tokens, Vocabulary vocabulary) {
+		this.vocabulary = vocabulary;
 		for(String token : tokens) {
 			Double tf = TFs.get(token);
 			if(tf == null) {
@@ -36,10 +44,31 @@ public class Vector implements Serializable {
 	}
 	
 	public Vector(Map<String, Double> v) {
+		this(v, null);
+	}
+	
+	public Vector(Map<String, Double> v, Vocabulary vocabulary) {
+		this.vocabulary = vocabulary;
 		this.TFs.putAll(v);
 	}
+	
+	/**
+	 * @return the vocabulary of the vector, or null if its terms have no idf weights
+	 */
+	public Vocabulary getVocabulary() {
+		return vocabulary;
+	}
+	
+	public void setVocabulary(Vocabulary vocabulary) {
+		this.vocabulary = vocabulary;
+		this.V = null;
+	}
 
 	public void mergeVector(Vector vector) {
+		if(vocabulary == null) {
+			// an empty vector, such as a centroid, takes the vocabulary of its members
+			setVocabulary(vector.vocabulary);
+		}
 		for(Entry<String, Double> w : vector.TFs.entrySet()) {
 			String word = w.getKey();
 			
@@ -88,7 +117,17 @@ public class Vector implements Serializable {
 	}
 	
 	public Double getIdf(String term) {
-		return Vocabulary.getIdf(term);	
+		if(vocabulary == null) {
+			return 0d;
+		}
+		return vocabulary.getIdf(term);	
+	}
+	
+	public Double getBoost(String term) {
+		if(vocabulary == null) {
+			return 1d;
+		}
+		return vocabulary.getBoost(term);	
 	}
 	
 	public Double getTfIdf(String term) {
@@ -96,7 +135,7 @@ public class Vector implements Serializable {
 		if(tf == null)
 			return 0d;
 		
-		return tf * Vocabulary.getIdf(term);	
+		return tf * getIdf(term);	
 	}
 	
 	public Map<String, Double> getWordsMap() {
@@ -115,7 +154,7 @@ public class Vector implements Serializable {
 		for(String word : getTerms()) {
 			double tf = getTf(word);
 			double idf = getIdf(word);		
-			double boost = Vocabulary.getBoost(word);		
+			double boost = getBoost(word);		
 				
 			V += Math.pow(boost * tf * idf, 2);
 		}
@@ -127,7 +166,7 @@ public class Vector implements Serializable {
 		if(V == null) {
 			V = 0d;
 		}
-		Double idf = Vocabulary.getIdf(word);
+		Double idf = getIdf(word);
 		//V += (Math.pow((k/maxTf) * idf, 2) + (2 * (k/maxTf) * (tf/maxTf) * idf * idf));
 		V += (Math.pow((newTf) * idf, 2) - Math.pow((oldTf) * idf, 2));
 	}
@@ -146,8 +185,8 @@ public class Vector implements Serializable {
 			
 			double tf1 = this.getTf(word);
 			double tf2 = other.getTf(word);
-			double idf = Vocabulary.getIdf(word);
-			double boost = Vocabulary.getBoost(word);
+			double idf = getIdf(word);
+			double boost = getBoost(word);
 			
 			similarity += (tf1 * tf2 * Math.pow(boost * idf, 2));
 		}
@@ -159,7 +198,7 @@ public class Vector implements Serializable {
 		}
 		
 		similarity = similarity / (Math.sqrt(A) * Math.sqrt(B));
-		return Math.min(similarity, .0);
+		return Math.min(similarity, 1.);
 	}
 	
 	public Double tfIdfSimilarity(Vector other) {
@@ -174,8 +213,8 @@ public class Vector implements Serializable {
 			
 			double tf1 = this.getTf(word);
 			double tf2 = other.getTf(word);
-			double idf = Vocabulary.getIdf(word);
-			double boost = Vocabulary.getBoost(word);
+			double idf = getIdf(word);
+			double boost = getBoost(word);
 			
 			similarity += (tf1 * tf2 * Math.pow(boost * idf, 2));
 		}
@@ -188,8 +227,8 @@ public class Vector implements Serializable {
 
 		for(String word : this.getTerms()) {	
 			double tf1 = this.getTf(word);
-			double idf = Vocabulary.getIdf(word);
-			double boost = Vocabulary.getBoost(word);
+			double idf = getIdf(word);
+			double boost = getBoost(word);
 			
 			weight += (boost * tf1 * idf);
 		}
@@ -203,7 +242,7 @@ public class Vector implements Serializable {
 		for(Entry<String, Double> e : TFs.entrySet()) {
 			String word = e.getKey();
 			strBuff.append("{ word : " + word + ", tf : ");
-			strBuff.append(e.getValue() + ", idf : " + Vocabulary.getIdf(word) + " }, ");
+			strBuff.append(e.getValue() + ", idf : " + getIdf(word) + " }, ");
 		}
 		strBuff.append("], Length : " + getLength() + " }");
 		
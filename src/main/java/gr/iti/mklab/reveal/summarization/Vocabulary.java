@@ -1,6 +1,7 @@
 package gr.iti.mklab.reveal.summarization;
 
 import java.io.IOException;
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -12,45 +13,47 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import gr.iti.mklab.reveal.summarization.utils.VectorUtils;
 
+/**
+ * The document frequencies of the terms of a set of texts, from which the vectors of the texts
+ * get their idf weights.
+ * 
+ * Each summarization or clustering job creates its own vocabulary, and the vectors it creates
+ * keep a reference to it, so jobs on different collections do not share any state. A vocabulary
+ * may be read by many threads while it is updated.
+ * 
+ * The vocabulary also interns the terms of the {@link SparseVector}s weighted with it, so the
+ * ids live as long as the job and its vectors.
+ */
+public class Vocabulary implements Serializable {
 
-public class Vocabulary {
+	private static final long serialVersionUID = -3245938497734420766L;
 
-	private static Integer docs = 0;
-	private static Map<String, Integer> map = new HashMap<String, Integer>();
+	private volatile int docs = 0;
+	private final Map<String, Integer> map = new ConcurrentHashMap<String, Integer>();
 	
-	private static Set<String> boostedTerms = new HashSet<String>();
-	public static double boost = 2;
+	private final Set<String> boostedTerms = ConcurrentHashMap.newKeySet();
+	private volatile double boost = 2;
 	
-	private static Collection<String> stopwords = null;
+	private volatile Collection<String> stopwords = null;
 	
-	public static Map<String, Vector> createVocabulary(Map<String, String> texts) {
+	private final Map<String, Integer> termIds = new ConcurrentHashMap<String, Integer>();
+	private final AtomicInteger nextTermId = new AtomicInteger();
+	
+	public Map<String, Vector> createVocabulary(Map<String, String> texts) {
 		return createVocabulary(texts, 1);
 	}
 	
-	public static Map<String, Vector> createVocabulary(Map<String, String> texts, int ngrams) {
-		Vocabulary.reset();
-		Map<String, Vector> vectors = new HashMap<String, Vector>();
-
-		for(Entry<String, String> entry : texts.entrySet()) {
-			
-			String id = entry.getKey();
-			String text = entry.getValue();
-			Vector vector = process(text, ngrams);
-			if(vector != null) {
-				vectors.put(id, vector);
-			}
-		}
-		
-		Collection<String> stowords = Vocabulary.getStopwords();
-		Vocabulary.removeWords(stowords);
-		
-		return vectors;
+	public Map<String, Vector> createVocabulary(Map<String, String> texts, int ngrams) {
+		reset();
+		return updateVocabulary(texts, ngrams);
 	}
 	
-	public static Map<String, Vector> updateVocabulary(Map<String, String> texts, int ngrams) {
+	public Map<String, Vector> updateVocabulary(Map<String, String> texts, int ngrams) {
 		Map<String, Vector> vectors = new HashMap<String, Vector>();
 		for(Entry<String, String> entry : texts.entrySet()) {
 			String id = entry.getKey();
@@ -61,18 +64,18 @@ public class Vocabulary {
 			}
 		}
 		
-		Collection<String> stowords = Vocabulary.getStopwords();
-		Vocabulary.removeWords(stowords);
+		Collection<String> stowords = getStopwords();
+		removeWords(stowords);
 		
 		return vectors;
 	}
 	
-	public static Map<String, Double[]> createVocabulary(Map<String, String> texts, int ngrams, int n) {
+	public Map<String, Double[]> createVocabulary(Map<String, String> texts, int ngrams, int n) {
 		
 		Map<String, Double[]> tVectors = new HashMap<String, Double[]>();
 		Map<String, Vector> vectors = createVocabulary(texts, ngrams);
 		
-		System.out.println(Vocabulary.getTerms().size() + " terms");
+		System.out.println(getTerms().size() + " terms");
 		
 		List<String> terms = getTopTerms(n);
 		n = terms.size();
@@ -101,7 +104,7 @@ public class Vocabulary {
 	}
 	
 	
-	public static void create(List<String> texts) {
+	public void create(List<String> texts) {
 		for(String text : texts) {
 			
 			List<String> tokens;
@@ -114,7 +117,7 @@ public class Vocabulary {
 		}
 	}
 	
-	private static Vector process(String text, int ngrams) {
+	private Vector process(String text, int ngrams) {
 
 		try {
 			Set<String> tokens = new HashSet<String>();
@@ -124,7 +127,7 @@ public class Vocabulary {
 			
 			addDoc(tokens);
 			
-			Vector vector = new Vector(tokens);
+			Vector vector = new Vector(tokens, this);
 			return vector;
 		} catch (IOException e) {
 			return null;
@@ -132,7 +135,7 @@ public class Vocabulary {
 
 	}
 	
-	public static void addDoc(Collection<String> words) {
+	public synchronized void addDoc(Collection<String> words) {
 		if(words == null || words.isEmpty()) {
 			return;
 		}
@@ -141,34 +144,30 @@ public class Vocabulary {
 		Set<String> tokens = new HashSet<String>(words);
 		for(String word : tokens) {
 			word = word.replaceAll("\\s+", " ").trim();
-			
-			Integer df = map.get(word);
-			if(df == null) {
-				df = 0;
-			}
-			map.put(word, ++df);
+			map.merge(word, 1, Integer::sum);
 		}
+		stopwords = null;
 	}
 	
-	public static Double getDf(String word) {
+	public Double getDf(String word) {
 		word = word.replaceAll("\\s+", " ").trim();
 		Integer df = map.get(word);
 		if(df == null || docs == 0) {
 			return 0d;
 		}
-		return df.doubleValue() / docs.doubleValue();
+		return df.doubleValue() / docs;
 	}
 	
-	public static Double getIdf(String word) {
+	public Double getIdf(String word) {
 		word = word.replaceAll("\\s+", " ").trim();
 		Integer df = map.get(word);
 		if(df == null) {
 			return 0d;
 		}
-		return Math.log(docs.doubleValue()/df.doubleValue());
+		return Math.log((double) docs / df.doubleValue());
 	}
 	
-	public static Integer getIndex(String word) {
+	public Integer getIndex(String word) {
 		word = word.replaceAll("\\s+", " ").trim();
 		Set<String> keys = map.keySet();
 		List<String> list = new ArrayList<String>(keys);
@@ -176,7 +175,7 @@ public class Vocabulary {
 		return list.indexOf(word);
 	}
 	
-	public static Double getBoost(String word) {
+	public Double getBoost(String word) {
 		word = word.replaceAll("\\s+", " ").trim();
 		if(boostedTerms.contains(word)) {
 			return boost;
@@ -186,83 +185,99 @@ public class Vocabulary {
 		}
 	}
 	
-	public static Integer getNumOfDocs() {
+	/**
+	 * @return the id of the term in the sparse vectors of this vocabulary, kept across resets
+	 * as the vectors created before a reset may still be compared
+	 */
+	public int intern(String term) {
+		Integer id = termIds.get(term);
+		if(id == null) {
+			id = termIds.computeIfAbsent(term, t -> nextTermId.getAndIncrement());
+		}
+		return id;
+	}
+	
+	public void setBoost(double boost) {
+		this.boost = boost;
+	}
+	
+	public Integer getNumOfDocs() {
 		return docs;
 	}
 	
-	public static Integer getNumOfTerms() {
+	public Integer getNumOfTerms() {
 		return map.size();
 	}
 	
-	public static Set<String> getTerms() {
+	public Set<String> getTerms() {
 		Set<String> terms = new HashSet<String>();
 		terms.addAll(map.keySet());
 		
 		return terms;
 	}
 	
-	public static List<String> getTopTerms(int n) {
+	public List<String> getTopTerms(int n) {
 		List<String> terms = new ArrayList<String>();
 		terms.addAll(map.keySet());
 
 		Collections.sort(terms, new Comparator<String>() {
 			@Override
 			public int compare(String t1, String t2) {
-				Double v1 = Vocabulary.getDf(t1);
-				Double v2 = Vocabulary.getDf(t2);
+				Double v1 = getDf(t1);
+				Double v2 = getDf(t2);
 				
-				if(v1 == v2)
-					return 0;
-				else
-					return v1 > v2 ? 1 : -1;
+				return Double.compare(v1, v2);
 			}
 		});
 		
 		return terms.subList(0, Math.min(n, terms.size()-1));
 	}
 	
-	public static Set<String> getBoostedTerms() {
+	public Set<String> getBoostedTerms() {
 		Set<String> terms = new HashSet<String>();
-		terms.addAll(Vocabulary.boostedTerms);
+		terms.addAll(boostedTerms);
 	
 		return terms;
 	}
 	
-	public static void print() {
+	public void print() {
 		System.out.println(docs + " documents");
 		System.out.println(map.size() + " tokens");
 	}
 	
-	public static Collection<String> getStopwords() {
-		if(stopwords == null) {
-			double minDF = 10.0/docs.doubleValue();
-			stopwords = new HashSet<String>();
+	public Collection<String> getStopwords() {
+		Collection<String> words = stopwords;
+		if(words == null) {
+			double minDF = 10.0 / docs;
+			words = new HashSet<String>();
 			for(String word : map.keySet()) {
 				Double df = getDf(word);		
 				if(df < minDF || df > 0.6) {
-					stopwords.add(word);
+					words.add(word);
 				}
 			}
+			stopwords = words;
 		}
-		return stopwords;
+		return words;
 	}
 
-	public static void addBoostedTerms(Collection<String> terms) {
+	public void addBoostedTerms(Collection<String> terms) {
 		for(String term : terms) {
 			term = term.replaceAll("\\s+", " ").trim();
 			boostedTerms.add(term);
 		}
 	}
 
-	public static void removeWords(Collection<String> words) {
+	public synchronized void removeWords(Collection<String> words) {
 		for(String word : words) {
 			map.remove(word);
 		}
 	}
 
-	public synchronized static void reset() {
+	public synchronized void reset() {
 		docs = 0;
 		map.clear();
 		boostedTerms.clear();
+		stopwords = null;
 	}
 }
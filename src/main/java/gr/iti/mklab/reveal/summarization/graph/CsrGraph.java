@@ -0,0 +1,220 @@
+package gr.iti.mklab.reveal.summarization.graph;
+
+import java.util.Arrays;
+
+/**
+ * A weighted graph over the vertices 0..n-1 in compressed sparse row form: the out-edges of
+ * vertex v are the targets[offsets[v]..offsets[v+1]) with the corresponding weights, sorted
+ * by target. An undirected graph keeps each edge in the rows of both of its endpoints.
+ *
+ * It takes three arrays instead of the vertex, edge and map objects of a JUNG graph, and the
+ * rankers and the clusterers of the summarization work on it directly.
+ */
+public class CsrGraph {
+
+	private final int[] offsets;
+	private final int[] targets;
+	private final float[] weights;
+	private final boolean directed;
+
+	private CsrGraph(int[] offsets, int[] targets, float[] weights, boolean directed) {
+		this.offsets = offsets;
+		this.targets = targets;
+		this.weights = weights;
+		this.directed = directed;
+	}
+
+	public int getVertexCount() {
+		return offsets.length - 1;
+	}
+
+	/**
+	 * @return the number of edges, each undirected edge counted once
+	 */
+	public int getEdgeCount() {
+		return directed ? targets.length : targets.length / 2;
+	}
+
+	public boolean isDirected() {
+		return directed;
+	}
+
+	/**
+	 * @return the number of out-edges of the vertex, or of its neighbors if the graph is undirected
+	 */
+	public int degree(int vertex) {
+		return offsets[vertex + 1] - offsets[vertex];
+	}
+
+	public int[] getOffsets() {
+		return offsets;
+	}
+
+	public int[] getTargets() {
+		return targets;
+	}
+
+	public float[] getWeights() {
+		return weights;
+	}
+
+	/**
+	 * @return the position of the edge in the targets and weights, or -1 if there is no such edge
+	 */
+	public int findEdge(int source, int target) {
+		int position = Arrays.binarySearch(targets, offsets[source], offsets[source + 1], target);
+		return position >= 0 ? position : -1;
+	}
+
+	/**
+	 * @return the density of the graph, 1 for a single vertex as in {@link GraphUtils#getGraphDensity}
+	 */
+	public double getDensity() {
+		double v = getVertexCount();
+		if (v == 1) {
+			return 1.;
+		}
+		return 2. * getEdgeCount() / (v * (v - 1));
+	}
+
+	/**
+	 * Directs the edges of an undirected graph from the newer to the older of their endpoints,
+	 * and both ways between endpoints of the same time, as {@link GraphUtils#toDirected(edu.uci.ics.jung.graph.Graph, java.util.Map)}.
+	 *
+	 * @param times the time of each vertex
+	 */
+	public CsrGraph toDirected(long[] times) {
+		int n = getVertexCount();
+		int[] newOffsets = new int[n + 1];
+		for (int u = 0; u < n; u++) {
+			int count = 0;
+			for (int e = offsets[u]; e < offsets[u + 1]; e++) {
+				if (times[u] >= times[targets[e]]) {
+					count++;
+				}
+			}
+			newOffsets[u + 1] = newOffsets[u] + count;
+		}
+
+		int[] newTargets = new int[newOffsets[n]];
+		float[] newWeights = new float[newOffsets[n]];
+		for (int u = 0; u < n; u++) {
+			int position = newOffsets[u];
+			for (int e = offsets[u]; e < offsets[u + 1]; e++) {
+				if (times[u] >= times[targets[e]]) {
+					newTargets[position] = targets[e];
+					newWeights[position] = weights[e];
+					position++;
+				}
+			}
+		}
+		return new CsrGraph(newOffsets, newTargets, newWeights, true);
+	}
+
+	/**
+	 * Collects the edges of an undirected graph over a known number of vertices.
+	 */
+	public static class Builder {
+
+		private final int numOfVertices;
+
+		private int[] sources = new int[1024];
+		private int[] ends = new int[1024];
+		private float[] edgeWeights = new float[1024];
+		private int size = 0;
+
+		public Builder(int numOfVertices) {
+			this.numOfVertices = numOfVertices;
+		}
+
+		public int getVertexCount() {
+			return numOfVertices;
+		}
+
+		/**
+		 * @return the number of edges added so far, including the ones that repeat an earlier edge
+		 */
+		public int getEdgeCount() {
+			return size;
+		}
+
+		/**
+		 * Adds an undirected edge. If the endpoints are already connected the edge is ignored
+		 * when the graph is built, so the first edge between two vertices is the one kept.
+		 */
+		public void addEdge(int u, int v, float weight) {
+			if (u == v) {
+				return;
+			}
+			if (size == sources.length) {
+				int capacity = size * 2;
+				sources = Arrays.copyOf(sources, capacity);
+				ends = Arrays.copyOf(ends, capacity);
+				edgeWeights = Arrays.copyOf(edgeWeights, capacity);
+			}
+			sources[size] = u;
+			ends[size] = v;
+			edgeWeights[size] = weight;
+			size++;
+		}
+
+		public CsrGraph build() {
+			int n = numOfVertices;
+
+			// counting sort of both directions of each edge by source, in the order they were added
+			int[] offsets = new int[n + 1];
+			for (int i = 0; i < size; i++) {
+				offsets[sources[i] + 1]++;
+				offsets[ends[i] + 1]++;
+			}
+			for (int v = 0; v < n; v++) {
+				offsets[v + 1] += offsets[v];
+			}
+			int[] targets = new int[offsets[n]];
+			float[] weights = new float[offsets[n]];
+			int[] next = Arrays.copyOf(offsets, n);
+			for (int i = 0; i < size; i++) {
+				int position = next[sources[i]]++;
+				targets[position] = ends[i];
+				weights[position] = edgeWeights[i];
+				position = next[ends[i]]++;
+				targets[position] = sources[i];
+				weights[position] = edgeWeights[i];
+			}
+
+			// sort each row by target, keeping the first of repeated targets
+			int[] compactOffsets = new int[n + 1];
+			int[] compactTargets = new int[targets.length];
+			float[] compactWeights = new float[weights.length];
+			int write = 0;
+			long[] keys = new long[0];
+			for (int v = 0; v < n; v++) {
+				int from = offsets[v], length = offsets[v + 1] - from;
+				if (keys.length < length) {
+					keys = new long[Math.max(length, 2 * keys.length)];
+				}
+				for (int i = 0; i < length; i++) {
+					// the position breaks ties in the order the edges were added
+					keys[i] = ((long) targets[from + i] << 32) | i;
+				}
+				Arrays.sort(keys, 0, length);
+
+				compactOffsets[v] = write;
+				int previous = -1;
+				for (int i = 0; i < length; i++) {
+					int target = (int) (keys[i] >>> 32);
+					if (target == previous) {
+						continue;
+					}
+					compactTargets[write] = target;
+					compactWeights[write] = weights[from + (int) keys[i]];
+					write++;
+					previous = target;
+				}
+			}
+			compactOffsets[n] = write;
+
+			return new CsrGraph(compactOffsets, Arrays.copyOf(compactTargets, write), Arrays.copyOf(compactWeights, write), false);
+		}
+	}
+}
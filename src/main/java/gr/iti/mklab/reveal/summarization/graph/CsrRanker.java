@@ -0,0 +1,418 @@
+package gr.iti.mklab.reveal.summarization.graph;
+
+import gr.iti.mklab.reveal.util.ComputePool;
+
+import java.util.concurrent.ExecutionException;
+import java.util.function.IntToDoubleFunction;
+
+/**
+ * PageRank with priors and DivRank over a directed {@link CsrGraph}. They take the place of
+ * {@link GraphRanker#pagerankScoring(edu.uci.ics.jung.graph.Graph, java.util.Map, double)} and
+ * {@link GraphRanker#divrankScoring(edu.uci.ics.jung.graph.Graph, java.util.Map, double)}, but
+ * walk the rows of the graph instead of copying it into JUNG scorers or sparse matrices.
+ *
+ * Both iterate until the L1 distance between the ranks of two iterations, relative to the L1
+ * norm of the ranks, falls below the tolerance. Each iteration pulls the rank of every vertex
+ * from its in-edges, so the vertices are split in blocks of about the same number of in-edges
+ * that are ranked in parallel, and the two rank arrays are allocated once and swapped.
+ */
+public class CsrRanker {
+
+	// Stoping criteria
+	private static double tolerance = 0.000001;
+	private static int maxIterations = 300;
+
+	// graphs with fewer edges are ranked in the calling thread
+	private final static int PARALLEL_EDGES = 50000;
+	private final static int BLOCKS_PER_THREAD = 4;
+
+	/**
+	 * PageRank with priors. Unlike the JUNG scorer, which uses the edge weights as they are and
+	 * diverges once the weights of the out-edges of a vertex sum to more than 1/(1-d), the
+	 * weights are normalized per row and the priors are normalized to a distribution. The
+	 * score of the vertices without out-edges jumps back to the vertices in proportion to
+	 * their priors.
+	 *
+	 * @param d the probability of jumping to the priors
+	 * @param initial the ranks to start from, such as the ranks of a previous run, or null to
+	 *        start from the normalized priors
+	 * @return the ranks of the vertices, which sum to 1
+	 */
+	public static Ranking pagerank(CsrGraph graph, double[] priors, double d, double[] initial) throws InterruptedException {
+		long start = System.currentTimeMillis();
+
+		int n = graph.getVertexCount();
+		int[] offsets = graph.getOffsets();
+		Transposed in = new Transposed(graph);
+		double[] jumps = toDistribution(priors);
+
+		double[] ranks = initial != null ? initial.clone() : jumps.clone();
+		double[] newRanks = new double[n];
+
+		int blocks = in.blocks.length - 1;
+		double[] residuals = new double[blocks], norms = new double[blocks], danglings = new double[blocks];
+
+		double disappearing = 0;
+		for (int u = 0; u < n; u++) {
+			if (offsets[u] == offsets[u + 1]) {
+				disappearing += ranks[u];
+			}
+		}
+
+		Ranking ranking = new Ranking("PageRank", n);
+		for (int iteration = 1; iteration <= maxIterations; iteration++) {
+			double[] current = ranks, next = newRanks;
+			double dangling = disappearing;
+			in.forEachBlock(block -> {
+				double residual = 0, norm = 0, nextDangling = 0;
+				for (int v = in.blocks[block]; v < in.blocks[block + 1]; v++) {
+					double rank = 0;
+					for (int e = in.offsets[v]; e < in.offsets[v + 1]; e++) {
+						rank += current[in.sources[e]] * in.transitions[e];
+					}
+					rank = (rank + dangling * jumps[v]) * (1 - d) + jumps[v] * d;
+					next[v] = rank;
+
+					residual += Math.abs(rank - current[v]);
+					norm += Math.abs(rank);
+					if (offsets[v] == offsets[v + 1]) {
+						nextDangling += rank;
+					}
+				}
+				residuals[block] = residual;
+				norms[block] = norm;
+				danglings[block] = nextDangling;
+				return 0;
+			});
+			disappearing = sum(danglings);
+
+			ranks = next;
+			newRanks = current;
+
+			if (ranking.iterate(sum(residuals), sum(norms))) {
+				break;
+			}
+			if (Thread.currentThread().isInterrupted()) {
+				throw new InterruptedException("PageRank interrupted after " + iteration + " iterations");
+			}
+		}
+
+		return ranking.finish(ranks, start);
+	}
+
+	/**
+	 * DivRank as {@link gr.iti.mklab.reveal.summarization.divrank.DivRank} computes it on the
+	 * row normalized graph, iterated until it converges instead of for a fixed number of
+	 * iterations. The iteration of DivRank does not keep the sum of the ranks, which shrinks
+	 * or grows geometrically with the sum of the priors, but it scales with them, so the ranks
+	 * are divided by their sum after each iteration and the scores stay the same.
+	 *
+	 * @param d the weight of the random jump to the priors
+	 * @param initial the ranks to start from, such as the ranks of a previous run, or null to start from the priors
+	 * @return the ranks of the vertices, which sum to 1
+	 */
+	public static Ranking divrank(CsrGraph graph, double[] priors, double d, double[] initial) throws InterruptedException {
+		long start = System.currentTimeMillis();
+
+		int n = graph.getVertexCount();
+		int[] offsets = graph.getOffsets();
+		int[] targets = graph.getTargets();
+		Transposed in = new Transposed(graph);
+
+		double[] ranks = toDistribution(initial != null ? initial : priors);
+		double[] newRanks = new double[n];
+		// the rank of each vertex over the rank it expects from its out-neighbors
+		double[] weights = new double[n];
+
+		int blocks = in.blocks.length - 1;
+		double[] residuals = new double[blocks], norms = new double[blocks];
+
+		Ranking ranking = new Ranking("DivRank", n);
+		for (int iteration = 1; iteration <= maxIterations; iteration++) {
+			double[] current = ranks, next = newRanks;
+
+			double ranksSum = in.sumBlocks(block -> {
+				double sum = 0;
+				for (int i = in.blocks[block]; i < in.blocks[block + 1]; i++) {
+					double divRank = 0;
+					for (int e = offsets[i]; e < offsets[i + 1]; e++) {
+						divRank += in.outTransitions[e] * current[targets[e]];
+					}
+					// all the neighbors have a zero rank, so nothing moves from this vertex
+					weights[i] = divRank == 0 ? 0 : current[i] / divRank;
+					sum += Math.abs(current[i]);
+				}
+				return sum;
+			});
+
+			double newRanksSum = in.sumBlocks(block -> {
+				double sum = 0;
+				for (int j = in.blocks[block]; j < in.blocks[block + 1]; j++) {
+					double rank = 0;
+					for (int e = in.offsets[j]; e < in.offsets[j + 1]; e++) {
+						rank += in.transitions[e] * weights[in.sources[e]];
+					}
+					next[j] = rank * current[j] * (1 - d);
+					sum += Math.abs(next[j]);
+				}
+				return sum;
+			});
+
+			// the mass that did not move along the edges jumps back to the priors
+			double difference = d * (ranksSum - newRanksSum);
+			double sum = in.sumBlocks(block -> {
+				double norm = 0;
+				for (int i = in.blocks[block]; i < in.blocks[block + 1]; i++) {
+					next[i] += difference * priors[i];
+					norm += Math.abs(next[i]);
+				}
+				return norm;
+			});
+
+			in.forEachBlock(block -> {
+				double residual = 0, norm = 0;
+				for (int i = in.blocks[block]; i < in.blocks[block + 1]; i++) {
+					if (sum > 0) {
+						next[i] /= sum;
+					}
+					residual += Math.abs(next[i] - current[i]);
+					norm += Math.abs(next[i]);
+				}
+				residuals[block] = residual;
+				norms[block] = norm;
+				return 0;
+			});
+
+			ranks = next;
+			newRanks = current;
+
+			if (ranking.iterate(sum(residuals), sum(norms))) {
+				break;
+			}
+			if (Thread.currentThread().isInterrupted()) {
+				throw new InterruptedException("DivRank interrupted after " + iteration + " iterations");
+			}
+		}
+
+		return ranking.finish(ranks, start);
+	}
+
+	/**
+	 * @return the priors divided by their sum, or a uniform distribution if they are all zero
+	 */
+	public static double[] toDistribution(double[] priors) {
+		double sum = 0;
+		for (double prior : priors) {
+			sum += prior;
+		}
+		double[] distribution = new double[priors.length];
+		for (int i = 0; i < priors.length; i++) {
+			distribution[i] = sum > 0 ? priors[i] / sum : 1. / priors.length;
+		}
+		return distribution;
+	}
+
+	/**
+	 * @return a copy of the ranks divided by the maximum one
+	 */
+	public static double[] normalize(double[] ranks) {
+		double maxScore = 0;
+		for (double rank : ranks) {
+			if (rank > maxScore) {
+				maxScore = rank;
+			}
+		}
+		double[] scores = ranks.clone();
+		if (maxScore > 0) {
+			for (int i = 0; i < scores.length; i++) {
+				scores[i] /= maxScore;
+			}
+		}
+		return scores;
+	}
+
+	/**
+	 * The partial sums of the blocks are added in the order of the blocks, so the ranks do not
+	 * depend on how the blocks are scheduled.
+	 */
+	private static double sum(double[] partials) {
+		double sum = 0;
+		for (double partial : partials) {
+			sum += partial;
+		}
+		return sum;
+	}
+
+	/**
+	 * The ranks of the vertices, with the number of iterations and the residual of the last one.
+	 */
+	public static class Ranking {
+
+		private final String algorithm;
+		private final int numOfVertices;
+
+		private double[] ranks;
+		private int iterations = 0;
+		private double residual = Double.NaN;
+		private boolean converged = false;
+		private long time;
+
+		private Ranking(String algorithm, int numOfVertices) {
+			this.algorithm = algorithm;
+			this.numOfVertices = numOfVertices;
+		}
+
+		/**
+		 * @return true if the residual of the iteration is below the tolerance
+		 */
+		private boolean iterate(double distance, double norm) {
+			iterations++;
+			residual = norm > 0 ? distance / norm : distance;
+			converged = residual < tolerance;
+			return converged;
+		}
+
+		private Ranking finish(double[] ranks, long start) {
+			this.ranks = ranks;
+			this.time = System.currentTimeMillis() - start;
+			return this;
+		}
+
+		public double[] getRanks() {
+			return ranks;
+		}
+
+		/**
+		 * @return the ranks divided by the maximum one
+		 */
+		public double[] getScores() {
+			return normalize(ranks);
+		}
+
+		public int getIterations() {
+			return iterations;
+		}
+
+		/**
+		 * @return the L1 distance between the ranks of the last two iterations, relative to the L1 norm of the ranks
+		 */
+		public double getResidual() {
+			return residual;
+		}
+
+		public boolean isConverged() {
+			return converged;
+		}
+
+		public long getTime() {
+			return time;
+		}
+
+		@Override
+		public String toString() {
+			return algorithm + " over " + numOfVertices + " vertices: " + iterations + " iterations, residual " + residual
+					+ (converged ? "" : " (not converged)") + ", " + time + " ms";
+		}
+	}
+
+	/**
+	 * The in-edges of each vertex with the transition probability of the edge, that is its
+	 * weight divided by the sum of the weights of the out-edges of its source, and the blocks
+	 * of vertices that are ranked together.
+	 */
+	private static class Transposed {
+
+		private final int[] offsets;
+		private final int[] sources;
+		private final double[] transitions;
+		// the transitions in the order of the out-edges
+		private final double[] outTransitions;
+		private final int[] blocks;
+		private final double[] partials;
+
+		private Transposed(CsrGraph graph) {
+			int n = graph.getVertexCount();
+			int[] outOffsets = graph.getOffsets();
+			int[] targets = graph.getTargets();
+			float[] weights = graph.getWeights();
+
+			outTransitions = new double[weights.length];
+			for (int u = 0; u < n; u++) {
+				double rowSum = 0;
+				for (int e = outOffsets[u]; e < outOffsets[u + 1]; e++) {
+					rowSum += weights[e];
+				}
+				for (int e = outOffsets[u]; e < outOffsets[u + 1]; e++) {
+					outTransitions[e] = rowSum == 0 ? weights[e] : weights[e] / rowSum;
+				}
+			}
+
+			offsets = new int[n + 1];
+			for (int e = 0; e < targets.length; e++) {
+				offsets[targets[e] + 1]++;
+			}
+			for (int v = 0; v < n; v++) {
+				offsets[v + 1] += offsets[v];
+			}
+			sources = new int[targets.length];
+			transitions = new double[targets.length];
+			int[] next = new int[n];
+			System.arraycopy(offsets, 0, next, 0, n);
+			for (int u = 0; u < n; u++) {
+				for (int e = outOffsets[u]; e < outOffsets[u + 1]; e++) {
+					int position = next[targets[e]]++;
+					sources[position] = u;
+					transitions[position] = outTransitions[e];
+				}
+			}
+
+			blocks = partition(n, targets.length);
+			partials = new double[blocks.length - 1];
+		}
+
+		/**
+		 * @return the first vertex of each block and the number of vertices, so that the blocks
+		 *         have about the same number of vertices and in-edges
+		 */
+		private int[] partition(int n, int edges) {
+			int numOfBlocks = edges < PARALLEL_EDGES ? 1 : ComputePool.getParallelism() * BLOCKS_PER_THREAD;
+			numOfBlocks = Math.max(1, Math.min(numOfBlocks, n));
+
+			long total = (long) n + edges;
+			int[] bounds = new int[numOfBlocks + 1];
+			int v = 0;
+			for (int block = 1; block < numOfBlocks; block++) {
+				long end = total * block / numOfBlocks;
+				while (v < n && (long) v + offsets[v] < end) {
+					v++;
+				}
+				bounds[block] = v;
+			}
+			bounds[numOfBlocks] = n;
+			return bounds;
+		}
+
+		private void forEachBlock(IntToDoubleFunction task) throws InterruptedException {
+			sumBlocks(task);
+		}
+
+		/**
+		 * @return the sum of the values of the blocks, in the order of the blocks
+		 */
+		private double sumBlocks(IntToDoubleFunction task) throws InterruptedException {
+			int numOfBlocks = partials.length;
+			if (numOfBlocks == 1) {
+				partials[0] = task.applyAsDouble(0);
+			}
+			else {
+				try {
+					ComputePool.forEach(numOfBlocks, block -> partials[block] = task.applyAsDouble(block));
+				}
+				catch (ExecutionException e) {
+					throw new IllegalStateException("Failed to rank " + (offsets.length - 1) + " vertices", e.getCause());
+				}
+			}
+			return sum(partials);
+		}
+	}
+}
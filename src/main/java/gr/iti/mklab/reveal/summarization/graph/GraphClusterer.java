@@ -19,6 +19,15 @@ public class GraphClusterer {
 	public static int scanMu = 3;
 	
     public static <K> Collection<Collection<K>> cluster(Graph<K, Edge> graph, boolean singleItemClusters) {
+    	return cluster(graph, singleItemClusters, scanEpsilon, scanMu);
+    }
+    
+    /**
+     * Clusters the graph with the given SCAN parameters instead of the shared ones, so that
+     * graphs can be clustered in parallel with different parameters.
+     */
+    public static <K> Collection<Collection<K>> cluster(Graph<K, Edge> graph, boolean singleItemClusters, 
+    		double scanEpsilon, int scanMu) {
     	
     	Set<K> clustered = new HashSet<K>();
     	Collection<Collection<K>> clusters = new ArrayList<Collection<K>>();
@@ -71,6 +71,13 @@ public class GraphRanker {
 	}
 	
 	public static Map<String, Double> pagerankScoring(Graph<String, Edge>  graph, final Map<String, Double> priors) {
+		return pagerankScoring(graph, priors, d);
+	}
+	
+	/**
+	 * Scores with the given damping factor instead of the shared one, so that graphs can be ranked in parallel.
+	 */
+	public static Map<String, Double> pagerankScoring(Graph<String, Edge>  graph, final Map<String, Double> priors, double d) {
 		
 		Transformer<Edge, Double> edgeTransformer = Edge.getEdgeTransformer();
 		Transformer<String, Double> priorsTransformer = new Transformer<String, Double>() {
@@ -160,6 +167,13 @@ public class GraphRanker {
 	}
 	
 	public static Map<String, Double> divrankScoring(Graph<String, Edge>  graph, final Map<String, Double> priors) {
+		return divrankScoring(graph, priors, d);
+	}
+	
+	/**
+	 * Scores with the given damping factor instead of the shared one, so that graphs can be ranked in parallel.
+	 */
+	public static Map<String, Double> divrankScoring(Graph<String, Edge>  graph, final Map<String, Double> priors, double d) {
 		
 		Map<Edge, Number> edgesMap = new HashMap<Edge, Number>();
 		for(Edge edge : graph.getEdges()) {
@@ -0,0 +1,601 @@
+package gr.iti.mklab.reveal.summarization.graph;
+
+import gr.iti.mklab.reveal.util.ComputePool;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+import java.util.function.IntToLongFunction;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Builds an approximate k nearest neighbors graph with NN-Descent (W. Dong, M. Charikar and K. Li,
+ * "Efficient k-nearest neighbor graph construction for generic similarity measures", WWW 2011).
+ *
+ * Unlike the builders of java-graphs, k does not grow with the number of items, and the
+ * neighbors of the items are kept in flat arrays instead of neighbor list objects, so memory
+ * and time grow linearly with the number of items. The local joins of each iteration run on a
+ * shared compute pool of computeThreads threads. Small sets are compared exhaustively.
+ *
+ * After the graph is built, the recall is estimated against the exact neighbors of a sample of
+ * the items, and reported with the number of iterations and similarities computed.
+ */
+public class KnnGraphBuilder<T> {
+
+	private final static Logger LOGGER = Logger.getLogger(KnnGraphBuilder.class);
+
+	private final static int BRUTE_FORCE_SIZE = 2000;
+	// a known similarity that changes by more than this marks its item as changed
+	private final static double CHANGE_TOLERANCE = 1e-3;
+	private final static int NUM_OF_LOCKS = 1024;
+
+	public interface Similarity<T> {
+		double similarity(T v1, T v2);
+	}
+
+	private int k = 20;
+	private double floor = 0;
+	private double rho = 0.5;
+	private double delta = 0.001;
+	private int maxIterations = 30;
+	private int recallSample = 100;
+	private long seed = 42;
+
+	public int getK() {
+		return k;
+	}
+
+	/**
+	 * @param k the number of neighbors kept for each item
+	 */
+	public void setK(int k) {
+		this.k = k;
+	}
+
+	public double getFloor() {
+		return floor;
+	}
+
+	/**
+	 * @param floor the similarity the neighbors that are turned into edges have to exceed, like the
+	 * similarity cutoffs of the summarizer
+	 */
+	public void setFloor(double floor) {
+		this.floor = floor;
+	}
+
+	/**
+	 * @param rho the fraction of the neighbors of an item that take part in the local join of an iteration
+	 */
+	public void setRho(double rho) {
+		this.rho = rho;
+	}
+
+	/**
+	 * @param delta the fraction of the k * n neighbors that have to change for another iteration to run
+	 */
+	public void setDelta(double delta) {
+		this.delta = delta;
+	}
+
+	public void setMaxIterations(int maxIterations) {
+		this.maxIterations = maxIterations;
+	}
+
+	/**
+	 * @param recallSample the number of items whose exact neighbors are used to estimate the recall, 0 to skip it
+	 */
+	public void setRecallSample(int recallSample) {
+		this.recallSample = recallSample;
+	}
+
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * @throws InterruptedException if the thread is interrupted, between two iterations
+	 */
+	public KnnGraph build(List<T> items, Similarity<T> similarity) throws InterruptedException {
+		return build(items, similarity, null);
+	}
+
+	/**
+	 * Builds the graph starting from known neighbors, such as the neighbors found by a previous
+	 * build over most of the same items. The items without known neighbors start from random
+	 * ones, and only the local joins that involve them or the neighbors they change do any work.
+	 * Only the known neighbors are used, their similarities are computed again, at the cost of
+	 * about n * k evaluations, since the items may have changed since. The items whose known
+	 * similarities have changed take part in the local joins like the items without known
+	 * neighbors, as their neighbors may have changed too.
+	 *
+	 * @param initial the known neighbors of the items, by their position in the items, or null
+	 * @throws InterruptedException if the thread is interrupted, between two iterations
+	 */
+	public KnnGraph build(List<T> items, Similarity<T> similarity, KnnGraph initial) throws InterruptedException {
+		return new Build(items, similarity, initial).run();
+	}
+
+	/**
+	 * The neighbors of the items, in decreasing similarity, and how they were found.
+	 */
+	public static class KnnGraph {
+
+		private final int k;
+		private final double floor;
+		private final int[] neighbors;
+		private final float[] similarities;
+		private final int[] sizes;
+
+		private int iterations;
+		private long evaluations;
+		private double recall = 1;
+		private long time;
+
+		/**
+		 * Creates an empty graph, to be filled with neighbors that are already known.
+		 */
+		public KnnGraph(int n, int k) {
+			this(n, k, 0);
+		}
+
+		private KnnGraph(int n, int k, double floor) {
+			this.k = k;
+			this.floor = floor;
+			this.neighbors = new int[n * k];
+			this.similarities = new float[n * k];
+			this.sizes = new int[n];
+		}
+
+		/**
+		 * Appends a neighbor to an item, which are expected in decreasing similarity.
+		 *
+		 * @return false if the item has already k neighbors
+		 */
+		public boolean add(int item, int neighbor, float similarity) {
+			if (sizes[item] == k) {
+				return false;
+			}
+			int e = item * k + sizes[item]++;
+			neighbors[e] = neighbor;
+			similarities[e] = similarity;
+			return true;
+		}
+
+		public int getNumOfItems() {
+			return sizes.length;
+		}
+
+		public int getK() {
+			return k;
+		}
+
+		public int size(int item) {
+			return sizes[item];
+		}
+
+		public int getNeighbor(int item, int j) {
+			return neighbors[item * k + j];
+		}
+
+		public float getSimilarity(int item, int j) {
+			return similarities[item * k + j];
+		}
+
+		public int getIterations() {
+			return iterations;
+		}
+
+		/**
+		 * @return the number of similarities computed
+		 */
+		public long getEvaluations() {
+			return evaluations;
+		}
+
+		/**
+		 * @return the estimated fraction of the exact neighbors above the floor that have been found
+		 */
+		public double getRecall() {
+			return recall;
+		}
+
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * Adds an edge from each item to each of its neighbors with a similarity above the floor.
+		 *
+		 * @param vertices the vertex of each item in the graph
+		 * @return the number of edges added
+		 */
+		public int addEdges(CsrGraph.Builder graph, int[] vertices) {
+			int added = 0;
+			for (int item = 0; item < sizes.length; item++) {
+				for (int j = 0; j < sizes[item]; j++) {
+					int e = item * k + j;
+					if (similarities[e] > floor) {
+						graph.addEdge(vertices[item], vertices[neighbors[e]], similarities[e]);
+						added++;
+					}
+				}
+			}
+			return added;
+		}
+
+		@Override
+		public String toString() {
+			return sizes.length + " items, k = " + k + ", " + iterations + " iterations, " + evaluations
+					+ " similarities, recall " + String.format("%.3f", recall) + ", " + time + " ms";
+		}
+	}
+
+	private class Build {
+
+		private final Object[] items;
+		private final Similarity<T> similarity;
+		private final KnnGraph initial;
+		private final int n, kk;
+		private final KnnGraph graph;
+		private final boolean[] fresh;
+		private final Object[] locks = new Object[NUM_OF_LOCKS];
+		private final LongAdder evaluations = new LongAdder();
+
+		private Build(List<T> items, Similarity<T> similarity, KnnGraph initial) {
+			this.items = items.toArray();
+			this.similarity = similarity;
+			this.initial = initial;
+			this.n = this.items.length;
+			this.kk = Math.max(0, Math.min(k, n - 1));
+			this.graph = new KnnGraph(n, kk, floor);
+			this.fresh = new boolean[n * kk];
+			for (int i = 0; i < NUM_OF_LOCKS; i++) {
+				locks[i] = new Object();
+			}
+		}
+
+		private KnnGraph run() throws InterruptedException {
+			long start = System.currentTimeMillis();
+			if (kk > 0) {
+				if (n <= BRUTE_FORCE_SIZE) {
+					exhaustive();
+				}
+				else {
+					descent();
+					graph.recall = estimateRecall();
+				}
+			}
+			graph.evaluations = evaluations.sum();
+			graph.time = System.currentTimeMillis() - start;
+
+			LOGGER.info("kNN graph built: " + graph);
+			return graph;
+		}
+
+		private void exhaustive() throws InterruptedException {
+			parallel(v -> {
+				for (int u = v + 1; u < n; u++) {
+					update(v, u);
+				}
+			});
+		}
+
+		private void descent() throws InterruptedException {
+			int sampleSize = Math.max(1, (int) Math.ceil(rho * kk));
+			int newCapacity = 2 * sampleSize, oldCapacity = kk + sampleSize;
+			int[] newCandidates = new int[n * newCapacity], newSizes = new int[n];
+			int[] oldCandidates = new int[n * oldCapacity], oldSizes = new int[n];
+			int[] reverseOffsets = new int[n + 1];
+			int[] reverse = new int[n * kk];
+			boolean[] sampled = new boolean[n * kk];
+
+			// the items with known neighbors start from them, as old neighbors, and the rest from random ones.
+			// The known similarities may have been computed with other weights, e.g. the idf of an earlier
+			// vocabulary, so they are computed again with the current items.
+			int unknown = n;
+			if (initial != null) {
+				int known = 0;
+				for (int v = 0; v < n; v++) {
+					if (initial.size(v) > 0) {
+						known++;
+					}
+				}
+				long changed = parallelSum(v -> {
+					boolean isChanged = false;
+					for (int j = 0; j < initial.size(v); j++) {
+						int u = initial.getNeighbor(v, j);
+						if (u != v && u >= 0 && u < n) {
+							float s = similarity(v, u);
+							isChanged |= Math.abs(s - initial.getSimilarity(v, j)) > CHANGE_TOLERANCE;
+							insert(v, u, s);
+						}
+					}
+					for (int e = v * kk; e < v * kk + graph.sizes[v]; e++) {
+						fresh[e] = isChanged;
+					}
+					return isChanged ? 1 : 0;
+				});
+				unknown = (int) (n - known + changed);
+				LOGGER.info("NN-Descent starts from the known neighbors of " + known + " of " + n + " items, "
+						+ changed + " of which have changed");
+			}
+			parallel(v -> {
+				if (graph.sizes[v] > 0) {
+					return;
+				}
+				SplittableRandom random = new SplittableRandom(seed ^ v);
+				int attempts = 0;
+				while (graph.sizes[v] < kk && attempts++ < 4 * kk) {
+					int u = random.nextInt(n);
+					if (u != v) {
+						insert(v, u, similarity(v, u));
+					}
+				}
+			});
+
+			for (int iteration = 1; iteration <= maxIterations; iteration++) {
+				long iterationStart = System.currentTimeMillis();
+				final int salt = iteration * n;
+
+				// the old neighbors and a sample of the new ones, which are no longer new after this iteration
+				parallel(v -> {
+					SplittableRandom random = new SplittableRandom(seed ^ (salt + v));
+					int base = v * kk, size = graph.sizes[v];
+					int[] fresher = new int[size];
+					int freshCount = 0, oldCount = 0;
+					for (int j = 0; j < size; j++) {
+						int e = base + j;
+						sampled[e] = false;
+						if (fresh[e]) {
+							fresher[freshCount++] = e;
+						}
+						else {
+							oldCandidates[v * oldCapacity + oldCount++] = graph.neighbors[e];
+						}
+					}
+					// a partial shuffle of the new neighbors picks their sample
+					int newCount = Math.min(freshCount, sampleSize);
+					for (int i = 0; i < newCount; i++) {
+						int swap = i + random.nextInt(freshCount - i);
+						int e = fresher[swap];
+						fresher[swap] = fresher[i];
+						sampled[e] = true;
+						fresh[e] = false;
+						newCandidates[v * newCapacity + i] = graph.neighbors[e];
+					}
+					newSizes[v] = newCount;
+					oldSizes[v] = oldCount;
+				});
+
+				// the items that have each item as a new neighbor, and then as an old one
+				addReverse(newCandidates, newCapacity, newSizes, sampled, true, reverseOffsets, reverse, sampleSize, salt);
+				addReverse(oldCandidates, oldCapacity, oldSizes, sampled, false, reverseOffsets, reverse, sampleSize, salt + 1);
+
+				// local join: the new candidates of each item are compared with each other and with the old ones
+				long updates = parallelSum(v -> {
+					long count = 0;
+					int newBase = v * newCapacity, oldBase = v * oldCapacity;
+					for (int a = 0; a < newSizes[v]; a++) {
+						int u1 = newCandidates[newBase + a];
+						for (int b = a + 1; b < newSizes[v]; b++) {
+							count += update(u1, newCandidates[newBase + b]);
+						}
+						for (int b = 0; b < oldSizes[v]; b++) {
+							int u2 = oldCandidates[oldBase + b];
+							if (u1 != u2) {
+								count += update(u1, u2);
+							}
+						}
+					}
+					return count;
+				});
+
+				graph.iterations = iteration;
+				LOGGER.info("NN-Descent iteration " + iteration + " over " + n + " items: " + updates + " updates, "
+						+ evaluations.sum() + " similarities, " + (System.currentTimeMillis() - iterationStart) + " ms");
+
+				if (Thread.currentThread().isInterrupted()) {
+					throw new InterruptedException("kNN graph construction interrupted after " + iteration + " iterations");
+				}
+				// without known neighbors this is the fraction of all the neighbors
+				if (updates < delta * Math.max(1, unknown) * kk) {
+					break;
+				}
+			}
+		}
+
+		/**
+		 * Adds to the candidates of each item a sample of the items that have it as a candidate.
+		 *
+		 * @param sampled which of the neighbors have been sampled as new candidates in this iteration
+		 * @param isNew whether the candidates are the new or the old ones
+		 */
+		private void addReverse(int[] candidates, int capacity, int[] sizes, boolean[] sampled, boolean isNew,
+				int[] reverseOffsets, int[] reverse, int sampleSize, int salt) throws InterruptedException {
+
+			// the reverse lists are gathered from the neighbor lists, which hold every forward candidate
+			Arrays.fill(reverseOffsets, 0);
+			for (int v = 0; v < n; v++) {
+				int base = v * kk;
+				for (int j = 0; j < graph.sizes[v]; j++) {
+					if (isReverseCandidate(base + j, sampled, isNew)) {
+						reverseOffsets[graph.neighbors[base + j] + 1]++;
+					}
+				}
+			}
+			for (int v = 0; v < n; v++) {
+				reverseOffsets[v + 1] += reverseOffsets[v];
+			}
+			int[] next = Arrays.copyOf(reverseOffsets, n);
+			for (int v = 0; v < n; v++) {
+				int base = v * kk;
+				for (int j = 0; j < graph.sizes[v]; j++) {
+					if (isReverseCandidate(base + j, sampled, isNew)) {
+						reverse[next[graph.neighbors[base + j]]++] = v;
+					}
+				}
+			}
+
+			parallel(v -> {
+				SplittableRandom random = new SplittableRandom(seed ^ (salt + v));
+				int from = reverseOffsets[v], length = reverseOffsets[v + 1] - from;
+				int base = v * capacity, size = sizes[v];
+				// a partial shuffle of the reverse list picks its sample
+				for (int i = 0; i < Math.min(length, sampleSize) && size < capacity; i++) {
+					int swap = from + i + random.nextInt(length - i);
+					int u = reverse[swap];
+					reverse[swap] = reverse[from + i];
+					reverse[from + i] = u;
+
+					boolean present = false;
+					for (int j = 0; j < size && !present; j++) {
+						present = candidates[base + j] == u;
+					}
+					if (!present) {
+						candidates[base + size++] = u;
+					}
+				}
+				sizes[v] = size;
+			});
+		}
+
+		private boolean isReverseCandidate(int e, boolean[] sampled, boolean isNew) {
+			return isNew ? sampled[e] : !fresh[e] && !sampled[e];
+		}
+
+		/**
+		 * Offers each of the two items to the neighbors of the other.
+		 *
+		 * @return the number of neighbor lists that have changed
+		 */
+		private int update(int u1, int u2) {
+			float s = similarity(u1, u2);
+			int count = 0;
+			synchronized (locks[u1 % NUM_OF_LOCKS]) {
+				count += insert(u1, u2, s) ? 1 : 0;
+			}
+			synchronized (locks[u2 % NUM_OF_LOCKS]) {
+				count += insert(u2, u1, s) ? 1 : 0;
+			}
+			return count;
+		}
+
+		@SuppressWarnings("unchecked")
+		private float similarity(int u1, int u2) {
+			evaluations.increment();
+			double s = similarity.similarity((T) items[u1], (T) items[u2]);
+			return Double.isNaN(s) ? 0f : (float) s;
+		}
+
+		/**
+		 * Inserts u in the neighbors of v, which are kept in decreasing similarity, if it is not
+		 * there and it is closer than the furthest of them.
+		 */
+		private boolean insert(int v, int u, float s) {
+			int base = v * kk, size = graph.sizes[v];
+			if (size == kk && s <= graph.similarities[base + size - 1]) {
+				return false;
+			}
+			for (int j = 0; j < size; j++) {
+				if (graph.neighbors[base + j] == u) {
+					return false;
+				}
+			}
+
+			int position = size == kk ? kk - 1 : size;
+			if (size < kk) {
+				graph.sizes[v]++;
+			}
+			while (position > 0 && graph.similarities[base + position - 1] < s) {
+				graph.neighbors[base + position] = graph.neighbors[base + position - 1];
+				graph.similarities[base + position] = graph.similarities[base + position - 1];
+				fresh[base + position] = fresh[base + position - 1];
+				position--;
+			}
+			graph.neighbors[base + position] = u;
+			graph.similarities[base + position] = s;
+			fresh[base + position] = true;
+			return true;
+		}
+
+		/**
+		 * Compares a sample of the items with all the others.
+		 *
+		 * @return the fraction of their exact neighbors above the floor that are in their neighbor lists
+		 */
+		private double estimateRecall() throws InterruptedException {
+			int sample = Math.min(recallSample, n);
+			if (sample == 0) {
+				return 1;
+			}
+			SplittableRandom random = new SplittableRandom(seed);
+			int[] sampleItems = new int[sample];
+			for (int i = 0; i < sample; i++) {
+				sampleItems[i] = random.nextInt(n);
+			}
+
+			long[] found = new long[sample], expected = new long[sample];
+			parallel(sample, i -> {
+				int v = sampleItems[i];
+				float[] exact = new float[n];
+				int count = 0;
+				for (int u = 0; u < n; u++) {
+					if (u != v) {
+						exact[count++] = similarity(v, u);
+					}
+				}
+				Arrays.sort(exact, 0, count);
+				// the similarity of the k-th nearest neighbor
+				float kth = exact[count - kk];
+
+				int base = v * kk;
+				for (int j = 0; j < graph.sizes[v]; j++) {
+					float s = graph.similarities[base + j];
+					if (s >= kth && s > floor) {
+						found[i]++;
+					}
+				}
+				for (int j = count - kk; j < count; j++) {
+					if (exact[j] > floor) {
+						expected[i]++;
+					}
+				}
+				found[i] = Math.min(found[i], expected[i]);
+			});
+
+			long totalFound = 0, totalExpected = 0;
+			for (int i = 0; i < sample; i++) {
+				totalFound += found[i];
+				totalExpected += expected[i];
+			}
+			return totalExpected == 0 ? 1 : (double) totalFound / totalExpected;
+		}
+
+		private void parallel(IntConsumer task) throws InterruptedException {
+			parallel(n, task);
+		}
+
+		private void parallel(int size, IntConsumer task) throws InterruptedException {
+			try {
+				ComputePool.forEach(size, task);
+			}
+			catch (ExecutionException e) {
+				throw new IllegalStateException("Failed to build the kNN graph of " + n + " items", e.getCause());
+			}
+		}
+
+		private long parallelSum(IntToLongFunction task) throws InterruptedException {
+			try {
+				return ComputePool.sum(n, task);
+			}
+			catch (ExecutionException e) {
+				throw new IllegalStateException("Failed to build the kNN graph of " + n + " items", e.getCause());
+			}
+		}
+	}
+}
@@ -0,0 +1,212 @@
+package gr.iti.mklab.reveal.summarization.scan;
+
+import gr.iti.mklab.reveal.summarization.graph.CsrGraph;
+import gr.iti.mklab.reveal.util.ComputePool;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.function.IntConsumer;
+
+/**
+ * SCAN over an undirected {@link CsrGraph}. It finds the same communities as
+ * {@link ScanCommunityDetector#getCommunityStructure(edu.uci.ics.jung.graph.Graph)} when the
+ * vertices are visited in the same order, but keeps the community of each vertex and the
+ * structural similarity of each edge in arrays indexed by vertex and by edge.
+ *
+ * The structural similarities of all the edges, and the number of neighbors of each vertex
+ * within epsilon, are computed in parallel before the expansion of the communities, which
+ * then only reads them. A vertex with fewer than mu such neighbors is never a core.
+ */
+public class CsrScanCommunityDetector {
+
+	private double epsilon = 0.5;
+	private int mu = 5;
+
+	public CsrScanCommunityDetector(double epsilon, int mu) {
+		this.epsilon = epsilon;
+		this.mu = mu;
+	}
+
+	/**
+	 * @return the community of each vertex, or -1 for the hubs and the outliers
+	 */
+	public int[] getCommunities(CsrGraph graph) throws InterruptedException {
+		int n = graph.getVertexCount();
+		int[] offsets = graph.getOffsets();
+		int[] targets = graph.getTargets();
+
+		double[] similarities = getSimilarities(graph);
+		int[] epsilonDegrees = new int[n];
+		parallel(n, u -> {
+			int count = 0;
+			for (int e = offsets[u]; e < offsets[u + 1]; e++) {
+				if (similarities[e] > epsilon) {
+					count++;
+				}
+			}
+			epsilonDegrees[u] = count;
+		});
+
+		int[] communities = new int[n];
+		Arrays.fill(communities, -1);
+		boolean[] nonMembers = new boolean[n];
+
+		int[] stack = new int[Math.max(16, targets.length + 1)];
+		int cIdx = -1;
+		for (int seed = 0; seed < n; seed++) {
+			if (communities[seed] >= 0 || nonMembers[seed]) {
+				continue;
+			}
+			if (!isCore(graph, similarities, epsilonDegrees, communities, seed, cIdx)) {
+				nonMembers[seed] = true;
+				continue;
+			}
+
+			cIdx++;
+			int size = 0;
+			for (int e = offsets[seed]; e < offsets[seed + 1]; e++) {
+				if (similarities[e] > epsilon) {
+					stack[size++] = targets[e];
+				}
+			}
+			stack[size++] = seed;
+
+			while (size > 0) {
+				int cand = stack[--size];
+				if (!isCore(graph, similarities, epsilonDegrees, communities, cand, cIdx)) {
+					nonMembers[cand] = true;
+					continue;
+				}
+				// the neighbors are taken in reverse order, as they are popped from the epsilon neighborhood
+				for (int e = offsets[cand + 1] - 1; e >= offsets[cand]; e--) {
+					int toAdd = targets[e];
+					if (communities[toAdd] >= 0 || similarities[e] <= epsilon) {
+						continue;
+					}
+					if (!nonMembers[toAdd]) {
+						if (size == stack.length) {
+							stack = Arrays.copyOf(stack, 2 * size);
+						}
+						stack[size++] = toAdd;
+					}
+					communities[toAdd] = cIdx;
+				}
+			}
+		}
+		return communities;
+	}
+
+	/**
+	 * @return the members of each community, in the order of the community indices
+	 */
+	public static List<int[]> getMembers(int[] communities) {
+		int numCommunities = 0;
+		for (int community : communities) {
+			numCommunities = Math.max(numCommunities, community + 1);
+		}
+		int[] sizes = new int[numCommunities];
+		for (int community : communities) {
+			if (community >= 0) {
+				sizes[community]++;
+			}
+		}
+
+		List<int[]> members = new ArrayList<int[]>(numCommunities);
+		for (int size : sizes) {
+			members.add(new int[size]);
+		}
+		int[] next = new int[numCommunities];
+		for (int v = 0; v < communities.length; v++) {
+			int community = communities[v];
+			if (community >= 0) {
+				members.get(community)[next[community]++] = v;
+			}
+		}
+		return members;
+	}
+
+	private boolean isCore(CsrGraph graph, double[] similarities, int[] epsilonDegrees, int[] communities, int seed, int cId) {
+		if (epsilonDegrees[seed] < mu) {
+			return false;
+		}
+		int[] offsets = graph.getOffsets();
+		int[] targets = graph.getTargets();
+
+		int count = 0;
+		for (int e = offsets[seed]; e < offsets[seed + 1]; e++) {
+			int cid = communities[targets[e]];
+			if (cid >= 0 && cid != cId) {
+				continue;
+			}
+			if (similarities[e] > epsilon) {
+				count++;
+				if (count >= mu) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The structural similarity of the endpoints of each edge: the number of vertices in both
+	 * of their closed neighborhoods, over the geometric mean of the sizes of the neighborhoods.
+	 * Each edge is computed once, by the task of its smaller endpoint, which also writes it in
+	 * the row of the other endpoint.
+	 *
+	 * @return the similarities in the order of the targets of the graph
+	 */
+	public static double[] getSimilarities(CsrGraph graph) throws InterruptedException {
+		int[] offsets = graph.getOffsets();
+		int[] targets = graph.getTargets();
+
+		double[] similarities = new double[targets.length];
+		parallel(graph.getVertexCount(), u -> {
+			for (int e = offsets[u]; e < offsets[u + 1]; e++) {
+				int v = targets[e];
+				if (v < u) {
+					continue;
+				}
+				double similarity = similarity(offsets, targets, u, v);
+				similarities[e] = similarity;
+				int reverse = graph.findEdge(v, u);
+				if (reverse >= 0) {
+					similarities[reverse] = similarity;
+				}
+			}
+		});
+		return similarities;
+	}
+
+	private static double similarity(int[] offsets, int[] targets, int u, int v) {
+		// both endpoints are in both closed neighborhoods
+		int common = 2;
+		int i = offsets[u], iEnd = offsets[u + 1];
+		int j = offsets[v], jEnd = offsets[v + 1];
+		while (i < iEnd && j < jEnd) {
+			if (targets[i] < targets[j]) {
+				i++;
+			}
+			else if (targets[i] > targets[j]) {
+				j++;
+			}
+			else {
+				common++;
+				i++;
+				j++;
+			}
+		}
+		return common / Math.sqrt((double) (iEnd - offsets[u] + 1) * (jEnd - offsets[v] + 1));
+	}
+
+	private static void parallel(int n, IntConsumer task) throws InterruptedException {
+		try {
+			ComputePool.forEach(n, task);
+		}
+		catch (ExecutionException e) {
+			throw new IllegalStateException("Failed to compute the structural similarities of " + n + " vertices", e.getCause());
+		}
+	}
+}
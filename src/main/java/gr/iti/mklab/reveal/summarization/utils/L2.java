@@ -9,6 +9,10 @@ public class L2 {
     public static Double similarity(Double[] v1, Double[] v2) {
         return 1. - distance(v1, v2)/Math.sqrt(2);
     }
+
+    public static double similarity(float[] v1, float[] v2) {
+        return 1 - distance(v1, v2)/Math.sqrt(2);
+    }
     
     public static double distance(double[] v1, double[] v2) {
     	if(v1.length != v2.length) {
@@ -23,6 +27,20 @@ public class L2 {
         return Math.sqrt(distance);
     }
     
+    public static double distance(float[] v1, float[] v2) {
+    	if(v1.length != v2.length) {
+    		return -1;
+    	}
+    	
+    	double distance = 0;
+        for (int i = 0; i < v1.length; i++) {	
+        	double d = v1[i] - v2[i];
+            distance += d * d;
+        }
+          
+        return Math.sqrt(distance);
+    }
+    
     public static Double distance(Double[] v1, Double[] v2) {
     	if(v1.length != v2.length) {
     		return -1.;
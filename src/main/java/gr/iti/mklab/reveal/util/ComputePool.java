@@ -0,0 +1,107 @@
+package gr.iti.mklab.reveal.util;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntConsumer;
+import java.util.function.IntToLongFunction;
+import java.util.stream.IntStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The fork-join pool of computeThreads threads shared by the CPU bound phases of the clustering
+ * and the summarization of all the collections: the kNN graphs, PageRank and DivRank, SCAN and
+ * the batch assignment of the cluster summaries.
+ *
+ * Work is submitted as a parallel loop over a range of indices. If the calling thread is
+ * interrupted while it waits, e.g. because its summarization is cancelled, the loop skips the
+ * indices it has not started yet and the call throws InterruptedException.
+ */
+public class ComputePool {
+
+	private final static Logger LOGGER = Logger.getLogger(ComputePool.class);
+
+	private static ForkJoinPool pool;
+
+	private ComputePool() {
+	}
+
+	/**
+	 * @return the number of threads of the pool
+	 */
+	public static int getParallelism() {
+		return get().getParallelism();
+	}
+
+	/**
+	 * Runs the task for each index from 0 to n - 1 in the pool.
+	 *
+	 * @throws ExecutionException if the task threw, with the exception as the cause
+	 */
+	public static void forEach(int n, IntConsumer task) throws InterruptedException, ExecutionException {
+		AtomicBoolean stopped = new AtomicBoolean(false);
+		run(stopped, get().submit(() -> IntStream.range(0, n).parallel().forEach(i -> {
+			checkStopped(stopped);
+			task.accept(i);
+		})));
+	}
+
+	/**
+	 * @return the sum of the task over the indices from 0 to n - 1, computed in the pool
+	 * @throws ExecutionException if the task threw, with the exception as the cause
+	 */
+	public static long sum(int n, IntToLongFunction task) throws InterruptedException, ExecutionException {
+		AtomicBoolean stopped = new AtomicBoolean(false);
+		return run(stopped, get().submit(() -> IntStream.range(0, n).parallel().mapToLong(i -> {
+			checkStopped(stopped);
+			return task.applyAsLong(i);
+		}).sum()));
+	}
+
+	/**
+	 * Stops the pool, interrupting the running tasks. A later call starts a new one.
+	 */
+	public static synchronized void shutdown() {
+		if (pool == null) {
+			return;
+		}
+		pool.shutdownNow();
+		try {
+			if (!pool.awaitTermination(10, TimeUnit.SECONDS)) {
+				LOGGER.error("Compute pool did not terminate");
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		pool = null;
+	}
+
+	private static synchronized ForkJoinPool get() {
+		if (pool == null) {
+			pool = new ForkJoinPool(Math.max(1, Configuration.COMPUTE_THREADS));
+		}
+		return pool;
+	}
+
+	private static <V> V run(AtomicBoolean stopped, ForkJoinTask<V> task) throws InterruptedException, ExecutionException {
+		try {
+			return task.get();
+		}
+		catch (InterruptedException e) {
+			stopped.set(true);
+			task.cancel(true);
+			throw e;
+		}
+	}
+
+	private static void checkStopped(AtomicBoolean stopped) {
+		if (stopped.get()) {
+			throw new CancellationException();
+		}
+	}
+}
@@ -14,6 +14,7 @@ import java.util.Properties;
 public class Configuration {
 
     public static String CRAWLS_DIR;
+    public static String VISUAL_DIR;
     public static String LEARNING_FOLDER;
     public static String INDEX_SERVICE_HOST;
     public static String STREAM_MANAGER_SERVICE_HOST;
@@ -30,9 +31,37 @@ public class Configuration {
     public static double DISTANCE_THRESHOLD;
     public static String CLUSTERER_TYPE;
     
+    public static boolean LOCAL_VISUAL_INDEXING;
+    public static int INDEXING_FETCH_THREADS;
+    public static int INDEXING_DECODE_THREADS;
+    public static int INDEXING_VECTORIZE_THREADS;
+    public static int INDEXING_ANNOTATE_THREADS;
+    public static int INDEXING_QUEUE_SIZE;
+    public static int INDEXING_BATCH_SIZE;
+    public static int INDEXING_WRITE_BATCH_SIZE;
+    public static long INDEXING_LEASE;
+    public static int INDEXING_MAX_ATTEMPTS;
+    public static String CLUSTERING_INDEX;
+    public static int CLUSTER_SUMMARY_MAX_ACTIVE;
+    public static long CLUSTER_SUMMARY_MAX_IDLE;
+    public static int COMPUTE_THREADS;
+    public static int SUMMARIZATION_THREADS;
+    public static int SUMMARIZATION_KNN_K;
+    public static long SUMMARIZATION_REFRESH_INTERVAL;
+    
+    public static int FETCH_MAX_IN_FLIGHT;
+    public static int FETCH_MAX_PER_HOST;
+    public static int FETCH_MAX_BYTES;
+    public static int FETCH_TIMEOUT;
+    
+    public static String WORKER_DIR;
+    public static String IMAGE_CACHE_DIR;
+    public static int IMAGE_CACHE_SIZE;
+    
     public static void load(String file) throws ConfigurationException {
         PropertiesConfiguration conf = new PropertiesConfiguration(file);
         CRAWLS_DIR = conf.getString("crawlsDir");
+        VISUAL_DIR = conf.getString("visualDir", CRAWLS_DIR);
         LEARNING_FOLDER = conf.getString("learningFolder");
         INDEX_SERVICE_HOST = conf.getString("indexServiceHost");
         STREAM_MANAGER_SERVICE_HOST = conf.getString("streamManagerServiceHost");
@@ -44,13 +73,41 @@ public class Configuration {
         VISUAL_WEIGHT = Double.parseDouble(conf.getString("visualWeight", "0.62"));
         TEXTUAL_WEIGHT = Double.parseDouble(conf.getString("textualWeight", "0.85"));
         DISTANCE_THRESHOLD = Double.parseDouble(conf.getString("distanceThreshold", "0.68"));
-        CLUSTERER_TYPE = conf.getString("clustererType", "THRESHOLD");
+        CLUSTERER_TYPE = conf.getString("clustererType", "summary");
+        
+        LOCAL_VISUAL_INDEXING = conf.getBoolean("localVisualIndexing", true);
+        INDEXING_FETCH_THREADS = conf.getInt("indexingFetchThreads", 1);
+        INDEXING_DECODE_THREADS = conf.getInt("indexingDecodeThreads", 2);
+        INDEXING_VECTORIZE_THREADS = conf.getInt("indexingVectorizeThreads", Runtime.getRuntime().availableProcessors());
+        INDEXING_ANNOTATE_THREADS = conf.getInt("indexingAnnotateThreads", 2);
+        INDEXING_QUEUE_SIZE = conf.getInt("indexingQueueSize", 100);
+        INDEXING_BATCH_SIZE = conf.getInt("indexingBatchSize", 100);
+        INDEXING_WRITE_BATCH_SIZE = conf.getInt("indexingWriteBatchSize", 200);
+        INDEXING_LEASE = conf.getLong("indexingLease", 10 * 60 * 1000L);
+        INDEXING_MAX_ATTEMPTS = conf.getInt("indexingMaxAttempts", 3);
+        CLUSTERING_INDEX = conf.getString("clusteringIndex", "VP_TREE");
+        CLUSTER_SUMMARY_MAX_ACTIVE = conf.getInt("clusterSummaryMaxActive", 10000);
+        CLUSTER_SUMMARY_MAX_IDLE = conf.getLong("clusterSummaryMaxIdle", 3 * 24 * 60 * 60 * 1000L);
+        COMPUTE_THREADS = conf.getInt("computeThreads", Runtime.getRuntime().availableProcessors());
+        SUMMARIZATION_THREADS = conf.getInt("summarizationThreads", 2);
+        SUMMARIZATION_KNN_K = conf.getInt("summarizationKnnK", 20);
+        SUMMARIZATION_REFRESH_INTERVAL = conf.getLong("summarizationRefreshInterval", 30 * 60 * 1000L);
+        
+        FETCH_MAX_IN_FLIGHT = conf.getInt("fetchMaxInFlight", 256);
+        FETCH_MAX_PER_HOST = conf.getInt("fetchMaxPerHost", 8);
+        FETCH_MAX_BYTES = conf.getInt("fetchMaxBytes", 10 * 1024 * 1024);
+        FETCH_TIMEOUT = conf.getInt("fetchTimeout", 30000);
+        
+        WORKER_DIR = conf.getString("workerDir", VISUAL_DIR + "/worker");
+        IMAGE_CACHE_DIR = conf.getString("imageCacheDir", VISUAL_DIR + "/image_cache");
+        IMAGE_CACHE_SIZE = conf.getInt("imageCacheSize", 2048);
     }
 
     public static void load(InputStream stream) throws ConfigurationException, IOException {
         Properties conf = new Properties();
         conf.load(stream);
         CRAWLS_DIR = conf.getProperty("crawlsDir");
+        VISUAL_DIR = conf.getProperty("visualDir", CRAWLS_DIR);
         LEARNING_FOLDER = conf.getProperty("learningFolder");
         INDEX_SERVICE_HOST = conf.getProperty("indexServiceHost");
         STREAM_MANAGER_SERVICE_HOST = conf.getProperty("streamManagerServiceHost");
@@ -65,6 +122,33 @@ public class Configuration {
         VISUAL_WEIGHT = Double.parseDouble(conf.getProperty("visualWeight", "0.62"));
         TEXTUAL_WEIGHT = Double.parseDouble(conf.getProperty("textualWeight", "0.85"));
         DISTANCE_THRESHOLD = Double.parseDouble(conf.getProperty("distanceThreshold", "0.68"));
-        CLUSTERER_TYPE = conf.getProperty("clustererType", "THRESHOLD");
+        CLUSTERER_TYPE = conf.getProperty("clustererType", "summary");
+        
+        LOCAL_VISUAL_INDEXING = Boolean.parseBoolean(conf.getProperty("localVisualIndexing", "true"));
+        INDEXING_FETCH_THREADS = Integer.parseInt(conf.getProperty("indexingFetchThreads", "1"));
+        INDEXING_DECODE_THREADS = Integer.parseInt(conf.getProperty("indexingDecodeThreads", "2"));
+        INDEXING_VECTORIZE_THREADS = Integer.parseInt(conf.getProperty("indexingVectorizeThreads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+        INDEXING_ANNOTATE_THREADS = Integer.parseInt(conf.getProperty("indexingAnnotateThreads", "2"));
+        INDEXING_QUEUE_SIZE = Integer.parseInt(conf.getProperty("indexingQueueSize", "100"));
+        INDEXING_BATCH_SIZE = Integer.parseInt(conf.getProperty("indexingBatchSize", "100"));
+        INDEXING_WRITE_BATCH_SIZE = Integer.parseInt(conf.getProperty("indexingWriteBatchSize", "200"));
+        INDEXING_LEASE = Long.parseLong(conf.getProperty("indexingLease", String.valueOf(10 * 60 * 1000L)));
+        INDEXING_MAX_ATTEMPTS = Integer.parseInt(conf.getProperty("indexingMaxAttempts", "3"));
+        CLUSTERING_INDEX = conf.getProperty("clusteringIndex", "VP_TREE");
+        CLUSTER_SUMMARY_MAX_ACTIVE = Integer.parseInt(conf.getProperty("clusterSummaryMaxActive", "10000"));
+        CLUSTER_SUMMARY_MAX_IDLE = Long.parseLong(conf.getProperty("clusterSummaryMaxIdle", String.valueOf(3 * 24 * 60 * 60 * 1000L)));
+        COMPUTE_THREADS = Integer.parseInt(conf.getProperty("computeThreads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+        SUMMARIZATION_THREADS = Integer.parseInt(conf.getProperty("summarizationThreads", "2"));
+        SUMMARIZATION_KNN_K = Integer.parseInt(conf.getProperty("summarizationKnnK", "20"));
+        SUMMARIZATION_REFRESH_INTERVAL = Long.parseLong(conf.getProperty("summarizationRefreshInterval", String.valueOf(30 * 60 * 1000L)));
+        
+        FETCH_MAX_IN_FLIGHT = Integer.parseInt(conf.getProperty("fetchMaxInFlight", "256"));
+        FETCH_MAX_PER_HOST = Integer.parseInt(conf.getProperty("fetchMaxPerHost", "8"));
+        FETCH_MAX_BYTES = Integer.parseInt(conf.getProperty("fetchMaxBytes", String.valueOf(10 * 1024 * 1024)));
+        FETCH_TIMEOUT = Integer.parseInt(conf.getProperty("fetchTimeout", "30000"));
+        
+        WORKER_DIR = conf.getProperty("workerDir", VISUAL_DIR + "/worker");
+        IMAGE_CACHE_DIR = conf.getProperty("imageCacheDir", VISUAL_DIR + "/image_cache");
+        IMAGE_CACHE_SIZE = Integer.parseInt(conf.getProperty("imageCacheSize", "2048"));
     }
 }
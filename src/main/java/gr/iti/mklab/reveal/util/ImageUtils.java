@@ -1,8 +1,16 @@
 package gr.iti.mklab.reveal.util;
 
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Iterator;
 import java.util.regex.Pattern;
 
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
 /**
  * Created by kandreadou on 2/10/15.
  */
@@ -11,12 +19,21 @@ public class ImageUtils {
     private final static int MIN_CONTENT_LENGTH = 10000;
     private final static int MIN_WIDTH = 400;
     private final static int MIN_HEIGHT = 400;
+    private final static long MAX_PIXELS = 100L * 1000 * 1000;
 
     private final static Pattern imagePattern = Pattern.compile("([^\\s]+(\\.(?i)(jpg|png|gif|bmp|jpeg|tiff))$)");
 
 
     public static boolean checkContentHeaders(int contentLength, String contentType) {
-        return contentLength > MIN_CONTENT_LENGTH && contentType.startsWith("image");
+        return contentLength > MIN_CONTENT_LENGTH && checkContentType(contentType);
+    }
+
+    public static boolean checkContentLength(long contentLength) {
+        return contentLength > MIN_CONTENT_LENGTH;
+    }
+
+    public static boolean checkContentType(String contentType) {
+        return contentType != null && contentType.startsWith("image");
     }
 
     public static boolean checkImage(BufferedImage img) {
@@ -31,8 +48,165 @@ public class ImageUtils {
         return width > 0 && width < MIN_WIDTH && height > 0 && height < MIN_HEIGHT;
     }
 
+    /**
+     * Images with more pixels than this are rejected before decoding, as decompression bombs.
+     */
+    public static boolean isImageTooLarge(int width, int height) {
+        return (long) width * height > MAX_PIXELS;
+    }
+
     public static boolean isImageUrl(String uri) {
         return imagePattern.matcher(uri).matches();
     }
 
+    /**
+     * Reads the dimensions of an image from its header, without decoding it. JPEG, PNG, GIF and
+     * BMP headers are parsed directly; other formats are left to the header of their ImageIO reader.
+     *
+     * @return {width, height} or null if the content is not a readable image
+     */
+    public static int[] getDimensions(byte[] content) {
+        int[] dimensions = probeDimensions(content);
+        if (dimensions != null) {
+            return dimensions;
+        }
+
+        ImageReader reader = null;
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(content))) {
+            reader = getReader(input);
+            if (reader != null) {
+                return new int[]{reader.getWidth(0), reader.getHeight(0)};
+            }
+        } catch (IOException e) {
+            // not an image
+        } finally {
+            if (reader != null) {
+                reader.dispose();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parses the dimensions from the JPEG SOF, PNG IHDR, GIF logical screen or BMP info header.
+     *
+     * @return {width, height} or null if the format is not recognized or the header is truncated
+     */
+    public static int[] probeDimensions(byte[] b) {
+        if (b == null || b.length < 26) {
+            return null;
+        }
+
+        try {
+            // JPEG: scan the markers up to the first start of frame
+            if ((b[0] & 0xFF) == 0xFF && (b[1] & 0xFF) == 0xD8) {
+                int i = 2;
+                while (i + 9 < b.length) {
+                    if ((b[i] & 0xFF) != 0xFF) {
+                        return null;
+                    }
+                    int marker = b[i + 1] & 0xFF;
+                    if (marker == 0xFF) {
+                        i++;
+                        continue;
+                    }
+                    if (marker == 0xD8 || marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                        i += 2;
+                        continue;
+                    }
+                    if (marker == 0xD9 || marker == 0xDA) {
+                        return null;
+                    }
+                    if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                        return new int[]{u16(b, i + 7), u16(b, i + 5)};
+                    }
+                    i += 2 + u16(b, i + 2);
+                }
+                return null;
+            }
+
+            // PNG: the IHDR chunk always comes first
+            if ((b[0] & 0xFF) == 0x89 && b[1] == 'P' && b[2] == 'N' && b[3] == 'G'
+                    && b[12] == 'I' && b[13] == 'H' && b[14] == 'D' && b[15] == 'R') {
+                return new int[]{s32(b, 16), s32(b, 20)};
+            }
+
+            // GIF: logical screen descriptor
+            if (b[0] == 'G' && b[1] == 'I' && b[2] == 'F' && b[3] == '8') {
+                return new int[]{u16le(b, 6), u16le(b, 8)};
+            }
+
+            // BMP: BITMAPCOREHEADER has 16 bit dimensions, the later headers 32 bit ones
+            if (b[0] == 'B' && b[1] == 'M') {
+                if (s32le(b, 14) == 12) {
+                    return new int[]{u16le(b, 18), u16le(b, 20)};
+                }
+                // negative height means top-down rows
+                return new int[]{Math.abs(s32le(b, 18)), Math.abs(s32le(b, 22))};
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            // truncated header
+        }
+        return null;
+    }
+
+    /**
+     * Decodes an image, subsampling rows and columns by the largest integer factor that keeps
+     * at least maxNumPixels pixels. Large images are therefore never fully allocated, while the
+     * final scaling to maxNumPixels is left to the vectorizer.
+     *
+     * @return the image or null if the content cannot be decoded
+     */
+    public static BufferedImage decode(byte[] content, int maxNumPixels) throws IOException {
+        ImageReader reader = null;
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(content))) {
+            reader = getReader(input);
+            if (reader == null) {
+                return null;
+            }
+
+            long pixels = (long) reader.getWidth(0) * reader.getHeight(0);
+            int subsampling = (int) Math.max(1, Math.floor(Math.sqrt((double) pixels / maxNumPixels)));
+
+            ImageReadParam param = reader.getDefaultReadParam();
+            if (subsampling > 1) {
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            }
+            return reader.read(0, param);
+        } finally {
+            if (reader != null) {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static ImageReader getReader(ImageInputStream input) {
+        if (input == null) {
+            return null;
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            return null;
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(input, true, true);
+        return reader;
+    }
+
+    private static int u16(byte[] b, int i) {
+        return ((b[i] & 0xFF) << 8) | (b[i + 1] & 0xFF);
+    }
+
+    private static int u16le(byte[] b, int i) {
+        return (b[i] & 0xFF) | ((b[i + 1] & 0xFF) << 8);
+    }
+
+    private static int s32(byte[] b, int i) {
+        return (u16(b, i) << 16) | u16(b, i + 2);
+    }
+
+    private static int s32le(byte[] b, int i) {
+        return u16le(b, i) | (u16le(b, i + 2) << 16);
+    }
+
 }
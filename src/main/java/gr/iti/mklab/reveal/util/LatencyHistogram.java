@@ -0,0 +1,114 @@
+package gr.iti.mklab.reveal.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies in microseconds, with log-linear buckets
+ * (8 buckets per power of two, i.e. at most 12.5% relative error on percentiles).
+ */
+public class LatencyHistogram {
+
+	private final static int SUB_BUCKET_BITS = 3;
+	private final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private final static int BUCKETS = 64 * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong(0L);
+	private final AtomicLong sum = new AtomicLong(0L);
+	private final AtomicLong max = new AtomicLong(0L);
+
+	public void record(long micros) {
+		if (micros < 0) {
+			micros = 0;
+		}
+
+		counts.incrementAndGet(index(micros));
+		count.incrementAndGet();
+		sum.addAndGet(micros);
+
+		long currentMax;
+		while (micros > (currentMax = max.get()) && !max.compareAndSet(currentMax, micros)) {
+			// retry
+		}
+	}
+
+	public void recordNanos(long nanos) {
+		record(nanos / 1000L);
+	}
+
+	/**
+	 * Records the time elapsed since the given {@link System#nanoTime()} timestamp.
+	 */
+	public void recordSince(long startNanos) {
+		recordNanos(System.nanoTime() - startNanos);
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * @param percentile in [0, 100]
+	 * @return an upper bound of the given percentile in microseconds
+	 */
+	public long getPercentile(double percentile) {
+		long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+
+		long target = Math.max(1, (long) Math.ceil(percentile / 100. * n));
+		long cumulative = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			cumulative += counts.get(i);
+			if (cumulative >= target) {
+				return Math.min(upperBound(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("count=%d, mean=%.1fms, p50=%.1fms, p99=%.1fms, max=%.1fms",
+				getCount(), getMean() / 1000., getPercentile(50) / 1000., getPercentile(99) / 1000., getMax() / 1000.);
+	}
+
+	private static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS;
+		int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+		return (shift + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	private static long upperBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		int subBucket = index % SUB_BUCKETS;
+		return ((long) (SUB_BUCKETS + subBucket + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,412 @@
+package gr.iti.mklab.reveal.visual;
+
+import gr.iti.mklab.reveal.util.Configuration;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.hash.Hashing;
+
+/**
+ * An on-disk, size-bounded LRU cache of downloaded image bytes and of the visual vectors
+ * extracted from them. Content is addressed by its SHA-1 hash, so the same image found
+ * under several urls is stored and vectorized once, and urls are mapped to content hashes.
+ *
+ * Layout under imageCacheDir (VISUAL_DIR/image_cache by default):
+ * <ul>
+ *   <li>content/&lt;hash&gt; - the bytes of the image</li>
+ *   <li>vectors/&lt;hash&gt; - the float32 vector of the image, if it has been computed</li>
+ *   <li>urls/&lt;sha1 of url&gt; - the hash of the content last fetched from the url</li>
+ * </ul>
+ *
+ * The recency order is kept in memory and restored from the modification times of the
+ * content files on startup. When the total size exceeds imageCacheSize, the least recently
+ * used content is evicted together with its vector and the url entries that point to it.
+ * Since the accounting is kept in memory, the directory belongs to a single process, which
+ * holds a lock on cache.lock: another process with the same imageCacheDir runs without a cache.
+ * Files are written to temporary files outside of the lock, and moved in place or deleted
+ * under it together with the change of the accounting, so an entry that is evicted while it is
+ * put again never leaves a url file without content, or loses the content just put.
+ */
+public class ImageCache {
+
+	private final static Logger LOGGER = Logger.getLogger(ImageCache.class);
+
+	// the hex sha1 of the content that a url file holds
+	private final static long URL_ENTRY_SIZE = 40;
+
+	private static ImageCache instance;
+	private static boolean unavailable = false;
+
+	private final File contentDir;
+	private final File vectorsDir;
+	private final File urlsDir;
+	private final long maxSize;
+	// never released, the cache lives as long as the process
+	private final FileLock processLock;
+
+	// content hash -> files on disk, in access order
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(1024, 0.75f, true);
+	// sha1 of url -> content hash
+	private final Map<String, String> urls = new HashMap<String, String>();
+	private long size = 0;
+
+	private final AtomicLong hits = new AtomicLong(0L);
+	private final AtomicLong misses = new AtomicLong(0L);
+	private final AtomicLong vectorHits = new AtomicLong(0L);
+
+	/**
+	 * @throws IOException if another process uses the directory
+	 */
+	public ImageCache(File directory, long maxSize) throws IOException {
+		this.contentDir = new File(directory, "content");
+		this.vectorsDir = new File(directory, "vectors");
+		this.urlsDir = new File(directory, "urls");
+		this.maxSize = maxSize;
+
+		contentDir.mkdirs();
+		vectorsDir.mkdirs();
+		urlsDir.mkdirs();
+
+		FileChannel lockChannel = FileChannel.open(new File(directory, "cache.lock").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		FileLock acquired = null;
+		try {
+			acquired = lockChannel.tryLock();
+		}
+		catch (OverlappingFileLockException e) {
+			// held by another instance of this process
+		}
+		if (acquired == null) {
+			lockChannel.close();
+			throw new IOException("Image cache in " + directory + " is used by another process");
+		}
+		processLock = acquired;
+
+		File[] files = contentDir.listFiles();
+		if (files != null) {
+			Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+			for (File file : files) {
+				String hash = file.getName();
+				if (hash.contains(".tmp")) {
+					// left over by an interrupted write
+					file.delete();
+					continue;
+				}
+				Entry entry = new Entry();
+				entry.contentSize = file.length();
+				entry.vectorSize = new File(vectorsDir, hash).length();
+				entries.put(hash, entry);
+				size += entry.size();
+			}
+		}
+
+		files = urlsDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.getName().contains(".tmp")) {
+					file.delete();
+					continue;
+				}
+				String hash = null;
+				try {
+					hash = new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII);
+				} catch (IOException e) {
+					LOGGER.error("Failed to read cache entry " + file, e);
+				}
+				Entry entry = hash == null ? null : entries.get(hash);
+				if (entry == null) {
+					// left over by an interrupted write, or by content evicted before urls were counted
+					file.delete();
+					continue;
+				}
+				link(file.getName(), hash, entry);
+			}
+		}
+		LOGGER.info("Image cache at " + directory + ": " + entries.size() + " images, " + urls.size() + " urls, "
+				+ size / (1024 * 1024) + "MB");
+		evict();
+	}
+
+	/**
+	 * @return the shared cache, or null if imageCacheSize is 0 or another process uses imageCacheDir
+	 */
+	public static synchronized ImageCache getInstance() {
+		if (instance == null && !unavailable && Configuration.IMAGE_CACHE_SIZE > 0) {
+			try {
+				instance = new ImageCache(new File(Configuration.IMAGE_CACHE_DIR), Configuration.IMAGE_CACHE_SIZE * 1024L * 1024L);
+			} catch (IOException e) {
+				LOGGER.error("Image cache disabled: " + e.getMessage());
+				unavailable = true;
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * @return the hash of the content last fetched from the url, or null if it is not cached
+	 */
+	public String getHash(String url) {
+		String hash;
+		synchronized (this) {
+			hash = urls.get(hashUrl(url));
+		}
+		return hash != null && touch(hash) ? hash : null;
+	}
+
+	/**
+	 * @return the bytes of the image at the given url, or null if they are not cached
+	 */
+	public byte[] getBytes(String url) {
+		return getContent(getHash(url));
+	}
+
+	/**
+	 * @return the cached content with the given hash, or null if it is not cached
+	 */
+	public byte[] getContent(String hash) {
+		if (hash != null) {
+			try {
+				byte[] bytes = Files.readAllBytes(new File(contentDir, hash).toPath());
+				hits.incrementAndGet();
+				return bytes;
+			} catch (IOException e) {
+				// evicted concurrently
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Stores the bytes fetched from the given url.
+	 *
+	 * @return the hash of the content
+	 */
+	public String put(String url, byte[] bytes) {
+		String hash = hashContent(bytes);
+		String urlHash = hashUrl(url);
+		File contentFile = new File(contentDir, hash);
+		File urlFile = new File(urlsDir, urlHash);
+		File contentTmp = null, urlTmp = null;
+		try {
+			boolean cached;
+			synchronized (this) {
+				cached = entries.containsKey(hash);
+			}
+			if (!cached) {
+				contentTmp = writeTmp(contentFile, bytes);
+			}
+			urlTmp = writeTmp(urlFile, hash.getBytes(StandardCharsets.US_ASCII));
+
+			synchronized (this) {
+				Entry entry = entries.get(hash);
+				if (entry == null) {
+					// new, or evicted since it was checked
+					if (contentTmp == null) {
+						contentTmp = writeTmp(contentFile, bytes);
+					}
+					moveInPlace(contentTmp, contentFile);
+					contentTmp = null;
+					entry = new Entry();
+					entry.contentSize = bytes.length;
+					entries.put(hash, entry);
+					size += entry.contentSize;
+				}
+				moveInPlace(urlTmp, urlFile);
+				urlTmp = null;
+				link(urlHash, hash, entry);
+			}
+			evict();
+		} catch (IOException e) {
+			LOGGER.error("Failed to cache image of " + url, e);
+		} finally {
+			// written for content cached by another thread in the meantime, or not moved in place
+			if (contentTmp != null) {
+				contentTmp.delete();
+			}
+			if (urlTmp != null) {
+				urlTmp.delete();
+			}
+		}
+		return hash;
+	}
+
+	/**
+	 * @return the vector of the cached content with the given hash, or null if it has not been computed
+	 */
+	public double[] getVector(String hash) {
+		if (hash == null || !touch(hash)) {
+			return null;
+		}
+
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(new File(vectorsDir, hash).toPath()));
+			float[] vector = new float[buffer.remaining() / 4];
+			buffer.asFloatBuffer().get(vector);
+			vectorHits.incrementAndGet();
+			return VectorStore.toDoubles(vector);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return the vector of the image at the given url, or null if it is not cached
+	 */
+	public double[] getVectorOfUrl(String url) {
+		return getVector(getHash(url));
+	}
+
+	/**
+	 * Stores the vector of the cached content with the given hash. Vectors are kept as float32,
+	 * which is the precision of the visual index.
+	 */
+	public void putVector(String hash, double[] vector) {
+		if (hash == null || vector == null) {
+			return;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(4 * vector.length);
+		buffer.asFloatBuffer().put(VectorStore.toFloats(vector));
+		synchronized (this) {
+			if (!entries.containsKey(hash)) {
+				return;
+			}
+		}
+
+		File vectorFile = new File(vectorsDir, hash);
+		File vectorTmp = null;
+		try {
+			vectorTmp = writeTmp(vectorFile, buffer.array());
+			synchronized (this) {
+				Entry entry = entries.get(hash);
+				if (entry == null) {
+					// evicted while the vector was written
+					return;
+				}
+				moveInPlace(vectorTmp, vectorFile);
+				vectorTmp = null;
+				size += buffer.capacity() - entry.vectorSize;
+				entry.vectorSize = buffer.capacity();
+			}
+		} catch (IOException e) {
+			LOGGER.error("Failed to cache vector of " + hash, e);
+			return;
+		} finally {
+			if (vectorTmp != null) {
+				vectorTmp.delete();
+			}
+		}
+		evict();
+	}
+
+	public synchronized long size() {
+		return size;
+	}
+
+	public synchronized String stats() {
+		return "imageCache[images=" + entries.size() + ", urls=" + urls.size() + ", size=" + size() / (1024 * 1024) + "MB, hits=" + hits.get()
+				+ ", misses=" + misses.get() + ", vectorHits=" + vectorHits.get() + "]";
+	}
+
+	private boolean touch(String hash) {
+		synchronized (this) {
+			if (entries.get(hash) == null) {
+				return false;
+			}
+		}
+		new File(contentDir, hash).setLastModified(System.currentTimeMillis());
+		return true;
+	}
+
+	/**
+	 * Points the url entry to the given content, moving it from the content it pointed to before.
+	 * Called with the lock held.
+	 */
+	private void link(String urlHash, String hash, Entry entry) {
+		String previous = urls.put(urlHash, hash);
+		if (previous != null) {
+			Entry previousEntry = entries.get(previous);
+			if (previousEntry != null && previousEntry.urls.remove(urlHash)) {
+				size -= URL_ENTRY_SIZE;
+			}
+		}
+		if (entry.urls.add(urlHash)) {
+			size += URL_ENTRY_SIZE;
+		}
+	}
+
+	/**
+	 * Evicts the least recently used content until the size is within maxSize. The files are
+	 * deleted with the lock held, so that a put of the same content waits for them to be gone.
+	 */
+	private synchronized void evict() {
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		while (size > maxSize && it.hasNext()) {
+			Map.Entry<String, Entry> entry = it.next();
+			new File(contentDir, entry.getKey()).delete();
+			new File(vectorsDir, entry.getKey()).delete();
+			for (String urlHash : entry.getValue().urls) {
+				urls.remove(urlHash);
+				new File(urlsDir, urlHash).delete();
+			}
+			size -= entry.getValue().size();
+			it.remove();
+		}
+	}
+
+	/**
+	 * Writes the bytes to a temporary file next to the given one, to be moved in place with
+	 * {@link #moveInPlace(File, File)}.
+	 */
+	private static File writeTmp(File file, byte[] bytes) throws IOException {
+		File tmp = new File(file.getParentFile(), file.getName() + ".tmp" + Thread.currentThread().getId());
+		Files.write(tmp.toPath(), bytes);
+		return tmp;
+	}
+
+	private static void moveInPlace(File tmp, File file) throws IOException {
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	static String hashContent(byte[] bytes) {
+		return Hashing.sha1().hashBytes(bytes).toString();
+	}
+
+	private static String hashUrl(String url) {
+		return Hashing.sha1().hashString(url, StandardCharsets.UTF_8).toString();
+	}
+
+	/**
+	 * The files of a cached image.
+	 */
+	private static class Entry {
+
+		private long contentSize;
+		private long vectorSize;
+		private final Set<String> urls = new HashSet<String>(2);
+
+		long size() {
+			return contentSize + vectorSize + urls.size() * URL_ENTRY_SIZE;
+		}
+	}
+}
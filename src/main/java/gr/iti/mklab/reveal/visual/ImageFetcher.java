@@ -0,0 +1,241 @@
+package gr.iti.mklab.reveal.visual;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.log4j.Logger;
+
+import gr.iti.mklab.reveal.util.Configuration;
+import gr.iti.mklab.reveal.util.ImageUtils;
+
+/**
+ * Non-blocking fetcher of image content, shared by the indexing pipeline and the
+ * feature extractor. A few I/O threads multiplex all the downloads, so the number of
+ * concurrent downloads is bounded by fetchMaxInFlight (overall) and fetchMaxPerHost
+ * (per host) instead of the number of threads.
+ *
+ * Responses are checked as soon as their headers arrive: error codes, non-image content
+ * types and declared lengths outside the accepted range are rejected without reading the
+ * body. Bodies that grow beyond fetchMaxBytes are aborted while streaming.
+ */
+public class ImageFetcher {
+
+	private final static Logger LOGGER = Logger.getLogger(ImageFetcher.class);
+
+	private final static int BUFFER_SIZE = 8 * 1024;
+
+	private static ImageFetcher instance;
+
+	private final CloseableHttpAsyncClient client;
+	private final Semaphore inFlight;
+	private final int maxBytes;
+
+	public ImageFetcher(int maxInFlight, int maxPerHost, int maxBytes, int timeout) throws IOException {
+		IOReactorConfig reactorConfig = IOReactorConfig.custom()
+				.setIoThreadCount(Runtime.getRuntime().availableProcessors())
+				.setConnectTimeout(timeout)
+				.setSoTimeout(timeout)
+				.build();
+
+		PoolingNHttpClientConnectionManager cm = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(reactorConfig));
+		cm.setMaxTotal(maxInFlight);
+		cm.setDefaultMaxPerRoute(maxPerHost);
+
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setSocketTimeout(timeout)
+				.setConnectTimeout(timeout)
+				.setConnectionRequestTimeout(timeout)
+				.build();
+
+		this.client = HttpAsyncClients.custom()
+				.setConnectionManager(cm)
+				.setDefaultRequestConfig(requestConfig)
+				.build();
+		this.client.start();
+
+		this.inFlight = new Semaphore(maxInFlight);
+		this.maxBytes = maxBytes;
+	}
+
+	public static synchronized ImageFetcher getInstance() throws IOException {
+		if (instance == null) {
+			instance = new ImageFetcher(Configuration.FETCH_MAX_IN_FLIGHT, Configuration.FETCH_MAX_PER_HOST,
+					Configuration.FETCH_MAX_BYTES, Configuration.FETCH_TIMEOUT);
+		}
+		return instance;
+	}
+
+	/**
+	 * Starts the download of the given url. Blocks only while fetchMaxInFlight downloads are
+	 * already in progress.
+	 *
+	 * @param url the url of the image
+	 * @param strict if true, responses that are not images or are too small to be indexed are rejected
+	 * @return a future completed with the content, or exceptionally with an {@link ImageFetchException}
+	 * 	when the response is rejected
+	 */
+	public CompletableFuture<FetchedImage> fetch(String url, boolean strict) throws InterruptedException {
+		CompletableFuture<FetchedImage> future = new CompletableFuture<FetchedImage>();
+
+		inFlight.acquire();
+		try {
+			client.execute(HttpAsyncMethods.createGet(url.replaceAll(" ", "%20")), new ImageConsumer(url, strict),
+				new FutureCallback<FetchedImage>() {
+					@Override
+					public void completed(FetchedImage result) {
+						inFlight.release();
+						future.complete(result);
+					}
+
+					@Override
+					public void failed(Exception e) {
+						inFlight.release();
+						future.completeExceptionally(e);
+					}
+
+					@Override
+					public void cancelled() {
+						inFlight.release();
+						future.cancel(false);
+					}
+				});
+		}
+		catch (Exception e) {
+			inFlight.release();
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	public int inFlight() {
+		return Configuration.FETCH_MAX_IN_FLIGHT - inFlight.availablePermits();
+	}
+
+	public void close() {
+		try {
+			client.close();
+		} catch (IOException e) {
+			LOGGER.error("Failed to close image fetcher", e);
+		}
+	}
+
+	private class ImageConsumer extends AbstractAsyncResponseConsumer<FetchedImage> {
+
+		private final String url;
+		private final boolean strict;
+
+		private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		private ByteArrayOutputStream content;
+		private String contentType;
+
+		public ImageConsumer(String url, boolean strict) {
+			this.url = url;
+			this.strict = strict;
+		}
+
+		@Override
+		protected void onResponseReceived(HttpResponse response) throws IOException {
+			int code = response.getStatusLine().getStatusCode();
+			if (code < 200 || code >= 300) {
+				throw new ImageFetchException(ImageFetchException.Reason.HTTP_STATUS,
+						"Http code " + code + " (" + response.getStatusLine().getReasonPhrase() + ") for " + url);
+			}
+		}
+
+		@Override
+		protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) throws IOException {
+			this.contentType = entity.getContentType() == null ? null : entity.getContentType().getValue();
+
+			long length = entity.getContentLength();
+			if (strict && !ImageUtils.checkContentType(this.contentType)) {
+				throw new ImageFetchException(ImageFetchException.Reason.CONTENT_TYPE, "Content type " + this.contentType + " of " + url);
+			}
+			if (strict && length >= 0 && !ImageUtils.checkContentLength(length)) {
+				throw new ImageFetchException(ImageFetchException.Reason.TOO_SMALL, "Content length " + length + " of " + url);
+			}
+			if (length > maxBytes) {
+				throw new ImageFetchException(ImageFetchException.Reason.TOO_LARGE, "Content length " + length + " of " + url);
+			}
+
+			content = new ByteArrayOutputStream(length > 0 ? (int) length : BUFFER_SIZE);
+		}
+
+		@Override
+		protected void onContentReceived(ContentDecoder decoder, IOControl ioctrl) throws IOException {
+			int read;
+			while ((read = decoder.read(buffer)) > 0) {
+				if (content.size() + read > maxBytes) {
+					throw new ImageFetchException(ImageFetchException.Reason.TOO_LARGE, "Content of " + url + " exceeds " + maxBytes + " bytes");
+				}
+				content.write(buffer.array(), 0, read);
+				buffer.clear();
+			}
+		}
+
+		@Override
+		protected FetchedImage buildResult(HttpContext context) throws Exception {
+			byte[] bytes = content == null ? new byte[0] : content.toByteArray();
+			if (strict && !ImageUtils.checkContentHeaders(bytes.length, contentType == null ? "" : contentType)) {
+				throw new ImageFetchException(ImageFetchException.Reason.TOO_SMALL, "Content of " + url + ": " + bytes.length + " bytes, type " + contentType);
+			}
+			return new FetchedImage(url, bytes, contentType);
+		}
+
+		@Override
+		protected void releaseResources() {
+			content = null;
+		}
+	}
+
+	public static class FetchedImage {
+
+		public final String url;
+		public final byte[] content;
+		public final String contentType;
+
+		public FetchedImage(String url, byte[] content, String contentType) {
+			this.url = url;
+			this.content = content;
+			this.contentType = contentType;
+		}
+	}
+
+	/**
+	 * Thrown when a response is rejected before or while its body is read.
+	 */
+	public static class ImageFetchException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		public enum Reason {HTTP_STATUS, CONTENT_TYPE, TOO_SMALL, TOO_LARGE}
+
+		private final Reason reason;
+
+		public ImageFetchException(Reason reason, String message) {
+			super(message);
+			this.reason = reason;
+		}
+
+		public Reason getReason() {
+			return reason;
+		}
+	}
+}
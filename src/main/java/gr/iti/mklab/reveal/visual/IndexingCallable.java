@@ -1,29 +1,18 @@
 package gr.iti.mklab.reveal.visual;
 
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.InputStream;
+import java.io.IOException;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.atomic.AtomicLong;
 
-import javax.imageio.ImageIO;
-
-import org.apache.commons.io.IOUtils;
-import org.apache.http.Header;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.StatusLine;
-import org.apache.http.client.config.RequestConfig;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
-import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import gr.iti.mklab.reveal.util.DisturbingDetectorClient;
 import gr.iti.mklab.reveal.util.ImageUtils;
+import gr.iti.mklab.reveal.visual.ImageFetcher.ImageFetchException;
 import gr.iti.mklab.simmo.core.items.Image;
 import gr.iti.mklab.simmo.core.items.Media;
 import gr.iti.mklab.simmo.core.items.Video;
@@ -38,28 +27,22 @@ public class IndexingCallable implements Callable<IndexingResult> {
 	private String collection;
 	
     private static Logger _logger = LoggerFactory.getLogger(IndexingCallable.class);
-    private static CloseableHttpClient _httpclient;
-    private static RequestConfig _requestConfig;
     
     private static AtomicLong received = new AtomicLong(0L);
     private static AtomicLong smallImages = new AtomicLong(0L);
+    private static AtomicLong largeImages = new AtomicLong(0L);
     private static AtomicLong failedFecthes = new AtomicLong(0L);
     private static AtomicLong failedFeatures = new AtomicLong(0L);
-    
-    static {
-    	 PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager();
-    	 cm.setMaxTotal(50);
-    	 cm.setDefaultMaxPerRoute(20);
-    	 
-    	 _httpclient = HttpClients.custom()
-                 .setConnectionManager(cm)
-                 .build();
-    	 
-    	 _requestConfig = RequestConfig.custom()
-                 .setSocketTimeout(30000)
-                 .setConnectTimeout(30000)
-                 .build();
-    }
+	
+	private String url;
+	private String type;
+	private byte[] imageContent;
+	private String contentHash;
+	private BufferedImage image;
+	// the vector of the content found in the cache, in which case it is not decoded
+	private double[] cachedVector;
+	// the content can never be indexed, e.g. it is not an image or its size is out of bounds
+	private volatile boolean rejected = false;
 	
 	public IndexingCallable(Media media, String collection) {
 		this.media = media;
@@ -78,109 +61,228 @@ public class IndexingCallable implements Callable<IndexingResult> {
 		}
 	}
 	
+	public Media getMedia() {
+		return media;
+	}
+	
+	/**
+	 * @return true if the item failed for a reason that retrying would not change
+	 */
+	public boolean isRejected() {
+		return rejected;
+	}
+	
+	/**
+	 * Runs all the indexing steps of the media item in the calling thread.
+	 */
 	public double[] process() {
-        HttpGet httpget = null;
-        try {
-        	
-        	received.incrementAndGet();
-        	
-            String id = media.getId();
-            String type = null;
-            String url = null;
-            if (media instanceof Image) {
-                url = media.getUrl();
-                type = "image";
-            }
-            else if (media instanceof Video) {
-                url = ((Video) media).getThumbnail();
-                type = "video";
-            }
-            else {
-            	_logger.error("Unknown instance of " + id);
-            }
-            
-            if(url == null) {
-            	_logger.error("Url is null for " + id);
-            	return null;
-            }
-            
-            httpget = new HttpGet(url.replaceAll(" ", "%20"));
-            httpget.setConfig(_requestConfig);
-            
-            HttpResponse response = _httpclient.execute(httpget);
-            StatusLine status = response.getStatusLine();
-            int code = status.getStatusCode();
-            HttpEntity entity = response.getEntity();
-            
-            if (code < 200 || code >= 300) {
-                _logger.error("Failed fetch media item " + id + ". URL=" + url + ". Http code: " + code + " Error: " + status.getReasonPhrase());
-                EntityUtils.consumeQuietly(entity);
-                failedFecthes.incrementAndGet();
-                return null;
-            }
-            
-            if (entity == null) {
-                _logger.error("Entity is null for " + id + ". URL=" + url +". Http code: " + code + " Error: " + status.getReasonPhrase());
-                EntityUtils.consumeQuietly(entity);
-                failedFecthes.incrementAndGet();
-                return null;
-            }
-            
-            InputStream input = entity.getContent();
-            Header contentType = entity.getContentType();
-            byte[] imageContent = IOUtils.toByteArray(input);
-            if(!ImageUtils.checkContentHeaders(imageContent.length, contentType.getValue())) {
-            	_logger.error("Checking content and content type failed for id=" + id + ". Content:" + imageContent.length + " bytes, type:" + contentType.getValue());
-            	smallImages.incrementAndGet();
-            	return null;
-            }
-            
-            BufferedImage image = ImageIO.read(new ByteArrayInputStream(imageContent));
-            if (ImageUtils.checkImage(image) || (media instanceof Video)) {
-                int width = image.getWidth();
-                int height = image.getHeight();
-            	ImageVectorization imvec = new ImageVectorization(id, image, targetLengthMax, maxNumPixels);
-                if (media instanceof Image) {
-                    ((Image) media).setWidth(width);
-                    ((Image) media).setHeight(height);
-                } 
-                else if (media instanceof Video) {
-                    ((Video) media).setWidth(width);
-                    ((Video) media).setHeight(height);
-                }
-                
-                ImageVectorizationResult imvr = imvec.call();
-               
-                double[] vector = imvr.getImageVector();
-                if (vector == null || vector.length == 0) {
-                    _logger.error("Error in feature extraction for " + id);
-                    failedFeatures.incrementAndGet();
-                    return null;
-                }
-                
-                try {
-                	DisturbingDetectorClient.detect(url, imageContent, collection, id, type);
-                }
-                catch(Exception e) {
-                	_logger.error("Exception in disturbing detector call for id=" + id + ", url=" + url + ", collection=" + collection, e);
-                }
-                
-                return vector;
-            }
-        } 
-        catch (Exception e) {
-            _logger.error(e.getMessage());
-        } 
-        finally {
-            if (httpget != null) {
-                httpget.abort();
-            }
-        }
+		if (fetch() && decode()) {
+			return vectorize();
+		}
 		return null;
+	}
+	
+	/**
+	 * Fetches the content of the image (or the thumbnail of the video) in the calling thread.
+	 * 
+	 * @return true if the content is fetched and looks like an image of acceptable size 
+	 */
+	public boolean fetch() {
+		try {
+			return fetchAsync().get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch (Exception e) {
+			_logger.error(e.getMessage());
+		}
+		return false;
+	}
+	
+	/**
+	 * Starts fetching the content of the image (or the thumbnail of the video) through the
+	 * shared {@link ImageFetcher}. Network bound, but no thread waits for the download.
+	 * 
+	 * @return a future completed with true if the content is fetched and looks like an image 
+	 * of acceptable size
+	 */
+	public CompletableFuture<Boolean> fetchAsync() throws InterruptedException {
+		received.incrementAndGet();
+		
+		String id = media.getId();
+		if (media instanceof Image) {
+			url = media.getUrl();
+			type = "image";
+		}
+		else if (media instanceof Video) {
+			url = ((Video) media).getThumbnail();
+			type = "video";
+		}
+		else {
+			_logger.error("Unknown instance of " + id);
+		}
+		
+		if(url == null) {
+			_logger.error("Url is null for " + id);
+			rejected = true;
+			return CompletableFuture.completedFuture(false);
+		}
+		
+		ImageCache cache = ImageCache.getInstance();
+		if (cache != null) {
+			contentHash = cache.getHash(url);
+			imageContent = cache.getContent(contentHash);
+			if (imageContent != null) {
+				return CompletableFuture.completedFuture(true);
+			}
+			contentHash = null;
+		}
+		
+		ImageFetcher fetcher;
+		try {
+			fetcher = ImageFetcher.getInstance();
+		}
+		catch (IOException e) {
+			_logger.error("Failed to start image fetcher: " + e.getMessage());
+			failedFecthes.incrementAndGet();
+			return CompletableFuture.completedFuture(false);
+		}
+		
+		return fetcher.fetch(url, true).handle((fetched, e) -> {
+			if (e == null) {
+				imageContent = fetched.content;
+				return true;
+			}
+			
+			Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+			if (cause instanceof ImageFetchException && ((ImageFetchException) cause).getReason() != ImageFetchException.Reason.HTTP_STATUS) {
+				_logger.error("Checking content and content type failed for id=" + id + ". " + cause.getMessage());
+				smallImages.incrementAndGet();
+				rejected = true;
+			}
+			else {
+				_logger.error("Failed fetch media item " + id + ". URL=" + url + ". " + (cause == null ? "cancelled" : cause.getMessage()));
+				failedFecthes.incrementAndGet();
+			}
+			imageContent = null;
+			return false;
+		});
     }
+	
+	/**
+	 * Decodes the fetched content. CPU bound. The dimensions are read from the header first, so
+	 * small (or suspiciously large) images are rejected without being decoded, and the rest are 
+	 * decoded subsampled close to the pixel budget of the vectorizer. Content whose vector is
+	 * cached is not decoded at all.
+	 * 
+	 * @return true if the image is decoded and is big enough to be indexed
+	 */
+	public boolean decode() {
+		try {
+			int[] dimensions = ImageUtils.getDimensions(imageContent);
+			if (dimensions == null) {
+				_logger.error("Unknown image format for " + media.getId());
+				failedFeatures.incrementAndGet();
+				rejected = true;
+			}
+			else if (ImageUtils.isImageTooLarge(dimensions[0], dimensions[1])) {
+				_logger.error("Image " + media.getId() + " is too large: " + dimensions[0] + "x" + dimensions[1]);
+				largeImages.incrementAndGet();
+				rejected = true;
+			}
+			else if (!ImageUtils.isImageBigEnough(dimensions[0], dimensions[1]) && !(media instanceof Video)) {
+				smallImages.incrementAndGet();
+				rejected = true;
+			}
+			else {
+				ImageCache cache = ImageCache.getInstance();
+				if (cache != null) {
+					cachedVector = cache.getVector(contentHash != null ? contentHash : ImageCache.hashContent(imageContent));
+				}
+				if (cachedVector == null && (image = ImageUtils.decode(imageContent, maxNumPixels)) == null) {
+					failedFeatures.incrementAndGet();
+					rejected = true;
+					image = null;
+					imageContent = null;
+					return false;
+				}
+				if (cache != null && contentHash == null) {
+					contentHash = cache.put(url, imageContent);
+				}
+				
+				int width = dimensions[0];
+				int height = dimensions[1];
+				if (media instanceof Image) {
+					((Image) media).setWidth(width);
+					((Image) media).setHeight(height);
+				} 
+				else if (media instanceof Video) {
+					((Video) media).setWidth(width);
+					((Video) media).setHeight(height);
+				}
+				return true;
+			}
+		}
+		catch (Exception e) {
+			_logger.error("Failed to decode " + media.getId() + ": " + e.getMessage());
+			failedFeatures.incrementAndGet();
+		}
+		
+		image = null;
+		imageContent = null;
+		return false;
+	}
+	
+	/**
+	 * Extracts the visual vector of the decoded image, unless it was found in the cache. CPU bound.
+	 * 
+	 * @return the vector or null if the feature extraction failed
+	 */
+	public double[] vectorize() {
+		String id = media.getId();
+		try {
+			ImageCache cache = ImageCache.getInstance();
+			double[] vector = cachedVector;
+			if (vector == null) {
+				ImageVectorization imvec = new ImageVectorization(id, image, targetLengthMax, maxNumPixels);
+				ImageVectorizationResult imvr = imvec.call();
+
+				vector = imvr.getImageVector();
+				if (vector == null || vector.length == 0) {
+					_logger.error("Error in feature extraction for " + id);
+					failedFeatures.incrementAndGet();
+					return null;
+				}
+				
+				if (cache != null) {
+					cache.putVector(contentHash, vector);
+				}
+			}
+
+			try {
+				DisturbingDetectorClient.detect(url, imageContent, collection, id, type);
+			}
+			catch(Exception e) {
+				_logger.error("Exception in disturbing detector call for id=" + id + ", url=" + url + ", collection=" + collection, e);
+			}
+
+			return vector;
+		}
+		catch (Exception e) {
+			_logger.error(e.getMessage());
+			failedFeatures.incrementAndGet();
+		}
+		finally {
+			image = null;
+			imageContent = null;
+			cachedVector = null;
+		}
+		return null;
+	}
 
 	public static String stats() {
-		return received.get() + " images received for indexing. " + smallImages.get() + " failed to index due to small size. " + failedFecthes.get() + " failed to be fetched. " 
+		return received.get() + " images received for indexing. " + smallImages.get() + " failed to index due to small size. " + largeImages.get() + " were too large. " + failedFecthes.get() + " failed to be fetched. " 
 				+ failedFeatures.get() + " images failed to be processed.";
 	}
 }
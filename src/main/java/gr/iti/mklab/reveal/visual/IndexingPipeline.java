@@ -0,0 +1,547 @@
+package gr.iti.mklab.reveal.visual;
+
+import gr.iti.mklab.reveal.util.Configuration;
+import gr.iti.mklab.reveal.util.LatencyHistogram;
+import gr.iti.mklab.simmo.core.items.Media;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A staged indexing pipeline. Media items pass through bounded queues between the fetch,
+ * decode, vectorize, index and annotate stages, each served by its own pool of threads,
+ * so that network bound and CPU bound work overlap continuously. A full queue blocks the
+ * previous stage, and {@link #submit(Media)} blocks when the fetch queue is full.
+ *
+ * Vectors are sent to the visual index in batches. The annotate stage persists the outcome
+ * of the items in batches too, through the callbacks supplied by the owner of the pipeline,
+ * and then completes the future returned by {@link #submit(Media)} for each item.
+ *
+ * The fetch stage does not hold a thread per download: images are downloaded by the shared
+ * non-blocking {@link ImageFetcher} and handed over to the decode stage on arrival.
+ *
+ * The service time of each stage and the end-to-end latency of each item are kept in
+ * {@link LatencyHistogram}s and reported by {@link #stats()}.
+ */
+public class IndexingPipeline {
+
+	private final static Logger LOGGER = Logger.getLogger(IndexingPipeline.class);
+
+	private final static long BATCH_WAIT = 500;	// milliseconds to wait for an index batch to fill up
+	private final static int FETCH_HANDOFF_THREADS = 2;
+
+	private final String collection;
+	private final VisualIndexClient vIndexClient;
+	private final VectorStore vectorStore;
+
+	private final Function<List<Media>, Set<String>> onIndexed;
+	private final Consumer<List<Media>> onFailed;
+	private final Consumer<List<Media>> onRejected;
+
+	private final Stage fetchStage;
+	private final Stage decodeStage;
+	private final Stage vectorizeStage;
+	private final Stage indexStage;
+	private final Stage annotateStage;
+
+	private final Semaphore fetchPermits = new Semaphore(Configuration.FETCH_MAX_IN_FLIGHT);
+	private final ExecutorService fetchHandoff = Executors.newFixedThreadPool(FETCH_HANDOFF_THREADS);
+
+	private final LatencyHistogram itemLatency = new LatencyHistogram();
+
+	private final AtomicInteger inFlight = new AtomicInteger(0);
+	private final Object idleMonitor = new Object();
+
+	/**
+	 * @param onIndexed called with batches of indexed items. Returns the ids of the items that were persisted.
+	 * @param onFailed called with batches of items that failed in any of the stages.
+	 * @param onRejected called with batches of items that failed for a reason that retrying
+	 * would not change, e.g. content that is not an image or is too small or too large.
+	 */
+	public IndexingPipeline(String collection, VisualIndexClient vIndexClient, VectorStore vectorStore,
+			Function<List<Media>, Set<String>> onIndexed, Consumer<List<Media>> onFailed, Consumer<List<Media>> onRejected) {
+
+		this.collection = collection;
+		this.vIndexClient = vIndexClient;
+		this.vectorStore = vectorStore;
+		this.onIndexed = onIndexed;
+		this.onFailed = onFailed;
+		this.onRejected = onRejected;
+
+		int queueSize = Configuration.INDEXING_QUEUE_SIZE;
+		int batchSize = Configuration.INDEXING_BATCH_SIZE;
+		int writeBatchSize = Configuration.INDEXING_WRITE_BATCH_SIZE;
+
+		fetchStage = new Stage("fetch", Configuration.INDEXING_FETCH_THREADS, queueSize);
+		decodeStage = new Stage("decode", Configuration.INDEXING_DECODE_THREADS, queueSize);
+		vectorizeStage = new Stage("vectorize", Configuration.INDEXING_VECTORIZE_THREADS, queueSize);
+		indexStage = new Stage("index", 1, Math.max(queueSize, 2 * batchSize));
+		annotateStage = new Stage("annotate", Configuration.INDEXING_ANNOTATE_THREADS, queueSize + Math.max(batchSize, writeBatchSize));
+
+		fetchStage.start(this::fetch);
+		decodeStage.start(this::decode);
+		vectorizeStage.start(this::vectorize);
+		indexStage.startBatched(batchSize, this::index);
+		annotateStage.startBatched(writeBatchSize, this::annotate);
+
+		LOGGER.info("Indexing pipeline started for " + collection + ": " + stats());
+	}
+
+	/**
+	 * Submits a media item for indexing. Blocks while the fetch queue is full.
+	 *
+	 * @return a future completed when the item leaves the pipeline. The vector of the result
+	 * is null if the item failed to be indexed.
+	 */
+	public CompletableFuture<IndexingResult> submit(Media media) throws InterruptedException {
+		Item item = new Item(new IndexingCallable(media, collection));
+		inFlight.incrementAndGet();
+		try {
+			fetchStage.put(item);
+		}
+		catch (InterruptedException e) {
+			done();
+			throw e;
+		}
+		return item.future;
+	}
+
+	/**
+	 * @return the number of submitted items that have not completed the annotate stage yet.
+	 */
+	public int inFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * Waits until all the submitted items are processed, or until the timeout expires.
+	 *
+	 * @return true if the pipeline is idle
+	 */
+	public boolean awaitIdle(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized (idleMonitor) {
+			long remaining = timeout;
+			while (inFlight.get() > 0 && remaining > 0) {
+				idleMonitor.wait(remaining);
+				remaining = deadline - System.currentTimeMillis();
+			}
+		}
+		return inFlight.get() == 0;
+	}
+
+	/**
+	 * Stops all the stages. Items still in the pipeline are not annotated, so they will
+	 * be picked up again the next time the collection is indexed. Their futures complete
+	 * with a null vector.
+	 */
+	public void stop() {
+		List<Stage> stages = new ArrayList<Stage>();
+		stages.add(fetchStage);
+		stages.add(decodeStage);
+		stages.add(vectorizeStage);
+		stages.add(indexStage);
+		stages.add(annotateStage);
+
+		for (Stage stage : stages) {
+			stage.executor.shutdownNow();
+		}
+		fetchHandoff.shutdownNow();
+		try {
+			for (Stage stage : stages) {
+				if (!stage.executor.awaitTermination(60, TimeUnit.SECONDS)) {
+					LOGGER.error("Indexing pipeline stage " + stage.name + " did not terminate for " + collection);
+				}
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+
+		// complete the futures of the items left in the queues
+		for (Stage stage : stages) {
+			List<Item> left = new ArrayList<Item>();
+			stage.queue.drainTo(left);
+			for (Item item : left) {
+				drop(item);
+			}
+		}
+	}
+
+	/**
+	 * @return the end-to-end latency of the items, from submission to annotation.
+	 */
+	public LatencyHistogram getItemLatency() {
+		return itemLatency;
+	}
+
+	/**
+	 * @return thread counts, queue depths, counters and service times of each stage.
+	 */
+	public String stats() {
+		return fetchStage.stats() + " downloads=" + (Configuration.FETCH_MAX_IN_FLIGHT - fetchPermits.availablePermits())
+				+ " " + decodeStage.stats() + " " + vectorizeStage.stats() + " "
+				+ indexStage.stats() + " " + annotateStage.stats() + " inFlight=" + inFlight.get()
+				+ " latency[" + itemLatency + "]";
+	}
+
+	/**
+	 * Only starts the download. The item is handed to the decode stage by the fetch handoff
+	 * threads once its content arrives, so a few fetch threads keep fetchMaxInFlight downloads
+	 * busy. A permit is held until the item leaves the fetch stage, which bounds the number of
+	 * downloaded images waiting for a slot in the decode queue.
+	 */
+	private void fetch(Item item) throws InterruptedException {
+		fetchPermits.acquire();
+		long start = System.nanoTime();
+
+		CompletableFuture<Boolean> fetched;
+		try {
+			fetched = item.task.fetchAsync();
+		}
+		catch (Exception e) {
+			fetchPermits.release();
+			throw e;
+		}
+
+		fetched.whenCompleteAsync((success, e) -> handOff(item, start, e == null && success), fetchHandoff)
+				.whenComplete((v, e) -> {
+					if (e != null) {
+						// the handoff threads are stopped, so the handoff never ran
+						fetchPermits.release();
+						drop(item);
+					}
+				});
+	}
+
+	/**
+	 * Runs in the fetch handoff threads. Never throws, so the permit is released exactly once.
+	 */
+	private void handOff(Item item, long start, boolean success) {
+		fetchStage.latency.recordSince(start);
+		try {
+			if (success) {
+				fetchStage.processed.incrementAndGet();
+				decodeStage.put(item);
+			}
+			else {
+				fail(fetchStage, item);
+			}
+		}
+		catch (InterruptedException ie) {
+			drop(item);
+			Thread.currentThread().interrupt();
+		}
+		catch (Exception e) {
+			LOGGER.error("Exception in fetch stage of " + collection, e);
+			drop(item);
+		}
+		finally {
+			fetchPermits.release();
+		}
+	}
+
+	private void decode(Item item) throws InterruptedException {
+		long start = System.nanoTime();
+		boolean decoded = item.task.decode();
+		decodeStage.latency.recordSince(start);
+
+		if (decoded) {
+			decodeStage.processed.incrementAndGet();
+			vectorizeStage.put(item);
+		}
+		else {
+			fail(decodeStage, item);
+		}
+	}
+
+	private void vectorize(Item item) throws InterruptedException {
+		long start = System.nanoTime();
+		item.vector = item.task.vectorize();
+		vectorizeStage.latency.recordSince(start);
+
+		if (item.vector != null && item.vector.length > 0) {
+			vectorizeStage.processed.incrementAndGet();
+			indexStage.put(item);
+		}
+		else {
+			fail(vectorizeStage, item);
+		}
+	}
+
+	private void index(List<Item> batch) throws InterruptedException {
+		long start = System.nanoTime();
+
+		Map<String, double[]> vectors = new LinkedHashMap<String, double[]>();
+		for (Item item : batch) {
+			vectors.put(item.getMedia().getId(), item.vector);
+		}
+
+		Set<String> indexed = vIndexClient.indexBatch(vectors);
+		for (Item item : batch) {
+			Media media = item.getMedia();
+			if (!indexed.contains(media.getId())) {
+				LOGGER.info("Failed to index " + media.getId() + ". This will be deleted!");
+				fail(indexStage, item);
+				continue;
+			}
+
+			if (vectorStore != null) {
+				try {
+					vectorStore.put(media.getId(), item.vector);
+				} catch (Exception e) {
+					LOGGER.error("Failed to store vector of " + media.getId() + " locally for " + collection, e);
+				}
+			}
+
+			item.indexed = true;
+			indexStage.processed.incrementAndGet();
+			annotateStage.put(item);
+		}
+
+		// the service time of the index stage is measured per batch
+		indexStage.latency.recordSince(start);
+	}
+
+	private void annotate(List<Item> batch) {
+		long start = System.nanoTime();
+
+		List<Media> indexed = new ArrayList<Media>(batch.size());
+		List<Media> failed = new ArrayList<Media>();
+		List<Media> rejected = new ArrayList<Media>();
+		for (Item item : batch) {
+			(item.indexed ? indexed : item.task.isRejected() ? rejected : failed).add(item.getMedia());
+		}
+
+		Set<String> annotated = Collections.emptySet();
+		try {
+			if (!failed.isEmpty()) {
+				onFailed.accept(failed);
+			}
+			if (!rejected.isEmpty()) {
+				onRejected.accept(rejected);
+			}
+			if (!indexed.isEmpty()) {
+				annotated = onIndexed.apply(indexed);
+			}
+		}
+		catch (Exception e) {
+			LOGGER.error("Exception during annotation of " + batch.size() + " items in " + collection, e);
+		}
+		finally {
+			// the service time of the annotate stage is measured per batch
+			annotateStage.latency.recordSince(start);
+			for (Item item : batch) {
+				boolean success = item.indexed && annotated.contains(item.getMedia().getId());
+				if (success) {
+					annotateStage.processed.incrementAndGet();
+				}
+				else if (item.indexed) {
+					annotateStage.failed.incrementAndGet();
+				}
+
+				if (item.future.complete(new IndexingResult(item.getMedia(), success ? item.vector : null))) {
+					itemLatency.recordSince(item.submitted);
+					done();
+				}
+			}
+		}
+	}
+
+	private void fail(Stage stage, Item item) throws InterruptedException {
+		stage.failed.incrementAndGet();
+		item.indexed = false;
+		annotateStage.put(item);
+	}
+
+	/**
+	 * Called when a stage throws while it holds the item. The item goes on to the annotate stage
+	 * as failed, or leaves the pipeline at once if the annotate stage itself threw.
+	 */
+	private void abandon(Stage stage, Item item) {
+		if (stage == annotateStage) {
+			stage.failed.incrementAndGet();
+			drop(item);
+			return;
+		}
+		try {
+			fail(stage, item);
+		}
+		catch (InterruptedException e) {
+			drop(item);
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Completes the item without annotating it, when it cannot reach the annotate stage. It is
+	 * picked up again the next time the collection is indexed.
+	 */
+	private void drop(Item item) {
+		if (item.future.complete(new IndexingResult(item.getMedia(), null))) {
+			done();
+		}
+	}
+
+	private void done() {
+		if (inFlight.decrementAndGet() <= 0) {
+			synchronized (idleMonitor) {
+				idleMonitor.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * The state of a media item while it moves through the stages.
+	 */
+	private static class Item {
+
+		private final IndexingCallable task;
+		private final CompletableFuture<IndexingResult> future = new CompletableFuture<IndexingResult>();
+		private final long submitted = System.nanoTime();
+
+		private double[] vector;
+		private boolean indexed = false;
+
+		// the stage whose queue the item was last put in, which owns it until it is handed on
+		private volatile Stage stage;
+
+		Item(IndexingCallable task) {
+			this.task = task;
+		}
+
+		Media getMedia() {
+			return task.getMedia();
+		}
+	}
+
+	private interface Worker<T> {
+		void process(T item) throws InterruptedException;
+	}
+
+	/**
+	 * A bounded input queue served by a fixed number of threads.
+	 */
+	private class Stage {
+
+		private final String name;
+		private final int threads;
+		private final int capacity;
+
+		private final BlockingQueue<Item> queue;
+		private final ExecutorService executor;
+
+		private final AtomicLong processed = new AtomicLong(0L);
+		private final AtomicLong failed = new AtomicLong(0L);
+		private final LatencyHistogram latency = new LatencyHistogram();
+
+		Stage(String name, int threads, int capacity) {
+			this.name = name;
+			this.threads = Math.max(1, threads);
+			this.capacity = Math.max(1, capacity);
+			this.queue = new ArrayBlockingQueue<Item>(this.capacity);
+			this.executor = Executors.newFixedThreadPool(this.threads);
+		}
+
+		void put(Item item) throws InterruptedException {
+			item.stage = this;
+			queue.put(item);
+		}
+
+		void start(Worker<Item> worker) {
+			for (int i = 0; i < threads; i++) {
+				executor.submit(() -> {
+					while (!Thread.currentThread().isInterrupted()) {
+						Item item = null;
+						try {
+							item = queue.take();
+							worker.process(item);
+						}
+						catch (InterruptedException e) {
+							release(item, IndexingPipeline.this::drop);
+							return;
+						}
+						catch (Exception e) {
+							LOGGER.error("Exception in " + name + " stage of " + collection, e);
+							release(item, held -> abandon(this, held));
+						}
+					}
+				});
+			}
+		}
+
+		void startBatched(int batchSize, Worker<List<Item>> worker) {
+			for (int i = 0; i < threads; i++) {
+				executor.submit(() -> {
+					while (!Thread.currentThread().isInterrupted()) {
+						List<Item> batch = new ArrayList<Item>(batchSize);
+						try {
+							batch.add(queue.take());
+
+							long deadline = System.currentTimeMillis() + BATCH_WAIT;
+							while (batch.size() < batchSize) {
+								queue.drainTo(batch, batchSize - batch.size());
+								long remaining = deadline - System.currentTimeMillis();
+								if (batch.size() >= batchSize || remaining <= 0) {
+									break;
+								}
+
+								Item next = queue.poll(remaining, TimeUnit.MILLISECONDS);
+								if (next == null) {
+									break;
+								}
+								batch.add(next);
+							}
+
+							worker.process(batch);
+						}
+						catch (InterruptedException e) {
+							for (Item item : batch) {
+								release(item, IndexingPipeline.this::drop);
+							}
+							return;
+						}
+						catch (Exception e) {
+							LOGGER.error("Exception in " + name + " stage of " + collection + " for a batch of " + batch.size() + " items", e);
+							for (Item item : batch) {
+								release(item, held -> abandon(this, held));
+							}
+						}
+					}
+				});
+			}
+		}
+
+		/**
+		 * Hands an item that this stage still owns to the given action. Items the stage already
+		 * put in the next queue are left alone.
+		 */
+		private void release(Item item, Consumer<Item> action) {
+			if (item != null && item.stage == this) {
+				action.accept(item);
+			}
+		}
+
+		String stats() {
+			return name + "[threads=" + threads + ", queue=" + queue.size() + "/" + capacity
+					+ ", processed=" + processed.get() + ", failed=" + failed.get()
+					+ ", p50=" + latency.getPercentile(50) / 1000 + "ms, p99=" + latency.getPercentile(99) / 1000 + "ms]";
+		}
+	}
+}
@@ -0,0 +1,315 @@
+package gr.iti.mklab.reveal.visual;
+
+import gr.iti.mklab.simmo.core.annotations.lowleveldescriptors.LocalDescriptors;
+import gr.iti.mklab.simmo.core.items.Media;
+import gr.iti.mklab.simmo.core.morphia.MediaDAO;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * Keeps the visual indexing state of the media items of a collection in mongodb, in a
+ * vIndexing sub-document of each item: the state (pending, in flight, indexed or failed),
+ * the number of attempts and the lease of the worker that processes the item.
+ *
+ * Workers claim pending items with a lease. Items whose lease expires (e.g. because the
+ * worker died) are claimed again, and failed items are retried after the lease of their
+ * last attempt expires, until maxAttempts is reached. Rejected items, whose content can never
+ * be indexed, are given up at once. As the state lives in mongodb, restarts do not re-attempt
+ * finished items and several workers can index the same collection without processing an
+ * item twice. A worker only remembers the lease tokens of the items it holds, so that it does
+ * not record the outcome of an item that was claimed again by another worker.
+ *
+ * Items without a vIndexing field are pending, unless they already carry the visual
+ * descriptors annotation. They are matched as items with a null state, which the state index
+ * covers, so that claiming does not scan the collection. The items annotated before the state
+ * was kept are moved to the indexed state once, when the state index is created.
+ */
+public class IndexingStateStore {
+
+	private final static Logger LOGGER = Logger.getLogger(IndexingStateStore.class);
+
+	public enum State {PENDING, IN_FLIGHT, INDEXED, FAILED}
+
+	public final static String FIELD = "vIndexing";
+	public final static String STATE = FIELD + ".state";
+	public final static String ATTEMPTS = FIELD + ".attempts";
+	public final static String LEASE_OWNER = FIELD + ".leaseOwner";
+	public final static String LEASE_TOKEN = FIELD + ".leaseToken";
+	public final static String LEASE_UNTIL = FIELD + ".leaseUntil";
+
+	private final static String ANNOTATION_CLASS = "annotations.className";
+
+	private final DBCollection collection;
+	private final String workerId;
+	private final long lease;
+	private final int maxAttempts;
+
+	// id -> lease token of the items this worker holds
+	private final Map<String, String> tokens = new ConcurrentHashMap<String, String>();
+
+	/**
+	 * @param dao the DAO of the media items
+	 * @param workerId a unique id of the indexing worker
+	 * @param lease milliseconds an item stays claimed without being renewed
+	 * @param maxAttempts attempts before a failed item is given up
+	 */
+	public IndexingStateStore(MediaDAO<? extends Media> dao, String workerId, long lease, int maxAttempts) {
+		this(dao.getCollection(), workerId, lease, maxAttempts);
+	}
+
+	IndexingStateStore(DBCollection collection, String workerId, long lease, int maxAttempts) {
+		this.collection = collection;
+		this.workerId = workerId;
+		this.lease = lease;
+		this.maxAttempts = maxAttempts;
+
+		DBObject stateIndex = new BasicDBObject(STATE, 1).append(LEASE_UNTIL, 1);
+		boolean migrated = hasIndex(stateIndex);
+		collection.createIndex(stateIndex);
+		collection.createIndex(new BasicDBObject(LEASE_TOKEN, 1));
+		if (!migrated) {
+			migrate();
+		}
+	}
+
+	/**
+	 * Moves the items annotated before the state was kept to the indexed state, as they would
+	 * otherwise be matched by every claim and filtered out. Idempotent, so workers that start
+	 * together on a new collection may both run it.
+	 */
+	private void migrate() {
+		DBObject annotated = new BasicDBObject(STATE, null).append(ANNOTATION_CLASS, LocalDescriptors.class.getName());
+		int n = collection.update(annotated, new BasicDBObject("$set", new BasicDBObject(STATE, State.INDEXED.name())), false, true).getN();
+		LOGGER.info(n + " items of " + collection.getFullName() + " indexed before the indexing state was kept");
+	}
+
+	/**
+	 * @return true if the collection has an index on the given fields, in the same order
+	 */
+	private boolean hasIndex(DBObject keys) {
+		List<String> fields = new ArrayList<String>(keys.keySet());
+		for (DBObject index : collection.getIndexInfo()) {
+			Object key = index.get("key");
+			if (key instanceof DBObject && fields.equals(new ArrayList<String>(((DBObject) key).keySet()))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return an id unique to this process, used as the lease owner
+	 */
+	public static String newWorkerId() {
+		return ManagementFactory.getRuntimeMXBean().getName() + ":" + UUID.randomUUID().toString().substring(0, 8);
+	}
+
+	/**
+	 * Claims up to limit claimable items for this worker. Claiming is atomic per item: an item
+	 * is claimed by at most one worker even if several workers ask for it concurrently.
+	 *
+	 * @return the ids of the claimed items
+	 */
+	public List<String> claim(int limit) {
+		long now = System.currentTimeMillis();
+
+		List<Object> candidates = new ArrayList<Object>(limit);
+		try (DBCursor cursor = collection.find(claimable(now), new BasicDBObject("_id", 1)).limit(limit)) {
+			while (cursor.hasNext()) {
+				candidates.add(cursor.next().get("_id"));
+			}
+		}
+		if (candidates.isEmpty()) {
+			return Collections.emptyList();
+		}
+
+		// the claimable condition is checked again, so that items claimed by another worker in between are skipped
+		String token = workerId + ":" + UUID.randomUUID();
+		DBObject query = claimable(now).append("_id", new BasicDBObject("$in", candidates));
+		DBObject update = new BasicDBObject("$set", new BasicDBObject(STATE, State.IN_FLIGHT.name())
+				.append(LEASE_OWNER, workerId)
+				.append(LEASE_TOKEN, token)
+				.append(LEASE_UNTIL, now + lease));
+		collection.update(query, update, false, true);
+
+		List<String> claimed = new ArrayList<String>(candidates.size());
+		try (DBCursor cursor = collection.find(new BasicDBObject(LEASE_TOKEN, token), new BasicDBObject("_id", 1))) {
+			while (cursor.hasNext()) {
+				String id = cursor.next().get("_id").toString();
+				claimed.add(id);
+				tokens.put(id, token);
+			}
+		}
+		return claimed;
+	}
+
+	/**
+	 * Extends the leases of all the items this worker has in flight.
+	 */
+	public void renew() {
+		DBObject query = new BasicDBObject(STATE, State.IN_FLIGHT.name()).append(LEASE_OWNER, workerId);
+		collection.update(query, new BasicDBObject("$set", new BasicDBObject(LEASE_UNTIL, System.currentTimeMillis() + lease)), false, true);
+	}
+
+	/**
+	 * @return the operators of an update that moves an item to the indexed state. Other
+	 * operators, e.g. the annotation of the item, can be appended to it, so that the state
+	 * is changed together with the annotation.
+	 */
+	public static BasicDBObject indexedUpdate() {
+		return new BasicDBObject("$set", new BasicDBObject(STATE, State.INDEXED.name()))
+				.append("$unset", new BasicDBObject(LEASE_OWNER, "").append(LEASE_TOKEN, "").append(LEASE_UNTIL, ""));
+	}
+
+	/**
+	 * @return a query that matches the item as long as this worker holds its lease. The
+	 * lease is forgotten, so this is called once, when the item is moved to the indexed state.
+	 */
+	public BasicDBObject leased(String id) {
+		String token = tokens.remove(id);
+		return new BasicDBObject("_id", id).append(LEASE_TOKEN, token == null ? "" : token);
+	}
+
+	/**
+	 * @return the ids of the given items that are in the indexed state
+	 */
+	public Set<String> getIndexed(Collection<String> ids) {
+		Set<String> indexed = new HashSet<String>();
+		DBObject query = new BasicDBObject("_id", new BasicDBObject("$in", ids)).append(STATE, State.INDEXED.name());
+		try (DBCursor cursor = collection.find(query, new BasicDBObject("_id", 1))) {
+			while (cursor.hasNext()) {
+				indexed.add(cursor.next().get("_id").toString());
+			}
+		}
+		return indexed;
+	}
+
+	/**
+	 * Records a failed attempt. The item is retried once the lease of this attempt expires.
+	 *
+	 * @return true if the item has reached maxAttempts and should be given up
+	 */
+	public boolean failed(String id) {
+		return failed(Collections.singletonList(id)).contains(id);
+	}
+
+	/**
+	 * Records a failed attempt for each of the given items, with one update per claim. The
+	 * items are retried once the lease of this attempt expires. Items this worker no longer
+	 * holds are left alone.
+	 *
+	 * @return the ids of the items that have reached maxAttempts and should be given up
+	 */
+	public Set<String> failed(Collection<String> ids) {
+		return fail(ids, "$inc", 1);
+	}
+
+	/**
+	 * Records that the given items can never be indexed, e.g. because their content is not
+	 * an image, or is too small or too large. They are given up without being retried.
+	 *
+	 * @return the ids of the items that should be given up, i.e. those this worker still held
+	 */
+	public Set<String> rejected(Collection<String> ids) {
+		return fail(ids, "$max", maxAttempts);
+	}
+
+	/**
+	 * @param operator the update operator applied to the number of attempts, with the given value
+	 */
+	private Set<String> fail(Collection<String> ids, String operator, int value) {
+		Set<String> givenUp = new HashSet<String>();
+
+		// the token is kept in the failed state, to find the items this worker has given up
+		Map<String, List<String>> claims = new HashMap<String, List<String>>();
+		for (String id : ids) {
+			String token = tokens.remove(id);
+			if (token != null) {
+				claims.computeIfAbsent(token, key -> new ArrayList<String>()).add(id);
+			}
+		}
+
+		for (Map.Entry<String, List<String>> claim : claims.entrySet()) {
+			DBObject query = new BasicDBObject("_id", new BasicDBObject("$in", claim.getValue()))
+					.append(LEASE_TOKEN, claim.getKey())
+					.append(STATE, State.IN_FLIGHT.name());
+			DBObject update = new BasicDBObject("$set", new BasicDBObject(STATE, State.FAILED.name())
+					.append(LEASE_UNTIL, System.currentTimeMillis() + lease))
+					.append(operator, new BasicDBObject(ATTEMPTS, value))
+					.append("$unset", new BasicDBObject(LEASE_OWNER, ""));
+			collection.update(query, update, false, true);
+
+			query = new BasicDBObject("_id", new BasicDBObject("$in", claim.getValue()))
+					.append(LEASE_TOKEN, claim.getKey())
+					.append(STATE, State.FAILED.name())
+					.append(ATTEMPTS, new BasicDBObject("$gte", maxAttempts));
+			try (DBCursor cursor = collection.find(query, new BasicDBObject("_id", 1))) {
+				while (cursor.hasNext()) {
+					givenUp.add(cursor.next().get("_id").toString());
+				}
+			}
+		}
+		return givenUp;
+	}
+
+	/**
+	 * Returns the given items of this worker to the pending state, e.g. when the worker stops.
+	 */
+	public void release(Collection<String> ids) {
+		if (ids.isEmpty()) {
+			return;
+		}
+		DBObject query = new BasicDBObject("_id", new BasicDBObject("$in", ids))
+				.append(STATE, State.IN_FLIGHT.name())
+				.append(LEASE_OWNER, workerId);
+		DBObject update = new BasicDBObject("$set", new BasicDBObject(STATE, State.PENDING.name()))
+				.append("$unset", new BasicDBObject(LEASE_OWNER, "").append(LEASE_TOKEN, "").append(LEASE_UNTIL, ""));
+		tokens.keySet().removeAll(ids);
+		try {
+			collection.update(query, update, false, true);
+		} catch (Exception e) {
+			LOGGER.error("Failed to release " + ids.size() + " items of " + workerId, e);
+		}
+	}
+
+	/**
+	 * @return the number of items in each state
+	 */
+	public String stats() {
+		StringBuilder stats = new StringBuilder(collection.getName()).append('[');
+		for (State state : State.values()) {
+			stats.append(state.name().toLowerCase()).append('=').append(collection.count(new BasicDBObject(STATE, state.name())));
+			stats.append(state.ordinal() < State.values().length - 1 ? ", " : "");
+		}
+		return stats.append(']').toString();
+	}
+
+	private DBObject claimable(long now) {
+		return new BasicDBObject(ANNOTATION_CLASS, new BasicDBObject("$ne", LocalDescriptors.class.getName()))
+				.append("$or", Arrays.asList(
+						// matches the items without a vIndexing field through the state index
+						new BasicDBObject(STATE, null),
+						new BasicDBObject(STATE, State.PENDING.name()),
+						new BasicDBObject(STATE, State.IN_FLIGHT.name()).append(LEASE_UNTIL, new BasicDBObject("$lt", now)),
+						new BasicDBObject(STATE, State.FAILED.name()).append(ATTEMPTS, new BasicDBObject("$lt", maxAttempts))
+								.append(LEASE_UNTIL, new BasicDBObject("$lt", now))));
+	}
+}
@@ -0,0 +1,151 @@
+package gr.iti.mklab.reveal.visual;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary framing of the vector batches exchanged with the visual index service.
+ *
+ * A batch is encoded as an int with the number of records and an int with the dimension
+ * of the vectors, followed by the records. Each record is an unsigned short with the length
+ * of the id, the UTF-8 bytes of the id and the float32 values of the vector. All values are
+ * big endian. Batches of dimension 0 carry only ids.
+ */
+public class VectorBatchCodec {
+
+	public final static String CONTENT_TYPE = "application/octet-stream";
+
+	private final static int MAX_ID_LENGTH = 0xFFFF;
+	private final static int MAX_DIMENSION = 1 << 16;
+
+	public static byte[] encode(List<String> ids, List<double[]> vectors) {
+		int dimension = vectors.isEmpty() ? 0 : vectors.get(0).length;
+		List<byte[]> idBytes = toBytes(ids, vectors.size());
+
+		ByteBuffer buffer = allocate(idBytes, dimension);
+		for(int i = 0; i < idBytes.size(); i++) {
+			double[] vector = vectors.get(i);
+			if(vector.length != dimension) {
+				throw new IllegalArgumentException("Vector of " + ids.get(i) + " is not " + dimension + "-dimensional");
+			}
+
+			putId(buffer, idBytes.get(i));
+			for(double value : vector) {
+				buffer.putFloat((float) value);
+			}
+		}
+		return buffer.array();
+	}
+
+	public static byte[] encodeFloats(List<String> ids, List<float[]> vectors) {
+		int dimension = vectors.isEmpty() ? 0 : vectors.get(0).length;
+		List<byte[]> idBytes = toBytes(ids, vectors.size());
+
+		ByteBuffer buffer = allocate(idBytes, dimension);
+		for(int i = 0; i < idBytes.size(); i++) {
+			float[] vector = vectors.get(i);
+			if(vector.length != dimension) {
+				throw new IllegalArgumentException("Vector of " + ids.get(i) + " is not " + dimension + "-dimensional");
+			}
+
+			putId(buffer, idBytes.get(i));
+			buffer.asFloatBuffer().put(vector);
+			buffer.position(buffer.position() + 4 * dimension);
+		}
+		return buffer.array();
+	}
+
+	public static byte[] encodeIds(List<String> ids) {
+		List<byte[]> idBytes = toBytes(ids, ids.size());
+
+		ByteBuffer buffer = allocate(idBytes, 0);
+		for(byte[] id : idBytes) {
+			putId(buffer, id);
+		}
+		return buffer.array();
+	}
+
+	public static VectorBatch decode(InputStream stream) throws IOException {
+		DataInputStream input = new DataInputStream(stream);
+
+		int count = input.readInt();
+		int dimension = input.readInt();
+		if(count < 0 || dimension < 0 || dimension > MAX_DIMENSION) {
+			throw new IOException("Malformed vector batch: " + count + " records of dimension " + dimension);
+		}
+
+		VectorBatch batch = new VectorBatch(dimension, Math.min(count, 1 << 16));
+		byte[] vectorBytes = new byte[4 * dimension];
+		for(int i = 0; i < count; i++) {
+			byte[] id = new byte[input.readUnsignedShort()];
+			input.readFully(id);
+			batch.ids.add(new String(id, StandardCharsets.UTF_8));
+
+			if(dimension > 0) {
+				input.readFully(vectorBytes);
+				float[] vector = new float[dimension];
+				ByteBuffer.wrap(vectorBytes).asFloatBuffer().get(vector);
+				batch.vectors.add(vector);
+			}
+		}
+		return batch;
+	}
+
+	private static List<byte[]> toBytes(List<String> ids, int numOfVectors) {
+		if(ids.size() != numOfVectors) {
+			throw new IllegalArgumentException(ids.size() + " ids for " + numOfVectors + " vectors");
+		}
+
+		List<byte[]> idBytes = new ArrayList<byte[]>(ids.size());
+		for(String id : ids) {
+			byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+			if(bytes.length > MAX_ID_LENGTH) {
+				throw new IllegalArgumentException("Id too long: " + id);
+			}
+			idBytes.add(bytes);
+		}
+		return idBytes;
+	}
+
+	private static ByteBuffer allocate(List<byte[]> idBytes, int dimension) {
+		int size = 8;
+		for(byte[] id : idBytes) {
+			size += 2 + id.length + 4 * dimension;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		buffer.putInt(idBytes.size());
+		buffer.putInt(dimension);
+		return buffer;
+	}
+
+	private static void putId(ByteBuffer buffer, byte[] id) {
+		buffer.putShort((short) id.length);
+		buffer.put(id);
+	}
+
+	/**
+	 * A decoded batch. Vectors are empty for batches that carry only ids.
+	 */
+	public static class VectorBatch {
+
+		public final int dimension;
+		public final List<String> ids;
+		public final List<float[]> vectors;
+
+		public VectorBatch(int dimension, int size) {
+			this.dimension = dimension;
+			this.ids = new ArrayList<String>(size);
+			this.vectors = new ArrayList<float[]>(dimension > 0 ? size : 0);
+		}
+
+		public int size() {
+			return ids.size();
+		}
+	}
+}
@@ -0,0 +1,462 @@
+package gr.iti.mklab.reveal.visual;
+
+import gr.iti.mklab.reveal.util.Configuration;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * A local, collection scoped store of the visual vectors of indexed media.
+ *
+ * Vectors are written by the {@link VisualIndexer} at indexing time and kept as float32
+ * records in a memory-mapped file, so that clustering and summarization can read them
+ * in bulk instead of requesting them one by one from the visual index service.
+ *
+ * Each collection is stored under visualDir/vectors/{collection} in two files: vectors.f32
+ * with fixed length records and vectors.ids with the id of each record, one per line.
+ *
+ * The files belong to a single process, which holds a lock on vectors.lock while the store
+ * is open: another process with the same visualDir fails to open the store instead of
+ * appending to the same files, and reads the vectors from the visual index, see {@link #loadVectors(VectorStore, Collection, VisualIndexClient)}. Within
+ * the process the store is shared through {@link #open(String)}, and reading from it once it
+ * has been closed or deleted throws an IllegalStateException.
+ */
+public class VectorStore implements Closeable {
+
+	public final static int DIMENSION = 1024;
+
+	private final static int RECORDS_PER_SEGMENT = 16384;	// 64MB segments for 1024-d vectors
+	private final static int REMOTE_BATCH_SIZE = 500;		// vectors requested per call to the visual index
+
+	private final static String VECTORS_FILE = "vectors.f32";
+	private final static String IDS_FILE = "vectors.ids";
+	private final static String LOCK_FILE = "vectors.lock";
+
+	private final static Logger LOGGER = Logger.getLogger(VectorStore.class);
+
+	private final static Map<String, VectorStore> stores = new HashMap<String, VectorStore>();
+
+	private final String collection;
+	private final int dimension;
+	private final int recordBytes;
+
+	private final FileChannel lockChannel;
+	private final FileLock processLock;
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final Writer idsWriter;
+
+	private final Object2IntOpenHashMap<String> slots = new Object2IntOpenHashMap<String>();
+	private final List<String> ids = new ArrayList<String>();
+	private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private volatile boolean closed = false;
+
+	/**
+	 * Returns the shared vector store of the given collection, opening it if needed.
+	 */
+	public static VectorStore open(String collection) throws IOException {
+		synchronized(stores) {
+			VectorStore store = stores.get(collection);
+			if(store == null) {
+				store = new VectorStore(collection, getDirectory(collection), DIMENSION);
+				stores.put(collection, store);
+			}
+			return store;
+		}
+	}
+
+	/**
+	 * Closes the vector store of the given collection, if open.
+	 */
+	public static void close(String collection) throws IOException {
+		synchronized(stores) {
+			VectorStore store = stores.remove(collection);
+			if(store != null) {
+				store.close();
+			}
+		}
+	}
+
+	/**
+	 * Closes the vector store of the given collection and deletes its files.
+	 */
+	public static void delete(String collection) throws IOException {
+		synchronized(stores) {
+			VectorStore store = stores.remove(collection);
+			if(store != null) {
+				store.close();
+			}
+			FileUtils.deleteDirectory(getDirectory(collection));
+		}
+	}
+
+	private static File getDirectory(String collection) {
+		return new File(new File(Configuration.VISUAL_DIR, "vectors"), collection);
+	}
+
+	VectorStore(String collection, File directory, int dimension) throws IOException {
+		this.collection = collection;
+		this.dimension = dimension;
+		this.recordBytes = 4 * dimension;
+
+		if(!directory.exists() && !directory.mkdirs()) {
+			throw new IOException("Cannot create vector store directory " + directory);
+		}
+
+		lockChannel = FileChannel.open(new File(directory, LOCK_FILE).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		FileLock acquired = null;
+		try {
+			acquired = lockChannel.tryLock();
+		}
+		catch(OverlappingFileLockException e) {
+			// held by another instance of this process
+		}
+		if(acquired == null) {
+			lockChannel.close();
+			throw new IOException("Vector store of " + collection + " in " + directory + " is used by another process");
+		}
+		processLock = acquired;
+
+		try {
+			slots.defaultReturnValue(-1);
+			load(directory);
+			file = new RandomAccessFile(new File(directory, VECTORS_FILE), "rw");
+		}
+		catch(IOException e) {
+			lockChannel.close();
+			throw e;
+		}
+		channel = file.getChannel();
+		if(!ids.isEmpty()) {
+			segment((ids.size() - 1) / RECORDS_PER_SEGMENT);
+		}
+
+		idsWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(directory, IDS_FILE), true), StandardCharsets.UTF_8));
+
+		LOGGER.info("Vector store opened for " + collection + " with " + ids.size() + " vectors");
+	}
+
+	private void load(File directory) throws IOException {
+		File idsFile = new File(directory, IDS_FILE);
+		if(idsFile.exists()) {
+			try(BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(idsFile), StandardCharsets.UTF_8))) {
+				String id;
+				while((id = reader.readLine()) != null) {
+					if(!id.isEmpty()) {
+						slots.put(id, ids.size());
+						ids.add(id);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stores the vector of the given media item, replacing any previous vector with the same id.
+	 */
+	public void put(String id, double[] vector) throws IOException {
+		if(vector == null) {
+			throw new IllegalArgumentException("Vector of " + id + " is null");
+		}
+		put(id, toFloats(vector));
+	}
+
+	/**
+	 * Stores the vector of the given media item, replacing any previous vector with the same id.
+	 */
+	public void put(String id, float[] vector) throws IOException {
+		if(vector == null || vector.length != dimension) {
+			throw new IllegalArgumentException("Vector of " + id + " is not " + dimension + "-dimensional");
+		}
+
+		lock.writeLock().lock();
+		try {
+			ensureOpen();
+			int slot = slots.getInt(id);
+			boolean isNew = slot < 0;
+			if(isNew) {
+				slot = ids.size();
+			}
+
+			ByteBuffer buffer = record(slot, segment(slot / RECORDS_PER_SEGMENT));
+			buffer.asFloatBuffer().put(vector);
+
+			// the id is written after the vector, so a crash never leaves an id without a record
+			if(isNew) {
+				idsWriter.write(id);
+				idsWriter.write('\n');
+				idsWriter.flush();
+
+				slots.put(id, slot);
+				ids.add(id);
+			}
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public boolean contains(String id) {
+		lock.readLock().lock();
+		try {
+			return slots.containsKey(id);
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the vector of the given media item, or null if it is not stored locally.
+	 */
+	public float[] get(String id) {
+		lock.readLock().lock();
+		try {
+			int slot = slots.getInt(id);
+			if(slot < 0) {
+				return null;
+			}
+			return read(slot);
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Bulk read of the vectors of the given media items. Items that are not stored locally are
+	 * not included in the returned map.
+	 */
+	public Map<String, float[]> getVectors(Collection<String> mediaIds) {
+		Map<String, float[]> vectors = new LinkedHashMap<String, float[]>();
+		lock.readLock().lock();
+		try {
+			for(String id : mediaIds) {
+				int slot = slots.getInt(id);
+				if(slot >= 0) {
+					vectors.put(id, read(slot));
+				}
+			}
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+		return vectors;
+	}
+
+	/**
+	 * Bulk read of the vectors of the given media items. Vectors missing from the local store are
+	 * requested from the visual index, and stored locally for subsequent reads.
+	 */
+	public Map<String, float[]> loadVectors(Collection<String> mediaIds, VisualIndexClient vIndexClient) {
+		Map<String, float[]> vectors = getVectors(mediaIds);
+		if(vIndexClient == null || vectors.size() >= mediaIds.size()) {
+			return vectors;
+		}
+
+		List<String> missing = new ArrayList<String>();
+		for(String id : mediaIds) {
+			if(!vectors.containsKey(id)) {
+				missing.add(id);
+			}
+		}
+
+		Map<String, float[]> fetched = fetchVectors(missing, vIndexClient, dimension);
+		for(Map.Entry<String, float[]> entry : fetched.entrySet()) {
+			try {
+				put(entry.getKey(), entry.getValue());
+			} catch (IOException e) {
+				LOGGER.error("Failed to store vector of " + entry.getKey() + " for " + collection, e);
+			}
+		}
+		vectors.putAll(fetched);
+		LOGGER.info(fetched.size() + " out of " + missing.size() + " missing vectors fetched from visual index for " + collection);
+
+		return vectors;
+	}
+
+	/**
+	 * Bulk read of the vectors of the given media items from the given store, or only from the
+	 * visual index if the store is null, e.g. because another process holds it.
+	 */
+	public static Map<String, float[]> loadVectors(VectorStore store, Collection<String> mediaIds, VisualIndexClient vIndexClient) {
+		if(store != null) {
+			return store.loadVectors(mediaIds, vIndexClient);
+		}
+		if(vIndexClient == null) {
+			return new LinkedHashMap<String, float[]>();
+		}
+		return fetchVectors(new ArrayList<String>(mediaIds), vIndexClient, DIMENSION);
+	}
+
+	private static Map<String, float[]> fetchVectors(List<String> mediaIds, VisualIndexClient vIndexClient, int dimension) {
+		Map<String, float[]> vectors = new LinkedHashMap<String, float[]>();
+		for(int from = 0; from < mediaIds.size(); from += REMOTE_BATCH_SIZE) {
+			List<String> batch = mediaIds.subList(from, Math.min(from + REMOTE_BATCH_SIZE, mediaIds.size()));
+			for(Map.Entry<String, float[]> entry : vIndexClient.getVectors(batch).entrySet()) {
+				float[] vector = entry.getValue();
+				if(vector != null && vector.length == dimension) {
+					vectors.put(entry.getKey(), vector);
+				}
+			}
+		}
+		return vectors;
+	}
+
+	/**
+	 * Streams all the stored vectors, in insertion order, to the given consumer.
+	 * Vectors added while iterating may not be visited.
+	 *
+	 * @throws IllegalStateException if the store is closed before all the vectors are visited
+	 */
+	public void forEach(BiConsumer<String, float[]> consumer) {
+		List<String> snapshot;
+		lock.readLock().lock();
+		try {
+			ensureOpen();
+			snapshot = new ArrayList<String>(ids);
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+
+		for(int slot = 0; slot < snapshot.size(); slot++) {
+			float[] vector;
+			lock.readLock().lock();
+			try {
+				vector = read(slot);
+			}
+			finally {
+				lock.readLock().unlock();
+			}
+			consumer.accept(snapshot.get(slot), vector);
+		}
+	}
+
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return ids.size();
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public String getCollection() {
+		return collection;
+	}
+
+	@Override
+	public void close() throws IOException {
+		lock.writeLock().lock();
+		try {
+			if(closed) {
+				return;
+			}
+			closed = true;
+			try {
+				idsWriter.close();
+				synchronized(segments) {
+					segments.clear();
+				}
+				channel.close();
+				file.close();
+			}
+			finally {
+				processLock.release();
+				lockChannel.close();
+			}
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void ensureOpen() {
+		if(closed) {
+			throw new IllegalStateException("Vector store of " + collection + " is closed");
+		}
+	}
+
+	/**
+	 * Called with the read or the write lock held, so the store cannot be closed while reading.
+	 */
+	private float[] read(int slot) {
+		ensureOpen();
+		MappedByteBuffer segment;
+		synchronized(segments) {
+			segment = segments.get(slot / RECORDS_PER_SEGMENT);
+		}
+
+		float[] vector = new float[dimension];
+		record(slot, segment).asFloatBuffer().get(vector);
+		return vector;
+	}
+
+	private ByteBuffer record(int slot, MappedByteBuffer segment) {
+		ByteBuffer buffer = segment.duplicate();
+		buffer.position((slot % RECORDS_PER_SEGMENT) * recordBytes);
+		return buffer;
+	}
+
+	/**
+	 * Maps all segments up to the given one. Mapping past the end of the file extends it.
+	 */
+	private MappedByteBuffer segment(int index) throws IOException {
+		synchronized(segments) {
+			long segmentBytes = (long) RECORDS_PER_SEGMENT * recordBytes;
+			while(segments.size() <= index) {
+				long position = segments.size() * segmentBytes;
+				segments.add(channel.map(FileChannel.MapMode.READ_WRITE, position, segmentBytes));
+			}
+			return segments.get(index);
+		}
+	}
+
+	public static float[] toFloats(double[] vector) {
+		float[] floats = new float[vector.length];
+		for(int i = 0; i < vector.length; i++) {
+			floats[i] = (float) vector[i];
+		}
+		return floats;
+	}
+
+	public static double[] toDoubles(float[] vector) {
+		double[] doubles = new double[vector.length];
+		for(int i = 0; i < vector.length; i++) {
+			doubles[i] = vector[i];
+		}
+		return doubles;
+	}
+}
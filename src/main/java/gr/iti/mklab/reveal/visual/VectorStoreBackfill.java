@@ -0,0 +1,101 @@
+package gr.iti.mklab.reveal.visual;
+
+import gr.iti.mklab.reveal.util.Configuration;
+import gr.iti.mklab.simmo.core.items.Image;
+import gr.iti.mklab.simmo.core.items.Media;
+import gr.iti.mklab.simmo.core.items.Video;
+import gr.iti.mklab.simmo.core.morphia.MediaDAO;
+import gr.iti.mklab.simmo.core.morphia.MorphiaManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.apache.log4j.Logger;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCursor;
+
+/**
+ * A one-time job that copies the vectors of the media items of a collection that were
+ * indexed before the introduction of the {@link VectorStore} from the visual index service
+ * to the local vector store. Items already stored locally are skipped, so it is safe to rerun.
+ *
+ * Can be submitted through the /media/{collection}/vectors/backfill endpoint or executed
+ * from the command line with the names of the collections as arguments.
+ */
+public class VectorStoreBackfill implements Callable<Integer> {
+
+	private final static Logger LOGGER = Logger.getLogger(VectorStoreBackfill.class);
+
+	private final static int ITEMS_PER_ITERATION = 2000;
+
+	private final String collection;
+
+	public VectorStoreBackfill(String collection) {
+		this.collection = collection;
+	}
+
+	@Override
+	public Integer call() throws Exception {
+		LOGGER.info("Backfill local vector store of " + collection);
+
+		String indexServiceHost = "http://" + Configuration.INDEX_SERVICE_HOST + ":8080/VisualIndexService";
+		VisualIndexClient vIndexClient = new VisualIndexClient(indexServiceHost, collection);
+		VectorStore vectorStore = VectorStore.open(collection);
+
+		int stored = vectorStore.size();
+
+		backfill(new MediaDAO<>(Image.class, collection), vectorStore, vIndexClient);
+		backfill(new MediaDAO<>(Video.class, collection), vectorStore, vIndexClient);
+
+		int added = vectorStore.size() - stored;
+		LOGGER.info(added + " vectors added to local vector store of " + collection + ". Total vectors: " + vectorStore.size());
+
+		return added;
+	}
+
+	/**
+	 * Walks the ids of the items with a single cursor, as skipping to each page would rescan
+	 * the items before it.
+	 */
+	private <M extends Media> void backfill(MediaDAO<M> dao, VectorStore vectorStore, VisualIndexClient vIndexClient) {
+		long count = dao.count();
+		long checked = 0;
+		List<String> missing = new ArrayList<String>();
+		try (DBCursor cursor = dao.getCollection().find(new BasicDBObject(), new BasicDBObject("_id", 1)).batchSize(ITEMS_PER_ITERATION)) {
+			while (cursor.hasNext()) {
+				String id = cursor.next().get("_id").toString();
+				if (!vectorStore.contains(id)) {
+					missing.add(id);
+				}
+				if (++checked % ITEMS_PER_ITERATION == 0 || !cursor.hasNext()) {
+					if (!missing.isEmpty()) {
+						vectorStore.loadVectors(missing, vIndexClient);
+						missing.clear();
+					}
+					LOGGER.info("Backfill of " + collection + ": " + checked + " out of " + count + " items checked");
+				}
+			}
+		}
+	}
+
+	public static void main(String... args) throws Exception {
+
+		Configuration.load(VectorStoreBackfill.class.getResourceAsStream("/remote.properties"));
+
+		// initialize mongodb
+		if (Configuration.MONGO_USERNAME != null && !Configuration.MONGO_USERNAME.equals("")
+				&& Configuration.MONGO_PASSWORD != null && !Configuration.MONGO_PASSWORD.equals("")) {
+			MorphiaManager.setup(Configuration.MONGO_HOST, Configuration.MONGO_USERNAME, Configuration.MONGO_PASSWORD);
+		}
+		else {
+			MorphiaManager.setup(Configuration.MONGO_HOST);
+		}
+
+		for (String collection : args) {
+			new VectorStoreBackfill(collection).call();
+			VectorStore.close(collection);
+		}
+	}
+}
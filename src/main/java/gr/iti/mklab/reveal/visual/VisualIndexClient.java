@@ -8,13 +8,21 @@ import java.io.StringWriter;
 import java.net.URL;
 import java.net.URLEncoder;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.imageio.ImageIO;
 
 import com.google.gson.*;
 
 import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpStatus;
 import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
 import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.methods.PostMethod;
 import org.apache.commons.httpclient.methods.multipart.ByteArrayPartSource;
@@ -27,6 +35,8 @@ import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 import org.json.JSONObject;
 
+import gr.iti.mklab.reveal.visual.VectorBatchCodec.VectorBatch;
+
 /**
  * Client for Visual Indexer.
  *
@@ -42,6 +52,9 @@ public class VisualIndexClient {
     private String webServiceHost;
     private String collectionName;
     private HttpClient httpClient;
+    
+    // set to false when the service does not expose the batch endpoints
+    private volatile boolean batchSupported = true;
 
     public VisualIndexClient(String webServiceHost) {
     	this(webServiceHost, null);
@@ -374,6 +387,194 @@ public class VisualIndexClient {
         return success;
     }
 
+    /**
+     * Index a batch of vectors with a single request. Vectors are sent as float32
+     * (see {@link VectorBatchCodec}).
+     * Falls back to one request per vector if the service does not support batches.
+     *
+     * @param vectors the vectors to be indexed, keyed by media id
+     * @return the ids of the successfully indexed vectors
+     */
+    public Set<String> indexBatch(Map<String, double[]> vectors) {
+    	Set<String> indexed = new HashSet<String>();
+    	if (vectors.isEmpty()) {
+    		return indexed;
+    	}
+    	
+    	if (batchSupported) {
+    		PostMethod indexMethod = null;
+    		try {
+    			byte[] body = VectorBatchCodec.encode(new ArrayList<String>(vectors.keySet()), new ArrayList<double[]>(vectors.values()));
+    			indexMethod = new PostMethod(webServiceHost + "/rest/visual/index_batch/" + collectionName);
+    			indexMethod.setRequestEntity(new ByteArrayRequestEntity(body, VectorBatchCodec.CONTENT_TYPE));
+    			int code = httpClient.executeMethod(indexMethod);
+    			if (code == 200) {
+    				String rawJson = IOUtils.toString(indexMethod.getResponseBodyAsStream());
+    				JsonObject o = (JsonObject) new JsonParser().parse(rawJson);
+    				JsonElement e = o.get("indexed");
+    				if (e != null && e.isJsonArray()) {
+    					for (JsonElement id : e.getAsJsonArray()) {
+    						indexed.add(id.getAsString());
+    					}
+    				}
+    				if (indexed.size() < vectors.size()) {
+    					_logger.error((vectors.size() - indexed.size()) + " out of " + vectors.size() + " vectors failed to be indexed in " + collectionName);
+    				}
+    				return indexed;
+    			}
+    			else if (!isBatchUnsupported(code)) {
+    				_logger.error("Batch indexing of " + vectors.size() + " vectors in " + collectionName + " failed. Http returned code: " + code);
+    				return indexed;
+    			}
+    		}
+    		catch (Exception e) {
+    			_logger.error("Exception during batch indexing of " + vectors.size() + " vectors in " + collectionName, e);
+    			return indexed;
+    		}
+    		finally {
+    			if (indexMethod != null) {
+    				indexMethod.releaseConnection();
+    			}
+    		}
+    	}
+    	
+    	for (Map.Entry<String, double[]> entry : vectors.entrySet()) {
+    		if (index(entry.getKey(), entry.getValue())) {
+    			indexed.add(entry.getKey());
+    		}
+    	}
+    	return indexed;
+    }
+    
+    /**
+     * Get the vectors of many media items with a single request.
+     * Falls back to one request per id if the service does not support batches.
+     *
+     * @param ids
+     * @return the vectors found in the index, keyed by media id
+     */
+    public Map<String, float[]> getVectors(List<String> ids) {
+    	Map<String, float[]> vectors = new LinkedHashMap<String, float[]>();
+    	if (ids.isEmpty()) {
+    		return vectors;
+    	}
+    	
+    	if (batchSupported) {
+    		PostMethod queryMethod = null;
+    		try {
+    			queryMethod = new PostMethod(webServiceHost + "/rest/visual/vectors/" + collectionName);
+    			queryMethod.setRequestEntity(new ByteArrayRequestEntity(VectorBatchCodec.encodeIds(ids), VectorBatchCodec.CONTENT_TYPE));
+    			int code = httpClient.executeMethod(queryMethod);
+    			if (code == 200) {
+    				VectorBatch batch = VectorBatchCodec.decode(queryMethod.getResponseBodyAsStream());
+    				for (int i = 0; i < batch.vectors.size(); i++) {
+    					vectors.put(batch.ids.get(i), batch.vectors.get(i));
+    				}
+    				return vectors;
+    			}
+    			else if (!isBatchUnsupported(code)) {
+    				_logger.error("Failed to get " + ids.size() + " vectors from " + collectionName + ". Http returned code: " + code);
+    				return vectors;
+    			}
+    		}
+    		catch (Exception e) {
+    			_logger.error("Exception while getting " + ids.size() + " vectors from " + collectionName, e);
+    			return vectors;
+    		}
+    		finally {
+    			if (queryMethod != null) {
+    				queryMethod.releaseConnection();
+    			}
+    		}
+    	}
+    	
+    	for (String id : ids) {
+    		Double[] vector = getVector(id);
+    		if (vector != null) {
+    			float[] floats = new float[vector.length];
+    			for (int i = 0; i < vector.length; i++) {
+    				floats[i] = vector[i].floatValue();
+    			}
+    			vectors.put(id, floats);
+    		}
+    	}
+    	return vectors;
+    }
+    
+    /**
+     * Get similar images for many query vectors with a single request.
+     * Falls back to one request per vector if the service does not support batches.
+     *
+     * @param vectors
+     * @param threshold
+     * @return one result set per query vector, in the order of the queries
+     */
+    public List<JsonResultSet> querySimilarBatch(List<double[]> vectors, double threshold) {
+    	List<JsonResultSet> results = new ArrayList<JsonResultSet>(vectors.size());
+    	if (vectors.isEmpty()) {
+    		return results;
+    	}
+    	
+    	if (batchSupported) {
+    		PostMethod queryMethod = null;
+    		try {
+    			List<String> queryIds = new ArrayList<String>(vectors.size());
+    			for (int i = 0; i < vectors.size(); i++) {
+    				queryIds.add(String.valueOf(i));
+    			}
+    			
+    			queryMethod = new PostMethod(webServiceHost + "/rest/visual/query_batch/" + collectionName);
+    			queryMethod.setQueryString("threshold=" + threshold);
+    			queryMethod.setRequestEntity(new ByteArrayRequestEntity(VectorBatchCodec.encode(queryIds, vectors), VectorBatchCodec.CONTENT_TYPE));
+    			int code = httpClient.executeMethod(queryMethod);
+    			if (code == 200) {
+    				String response = IOUtils.toString(queryMethod.getResponseBodyAsStream());
+    				Gson gson = new GsonBuilder()
+    						.excludeFieldsWithoutExposeAnnotation()
+    						.create();
+    				JsonResultSet[] resultSets = gson.fromJson(response, JsonResultSet[].class);
+    				for (int i = 0; i < vectors.size(); i++) {
+    					JsonResultSet resultSet = (resultSets != null && i < resultSets.length) ? resultSets[i] : null;
+    					results.add((resultSet == null || resultSet.results == null) ? new JsonResultSet() : resultSet);
+    				}
+    				return results;
+    			}
+    			else if (!isBatchUnsupported(code)) {
+    				_logger.error("Batch query of " + vectors.size() + " vectors in " + collectionName + " failed. Http returned code: " + code);
+    			}
+    		}
+    		catch (Exception e) {
+    			_logger.error("Exception during batch query of " + vectors.size() + " vectors in " + collectionName, e);
+    		}
+    		finally {
+    			if (queryMethod != null) {
+    				queryMethod.releaseConnection();
+    			}
+    		}
+    		
+    		if (batchSupported) {
+    			while (results.size() < vectors.size()) {
+    				results.add(new JsonResultSet());
+    			}
+    			return results;
+    		}
+    	}
+    	
+    	for (double[] vector : vectors) {
+    		results.add(getSimilarImages(vector, threshold));
+    	}
+    	return results;
+    }
+    
+    private boolean isBatchUnsupported(int code) {
+    	if (code == HttpStatus.SC_NOT_FOUND || code == HttpStatus.SC_METHOD_NOT_ALLOWED) {
+    		_logger.info("Visual index service at " + webServiceHost + " does not support batch requests. Falling back to single requests.");
+    		batchSupported = false;
+    		return true;
+    	}
+    	return false;
+    }
+    
     public Double[] getVector(String id) {
     	
         GetMethod queryMethod = null;
@@ -0,0 +1,161 @@
+package gr.iti.mklab.reveal.visual;
+
+import gr.iti.mklab.reveal.util.Configuration;
+import gr.iti.mklab.simmo.core.jobs.CrawlJob;
+import gr.iti.mklab.simmo.core.morphia.MorphiaManager;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.bson.types.ObjectId;
+import org.mongodb.morphia.dao.BasicDAO;
+import org.mongodb.morphia.dao.DAO;
+import org.mongodb.morphia.query.Query;
+
+/**
+ * A standalone visual indexing worker, started as a separate process to add indexing
+ * capacity independently of the web service. It runs a {@link VisualIndexer} for each
+ * collection to index, either the collections given as arguments or, by default, the
+ * collections of the running crawls, which are rediscovered periodically.
+ *
+ * Any number of workers (and the web service itself, unless localVisualIndexing is false)
+ * can index the same collection: items are claimed through leases in mongodb by the
+ * {@link IndexingStateStore}, so each item is processed by one worker at a time. Vectors
+ * are written to the visual index service, which clustering and summarization read them from.
+ *
+ * The local vector stores and the image cache of a worker are kept under workerDir
+ * (visualDir/worker by default) instead of visualDir, since both belong to a single process:
+ * the web service holds its own under visualDir. Workers that run on the same node need
+ * distinct workerDirs, otherwise all but the first one run without a vector store and an
+ * image cache.
+ *
+ * Usage: VisualIndexWorker [collection ...]
+ */
+public class VisualIndexWorker implements Runnable {
+
+	private final static Logger LOGGER = Logger.getLogger(VisualIndexWorker.class);
+
+	private final static long DISCOVERY_PERIOD = 60 * 1000;	// 60 seconds between checks for new crawls
+
+	private final Set<String> fixedCollections;
+
+	private final Map<String, VisualIndexer> indexers = new HashMap<String, VisualIndexer>();
+	private final ExecutorService executorService = Executors.newCachedThreadPool();
+
+	private volatile boolean isRunning = true;
+
+	/**
+	 * @param collections the collections to index, or none to follow the running crawls
+	 */
+	public VisualIndexWorker(String... collections) {
+		this.fixedCollections = new HashSet<String>(Arrays.asList(collections));
+	}
+
+	@Override
+	public void run() {
+		while (isRunning) {
+			try {
+				Set<String> collections = fixedCollections.isEmpty() ? getRunningCollections() : fixedCollections;
+				synchronized (indexers) {
+					Iterator<Map.Entry<String, VisualIndexer>> it = indexers.entrySet().iterator();
+					while (it.hasNext()) {
+						Map.Entry<String, VisualIndexer> entry = it.next();
+						if (!collections.contains(entry.getKey()) || !entry.getValue().isRunning()) {
+							LOGGER.info("Stop visual indexing of " + entry.getKey());
+							entry.getValue().stop();
+							it.remove();
+						}
+					}
+
+					for (String collection : collections) {
+						if (!indexers.containsKey(collection) && isRunning) {
+							LOGGER.info("Start visual indexing of " + collection);
+							VisualIndexer indexer = new VisualIndexer(collection);
+							indexers.put(collection, indexer);
+							executorService.submit(indexer);
+						}
+					}
+				}
+				LOGGER.info("Visual index worker is indexing " + indexers.keySet());
+
+				Thread.sleep(DISCOVERY_PERIOD);
+			}
+			catch (InterruptedException e) {
+				LOGGER.info("Visual index worker interrupted");
+			}
+			catch (Exception e) {
+				LOGGER.error("Exception in visual index worker: " + e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * Stops all the indexers. Items they have claimed but not processed are released to other workers.
+	 */
+	public void stop() {
+		isRunning = false;
+		synchronized (indexers) {
+			for (VisualIndexer indexer : indexers.values()) {
+				indexer.stop();
+			}
+			indexers.clear();
+		}
+
+		executorService.shutdownNow();
+		try {
+			executorService.awaitTermination(60, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private Set<String> getRunningCollections() {
+		DAO<CrawlJob, ObjectId> dao = new BasicDAO<CrawlJob, ObjectId>(CrawlJob.class, MorphiaManager.getMongoClient(),
+				MorphiaManager.getMorphia(), MorphiaManager.getCrawlsDB().getName());
+
+		Query<CrawlJob> q = dao.createQuery();
+		q.or(
+				q.criteria("requestState").equal(CrawlJob.STATE.RUNNING),
+				q.criteria("requestState").equal(CrawlJob.STATE.STARTING)
+		);
+
+		Set<String> collections = new HashSet<String>();
+		List<CrawlJob> jobs = q.asList();
+		for (CrawlJob job : jobs) {
+			collections.add(job.getCollection());
+		}
+		return collections;
+	}
+
+	public static void main(String... args) throws Exception {
+
+		Configuration.load(VisualIndexWorker.class.getResourceAsStream("/remote.properties"));
+		Configuration.VISUAL_DIR = Configuration.WORKER_DIR;
+		Configuration.IMAGE_CACHE_DIR = Configuration.WORKER_DIR + "/image_cache";
+
+		// initialize mongodb
+		if (Configuration.MONGO_USERNAME != null && !Configuration.MONGO_USERNAME.equals("")
+				&& Configuration.MONGO_PASSWORD != null && !Configuration.MONGO_PASSWORD.equals("")) {
+			MorphiaManager.setup(Configuration.MONGO_HOST, Configuration.MONGO_USERNAME, Configuration.MONGO_PASSWORD);
+		}
+		else {
+			MorphiaManager.setup(Configuration.MONGO_HOST);
+		}
+
+		// initialize visual feature extractor
+		VisualFeatureExtractor.init(true);
+
+		VisualIndexWorker worker = new VisualIndexWorker(args);
+		Runtime.getRuntime().addShutdownHook(new Thread(worker::stop));
+		worker.run();
+	}
+}
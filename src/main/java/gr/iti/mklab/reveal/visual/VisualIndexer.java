@@ -4,6 +4,7 @@ import gr.iti.mklab.reveal.crawler.LinkDetectionRunner;
 import gr.iti.mklab.reveal.rabbitmq.RabbitMQPublisher;
 import gr.iti.mklab.reveal.util.Configuration;
 import gr.iti.mklab.reveal.util.DisturbingDetectorClient;
+import gr.iti.mklab.reveal.util.LatencyHistogram;
 import gr.iti.mklab.simmo.core.annotations.lowleveldescriptors.LocalDescriptors;
 import gr.iti.mklab.simmo.core.documents.Webpage;
 import gr.iti.mklab.simmo.core.items.Image;
@@ -14,26 +15,23 @@ import gr.iti.mklab.simmo.core.morphia.MorphiaManager;
 import gr.iti.mklab.simmo.core.morphia.ObjectDAO;
 
 import java.io.IOException;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.apache.commons.collections15.CollectionUtils;
-import org.apache.commons.collections15.Predicate;
 import org.apache.log4j.Logger;
-import org.mongodb.morphia.query.Query;
-import org.mongodb.morphia.query.UpdateOperations;
-import org.mongodb.morphia.query.UpdateResults;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBObject;
+
 /**
  * A runnable that indexes all non indexed images found in the specified collection
  * and waits if there are no new images or videos to index
@@ -53,18 +51,29 @@ public class VisualIndexer implements Runnable {
     private MediaDAO<Video> videoDAO;
     private ObjectDAO<Webpage> pageDAO;
     
+    private final String workerId = IndexingStateStore.newWorkerId();
+    private volatile IndexingStateStore imageState;
+    private volatile IndexingStateStore videoState;
+    
+    // claimed items that have not left the pipeline yet, released if the indexer stops
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+    // renews the leases of the claimed items a few times per lease, however long a batch takes
+    private ScheduledExecutorService leaseRenewer;
+    
+    private final LatencyHistogram mongoWriteLatency = new LatencyHistogram();
+    
     private LocalDescriptors ld = new LocalDescriptors();
     
     private boolean isRunning = true;
     
     private final String collection;
     
-    private ExecutorService executor;
-
-	private int NUM_THREADS = 10;
+    private IndexingPipeline pipeline;
 
 	private VisualIndexClient vIndexClient;
 	
+	private VectorStore vectorStore;
+	
     public VisualIndexer(String collection) {
         
     	LOGGER.info("Creating IndexingRunner for collection " + collection);
@@ -78,17 +87,24 @@ public class VisualIndexer implements Runnable {
         String indexServiceHost = "http://" + Configuration.INDEX_SERVICE_HOST + ":8080/VisualIndexService";
         vIndexClient = new VisualIndexClient(indexServiceHost, collection);    
         
+        try {
+        	vectorStore = VectorStore.open(collection);
+        } catch (IOException e) {
+        	LOGGER.error("Cannot open local vector store for " + collection, e);
+        }
+        
         imageDAO = new MediaDAO<>(Image.class, collection);
         videoDAO = new MediaDAO<>(Video.class, collection);
         pageDAO = new ObjectDAO<>(Webpage.class, collection);
+        createStateStores();
         
         ld.setDescriptorType(LocalDescriptors.DESCRIPTOR_TYPE.SURF);
         ld.setFeatureEncoding(LocalDescriptors.FEATURE_ENCODING.Vlad);
         ld.setNumberOfFeatures(1024);
         ld.setFeatureEncodingLibrary("multimedia-indexing");
         
-        executor = Executors.newFixedThreadPool(NUM_THREADS);
-		
+        pipeline = new IndexingPipeline(collection, vIndexClient, vectorStore, this::annotate,
+        		media -> deleteFailedMedia(media, false), media -> deleteFailedMedia(media, true));
     }
 
     @Override
@@ -99,6 +115,7 @@ public class VisualIndexer implements Runnable {
 		} catch (IOException ex) {
 			LOGGER.info("Cannot create index for collection " + collection, ex);
 			isRunning = false;
+			pipeline.stop();
 			return;
 		} 
         
@@ -108,24 +125,19 @@ public class VisualIndexer implements Runnable {
         } catch (Exception ex) {
 			LOGGER.info("MongoDB DAOs are closed for " + collection, ex);
 			isRunning = false;
+			pipeline.stop();
 			return;
 		}
         
-		Set<String> processed = new HashSet<String>();	
+		// the indexing state of the items is kept in mongodb, only the claimed items are tracked here
+		AtomicLong indexed = new AtomicLong(0L), failed = new AtomicLong(0L);
+		startLeaseRenewer();
         while (isRunning) {
-            try {            	
+            try {
                 List<Media> mediaToIndex = new ArrayList<Media>();
-                mediaToIndex.addAll(imageDAO.getNotVIndexed(STEP));
-                mediaToIndex.addAll(videoDAO.getNotVIndexed(STEP));
-                
-                LOGGER.info("Media list size before filtering for " + collection + " is " + mediaToIndex.size());
-				CollectionUtils.filter(mediaToIndex, new Predicate<Media>() {
-					@Override
-					public boolean evaluate(Media m) {
-						return processed.contains(m.getId()) ? false : true;
-					}
-				});
-                LOGGER.info("Media list size after filtering for " + collection + " is " + mediaToIndex.size());
+                mediaToIndex.addAll(claim(imageDAO, imageState));
+                mediaToIndex.addAll(claim(videoDAO, videoState));
+                LOGGER.info(mediaToIndex.size() + " media items claimed by " + workerId + " for " + collection);
             
                 if (mediaToIndex.isEmpty()) {
                     try {
@@ -133,43 +145,39 @@ public class VisualIndexer implements Runnable {
                     		break;
                     	}
                     	
-                        Thread.sleep(INDEXING_PERIOD);
+                    	LOGGER.info(collection + " indexing state: " + imageState.stats() + " " + videoState.stats());
+                    	if (!inFlight.isEmpty()) {
+                    		// wait for the items in flight instead of polling mongodb
+                    		pipeline.awaitIdle(INDEXING_PERIOD);
+                    	}
+                    	else {
+                    		Thread.sleep(INDEXING_PERIOD);
+                    	}
                     } catch (InterruptedException ie) {
                     	LOGGER.info("Indexing runner " + collection + " interrupted.");
                     }
                 } 
                 else {
-                	Map<String, Media> unindexedMedia = new HashMap<String, Media>();
-                	
         			for (Media media : mediaToIndex) {
-        				processed.add(media.getId());
-            			unindexedMedia.put(media.getId(), media);
-        			}
-        			
-        			List<Future<IndexingResult>> futures = submitTasks(mediaToIndex);
-        			Map<String, Media> indexedMedia = consume(futures);
-        			
-        			for(String mediaId : indexedMedia.keySet()) {
-        				unindexedMedia.remove(mediaId);
-        			}
-        			
-        			LOGGER.info(unindexedMedia.size() + " media out of " + mediaToIndex.size() + " failed to be indexed!");
-        			LOGGER.info(collection + " indexing statistics: " + IndexingCallable.stats());
-        			
-        			for(Media failedMedia : unindexedMedia.values()) {
-        				try {
-        					deleteMedia(failedMedia);
+        				if (!isRunning) {
+        					break;
         				}
-        				catch(Exception e) {
-        					LOGGER.error("Exception during deletion of " + failedMedia.getId(), e);
-        				}
-        			}	
-                }
-                
-                if (_publisher != null) {
-                    _publisher.close();
+        				String mediaId = media.getId();
+        				// blocks while the pipeline is full
+        				pipeline.submit(media).whenComplete((result, e) -> {
+        					inFlight.remove(mediaId);
+        					if (e == null && result.vector != null) {
+        						indexed.incrementAndGet();
+        					}
+        					else {
+        						failed.incrementAndGet();
+        					}
+        				});
+        			}
                 }
                 
+                LOGGER.info(collection + " indexing pipeline: " + pipeline.stats());
+                LOGGER.info(collection + " indexing statistics: " + IndexingCallable.stats());
             } 
             catch (IllegalStateException ex) {
             	// This never should happen
@@ -178,17 +186,25 @@ public class VisualIndexer implements Runnable {
                     imageDAO = new MediaDAO<>(Image.class, collection);
                     videoDAO = new MediaDAO<>(Video.class, collection);
                     pageDAO = new ObjectDAO<>(Webpage.class, collection);
+                    createStateStores();
                 }
                 catch(Exception e) {
                     LOGGER.error("Could not re-create collections. Exception: " + e.getMessage());
                 }
             }
+            catch (InterruptedException ie) {
+            	LOGGER.info("Indexing runner " + collection + " interrupted.");
+            }
             catch(Exception other) {
                 LOGGER.error("Exception " + other.getMessage() + " for " + collection);
             }
             
-            LOGGER.info(processed.size() + " media items processed so far for " + collection);
+            LOGGER.info((indexed.get() + failed.get()) + " media items processed so far for " + collection + ". " 
+            		+ indexed.get() + " indexed, " + failed.get() + " failed, " + inFlight.size() + " in flight. Latency: " + pipeline.getItemLatency()
+            		+ ". Mongo writes: " + mongoWriteLatency);
         }
+        stopLeaseRenewer();
+        releaseClaimed();
     }
     
     public boolean isRunning() {
@@ -197,114 +213,196 @@ public class VisualIndexer implements Runnable {
     
     public void stop() {
         isRunning = false;
-        executor.shutdown(); // Disable new tasks from being submitted
-		try {
-			// Wait a while for existing tasks to terminate
-			if (!executor.awaitTermination(60, TimeUnit.SECONDS)) {
-				executor.shutdownNow(); // Cancel currently executing tasks
-				// Wait a while for tasks to respond to being cancelled
-				if (!executor.awaitTermination(60, TimeUnit.SECONDS)) {
-					LOGGER.error("Visual indexer pool did not terminate for " + collection);
-				}
-			}
-		} catch (InterruptedException ie) {
-			// (Re-)Cancel if current thread also interrupted
-			executor.shutdownNow();
-			// Preserve interrupt status
-			Thread.currentThread().interrupt();
-		}
+        pipeline.stop();
+        stopLeaseRenewer();
+        releaseClaimed();
+        
+        if (_publisher != null) {
+            _publisher.close();
+        }
     }
     
-    private void deleteMedia(Media media) {
-    	if(media instanceof Image) {
-        	imageDAO.delete((Image)media);
-        	pageDAO.deleteById(media.getId());
-        	if (LinkDetectionRunner.LAST_POSITION > 0) {
-        		LinkDetectionRunner.LAST_POSITION--;
-        	}
-		}
-        else if(media instanceof Video) {
-			videoDAO.delete((Video)media);
-		}
-    	else {
-    		LOGGER.info("Unknown instance for " + media.getId());
+    private void createStateStores() {
+    	imageState = new IndexingStateStore(imageDAO, workerId, Configuration.INDEXING_LEASE, Configuration.INDEXING_MAX_ATTEMPTS);
+    	videoState = new IndexingStateStore(videoDAO, workerId, Configuration.INDEXING_LEASE, Configuration.INDEXING_MAX_ATTEMPTS);
+    }
+    
+    private synchronized void startLeaseRenewer() {
+    	long period = Math.max(1000L, Configuration.INDEXING_LEASE / 3);
+    	leaseRenewer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    		Thread thread = new Thread(runnable, "lease-renewer-" + collection);
+    		thread.setDaemon(true);
+    		return thread;
+    	});
+    	leaseRenewer.scheduleAtFixedRate(() -> {
+    		try {
+    			imageState.renew();
+    			videoState.renew();
+    		}
+    		catch (Exception e) {
+    			LOGGER.error("Failed to renew the leases of " + workerId + " for " + collection + ": " + e.getMessage());
+    		}
+    	}, period, period, TimeUnit.MILLISECONDS);
+    }
+    
+    private synchronized void stopLeaseRenewer() {
+    	if (leaseRenewer != null) {
+    		leaseRenewer.shutdownNow();
+    		leaseRenewer = null;
     	}
     }
-
-	public List<Future<IndexingResult>> submitTasks(List<Media> media) throws InterruptedException {
-		List<Callable<IndexingResult>> tasks = new ArrayList<Callable<IndexingResult>>();
-		for(Media m : media) {
-			Callable<IndexingResult> task = new IndexingCallable(m, collection);	
-			tasks.add(task);
+    
+    /**
+     * Claims a batch of items in mongodb and loads them. The claimed ids are tracked until the items leave the pipeline.
+     */
+    private <M extends Media> List<M> claim(MediaDAO<M> dao, IndexingStateStore state) {
+    	List<String> ids = state.claim(STEP);
+    	if (ids.isEmpty()) {
+    		return new ArrayList<M>();
+    	}
+    	
+    	inFlight.addAll(ids);
+    	List<M> media = dao.createQuery().field("_id").in(ids).asList();
+    	if (media.size() < ids.size()) {
+    		// deleted in between
+    		Set<String> found = new HashSet<String>();
+    		for (M m : media) {
+    			found.add(m.getId());
+    		}
+    		List<String> missing = new ArrayList<String>();
+    		for (String id : ids) {
+    			if (!found.contains(id)) {
+    				inFlight.remove(id);
+    				missing.add(id);
+    			}
+    		}
+    		state.release(missing);
+    	}
+    	return media;
+    }
+    
+    /**
+     * Returns the items claimed by this indexer that are not processed yet to the pending state,
+     * so that they can be claimed right away by other workers or after a restart.
+     */
+    private void releaseClaimed() {
+    	List<String> ids = new ArrayList<String>(inFlight);
+    	try {
+    		imageState.release(ids);
+    		videoState.release(ids);
+    		inFlight.removeAll(ids);
+    	}
+    	catch (Exception e) {
+    		LOGGER.error("Failed to release claimed items of " + collection, e);
+    	}
+    }
+    
+    /**
+     * Records a failed attempt for each of the media items, and deletes the items that have failed indexingMaxAttempts
+     * times. Rejected items, whose content can never be indexed, are deleted at once. Called by the annotate stage of
+     * the pipeline.
+     */
+    private void deleteFailedMedia(List<Media> media, boolean rejected) {
+    	List<String> imageIds = new ArrayList<String>(), videoIds = new ArrayList<String>();
+    	for (Media m : media) {
+    		if (m instanceof Image) {
+    			imageIds.add(m.getId());
+    		}
+    		else if (m instanceof Video) {
+    			videoIds.add(m.getId());
+    		}
+    		else {
+    			LOGGER.info("Unknown instance for " + m.getId());
+    		}
+    	}
+    	
+    	try {
+    		long start = System.nanoTime();
+    		Set<String> deletedImages = rejected ? imageState.rejected(imageIds) : imageState.failed(imageIds);
+    		if (!deletedImages.isEmpty()) {
+    			imageDAO.deleteByQuery(imageDAO.createQuery().field("_id").in(deletedImages));
+    			pageDAO.deleteByQuery(pageDAO.createQuery().field("_id").in(deletedImages));
+    			LinkDetectionRunner.LAST_POSITION = Math.max(0, LinkDetectionRunner.LAST_POSITION - deletedImages.size());
+    		}
+    		
+    		Set<String> deletedVideos = rejected ? videoState.rejected(videoIds) : videoState.failed(videoIds);
+    		if (!deletedVideos.isEmpty()) {
+    			videoDAO.deleteByQuery(videoDAO.createQuery().field("_id").in(deletedVideos));
+    		}
+    		mongoWriteLatency.recordSince(start);
+    	}
+    	catch(Exception e) {
+    		LOGGER.error("Exception during deletion of " + media.size() + " failed media items of " + collection, e);
+    	}
+    }
+    
+    /**
+     * Marks a batch of indexed media items as indexed in mongodb, with one unordered bulk write per type of media.
+     * Called by the annotate stage of the pipeline.
+     * 
+     * @return the ids of the media items that were updated
+     */
+	private Set<String> annotate(List<Media> media) {
+		List<Media> images = new ArrayList<Media>(), videos = new ArrayList<Media>();
+		for (Media m : media) {
+			if (m instanceof Image) {
+				images.add(m);
+			}
+			else if (m instanceof Video) {
+				videos.add(m);
+			}
+			else {
+				LOGGER.error("Unknown instance of " + m.getId());
+			}
 		}
-		return executor.invokeAll(tasks);
+		
+		Set<String> annotated = new HashSet<String>();
+		annotated.addAll(annotate(images, imageDAO, imageState));
+		annotated.addAll(annotate(videos, videoDAO, videoState));
+		
+		if (_publisher != null) {
+			for (Media m : media) {
+				if (annotated.contains(m.getId())) {
+					m.addAnnotation(ld);
+					_publisher.publish(MorphiaManager.getMorphia().toDBObject(m).toString());
+				}
+			}
+		}
+		return annotated;
 	}
 	
-
-	public Map<String, Media> consume(List<Future<IndexingResult>> futures) {
+	private Set<String> annotate(List<Media> media, MediaDAO<? extends Media> dao, IndexingStateStore state) {
+		Set<String> ids = new HashSet<String>();
+		if (media.isEmpty()) {
+			return ids;
+		}
 		
-		Map<String, Media> indexedMedia = new HashMap<String, Media>();
-		ArrayDeque<Future<IndexingResult>> queue = new ArrayDeque<Future<IndexingResult>>(futures);
-		while (!queue.isEmpty()) {	
-			Future<IndexingResult> future = queue.poll();
-			if(future.isCancelled()) {
-				continue;
-			}
-				
-			if(!future.isDone()) {
-				queue.offer(future);
-			}
-
-			try {
-				IndexingResult result = future.get();	
-				if(result.vector != null && result.vector.length > 0) {
-					Media media = result.media;		
-					boolean indexed = vIndexClient.index(media.getId(), result.vector);
-					if (indexed) {
-						media.addAnnotation(ld);
-						if(media instanceof Image) {
-							Query<Image> q = imageDAO.createQuery().filter("url", media.getUrl());
-							UpdateOperations<Image> ops = imageDAO.createUpdateOperations().add("annotations", ld);
-							UpdateResults r = imageDAO.update(q, ops); 
-							if(!r.getUpdatedExisting()) {
-								LOGGER.error("Visual Indexer failed to update media " + media.getId() + " in mongodb for " + collection);
-								continue;
-							}
-						}
-						else if(media instanceof Video) {
-							Query<Video> q = videoDAO.createQuery().filter("url", media.getUrl());
-							UpdateOperations<Video> ops = videoDAO.createUpdateOperations().add("annotations", ld);
-							UpdateResults r = videoDAO.update(q, ops);
-							if(!r.getUpdatedExisting()) {
-								LOGGER.error("Visual Indexer failed to update media " + media.getId() + " in mongodb for " + collection);
-								continue;
-							}
-						}
-						else {
-							LOGGER.error("Unknown instance of " + media.getId());
-							continue;
-						}
-						
-						indexedMedia.put(media.getId(), media);
-						
-						if (_publisher != null) {
-							_publisher.publish(MorphiaManager.getMorphia().toDBObject(media).toString());
-						}
-					} 
-					else {
-						LOGGER.info("Failed to index" + result.media.getId() + ". This will be deleted!");
-					}
-				}
-				else {
-					LOGGER.debug("Vector for " + result.media.getId() + " is empty. This will be deleted!");
-				}
-			} catch (InterruptedException e) {
-				LOGGER.error(e.getMessage());
-			} catch (ExecutionException e) {
-				LOGGER.error(e.getMessage());
-			}		
+		DBObject annotation = MorphiaManager.getMorphia().toDBObject(ld);
+		BulkWriteOperation bulk = dao.getCollection().initializeUnorderedBulkOperation();
+		for (Media m : media) {
+			ids.add(m.getId());
+			bulk.find(state.leased(m.getId()))
+				.updateOne(IndexingStateStore.indexedUpdate().append("$addToSet", new BasicDBObject("annotations", annotation)));
+		}
+		
+		long start = System.nanoTime();
+		int matched = 0;
+		try {
+			matched = bulk.execute().getMatchedCount();
+		}
+		catch (BulkWriteException e) {
+			LOGGER.error("Visual Indexer failed to update " + e.getWriteErrors().size() + " media in mongodb for " + collection);
+		}
+		finally {
+			mongoWriteLatency.recordSince(start);
 		}
 		
-		return indexedMedia;
+		if (matched < ids.size()) {
+			// find out which ones were updated
+			Set<String> indexed = state.getIndexed(ids);
+			LOGGER.error("Visual Indexer failed to update " + (ids.size() - indexed.size()) + " media in mongodb for " + collection);
+			return indexed;
+		}
+		return ids;
 	}	
 }
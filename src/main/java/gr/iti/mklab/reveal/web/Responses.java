@@ -1,6 +1,7 @@
 package gr.iti.mklab.reveal.web;
 
 import gr.iti.mklab.reveal.summarization.RankedImage;
+import gr.iti.mklab.reveal.summarization.SummarizationProgress;
 import gr.iti.mklab.simmo.core.items.Image;
 import gr.iti.mklab.simmo.core.items.Media;
 import gr.iti.mklab.simmo.core.items.Video;
@@ -121,6 +122,17 @@ public class Responses {
     	
         private List<RankedImage> summary = new ArrayList<RankedImage>();
         private String status = "running";
+        private String phase;
+        private long elapsed;
+        private Map<String, Long> phases;
+        
+        public SummaryResponse(String status, SummarizationProgress progress) {
+        	this.status = status;
+        	this.phase = progress.getPhase().name().toLowerCase();
+        	this.elapsed = progress.getElapsed();
+        	this.phases = progress.getPhaseTimes();
+        }
+        
 		public List<RankedImage> getSummary() {
 			return summary;
 		}
@@ -136,5 +148,26 @@ public class Responses {
 		public void setStatus(String status) {
 			this.status = status;
 		}
+
+		/**
+		 * @return the phase of the summarization, or null if it is not tracked
+		 */
+		public String getPhase() {
+			return phase;
+		}
+
+		/**
+		 * @return the milliseconds the summarization has been running, or took
+		 */
+		public long getElapsed() {
+			return elapsed;
+		}
+
+		/**
+		 * @return the milliseconds spent in each phase, or null if it is not tracked
+		 */
+		public Map<String, Long> getPhases() {
+			return phases;
+		}
     }
 }
@@ -11,10 +11,13 @@ import com.mongodb.client.MongoDatabase;
 import gr.iti.mklab.reveal.clustering.ClusteringCallable;
 import gr.iti.mklab.reveal.summarization.MediaSummarizer;
 import gr.iti.mklab.reveal.summarization.RankedImage;
+import gr.iti.mklab.reveal.summarization.SummarizationScheduler;
+import gr.iti.mklab.reveal.util.ComputePool;
 import gr.iti.mklab.reveal.util.Configuration;
 import gr.iti.mklab.reveal.crawler.CrawlQueueController;
 import gr.iti.mklab.reveal.entities.NEandRECallable;
 import gr.iti.mklab.reveal.visual.JsonResultSet;
+import gr.iti.mklab.reveal.visual.VectorStoreBackfill;
 import gr.iti.mklab.reveal.visual.VisualFeatureExtractor;
 import gr.iti.mklab.reveal.visual.VisualIndexClient;
 import gr.iti.mklab.reveal.web.Responses.SimilarityResponse;
@@ -61,7 +64,6 @@ import java.util.*;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 
 
 @Controller
@@ -96,13 +98,19 @@ public class RevealController {
         String visualIndexStatistics = vIndexClient.statistics();
         _logger.info(visualIndexStatistics);
         
-        crawlControler = new CrawlQueueController();
+        summarizationScheduler = new SummarizationScheduler(Configuration.SUMMARIZATION_THREADS);
+        
+        crawlControler = new CrawlQueueController(summarizationScheduler);
     }
 
     @PreDestroy
     public void cleanUp() throws Exception {
     	_logger.info("Spring Container destroy");
     	executorService.shutdownNow();
+    	if (summarizationScheduler != null) {
+    		summarizationScheduler.shutdown();
+    	}
+    	ComputePool.shutdown();
     	
         MorphiaManager.tearDown();
         if (crawlControler != null) {
@@ -433,6 +441,20 @@ public class RevealController {
         }
     }
 
+    /**
+     * Copies the vectors of media indexed before the introduction of the local vector store
+     * from the visual index service to the local store of the specified collection
+     *
+     * @param collection
+     * @return
+     */
+    @RequestMapping(value = "/media/{collection}/vectors/backfill", method = RequestMethod.GET, produces = "application/json")
+    @ResponseBody
+    public String backfillVectors(@PathVariable(value = "collection") String collection) {
+    	executorService.submit(new VectorStoreBackfill(collection));
+        return "{ \"status\" : \"Backfilling visual vectors for " + collection + "\"}";
+    }
+
     ////////////////////////////////////////////////////////
     ////////// C L U S T E R I N G /////////////////////////
     ///////////////////////////////////////////////////////
@@ -605,8 +627,7 @@ public class RevealController {
     ////////// S U M M A R I Z A T I O N //////////////////
     ///////////////////////////////////////////////////////
     
-    private ExecutorService summarizationExecutor = Executors.newSingleThreadExecutor();
-    private Map<String, Future<List<RankedImage>>> futures = new HashMap<String, Future<List<RankedImage>>>();
+    private SummarizationScheduler summarizationScheduler;
     
     /**
      * Execute summarization procedure
@@ -624,25 +645,42 @@ public class RevealController {
     		@RequestParam(value = "visualCuttof", required = false, defaultValue = "0.2") double visualCuttof,
     		@RequestParam(value = "randomJumpWeight", required = false, defaultValue = "0.75") double randomJumpWeight,
     		@RequestParam(value = "scanMu", required = false, defaultValue = "3") int scanMu,
-    		@RequestParam(value = "scanEpsilon", required = false, defaultValue = "0.65") double scanEpsilon)
+    		@RequestParam(value = "scanEpsilon", required = false, defaultValue = "0.65") double scanEpsilon,
+    		@RequestParam(value = "incremental", required = false, defaultValue = "true") boolean incremental)
     				throws Exception {
     	
-    	Future<List<RankedImage>> response = futures.get(collection);
-    	if(response == null) {
-    		MediaSummarizer summarizer = new MediaSummarizer(collection, similarityCuttof, visualCuttof, 
-    				randomJumpWeight, scanMu, scanEpsilon);
-    		
-        	response = summarizationExecutor.submit(summarizer);
-        	if(response != null) {
-        		futures.put(collection, response);
-        		return "Summarization command is submitted.";
-        	}
-        	else {
-        		return "Summarization command failed to be submitted.";
-        	}
+    	MediaSummarizer summarizer = new MediaSummarizer(collection, similarityCuttof, visualCuttof, 
+    			randomJumpWeight, scanMu, scanEpsilon);
+    	summarizer.setIncremental(incremental);
+    	try {
+    		if(summarizationScheduler.submit(summarizer)) {
+    			return "Summarization command is submitted.";
+    		}
+    		else {
+    			return "Summarization task has already been submitted.";
+    		}
+    	}
+    	catch(Exception e) {
+    		_logger.error("Summarization of " + collection + " failed to be submitted: " + e.getMessage(), e);
+    		return "Summarization command failed to be submitted.";
+    	}
+    }
+    
+    /**
+     * Cancel a queued or running summarization
+     *
+     * @param collection
+     * @return
+     */
+    @RequestMapping(value = "/media/{collection}/summarize/cancel", 
+    		method = RequestMethod.GET, produces = "application/json")
+    @ResponseBody
+    public String cancelSummarization(@PathVariable(value = "collection") String collection) {
+    	if(summarizationScheduler.cancel(collection)) {
+    		return "Summarization task is cancelled.";
     	}
     	else {
-    		return "Summarization task has already been submitted.";
+    		return "No summarization task is running.";
     	}
     }
     
@@ -651,8 +689,8 @@ public class RevealController {
     public Responses.SummaryResponse getSummary(@PathVariable(value = "collection") String collection,
                                             @RequestParam(value = "count", required = false, defaultValue = "50") int count) {
         
-    	Future<List<RankedImage>> response = futures.get(collection);
-    	if(response == null) {
+    	SummarizationScheduler.Job job = summarizationScheduler.get(collection);
+    	if(job == null) {
     		DAO<RankedImage, String> rankedImagesDAO = new BasicDAO<RankedImage, String>(
     				RankedImage.class, 
     				MorphiaManager.getMongoClient(), 
@@ -677,24 +715,30 @@ public class RevealController {
     		return sr;
     	}
     	
-    	if(response.isCancelled()) {
-    		return new SummaryResponse("cancelled");
+    	if(job.isCancelled()) {
+    		// forgotten once it has stopped, so that the next request reports the stored summary
+    		summarizationScheduler.remove(collection);
+    		return new SummaryResponse("cancelled", job.getProgress());
     	}
     	
-    	if(!response.isDone()) {
-    		return new SummaryResponse("running");
+    	if(!job.isDone()) {
+    		return new SummaryResponse("running", job.getProgress());
     	}
     	else {
     		try {
-    			SummaryResponse sr = new SummaryResponse("finnished");
-				List<RankedImage> summary = response.get();
+    			SummaryResponse sr = new SummaryResponse("finnished", job.getProgress());
+				List<RankedImage> summary = job.getResult();
 				sr.setSummary(summary);
 				
-				futures.remove(collection);
+				summarizationScheduler.remove(collection);
 				
 				return sr;
-			} catch (InterruptedException | ExecutionException e) {
-				return new SummaryResponse("failed");
+			} catch (ExecutionException e) {
+				summarizationScheduler.remove(collection);
+				return new SummaryResponse("failed", job.getProgress());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return new SummaryResponse("failed", job.getProgress());
 			}
     	}
     	
@@ -0,0 +1,126 @@
+package gr.iti.mklab.reveal.clustering;
+
+import gr.iti.mklab.reveal.clustering.index.NeighborhoodIndex;
+import gr.iti.mklab.reveal.visual.VectorStore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.math3.ml.clustering.Cluster;
+
+/**
+ * Measures DBSCAN on synthetic VLAD-like float32 vectors (unit vectors around random centers)
+ * with each type of neighborhood index, for growing numbers of points.
+ *
+ * Usage: NeighborhoodIndexBenchmark [dimension] [sizes...]. The defaults are 1024 dimensions
+ * and 2000, 20000 and 200000 points, which needs a heap of about 4GB. The linear scan is
+ * skipped above 20000 points.
+ */
+public class NeighborhoodIndexBenchmark {
+
+	private final static double EPS = 0.6;
+	private final static int MIN_POINTS = 2;
+	private final static int LINEAR_LIMIT = 20000;
+
+	public static void main(String[] args) {
+		int dimension = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+		int[] sizes = {2000, 20000, 200000};
+		if (args.length > 1) {
+			sizes = new int[args.length - 1];
+			for (int i = 1; i < args.length; i++) {
+				sizes[i - 1] = Integer.parseInt(args[i]);
+			}
+		}
+
+		for (int size : sizes) {
+			List<Point> points = generate(size, dimension, new Random(size));
+			int expected = -1;
+			for (NeighborhoodIndex.Type type : NeighborhoodIndex.Type.values()) {
+				if (type == NeighborhoodIndex.Type.LINEAR && size > LINEAR_LIMIT) {
+					continue;
+				}
+
+				// warm up on a small sample
+				new DBSCANClusterer<Point>(EPS, MIN_POINTS, type).cluster(points.subList(0, Math.min(1000, size)));
+
+				long start = System.nanoTime();
+				List<Cluster<Point>> clusters = new DBSCANClusterer<Point>(EPS, MIN_POINTS, type).cluster(points);
+				long elapsed = (System.nanoTime() - start) / 1000000;
+
+				int clustered = 0;
+				for (Cluster<Point> cluster : clusters) {
+					clustered += cluster.getPoints().size();
+				}
+				if (expected < 0) {
+					expected = clustered;
+				}
+				System.out.println(String.format("%-8s n=%-7d dim=%-5d %8d ms  %6d clusters  %7d points clustered (%.2f%% of the exact result)",
+						type, size, dimension, elapsed, clusters.size(), clustered, 100. * clustered / Math.max(1, expected)));
+			}
+		}
+	}
+
+	/**
+	 * Unit vectors scattered around random centers, with 4 points per center on average.
+	 */
+	private static List<Point> generate(int size, int dimension, Random random) {
+		int numOfCenters = Math.max(1, size / 4);
+		double[][] centers = new double[numOfCenters][];
+		for (int c = 0; c < numOfCenters; c++) {
+			centers[c] = normalize(gaussian(dimension, 1, random));
+		}
+
+		// the noise is scaled so that points of the same center are about 0.4 apart
+		double sigma = 0.4 / Math.sqrt(2 * dimension);
+		List<Point> points = new ArrayList<Point>(size);
+		for (int i = 0; i < size; i++) {
+			double[] center = centers[random.nextInt(numOfCenters)];
+			double[] vector = gaussian(dimension, sigma, random);
+			for (int d = 0; d < dimension; d++) {
+				vector[d] += center[d];
+			}
+			points.add(new Point(VectorStore.toFloats(normalize(vector))));
+		}
+		return points;
+	}
+
+	private static double[] gaussian(int dimension, double sigma, Random random) {
+		double[] vector = new double[dimension];
+		for (int d = 0; d < dimension; d++) {
+			vector[d] = sigma * random.nextGaussian();
+		}
+		return vector;
+	}
+
+	private static double[] normalize(double[] vector) {
+		double norm = 0;
+		for (double value : vector) {
+			norm += value * value;
+		}
+		norm = Math.sqrt(norm);
+		for (int d = 0; d < vector.length; d++) {
+			vector[d] /= norm;
+		}
+		return vector;
+	}
+
+	private static class Point implements FloatClusterable {
+
+		private final float[] vector;
+
+		Point(float[] vector) {
+			this.vector = vector;
+		}
+
+		@Override
+		public float[] getVector() {
+			return vector;
+		}
+
+		@Override
+		public double[] getPoint() {
+			return VectorStore.toDoubles(vector);
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package gr.iti.mklab.reveal.summarization;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Compares the cosine similarity of {@link Vector} with that of {@link SparseVector} on synthetic
+ * short texts, such as titles of tweets, with a zipfian distribution of terms, and checks that
+ * the two agree.
+ *
+ * Usage: SparseVectorBenchmark [documents] [terms per document]. The defaults are 5000 documents
+ * of 12 terms, which is about 12.5 million similarities per round.
+ */
+public class SparseVectorBenchmark {
+
+	private final static int VOCABULARY = 20000;
+	private final static int ROUNDS = 3;
+
+	public static void main(String[] args) {
+		int numOfDocs = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		int termsPerDoc = args.length > 1 ? Integer.parseInt(args[1]) : 12;
+
+		Random random = new Random(numOfDocs);
+		double[] cdf = zipf(VOCABULARY, 1.1);
+
+		Vocabulary vocabulary = new Vocabulary();
+		List<Vector> vectors = new ArrayList<Vector>(numOfDocs);
+		for(int d = 0; d < numOfDocs; d++) {
+			Set<String> tokens = new HashSet<String>();
+			while(tokens.size() < termsPerDoc) {
+				tokens.add("term" + sample(cdf, random));
+			}
+			vocabulary.addDoc(tokens);
+			vectors.add(new Vector(tokens, vocabulary));
+		}
+
+		long start = System.nanoTime();
+		List<SparseVector> sparseVectors = new ArrayList<SparseVector>(numOfDocs);
+		for(Vector vector : vectors) {
+			sparseVectors.add(SparseVector.of(vector));
+		}
+		System.out.println(String.format("Conversion of %d vectors: %d ms", numOfDocs, (System.nanoTime() - start) / 1000000));
+
+		double maxError = 0;
+		for(int i = 0; i < 1000; i++) {
+			int a = random.nextInt(numOfDocs), b = random.nextInt(numOfDocs);
+			double expected = vectors.get(a).cosine(vectors.get(b));
+			double actual = sparseVectors.get(a).cosine(sparseVectors.get(b));
+			maxError = Math.max(maxError, Math.abs(expected - actual));
+		}
+		System.out.println(String.format("Max difference on 1000 random pairs: %.2e", maxError));
+
+		int pairs = numOfDocs * (numOfDocs - 1) / 2;
+		for(int round = 0; round < ROUNDS; round++) {
+			start = System.nanoTime();
+			double sum = 0;
+			for(int i = 0; i < numOfDocs; i++) {
+				Vector v1 = vectors.get(i);
+				for(int j = i + 1; j < numOfDocs; j++) {
+					sum += v1.cosine(vectors.get(j));
+				}
+			}
+			long vectorTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			double sparseSum = 0;
+			for(int i = 0; i < numOfDocs; i++) {
+				SparseVector v1 = sparseVectors.get(i);
+				for(int j = i + 1; j < numOfDocs; j++) {
+					sparseSum += v1.cosine(sparseVectors.get(j));
+				}
+			}
+			long sparseTime = System.nanoTime() - start;
+
+			System.out.println(String.format("Round %d: Vector %.1f ns/pair, SparseVector %.1f ns/pair (x%.1f), sums %.3f / %.3f",
+					round, (double) vectorTime / pairs, (double) sparseTime / pairs, (double) vectorTime / sparseTime, sum, sparseSum));
+		}
+	}
+
+	private static double[] zipf(int n, double s) {
+		double[] cdf = new double[n];
+		double sum = 0;
+		for(int i = 0; i < n; i++) {
+			sum += 1. / Math.pow(i + 1, s);
+			cdf[i] = sum;
+		}
+		for(int i = 0; i < n; i++) {
+			cdf[i] /= sum;
+		}
+		return cdf;
+	}
+
+	private static int sample(double[] cdf, Random random) {
+		int i = java.util.Arrays.binarySearch(cdf, random.nextDouble());
+		return i >= 0 ? i : -i - 1;
+	}
+}
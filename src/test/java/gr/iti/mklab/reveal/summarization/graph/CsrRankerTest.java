@@ -0,0 +1,180 @@
+package gr.iti.mklab.reveal.summarization.graph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import edu.uci.ics.jung.graph.DirectedSparseGraph;
+import edu.uci.ics.jung.graph.Graph;
+import edu.ucla.sspace.matrix.SparseHashMatrix;
+import edu.ucla.sspace.matrix.SparseMatrix;
+import edu.ucla.sspace.vector.DenseVector;
+import edu.ucla.sspace.vector.DoubleVector;
+import gr.iti.mklab.reveal.summarization.divrank.DivRank;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class CsrRankerTest {
+
+	private final static int VERTICES = 200;
+	private final static int DEGREE = 4;
+	private final static double D = 0.75;
+	private final static double TOLERANCE = 1e-4;
+
+	@Test
+	public void pagerankMatchesPageRankWithPriors() throws Exception {
+		Random random = new Random(42);
+		CsrGraph graph = randomGraph(random);
+		double[] priors = priors(random);
+		assertTrue(countDangling(graph) > 0);
+
+		CsrRanker.Ranking ranking = CsrRanker.pagerank(graph, priors, D, null);
+		assertTrue(ranking.isConverged());
+		assertEquals(1, sum(ranking.getRanks()), 1e-9);
+
+		// the JUNG scorer uses the weights as transition probabilities, so it is given the normalized ones
+		Map<String, Double> priorsMap = new HashMap<String, Double>();
+		for (int v = 0; v < VERTICES; v++) {
+			priorsMap.put(name(v), priors[v]);
+		}
+		Map<String, Double> expected = GraphRanker.pagerankScoring(toJung(graph), priorsMap, D);
+
+		double[] scores = CsrRanker.normalize(ranking.getRanks());
+		for (int v = 0; v < VERTICES; v++) {
+			assertEquals(expected.get(name(v)), scores[v], TOLERANCE);
+		}
+	}
+
+	@Test
+	public void divrankMatchesDivRank() throws Exception {
+		Random random = new Random(7);
+		CsrGraph graph = randomGraph(random);
+		double[] priors = priors(random);
+
+		CsrRanker.Ranking ranking = CsrRanker.divrank(graph, priors, D, null);
+		assertTrue(ranking.isConverged());
+		assertEquals(1, sum(ranking.getRanks()), 1e-9);
+
+		// GraphRanker stops DivRank after 20 iterations, so it is run here until it converges
+		DivRank divrank = new DivRank(D);
+		divrank.setIterations(1000);
+		DoubleVector ranks = divrank.rankMatrix(toMatrix(graph), new DenseVector(priors.clone()));
+		double[] expected = new double[VERTICES];
+		for (int v = 0; v < VERTICES; v++) {
+			expected[v] = ranks.get(v);
+		}
+		expected = CsrRanker.normalize(expected);
+
+		double[] scores = CsrRanker.normalize(ranking.getRanks());
+		for (int v = 0; v < VERTICES; v++) {
+			assertEquals(expected[v], scores[v], TOLERANCE);
+		}
+	}
+
+	@Test
+	public void warmStartFromConvergedRanksStopsEarly() throws Exception {
+		Random random = new Random(11);
+		CsrGraph graph = randomGraph(random);
+		double[] priors = priors(random);
+
+		CsrRanker.Ranking pagerank = CsrRanker.pagerank(graph, priors, D, null);
+		CsrRanker.Ranking warmPagerank = CsrRanker.pagerank(graph, priors, D, pagerank.getRanks());
+		assertTrue(warmPagerank.getIterations() < pagerank.getIterations());
+		assertRanksEqual(pagerank.getRanks(), warmPagerank.getRanks());
+
+		CsrRanker.Ranking divrank = CsrRanker.divrank(graph, priors, D, null);
+		CsrRanker.Ranking warmDivrank = CsrRanker.divrank(graph, priors, D, divrank.getRanks());
+		assertTrue(warmDivrank.getIterations() < divrank.getIterations());
+		assertRanksEqual(divrank.getRanks(), warmDivrank.getRanks());
+	}
+
+	/**
+	 * @return an undirected graph with random weights, directed by random times with ties, so
+	 *         that the oldest vertices have no out-edges
+	 */
+	private static CsrGraph randomGraph(Random random) {
+		CsrGraph.Builder builder = new CsrGraph.Builder(VERTICES);
+		for (int u = 0; u < VERTICES; u++) {
+			for (int i = 0; i < DEGREE; i++) {
+				builder.addEdge(u, random.nextInt(VERTICES), 0.1f + 0.9f * random.nextFloat());
+			}
+		}
+		long[] times = new long[VERTICES];
+		for (int v = 0; v < VERTICES; v++) {
+			times[v] = random.nextInt(VERTICES / 2);
+		}
+		return builder.build().toDirected(times);
+	}
+
+	private static double[] priors(Random random) {
+		double[] priors = new double[VERTICES];
+		for (int v = 0; v < VERTICES; v++) {
+			priors[v] = 0.1 + random.nextDouble();
+		}
+		return CsrRanker.toDistribution(priors);
+	}
+
+	private static Graph<String, Edge> toJung(CsrGraph graph) {
+		int[] offsets = graph.getOffsets(), targets = graph.getTargets();
+		float[] weights = graph.getWeights();
+
+		Graph<String, Edge> jungGraph = new DirectedSparseGraph<String, Edge>();
+		for (int v = 0; v < graph.getVertexCount(); v++) {
+			jungGraph.addVertex(name(v));
+		}
+		for (int u = 0; u < graph.getVertexCount(); u++) {
+			double sum = 0;
+			for (int e = offsets[u]; e < offsets[u + 1]; e++) {
+				sum += weights[e];
+			}
+			for (int e = offsets[u]; e < offsets[u + 1]; e++) {
+				jungGraph.addEdge(new Edge(weights[e] / sum), name(u), name(targets[e]));
+			}
+		}
+		return jungGraph;
+	}
+
+	private static SparseMatrix toMatrix(CsrGraph graph) {
+		int[] offsets = graph.getOffsets(), targets = graph.getTargets();
+		float[] weights = graph.getWeights();
+
+		SparseMatrix matrix = new SparseHashMatrix(graph.getVertexCount(), graph.getVertexCount());
+		for (int u = 0; u < graph.getVertexCount(); u++) {
+			for (int e = offsets[u]; e < offsets[u + 1]; e++) {
+				matrix.set(u, targets[e], weights[e]);
+			}
+		}
+		return matrix;
+	}
+
+	private static int countDangling(CsrGraph graph) {
+		int count = 0;
+		for (int v = 0; v < graph.getVertexCount(); v++) {
+			if (graph.degree(v) == 0) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static void assertRanksEqual(double[] expected, double[] ranks) {
+		for (int v = 0; v < expected.length; v++) {
+			assertEquals(expected[v], ranks[v], TOLERANCE * expected[v] + 1e-9);
+		}
+	}
+
+	private static double sum(double[] ranks) {
+		double sum = 0;
+		for (double rank : ranks) {
+			sum += rank;
+		}
+		return sum;
+	}
+
+	private static String name(int v) {
+		return "v" + v;
+	}
+}
@@ -0,0 +1,183 @@
+package gr.iti.mklab.reveal.summarization.graph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import gr.iti.mklab.reveal.summarization.graph.KnnGraphBuilder.KnnGraph;
+import gr.iti.mklab.reveal.summarization.graph.KnnGraphBuilder.Similarity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class KnnGraphBuilderTest {
+
+	private final static int DIMENSION = 16;
+	private final static int K = 10;
+
+	private final static Similarity<float[]> COSINE = (v1, v2) -> {
+		double dot = 0, n1 = 0, n2 = 0;
+		for (int i = 0; i < v1.length; i++) {
+			dot += v1[i] * v2[i];
+			n1 += v1[i] * v1[i];
+			n2 += v2[i] * v2[i];
+		}
+		return dot / Math.sqrt(n1 * n2);
+	};
+
+	@Test
+	public void smallSetIsExact() throws Exception {
+		List<float[]> items = clusters(new Random(42), 10, 50);
+		KnnGraph graph = builder().build(items, COSINE);
+
+		int[][] exact = bruteForce(items);
+		for (int v = 0; v < items.size(); v++) {
+			assertEquals(K, graph.size(v));
+			assertEquals(toSet(exact[v]), neighbors(graph, v));
+		}
+	}
+
+	@Test
+	public void recallAgainstBruteForce() throws Exception {
+		List<float[]> items = clusters(new Random(7), 50, 80);
+		int n = items.size();
+		KnnGraph graph = builder().build(items, COSINE);
+
+		assertTrue("recall " + recall(graph, bruteForce(items)), recall(graph, bruteForce(items)) >= 0.9);
+		assertTrue(graph.getRecall() >= 0.9);
+		// the point of NN-Descent
+		assertTrue(graph.getEvaluations() < (long) n * (n - 1) / 2);
+		assertSorted(graph, items);
+	}
+
+	@Test
+	public void warmStartUsesCurrentSimilarities() throws Exception {
+		Random random = new Random(11);
+		List<float[]> items = clusters(random, 50, 80);
+		KnnGraph previous = builder().build(items, COSINE);
+
+		// the items move, so the similarities kept in the previous graph are stale
+		List<float[]> moved = new ArrayList<float[]>();
+		for (float[] item : items) {
+			float[] v = item.clone();
+			for (int i = 0; i < DIMENSION; i++) {
+				v[i] += 0.3f * (float) random.nextGaussian();
+			}
+			moved.add(v);
+		}
+		KnnGraph graph = builder().build(moved, COSINE, previous);
+
+		assertSorted(graph, moved);
+		assertTrue("recall " + recall(graph, bruteForce(moved)), recall(graph, bruteForce(moved)) >= 0.9);
+	}
+
+	@Test
+	public void warmStartOfUnchangedItemsIsCheap() throws Exception {
+		List<float[]> items = clusters(new Random(13), 50, 80);
+		KnnGraph previous = builder().build(items, COSINE);
+		KnnGraph graph = builder().build(items, COSINE, previous);
+
+		assertSorted(graph, items);
+		assertTrue(recall(graph, bruteForce(items)) >= recall(previous, bruteForce(items)));
+		assertTrue(graph.getEvaluations() < previous.getEvaluations() / 2);
+	}
+
+	private static KnnGraphBuilder<float[]> builder() {
+		KnnGraphBuilder<float[]> builder = new KnnGraphBuilder<float[]>();
+		builder.setK(K);
+		builder.setSeed(1);
+		return builder;
+	}
+
+	/**
+	 * @return items around random centers, so that the exact neighbors are well separated from the rest
+	 */
+	private static List<float[]> clusters(Random random, int numOfClusters, int size) {
+		List<float[]> items = new ArrayList<float[]>();
+		for (int c = 0; c < numOfClusters; c++) {
+			float[] center = new float[DIMENSION];
+			for (int i = 0; i < DIMENSION; i++) {
+				center[i] = (float) random.nextGaussian();
+			}
+			for (int j = 0; j < size; j++) {
+				float[] item = new float[DIMENSION];
+				for (int i = 0; i < DIMENSION; i++) {
+					item[i] = center[i] + 0.2f * (float) random.nextGaussian();
+				}
+				items.add(item);
+			}
+		}
+		return items;
+	}
+
+	private static int[][] bruteForce(List<float[]> items) {
+		int n = items.size();
+		int[][] exact = new int[n][];
+		for (int v = 0; v < n; v++) {
+			final int item = v;
+			double[] similarities = new double[n];
+			Integer[] order = new Integer[n];
+			for (int u = 0; u < n; u++) {
+				similarities[u] = u == v ? Double.NEGATIVE_INFINITY : COSINE.similarity(items.get(v), items.get(u));
+				order[u] = u;
+			}
+			Arrays.sort(order, (a, b) -> Double.compare(similarities[b], similarities[a]));
+			exact[item] = new int[K];
+			for (int j = 0; j < K; j++) {
+				exact[item][j] = order[j];
+			}
+		}
+		return exact;
+	}
+
+	private static double recall(KnnGraph graph, int[][] exact) {
+		long found = 0, total = 0;
+		for (int v = 0; v < exact.length; v++) {
+			Set<Integer> neighbors = neighbors(graph, v);
+			for (int u : exact[v]) {
+				if (neighbors.contains(u)) {
+					found++;
+				}
+				total++;
+			}
+		}
+		return (double) found / total;
+	}
+
+	/**
+	 * Checks that the neighbors are in decreasing similarity, with the similarity of the items.
+	 */
+	private static void assertSorted(KnnGraph graph, List<float[]> items) {
+		for (int v = 0; v < graph.getNumOfItems(); v++) {
+			for (int j = 0; j < graph.size(v); j++) {
+				int u = graph.getNeighbor(v, j);
+				assertTrue(u != v);
+				assertEquals(COSINE.similarity(items.get(v), items.get(u)), graph.getSimilarity(v, j), 1e-5);
+				if (j > 0) {
+					assertTrue(graph.getSimilarity(v, j) <= graph.getSimilarity(v, j - 1));
+				}
+			}
+		}
+	}
+
+	private static Set<Integer> neighbors(KnnGraph graph, int v) {
+		Set<Integer> neighbors = new HashSet<Integer>();
+		for (int j = 0; j < graph.size(v); j++) {
+			neighbors.add(graph.getNeighbor(v, j));
+		}
+		return neighbors;
+	}
+
+	private static Set<Integer> toSet(int[] items) {
+		Set<Integer> set = new HashSet<Integer>();
+		for (int item : items) {
+			set.add(item);
+		}
+		return set;
+	}
+}
@@ -0,0 +1,144 @@
+package gr.iti.mklab.reveal.summarization.scan;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import edu.uci.ics.jung.graph.UndirectedSparseGraph;
+import gr.iti.mklab.reveal.summarization.graph.CsrGraph;
+import gr.iti.mklab.reveal.summarization.graph.Edge;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+public class CsrScanCommunityDetectorTest {
+
+	private final static int GROUPS = 8;
+	private final static int GROUP_SIZE = 25;
+	// vertices without a group, which become hubs or outliers
+	private final static int LOOSE = 20;
+	private final static int VERTICES = GROUPS * GROUP_SIZE + LOOSE;
+
+	@Test
+	public void similaritiesMatchStructuralSimilarityScorer() throws Exception {
+		Random random = new Random(42);
+		Set<Long> edges = randomEdges(random);
+		CsrGraph graph = toCsr(edges);
+		OrderedGraph jungGraph = toJung(edges);
+
+		StructuralSimilarityScorer<Integer, Edge> scorer = new StructuralSimilarityScorer<Integer, Edge>(jungGraph);
+		double[] similarities = CsrScanCommunityDetector.getSimilarities(graph);
+		int[] offsets = graph.getOffsets(), targets = graph.getTargets();
+		for (int u = 0; u < VERTICES; u++) {
+			for (int e = offsets[u]; e < offsets[u + 1]; e++) {
+				double expected = scorer.getEdgeScore(jungGraph.findEdge(u, targets[e]));
+				assertEquals(expected, similarities[e], 1e-12);
+			}
+		}
+	}
+
+	@Test
+	public void communitiesMatchScanCommunityDetector() throws Exception {
+		double[] epsilons = { 0.3, 0.4, 0.5 };
+		int[] mus = { 2, 4, 6 };
+		for (long seed = 0; seed < 3; seed++) {
+			Set<Long> edges = randomEdges(new Random(seed));
+			CsrGraph graph = toCsr(edges);
+			OrderedGraph jungGraph = toJung(edges);
+
+			for (double epsilon : epsilons) {
+				for (int mu : mus) {
+					String parameters = "seed " + seed + ", epsilon " + epsilon + ", mu " + mu;
+					ScanCommunityStructure<Integer, Edge> expected =
+							new ScanCommunityDetector<Integer, Edge>(epsilon, mu).getCommunityStructure(jungGraph);
+					int[] communities = new CsrScanCommunityDetector(epsilon, mu).getCommunities(graph);
+
+					for (int v = 0; v < VERTICES; v++) {
+						assertEquals(parameters + ", vertex " + v, expected.getCommunityIndex(v), communities[v]);
+					}
+					assertEquals(parameters, expected.getNumberOfCommunities(), CsrScanCommunityDetector.getMembers(communities).size());
+				}
+			}
+		}
+	}
+
+	@Test
+	public void plantedGroupsAreFound() throws Exception {
+		int[] communities = new CsrScanCommunityDetector(0.4, 4).getCommunities(toCsr(randomEdges(new Random(7))));
+
+		List<int[]> members = CsrScanCommunityDetector.getMembers(communities);
+		assertTrue(members.size() >= GROUPS / 2);
+		for (int[] community : members) {
+			// a community does not mix the groups
+			Set<Integer> groups = new HashSet<Integer>();
+			for (int v : community) {
+				if (v < GROUPS * GROUP_SIZE) {
+					groups.add(v / GROUP_SIZE);
+				}
+			}
+			assertEquals(1, groups.size());
+		}
+	}
+
+	/**
+	 * Visits the vertices, and the neighbors of each vertex, in increasing order, which is the
+	 * order of the rows of the CSR graph.
+	 */
+	private static class OrderedGraph extends UndirectedSparseGraph<Integer, Edge> {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public Collection<Integer> getVertices() {
+			return new TreeSet<Integer>(super.getVertices());
+		}
+
+		@Override
+		public Collection<Integer> getNeighbors(Integer vertex) {
+			Collection<Integer> neighbors = super.getNeighbors(vertex);
+			return neighbors == null ? null : new TreeSet<Integer>(neighbors);
+		}
+	}
+
+	/**
+	 * @return dense groups with a few edges between them, and loose vertices linked to random
+	 *         vertices, each edge as the smaller endpoint in the high bits
+	 */
+	private static Set<Long> randomEdges(Random random) {
+		Set<Long> edges = new TreeSet<Long>();
+		for (int u = 0; u < VERTICES; u++) {
+			for (int v = u + 1; v < VERTICES; v++) {
+				boolean grouped = u < GROUPS * GROUP_SIZE && v < GROUPS * GROUP_SIZE;
+				double p = !grouped ? 0.02 : u / GROUP_SIZE == v / GROUP_SIZE ? 0.4 : 0.01;
+				if (random.nextDouble() < p) {
+					edges.add(((long) u << 32) | v);
+				}
+			}
+		}
+		return edges;
+	}
+
+	private static CsrGraph toCsr(Set<Long> edges) {
+		CsrGraph.Builder builder = new CsrGraph.Builder(VERTICES);
+		for (long edge : edges) {
+			builder.addEdge((int) (edge >>> 32), (int) edge, 1f);
+		}
+		return builder.build();
+	}
+
+	private static OrderedGraph toJung(Set<Long> edges) {
+		OrderedGraph graph = new OrderedGraph();
+		for (int v = 0; v < VERTICES; v++) {
+			graph.addVertex(v);
+		}
+		for (long edge : edges) {
+			graph.addEdge(new Edge(1), (int) (edge >>> 32), (int) edge);
+		}
+		return graph;
+	}
+}
@@ -0,0 +1,111 @@
+package gr.iti.mklab.reveal.summarization.scan;
+
+import gr.iti.mklab.reveal.summarization.graph.CsrGraph;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import edu.uci.ics.jung.graph.Graph;
+import edu.uci.ics.jung.graph.UndirectedSparseGraph;
+
+/**
+ * Compares {@link CsrScanCommunityDetector} with the JUNG based {@link ScanCommunityDetector}
+ * on a synthetic graph of planted communities, about the size of the kNN graph of a large
+ * collection: each vertex links to about 10 vertices, mostly of its own community of 50.
+ *
+ * Usage: ScanBenchmark [edges] [jung]. The defaults are 1 million edges, with the JUNG detector;
+ * pass false as the second argument to skip it on graphs that do not fit in its memory.
+ */
+public class ScanBenchmark {
+
+	private final static int DEGREE = 10;
+	private final static int COMMUNITY_SIZE = 50;
+	private final static double EPSILON = 0.3;
+	private final static int MU = 3;
+	private final static int ROUNDS = 3;
+
+	public static void main(String[] args) throws Exception {
+		int numOfEdges = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		boolean jung = args.length > 1 ? Boolean.parseBoolean(args[1]) : true;
+
+		int n = numOfEdges / DEGREE;
+		Random random = new Random(n);
+		CsrGraph.Builder builder = new CsrGraph.Builder(n);
+		Set<Long> edges = new HashSet<Long>(2 * numOfEdges);
+		while(edges.size() < numOfEdges) {
+			for(int u = 0; u < n && edges.size() < numOfEdges; u++) {
+				// one link in ten leaves the community
+				int v = random.nextInt(10) == 0 ? random.nextInt(n) : (u / COMMUNITY_SIZE) * COMMUNITY_SIZE + random.nextInt(COMMUNITY_SIZE);
+				if(u != v && edges.add(((long) Math.min(u, v) << 32) | Math.max(u, v))) {
+					builder.addEdge(u, v, 1f);
+				}
+			}
+		}
+		long start = System.nanoTime();
+		CsrGraph graph = builder.build();
+		System.out.println(String.format("CSR graph of %d vertices and %d edges: %d ms",
+				graph.getVertexCount(), graph.getEdgeCount(), (System.nanoTime() - start) / 1000000));
+
+		CsrScanCommunityDetector detector = new CsrScanCommunityDetector(EPSILON, MU);
+		int[] communities = null;
+		for(int round = 0; round < ROUNDS; round++) {
+			start = System.nanoTime();
+			CsrScanCommunityDetector.getSimilarities(graph);
+			long similaritiesTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			communities = detector.getCommunities(graph);
+			long scanTime = System.nanoTime() - start;
+
+			System.out.println(String.format("Round %d: structural similarities %d ms, SCAN (including them) %d ms, %s",
+					round, similaritiesTime / 1000000, scanTime / 1000000, summary(communities)));
+		}
+
+		if(!jung) {
+			return;
+		}
+
+		Graph<Integer, Integer> jungGraph = new UndirectedSparseGraph<Integer, Integer>();
+		for(int v = 0; v < n; v++) {
+			jungGraph.addVertex(v);
+		}
+		int[] offsets = graph.getOffsets();
+		int[] targets = graph.getTargets();
+		int edge = 0;
+		for(int u = 0; u < n; u++) {
+			for(int e = offsets[u]; e < offsets[u + 1]; e++) {
+				if(u < targets[e]) {
+					jungGraph.addEdge(edge++, u, targets[e]);
+				}
+			}
+		}
+
+		start = System.nanoTime();
+		ScanCommunityStructure<Integer, Integer> structure = new ScanCommunityDetector<Integer, Integer>(EPSILON, MU)
+				.getCommunityStructure(jungGraph);
+		long jungTime = System.nanoTime() - start;
+
+		int agree = 0;
+		for(int v = 0; v < n; v++) {
+			if((structure.getCommunityIndex(v) >= 0) == (communities[v] >= 0)) {
+				agree++;
+			}
+		}
+		System.out.println(String.format("JUNG SCAN %d ms, %d communities of %d members, membership agrees on %d of %d vertices",
+				jungTime / 1000000, structure.getNumberOfCommunities(), structure.getNumberOfMembers(), agree, n));
+	}
+
+	private static String summary(int[] communities) {
+		List<int[]> members = CsrScanCommunityDetector.getMembers(communities);
+		int numOfMembers = 0, numOfCommunities = 0;
+		for(int[] community : members) {
+			if(community.length > 0) {
+				numOfCommunities++;
+				numOfMembers += community.length;
+			}
+		}
+		return numOfCommunities + " communities of " + numOfMembers + " members";
+	}
+}
@@ -0,0 +1,51 @@
+package gr.iti.mklab.reveal.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+public class ImageUtilsTest {
+
+	@Test
+	public void probeDimensions() throws Exception {
+		BufferedImage image = new BufferedImage(1234, 567, BufferedImage.TYPE_INT_RGB);
+		for (String format : new String[] {"jpg", "png", "gif", "bmp"}) {
+			byte[] content = encode(image, format);
+			assertArrayEquals(format, new int[] {1234, 567}, ImageUtils.probeDimensions(content));
+			assertArrayEquals(format, new int[] {1234, 567}, ImageUtils.getDimensions(content));
+		}
+
+		byte[] truncated = Arrays.copyOf(encode(image, "jpg"), 30);
+		assertNull(ImageUtils.probeDimensions(truncated));
+		assertNull(ImageUtils.getDimensions(new byte[100]));
+	}
+
+	@Test
+	public void decodeSubsampled() throws Exception {
+		BufferedImage image = new BufferedImage(1234, 567, BufferedImage.TYPE_INT_RGB);
+		int maxNumPixels = 768 * 512 / 16;
+
+		BufferedImage decoded = ImageUtils.decode(encode(image, "png"), maxNumPixels);
+		assertEquals(247, decoded.getWidth());
+		assertEquals(114, decoded.getHeight());
+		assertTrue(decoded.getWidth() * decoded.getHeight() >= maxNumPixels);
+
+		decoded = ImageUtils.decode(encode(image, "png"), 768 * 512 * 4);
+		assertEquals(1234, decoded.getWidth());
+	}
+
+	private static byte[] encode(BufferedImage image, String format) throws Exception {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ImageIO.write(image, format, output);
+		return output.toByteArray();
+	}
+}
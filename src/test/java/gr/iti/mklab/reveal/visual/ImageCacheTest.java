@@ -0,0 +1,206 @@
+package gr.iti.mklab.reveal.visual;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ImageCacheTest {
+
+	private final static int IMAGE_SIZE = 1000;
+	// the hex sha1 a url file holds
+	private final static int URL_SIZE = 40;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final Random random = new Random(42);
+
+	@Test
+	public void putAndGet() throws Exception {
+		ImageCache cache = new ImageCache(folder.getRoot(), 1024 * 1024);
+		byte[] image = randomBytes(IMAGE_SIZE);
+
+		String hash = cache.put("http://a/1.jpg", image);
+		assertEquals(hash, cache.getHash("http://a/1.jpg"));
+		assertTrue(Arrays.equals(image, cache.getBytes("http://a/1.jpg")));
+		assertNull(cache.getBytes("http://a/missing.jpg"));
+
+		assertEquals(IMAGE_SIZE + URL_SIZE, cache.size());
+		assertDiskMatches(cache);
+	}
+
+	@Test
+	public void sameContentIsStoredOnce() throws Exception {
+		ImageCache cache = new ImageCache(folder.getRoot(), 1024 * 1024);
+		byte[] image = randomBytes(IMAGE_SIZE);
+
+		String hash = cache.put("http://a/1.jpg", image);
+		assertEquals(hash, cache.put("http://b/1.jpg", image));
+		// a url put again is counted once
+		cache.put("http://b/1.jpg", image);
+
+		assertEquals(IMAGE_SIZE + 2 * URL_SIZE, cache.size());
+		assertEquals(1, new File(folder.getRoot(), "content").list().length);
+		assertDiskMatches(cache);
+	}
+
+	@Test
+	public void urlMovesToNewContent() throws Exception {
+		ImageCache cache = new ImageCache(folder.getRoot(), 1024 * 1024);
+		byte[] first = randomBytes(IMAGE_SIZE), second = randomBytes(2 * IMAGE_SIZE);
+
+		cache.put("http://a/1.jpg", first);
+		String hash = cache.put("http://a/1.jpg", second);
+
+		assertEquals(hash, cache.getHash("http://a/1.jpg"));
+		assertTrue(Arrays.equals(second, cache.getBytes("http://a/1.jpg")));
+		assertEquals(3 * IMAGE_SIZE + URL_SIZE, cache.size());
+		assertDiskMatches(cache);
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsed() throws Exception {
+		ImageCache cache = new ImageCache(folder.getRoot(), 3 * (IMAGE_SIZE + URL_SIZE));
+		byte[] a = randomBytes(IMAGE_SIZE), b = randomBytes(IMAGE_SIZE), c = randomBytes(IMAGE_SIZE), d = randomBytes(IMAGE_SIZE);
+
+		cache.put("http://a", a);
+		String hashB = cache.put("http://b", b);
+		cache.put("http://c", c);
+		assertEquals(3 * (IMAGE_SIZE + URL_SIZE), cache.size());
+
+		// a becomes the most recently used, so b is evicted for d
+		assertNotNull(cache.getBytes("http://a"));
+		cache.put("http://d", d);
+
+		assertNull(cache.getHash("http://b"));
+		assertNull(cache.getContent(hashB));
+		assertNotNull(cache.getBytes("http://a"));
+		assertNotNull(cache.getBytes("http://c"));
+		assertNotNull(cache.getBytes("http://d"));
+		assertEquals(3 * (IMAGE_SIZE + URL_SIZE), cache.size());
+		assertDiskMatches(cache);
+
+		// evicted content is stored again when it is put again
+		cache.put("http://b", b);
+		assertTrue(Arrays.equals(b, cache.getBytes("http://b")));
+		assertTrue(cache.size() <= 3 * (IMAGE_SIZE + URL_SIZE));
+		assertDiskMatches(cache);
+	}
+
+	@Test
+	public void vectorsAreCountedAndEvicted() throws Exception {
+		int dimension = 64;
+		ImageCache cache = new ImageCache(folder.getRoot(), 2 * (IMAGE_SIZE + URL_SIZE + 4 * dimension));
+		double[] vector = new double[dimension];
+		for (int i = 0; i < dimension; i++) {
+			vector[i] = random.nextGaussian();
+		}
+
+		String hash = cache.put("http://a", randomBytes(IMAGE_SIZE));
+		assertNull(cache.getVector(hash));
+		cache.putVector(hash, vector);
+		assertArrayEquals(VectorStore.toDoubles(VectorStore.toFloats(vector)), cache.getVectorOfUrl("http://a"), 0);
+		assertEquals(IMAGE_SIZE + URL_SIZE + 4 * dimension, cache.size());
+
+		// replacing the vector does not count it twice
+		cache.putVector(hash, vector);
+		assertEquals(IMAGE_SIZE + URL_SIZE + 4 * dimension, cache.size());
+
+		// the vector of content that is not cached is not stored
+		cache.putVector("0000000000000000000000000000000000000000", vector);
+		assertEquals(IMAGE_SIZE + URL_SIZE + 4 * dimension, cache.size());
+		assertDiskMatches(cache);
+
+		cache.put("http://b", randomBytes(IMAGE_SIZE));
+		cache.put("http://c", randomBytes(IMAGE_SIZE));
+		assertNull(cache.getVector(hash));
+		assertDiskMatches(cache);
+	}
+
+	@Test
+	public void concurrentPutsKeepDiskAndAccountingInSync() throws Exception {
+		ImageCache cache = new ImageCache(folder.getRoot(), 5 * (IMAGE_SIZE + URL_SIZE));
+		byte[][] images = new byte[20][];
+		for (int i = 0; i < images.length; i++) {
+			images[i] = randomBytes(IMAGE_SIZE);
+		}
+
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			Random threadRandom = new Random(t);
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < 500; i++) {
+					// few images under many urls, so that content is evicted while it is put again
+					int image = threadRandom.nextInt(images.length);
+					cache.put("http://" + threadRandom.nextInt(40), images[image]);
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertTrue(cache.size() <= 5 * (IMAGE_SIZE + URL_SIZE));
+		assertDiskMatches(cache);
+		for (File url : new File(folder.getRoot(), "urls").listFiles()) {
+			String hash = new String(Files.readAllBytes(url.toPath()), StandardCharsets.US_ASCII);
+			assertTrue("Url file " + url.getName() + " without content", new File(new File(folder.getRoot(), "content"), hash).exists());
+		}
+		for (int i = 0; i < 40; i++) {
+			String hash = cache.getHash("http://" + i);
+			if (hash != null) {
+				assertNotNull(cache.getContent(hash));
+			}
+		}
+	}
+
+	@Test
+	public void directoryIsLocked() throws Exception {
+		new ImageCache(folder.getRoot(), 1024 * 1024);
+		try {
+			new ImageCache(folder.getRoot(), 1024 * 1024);
+			fail("The directory of a cache in use was opened again");
+		}
+		catch (IOException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Checks that the accounted size is the size of the files on disk.
+	 */
+	private void assertDiskMatches(ImageCache cache) {
+		long size = length(new File(folder.getRoot(), "content")) + length(new File(folder.getRoot(), "vectors"))
+				+ new File(folder.getRoot(), "urls").list().length * URL_SIZE;
+		assertEquals(size, cache.size());
+	}
+
+	private static long length(File directory) {
+		long length = 0;
+		for (File file : directory.listFiles()) {
+			length += file.length();
+		}
+		return length;
+	}
+
+	private byte[] randomBytes(int n) {
+		byte[] bytes = new byte[n];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+}
@@ -0,0 +1,192 @@
+package gr.iti.mklab.reveal.visual;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import gr.iti.mklab.reveal.visual.IndexingStateStore.State;
+import gr.iti.mklab.simmo.core.annotations.lowleveldescriptors.LocalDescriptors;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoException;
+import com.mongodb.ServerAddress;
+
+/**
+ * Runs against a mongod on localhost, and is skipped if there is none.
+ */
+public class IndexingStateStoreTest {
+
+	private final static String DATABASE = "reveal_indexing_state_test";
+	private final static int ITEMS = 10;
+	private final static long LEASE = 200;
+
+	private MongoClient client;
+	private DBCollection collection;
+
+	@Before
+	public void setup() {
+		client = new MongoClient(new ServerAddress("localhost"), MongoClientOptions.builder().serverSelectionTimeout(1000).build());
+		DB db = client.getDB(DATABASE);
+		try {
+			db.command("ping");
+		}
+		catch (MongoException e) {
+			client.close();
+			client = null;
+			Assume.assumeTrue(false);
+		}
+		collection = db.getCollection("Image");
+		collection.drop();
+		for (int i = 0; i < ITEMS; i++) {
+			collection.insert(new BasicDBObject("_id", "media_" + i));
+		}
+	}
+
+	@After
+	public void teardown() {
+		if (client != null) {
+			client.getDB(DATABASE).dropDatabase();
+			client.close();
+		}
+	}
+
+	@Test
+	public void claimIsExclusive() {
+		IndexingStateStore first = new IndexingStateStore(collection, "first", LEASE, 3);
+		IndexingStateStore second = new IndexingStateStore(collection, "second", LEASE, 3);
+
+		List<String> claimedByFirst = first.claim(ITEMS / 2);
+		List<String> claimedBySecond = second.claim(ITEMS);
+		assertEquals(ITEMS / 2, claimedByFirst.size());
+		assertEquals(ITEMS - ITEMS / 2, claimedBySecond.size());
+
+		Set<String> all = new HashSet<String>(claimedByFirst);
+		all.addAll(claimedBySecond);
+		assertEquals(ITEMS, all.size());
+		assertTrue(first.claim(ITEMS).isEmpty());
+	}
+
+	@Test
+	public void expiredLeaseIsClaimedAgain() throws Exception {
+		IndexingStateStore first = new IndexingStateStore(collection, "first", LEASE, 3);
+		IndexingStateStore second = new IndexingStateStore(collection, "second", LEASE, 3);
+
+		List<String> claimed = first.claim(ITEMS);
+		assertEquals(ITEMS, claimed.size());
+		assertTrue(second.claim(ITEMS).isEmpty());
+
+		Thread.sleep(2 * LEASE);
+		assertEquals(ITEMS, second.claim(ITEMS).size());
+
+		// the first worker no longer holds the lease, so its outcome is not recorded
+		String id = claimed.get(0);
+		assertEquals(0, collection.update(first.leased(id), IndexingStateStore.indexedUpdate()).getN());
+		assertTrue(first.failed(Collections.singletonList(id)).isEmpty());
+		assertEquals(State.IN_FLIGHT.name(), getState(id));
+	}
+
+	@Test
+	public void renewKeepsLease() throws Exception {
+		IndexingStateStore first = new IndexingStateStore(collection, "first", LEASE, 3);
+		IndexingStateStore second = new IndexingStateStore(collection, "second", LEASE, 3);
+
+		assertEquals(ITEMS, first.claim(ITEMS).size());
+		for (int i = 0; i < 4; i++) {
+			Thread.sleep(LEASE / 2);
+			first.renew();
+		}
+		assertTrue(second.claim(ITEMS).isEmpty());
+	}
+
+	@Test
+	public void indexedItemsAreNotClaimed() {
+		IndexingStateStore store = new IndexingStateStore(collection, "first", LEASE, 3);
+
+		List<String> claimed = store.claim(ITEMS);
+		for (String id : claimed) {
+			assertEquals(1, collection.update(store.leased(id), IndexingStateStore.indexedUpdate()).getN());
+		}
+		assertEquals(new HashSet<String>(claimed), store.getIndexed(claimed));
+		assertTrue(store.claim(ITEMS).isEmpty());
+	}
+
+	@Test
+	public void failedItemsAreRetriedUntilMaxAttempts() throws Exception {
+		IndexingStateStore store = new IndexingStateStore(collection, "first", LEASE, 2);
+
+		List<String> claimed = store.claim(ITEMS);
+		assertTrue(store.failed(claimed).isEmpty());
+		// retried once the lease of the attempt expires
+		assertTrue(store.claim(ITEMS).isEmpty());
+		Thread.sleep(2 * LEASE);
+
+		claimed = store.claim(ITEMS);
+		assertEquals(ITEMS, claimed.size());
+		assertEquals(new HashSet<String>(claimed), store.failed(claimed));
+
+		Thread.sleep(2 * LEASE);
+		assertTrue(store.claim(ITEMS).isEmpty());
+	}
+
+	@Test
+	public void rejectedItemsAreGivenUp() throws Exception {
+		IndexingStateStore store = new IndexingStateStore(collection, "first", LEASE, 3);
+
+		List<String> claimed = store.claim(ITEMS);
+		assertEquals(new HashSet<String>(claimed), store.rejected(claimed));
+
+		Thread.sleep(2 * LEASE);
+		assertTrue(store.claim(ITEMS).isEmpty());
+	}
+
+	@Test
+	public void releasedItemsArePending() {
+		IndexingStateStore first = new IndexingStateStore(collection, "first", LEASE, 3);
+		IndexingStateStore second = new IndexingStateStore(collection, "second", LEASE, 3);
+
+		List<String> claimed = first.claim(ITEMS);
+		first.release(claimed);
+		assertEquals(State.PENDING.name(), getState(claimed.get(0)));
+		assertEquals(ITEMS, second.claim(ITEMS).size());
+	}
+
+	@Test
+	public void annotatedItemsAreMigratedOnce() {
+		collection.insert(new BasicDBObject("_id", "annotated")
+				.append("annotations", Collections.singletonList(new BasicDBObject("className", LocalDescriptors.class.getName()))));
+
+		IndexingStateStore store = new IndexingStateStore(collection, "first", LEASE, 3);
+		assertEquals(State.INDEXED.name(), getState("annotated"));
+
+		// the state index exists, so an item annotated later without a state is left alone
+		collection.insert(new BasicDBObject("_id", "annotated later")
+				.append("annotations", Collections.singletonList(new BasicDBObject("className", LocalDescriptors.class.getName()))));
+		new IndexingStateStore(collection, "second", LEASE, 3);
+		assertEquals(null, getState("annotated later"));
+
+		// but it is not claimed either
+		List<String> claimed = new ArrayList<String>(store.claim(ITEMS + 2));
+		assertEquals(ITEMS, claimed.size());
+		assertTrue(!claimed.contains("annotated later"));
+	}
+
+	private String getState(String id) {
+		BasicDBObject item = (BasicDBObject) collection.findOne(new BasicDBObject("_id", id));
+		BasicDBObject state = (BasicDBObject) item.get(IndexingStateStore.FIELD);
+		return state == null ? null : state.getString("state");
+	}
+}
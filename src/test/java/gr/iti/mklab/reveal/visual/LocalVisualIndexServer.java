@@ -0,0 +1,171 @@
+package gr.iti.mklab.reveal.visual;
+
+import gr.iti.mklab.reveal.visual.VectorBatchCodec.VectorBatch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-memory stand-in of the visual index service, serving the endpoints used by
+ * {@link VisualIndexClient} on a local port. Queries are answered by brute force.
+ */
+public class LocalVisualIndexServer {
+
+	private final static String CONTEXT = "/VisualIndexService/rest/visual/";
+
+	private final Map<String, Map<String, float[]>> collections = new ConcurrentHashMap<String, Map<String, float[]>>();
+
+	private HttpServer server;
+
+	public void start() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext(CONTEXT, this::handle);
+		server.start();
+	}
+
+	public void stop() {
+		if (server != null) {
+			server.stop(0);
+		}
+	}
+
+	public String getWebServiceHost() {
+		return "http://localhost:" + server.getAddress().getPort() + "/VisualIndexService";
+	}
+
+	public int size(String collection) {
+		return getCollection(collection).size();
+	}
+
+	private Map<String, float[]> getCollection(String collection) {
+		return collections.computeIfAbsent(collection, c -> new ConcurrentHashMap<String, float[]>());
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		String[] path = exchange.getRequestURI().getPath().substring(CONTEXT.length()).split("/");
+		if (path.length != 2) {
+			send(exchange, 404, "application/json", "{}".getBytes(StandardCharsets.UTF_8));
+			return;
+		}
+
+		String endpoint = path[0];
+		Map<String, float[]> collection = getCollection(path[1]);
+		try (InputStream body = exchange.getRequestBody()) {
+			switch (endpoint) {
+			case "add":
+				sendJson(exchange, "{\"success\":true}");
+				break;
+			case "index_batch":
+				VectorBatch batch = VectorBatchCodec.decode(body);
+				List<String> indexed = new ArrayList<String>();
+				for (int i = 0; i < batch.size(); i++) {
+					collection.put(batch.ids.get(i), batch.vectors.get(i));
+					indexed.add(batch.ids.get(i));
+				}
+				sendJson(exchange, "{\"indexed\":" + new Gson().toJson(indexed) + "}");
+				break;
+			case "vectors":
+				List<String> ids = new ArrayList<String>();
+				List<float[]> vectors = new ArrayList<float[]>();
+				for (String id : VectorBatchCodec.decode(body).ids) {
+					float[] vector = collection.get(id);
+					if (vector != null) {
+						ids.add(id);
+						vectors.add(vector);
+					}
+				}
+				send(exchange, 200, VectorBatchCodec.CONTENT_TYPE, VectorBatchCodec.encodeFloats(ids, vectors));
+				break;
+			case "vector":
+				String id = getParameter(exchange, "id");
+				float[] vector = id == null ? null : collection.get(id);
+				if (vector == null) {
+					send(exchange, 404, "application/json", "{}".getBytes(StandardCharsets.UTF_8));
+				}
+				else {
+					sendJson(exchange, new Gson().toJson(vector));
+				}
+				break;
+			case "query_batch":
+				double threshold = Double.parseDouble(getParameter(exchange, "threshold"));
+				StringBuilder results = new StringBuilder("[");
+				for (float[] query : VectorBatchCodec.decode(body).vectors) {
+					if (results.length() > 1) {
+						results.append(',');
+					}
+					results.append(query(collection, query, threshold).toJSON());
+				}
+				sendJson(exchange, results.append(']').toString());
+				break;
+			default:
+				send(exchange, 404, "application/json", "{}".getBytes(StandardCharsets.UTF_8));
+			}
+		}
+		catch (Exception e) {
+			send(exchange, 500, "text/plain", String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	private JsonResultSet query(Map<String, float[]> collection, float[] query, double threshold) {
+		List<Map.Entry<String, Double>> distances = new ArrayList<Map.Entry<String, Double>>();
+		for (Map.Entry<String, float[]> entry : collection.entrySet()) {
+			double distance = 0;
+			float[] vector = entry.getValue();
+			for (int i = 0; i < vector.length; i++) {
+				double d = vector[i] - query[i];
+				distance += d * d;
+			}
+			// same transformation as in JsonResultSet
+			if ((2.0 - Math.sqrt(distance)) / 2.0 >= threshold) {
+				distances.add(new AbstractMap.SimpleEntry<String, Double>(entry.getKey(), distance));
+			}
+		}
+		Collections.sort(distances, (d1, d2) -> Double.compare(d1.getValue(), d2.getValue()));
+
+		JsonResultSet resultSet = new JsonResultSet();
+		for (int rank = 0; rank < distances.size(); rank++) {
+			resultSet.addResult(distances.get(rank).getKey(), rank + 1, distances.get(rank).getValue());
+		}
+		return resultSet;
+	}
+
+	private String getParameter(HttpExchange exchange, String name) throws IOException {
+		String query = exchange.getRequestURI().getRawQuery();
+		if (query == null) {
+			return null;
+		}
+		for (String parameter : query.split("&")) {
+			String[] pair = parameter.split("=", 2);
+			if (pair.length == 2 && pair[0].equals(name)) {
+				return URLDecoder.decode(pair[1], "UTF-8");
+			}
+		}
+		return null;
+	}
+
+	private void sendJson(HttpExchange exchange, String json) throws IOException {
+		send(exchange, 200, "application/json", json.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private void send(HttpExchange exchange, int code, String contentType, byte[] body) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.sendResponseHeaders(code, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+}
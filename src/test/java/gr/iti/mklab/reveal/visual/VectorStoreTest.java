@@ -0,0 +1,152 @@
+package gr.iti.mklab.reveal.visual;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class VectorStoreTest {
+
+	private final static int DIMENSION = 8;
+	// more than the records of one mapped segment
+	private final static int SIZE = 20000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void putAndGetAcrossSegments() throws Exception {
+		Random random = new Random(42);
+		Map<String, float[]> vectors = new HashMap<String, float[]>();
+		try (VectorStore store = new VectorStore("test", folder.getRoot(), DIMENSION)) {
+			for (int i = 0; i < SIZE; i++) {
+				float[] vector = randomVector(random);
+				store.put("media_" + i, vector);
+				vectors.put("media_" + i, vector);
+			}
+
+			assertEquals(SIZE, store.size());
+			assertNull(store.get("missing"));
+			assertFalse(store.contains("missing"));
+			for (Map.Entry<String, float[]> entry : vectors.entrySet()) {
+				assertArrayEquals(entry.getValue(), store.get(entry.getKey()), 0f);
+			}
+
+			Map<String, float[]> visited = new HashMap<String, float[]>();
+			store.forEach((id, vector) -> visited.put(id, vector));
+			assertEquals(vectors.keySet(), visited.keySet());
+		}
+	}
+
+	@Test
+	public void putReplacesVector() throws Exception {
+		try (VectorStore store = new VectorStore("test", folder.getRoot(), DIMENSION)) {
+			store.put("media", constant(1f));
+			store.put("media", constant(2f));
+
+			assertEquals(1, store.size());
+			assertArrayEquals(constant(2f), store.get("media"), 0f);
+		}
+	}
+
+	@Test
+	public void reopenKeepsVectors() throws Exception {
+		Random random = new Random(7);
+		Map<String, float[]> vectors = new HashMap<String, float[]>();
+		try (VectorStore store = new VectorStore("test", folder.getRoot(), DIMENSION)) {
+			for (int i = 0; i < SIZE; i++) {
+				float[] vector = randomVector(random);
+				store.put("media_" + i, vector);
+				vectors.put("media_" + i, vector);
+			}
+			store.put("media_3", constant(3f));
+			vectors.put("media_3", constant(3f));
+		}
+
+		try (VectorStore store = new VectorStore("test", folder.getRoot(), DIMENSION)) {
+			assertEquals(SIZE, store.size());
+			for (Map.Entry<String, float[]> entry : vectors.entrySet()) {
+				assertArrayEquals(entry.getValue(), store.get(entry.getKey()), 0f);
+			}
+
+			// appended after the records written before the restart
+			store.put("media_new", constant(4f));
+			assertEquals(SIZE + 1, store.size());
+		}
+
+		try (VectorStore store = new VectorStore("test", folder.getRoot(), DIMENSION)) {
+			assertArrayEquals(constant(4f), store.get("media_new"), 0f);
+			assertArrayEquals(vectors.get("media_0"), store.get("media_0"), 0f);
+		}
+	}
+
+	@Test
+	public void directoryIsLockedWhileOpen() throws Exception {
+		File directory = folder.getRoot();
+		VectorStore store = new VectorStore("test", directory, DIMENSION);
+		try {
+			new VectorStore("test", directory, DIMENSION);
+			fail("The directory of an open store was opened again");
+		}
+		catch (IOException e) {
+			// expected
+		}
+		store.put("media", constant(1f));
+		store.close();
+
+		try (VectorStore reopened = new VectorStore("test", directory, DIMENSION)) {
+			assertTrue(reopened.contains("media"));
+		}
+	}
+
+	@Test
+	public void closedStoreThrows() throws Exception {
+		VectorStore store = new VectorStore("test", folder.getRoot(), DIMENSION);
+		store.put("media", constant(1f));
+		store.close();
+		// closing twice is allowed
+		store.close();
+
+		try {
+			store.get("media");
+			fail("A closed store was read");
+		}
+		catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsWrongDimension() throws Exception {
+		try (VectorStore store = new VectorStore("test", folder.getRoot(), DIMENSION)) {
+			store.put("media", new float[DIMENSION + 1]);
+		}
+	}
+
+	private static float[] randomVector(Random random) {
+		float[] vector = new float[DIMENSION];
+		for (int i = 0; i < DIMENSION; i++) {
+			vector[i] = (float) random.nextGaussian();
+		}
+		return vector;
+	}
+
+	private static float[] constant(float value) {
+		float[] vector = new float[DIMENSION];
+		Arrays.fill(vector, value);
+		return vector;
+	}
+}
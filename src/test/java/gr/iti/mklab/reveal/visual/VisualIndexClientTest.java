@@ -0,0 +1,97 @@
+package gr.iti.mklab.reveal.visual;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class VisualIndexClientTest {
+
+	private final static String COLLECTION = "test";
+	private final static int DIMENSION = 1024;
+
+	private LocalVisualIndexServer server;
+	private VisualIndexClient client;
+
+	@Before
+	public void setup() throws Exception {
+		server = new LocalVisualIndexServer();
+		server.start();
+		client = new VisualIndexClient(server.getWebServiceHost(), COLLECTION);
+	}
+
+	@After
+	public void teardown() {
+		server.stop();
+	}
+
+	@Test
+	public void batchRoundTrip() throws Exception {
+		Random random = new Random(42);
+		Map<String, double[]> vectors = new LinkedHashMap<String, double[]>();
+		for (int i = 0; i < 200; i++) {
+			vectors.put("media_" + i, randomUnitVector(random));
+		}
+
+		Set<String> indexed = client.indexBatch(vectors);
+		assertEquals(vectors.keySet(), indexed);
+		assertEquals(vectors.size(), server.size(COLLECTION));
+
+		List<String> ids = new ArrayList<String>(vectors.keySet());
+		ids.add("missing");
+		Map<String, float[]> stored = client.getVectors(ids);
+		assertEquals(vectors.size(), stored.size());
+		for (Map.Entry<String, double[]> entry : vectors.entrySet()) {
+			assertArrayEquals(VectorStore.toFloats(entry.getValue()), stored.get(entry.getKey()), 0f);
+		}
+
+		List<double[]> queries = Arrays.asList(vectors.get("media_3"), vectors.get("media_17"));
+		List<JsonResultSet> results = client.querySimilarBatch(queries, 0.9);
+		assertEquals(2, results.size());
+		assertEquals("media_3", results.get(0).getResults().get(0).getId());
+		assertEquals("media_17", results.get(1).getResults().get(0).getId());
+	}
+
+	@Test
+	public void codecRoundTrip() throws Exception {
+		List<String> ids = Arrays.asList("a", "\u03b5\u03b9\u03ba\u03cc\u03bd\u03b1", "");
+		List<float[]> vectors = Arrays.asList(new float[] {1f, 2f}, new float[] {-1f, .5f}, new float[] {0f, Float.MIN_VALUE});
+
+		VectorBatchCodec.VectorBatch batch = VectorBatchCodec.decode(new ByteArrayInputStream(VectorBatchCodec.encodeFloats(ids, vectors)));
+		assertEquals(ids, batch.ids);
+		assertEquals(2, batch.dimension);
+		for (int i = 0; i < vectors.size(); i++) {
+			assertArrayEquals(vectors.get(i), batch.vectors.get(i), 0f);
+		}
+
+		batch = VectorBatchCodec.decode(new ByteArrayInputStream(VectorBatchCodec.encodeIds(ids)));
+		assertEquals(ids, batch.ids);
+		assertTrue(batch.vectors.isEmpty());
+	}
+
+	private static double[] randomUnitVector(Random random) {
+		double[] vector = new double[DIMENSION];
+		double norm = 0;
+		for (int i = 0; i < DIMENSION; i++) {
+			vector[i] = random.nextGaussian();
+			norm += vector[i] * vector[i];
+		}
+		norm = Math.sqrt(norm);
+		for (int i = 0; i < DIMENSION; i++) {
+			vector[i] /= norm;
+		}
+		return vector;
+	}
+}